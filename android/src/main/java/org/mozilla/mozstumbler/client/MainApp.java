@@ -16,6 +16,7 @@ import android.content.IntentFilter;
 import android.content.ServiceConnection;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
+import android.net.wifi.ScanResult;
 import android.os.Build;
 import android.os.Handler;
 import android.os.IBinder;
@@ -33,13 +34,15 @@ import org.mozilla.mozstumbler.client.subactivities.LogActivity;
 import org.mozilla.mozstumbler.client.util.NotificationUtil;
 import org.mozilla.mozstumbler.service.AppGlobals;
 import org.mozilla.mozstumbler.service.Prefs;
+import org.mozilla.mozstumbler.service.core.eventbus.Subscriber;
 import org.mozilla.mozstumbler.service.core.logging.MockAcraLog;
 import org.mozilla.mozstumbler.service.stumblerthread.datahandling.DataStorageManager;
 import org.mozilla.mozstumbler.service.stumblerthread.scanners.ScanManager;
 import org.mozilla.mozstumbler.service.stumblerthread.scanners.WifiScanner;
+import org.mozilla.mozstumbler.service.stumblerthread.scanners.cellscanner.CellInfo;
 import org.mozilla.mozstumbler.service.stumblerthread.scanners.cellscanner.CellScanner;
-import org.mozilla.mozstumbler.service.uploadthread.AsyncUploadParam;
 import org.mozilla.mozstumbler.service.uploadthread.AsyncUploader;
+import org.mozilla.mozstumbler.service.uploadthread.UploadScheduler;
 import org.mozilla.mozstumbler.service.utils.NetworkInfo;
 import org.mozilla.osmdroid.tileprovider.constants.TileFilePath;
 
@@ -47,6 +50,7 @@ import java.io.File;
 import java.io.IOException;
 import java.lang.ref.WeakReference;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.atomic.AtomicBoolean;
 
@@ -147,7 +151,7 @@ public class MainApp extends Application
         NetworkInfo.createGlobalInstance(this);
         LogActivity.LogMessageReceiver.createGlobalInstance(this);
         // This will create, and register the receiver
-        ObservedLocationsReceiver.createGlobalInstance(this.getApplicationContext());
+        ObservedLocationsReceiver.createGlobalInstance();
 
         enableStrictMode();
 
@@ -241,14 +245,8 @@ public class MainApp extends Application
             mMainActivity.get().stop();
         }
 
-        AsyncUploader uploader = new AsyncUploader();
-        AsyncUploadParam param = new AsyncUploadParam(
-                ClientPrefs.getInstance().getUseWifiOnly(),
-                Prefs.getInstance().getNickname(),
-                Prefs.getInstance().getEmail());
-
-        uploader.execute(param);
-
+        // Send what the session left, on the connection the policy allows
+        UploadScheduler.requestUpload(this, true /* flush */);
     }
 
     @TargetApi(9)
@@ -291,10 +289,10 @@ public class MainApp extends Application
                 mReceiverIsRegistered = true;
 
                 IntentFilter intentFilter = new IntentFilter();
-                intentFilter.addAction(WifiScanner.ACTION_WIFIS_SCANNED);
-                intentFilter.addAction(CellScanner.ACTION_CELLS_SCANNED);
                 intentFilter.addAction(ACTION_LOW_BATTERY);
                 LocalBroadcastManager.getInstance(getApplicationContext()).registerReceiver(this, intentFilter);
+                WifiScanner.WIFIS_SCANNED.subscribe(mWifiScannedSubscriber);
+                CellScanner.CELLS_SCANNED.subscribe(mCellsScannedSubscriber);
 
                 // This can't be a local broadcast as it comes from notification menu
                 getApplicationContext().registerReceiver(this, new IntentFilter(INTENT_TURN_OFF));
@@ -304,6 +302,8 @@ public class MainApp extends Application
         public void unregister() {
             if (mReceiverIsRegistered) {
                 LocalBroadcastManager.getInstance(MainApp.this).unregisterReceiver(this);
+                WifiScanner.WIFIS_SCANNED.unsubscribe(mWifiScannedSubscriber);
+                CellScanner.CELLS_SCANNED.unsubscribe(mCellsScannedSubscriber);
                 mReceiverIsRegistered = false;
             }
         }
@@ -320,10 +320,28 @@ public class MainApp extends Application
                 stopScanning();
             }
 
+            updateUi();
+        }
+
+        private void updateUi() {
             if (mMainActivity.get() != null) {
                 mMainActivity.get().updateUiOnMainThread();
             }
         }
+
+        private final Subscriber<List<ScanResult>> mWifiScannedSubscriber = new Subscriber<List<ScanResult>>() {
+            @Override
+            public void onEvent(List<ScanResult> results) {
+                updateUi();
+            }
+        };
+
+        private final Subscriber<List<CellInfo>> mCellsScannedSubscriber = new Subscriber<List<CellInfo>>() {
+            @Override
+            public void onEvent(List<CellInfo> cells) {
+                updateUi();
+            }
+        };
     }
 
     private Map<String, Long> getOldDbStats(Context context) {
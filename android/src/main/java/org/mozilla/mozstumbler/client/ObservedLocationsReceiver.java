@@ -4,21 +4,17 @@
 
 package org.mozilla.mozstumbler.client;
 
-import android.content.BroadcastReceiver;
-import android.content.Context;
-import android.content.Intent;
-import android.content.IntentFilter;
 import android.location.Location;
 import android.os.Build;
 import android.os.Handler;
 import android.os.Looper;
-import android.support.v4.content.LocalBroadcastManager;
 
 import org.json.JSONException;
 import org.json.JSONObject;
 import org.mozilla.mozstumbler.client.mapview.MapFragment;
 import org.mozilla.mozstumbler.client.mapview.ObservationPoint;
 import org.mozilla.mozstumbler.service.AppGlobals;
+import org.mozilla.mozstumbler.service.core.eventbus.Subscriber;
 import org.mozilla.mozstumbler.service.core.logging.Log;
 import org.mozilla.mozstumbler.service.stumblerthread.Reporter;
 import org.mozilla.mozstumbler.service.stumblerthread.datahandling.StumblerBundle;
@@ -28,7 +24,7 @@ import java.lang.ref.WeakReference;
 import java.util.Iterator;
 import java.util.LinkedList;
 
-public class ObservedLocationsReceiver extends BroadcastReceiver {
+public class ObservedLocationsReceiver implements Subscriber<StumblerBundle> {
 
     private static final String LOG_TAG = AppGlobals.makeLogTag(ObservedLocationsReceiver.class.getSimpleName());
     private WeakReference<MapFragment> mMapActivity = new WeakReference<MapFragment>(null);
@@ -49,11 +45,9 @@ public class ObservedLocationsReceiver extends BroadcastReceiver {
 
     private static ObservedLocationsReceiver sInstance;
 
-    public static void createGlobalInstance(Context context) {
+    public static void createGlobalInstance() {
         sInstance = new ObservedLocationsReceiver();
-        IntentFilter intentFilter = new IntentFilter();
-        intentFilter.addAction(Reporter.ACTION_NEW_BUNDLE);
-        LocalBroadcastManager.getInstance(context).registerReceiver(sInstance, intentFilter);
+        Reporter.NEW_BUNDLE.subscribe(sInstance);
     }
 
     public static ObservedLocationsReceiver getInstance() {
@@ -104,18 +98,23 @@ public class ObservedLocationsReceiver extends BroadcastReceiver {
         return mMapActivity.get();
     }
 
+    // Published on the Reporter's serialize stage. The points lists are iterated by the map
+    // overlays and the KML export on the main thread, so they are only changed there.
     @Override
-    public synchronized void onReceive(Context context, Intent intent) {
-        final String action = intent.getAction();
-        if (!action.equals(Reporter.ACTION_NEW_BUNDLE)) {
-            return;
-        }
-
-        final StumblerBundle bundle = intent.getParcelableExtra(Reporter.NEW_BUNDLE_ARG_BUNDLE);
+    public void onEvent(final StumblerBundle bundle) {
         if (bundle == null) {
             return;
         }
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                addBundle(bundle);
+            }
+        });
+    }
 
+    // On the main thread
+    private synchronized void addBundle(StumblerBundle bundle) {
         Location position = bundle.getGpsPosition();
         if (position == null) {
             return;
@@ -151,19 +150,6 @@ public class ObservedLocationsReceiver extends BroadcastReceiver {
             return;
         }
 
-        getMapActivity().getActivity().runOnUiThread(new Runnable() {
-            @Override
-            public void run() {
-                addObservationPointToMap();
-            }
-        });
-    }
-
-    private synchronized void addObservationPointToMap() {
-        if (getMapActivity() == null) {
-            return;
-        }
-
-        getMapActivity().newObservationPoint(mCollectionPoints.getLast());
+        getMapActivity().newObservationPoint(observation);
     }
 }
@@ -264,7 +264,8 @@ public class MainDrawerActivity
 
         int observationCount = service.getObservationCount();
         mMapFragment.formatTextView(R.id.text_observation_count, "%d", observationCount);
-        mMetricsView.setObservationCount(observationCount, service.getUniqueCellCount(), service.getUniqueAPCount());
+        mMetricsView.setObservationCount(observationCount, service.getUniqueCellCount(), service.getUniqueAPCount(),
+                service.getSuppressedCount());
 
         mMetricsView.update();
     }
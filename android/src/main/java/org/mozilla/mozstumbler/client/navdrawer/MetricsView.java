@@ -8,7 +8,6 @@ import android.content.Context;
 import android.content.Intent;
 import android.os.Handler;
 import android.os.Looper;
-import android.util.Log;
 import android.view.View;
 import android.widget.CheckBox;
 import android.widget.CompoundButton;
@@ -21,16 +20,14 @@ import org.mozilla.mozstumbler.client.ClientPrefs;
 import org.mozilla.mozstumbler.client.DateTimeUtils;
 import org.mozilla.mozstumbler.client.subactivities.PreferencesScreen;
 import org.mozilla.mozstumbler.service.AppGlobals;
-import org.mozilla.mozstumbler.service.Prefs;
-import org.mozilla.mozstumbler.service.stumblerthread.datahandling.DataStorageContract;
+import org.mozilla.mozstumbler.service.core.http.HttpMetrics;
 import org.mozilla.mozstumbler.service.stumblerthread.datahandling.DataStorageManager;
-import org.mozilla.mozstumbler.service.uploadthread.AsyncUploadParam;
+import org.mozilla.mozstumbler.service.stumblerthread.datahandling.SyncStats;
 import org.mozilla.mozstumbler.service.uploadthread.AsyncUploader;
+import org.mozilla.mozstumbler.service.uploadthread.UploadScheduler;
 
-import java.io.IOException;
 import java.lang.ref.WeakReference;
 import java.util.Locale;
-import java.util.Properties;
 
 public class MetricsView {
 
@@ -46,7 +43,9 @@ public class MetricsView {
             mQueuedObservationsView,
             mThisSessionObservationsView,
             mThisSessionUniqueCellsView,
-            mThisSessionUniqueAPsView;
+            mThisSessionUniqueAPsView,
+            mThisSessionDuplicatesView,
+            mUploadSpeedView;
 
     private final CheckBox mOnMapShowMLS;
 
@@ -62,12 +61,15 @@ public class MetricsView {
     private long mTotalBytesUploadedThisSession_lastDisplayed = -1;
     private long mLastUploadTime = 0;
     private final String mObservationAndSize = "%1$d  %2$s";
+    private final String mDuplicatesAndPercent = "%1$d  (%2$d%%)";
+    private final String mSpeedAndLatency = "%1$.1f KB/s  (%2$d ms)";
 
     private boolean mHasQueuedObservations;
 
     private static int sThisSessionObservationsCount;
     private static int sThisSessionUniqueWifiCount;
     private static int sThisSessionUniqueCellCount;
+    private static int sThisSessionDuplicatesCount;
 
     public MetricsView(View view) {
         mView = view;
@@ -90,6 +92,8 @@ public class MetricsView {
         mThisSessionObservationsView = (TextView) mView.findViewById(R.id.this_session_observations_value);
         mThisSessionUniqueCellsView = (TextView) mView.findViewById(R.id.cells_unique_value);
         mThisSessionUniqueAPsView = (TextView) mView.findViewById(R.id.wifis_unique_value);
+        mThisSessionDuplicatesView = (TextView) mView.findViewById(R.id.duplicates_skipped_value);
+        mUploadSpeedView = (TextView) mView.findViewById(R.id.upload_speed_value);
 
         mUploadButton = (ImageButton) mView.findViewById(R.id.upload_observations_button);
         mUploadButton.setEnabled(false);
@@ -100,13 +104,8 @@ public class MetricsView {
                     return;
                 }
 
-                // @TODO: Emit a signal here to initiate an upload
-                // and have it handled by MainApp
-                AsyncUploader uploader = new AsyncUploader();
-                AsyncUploadParam param = new AsyncUploadParam(false /* useWifiOnly */,
-                    Prefs.getInstance().getNickname(),
-                    Prefs.getInstance().getEmail());
-                uploader.execute(param);
+                // The user asked: right away, whatever the upload policy
+                UploadScheduler.uploadNow(mView.getContext());
 
                 setUploadButtonToSyncing(true);
             }
@@ -192,6 +191,11 @@ public class MetricsView {
         mThisSessionUniqueCellsView.setText(String.valueOf(sThisSessionUniqueCellCount));
         mThisSessionUniqueAPsView.setText(String.valueOf(sThisSessionUniqueWifiCount));
 
+        // As a share of all the bundles, stored or skipped
+        final int bundles = sThisSessionObservationsCount + sThisSessionDuplicatesCount;
+        final int percent = (bundles > 0) ? Math.round(100.0f * sThisSessionDuplicatesCount / bundles) : 0;
+        mThisSessionDuplicatesView.setText(String.format(mDuplicatesAndPercent, sThisSessionDuplicatesCount, percent));
+
         if (sThisSessionObservationsCount < 1) {
             mThisSessionObservationsView.setText("0");
             return;
@@ -242,18 +246,25 @@ public class MetricsView {
         }
         mTotalBytesUploadedThisSession_lastDisplayed = bytesUploadedThisSession;
 
-        try {
-            Properties props = dataStorageManager.readSyncStats();
-            String sent = props.getProperty(DataStorageContract.Stats.KEY_OBSERVATIONS_SENT, "0");
-            String bytes = props.getProperty(DataStorageContract.Stats.KEY_BYTES_SENT, "0");
-            String value = String.format(mObservationAndSize, Integer.parseInt(sent), formatKb(Long.parseLong(bytes)));
-            mAllTimeObservationsSentView.setText(value);
+        // In memory, no file to read
+        SyncStats stats = dataStorageManager.getSyncStats();
+        String value = String.format(mObservationAndSize, stats.getObservationsSent(), formatKb(stats.getBytesSent()));
+        mAllTimeObservationsSentView.setText(value);
 
-            mLastUploadTime = Long.parseLong(props.getProperty(DataStorageContract.Stats.KEY_LAST_UPLOAD_TIME, "0"));
-            updateLastUploadedLabel();
-        } catch (IOException ex) {
-            Log.e(LOG_TAG, "Exception in updateSentStats()", ex);
+        mLastUploadTime = stats.getLastUploadTime();
+        updateLastUploadedLabel();
+        updateUploadSpeed();
+    }
+
+    // Of the submits this run, with the median request time
+    private void updateUploadSpeed() {
+        final HttpMetrics.EndpointStats submit = HttpMetrics.getInstance().snapshot("POST", "/submit");
+        if (submit == null || submit.getBytesPerSecond() == 0) {
+            mUploadSpeedView.setText("");
+            return;
         }
+        mUploadSpeedView.setText(String.format(mSpeedAndLatency, submit.getBytesPerSecond() / 1000.0f,
+                submit.getTotalMs().getPercentileMs(50)));
     }
 
     private void updateQueuedStats(DataStorageManager dataStorageManager) {
@@ -265,9 +276,10 @@ public class MetricsView {
         updateUploadButtonEnabled();
     }
 
-    public void setObservationCount(int observations, int cells, int wifis) {
+    public void setObservationCount(int observations, int cells, int wifis, int duplicates) {
         sThisSessionObservationsCount = observations;
         sThisSessionUniqueCellCount = cells;
         sThisSessionUniqueWifiCount = wifis;
+        sThisSessionDuplicatesCount = duplicates;
     }
 }
@@ -24,6 +24,10 @@ import org.mozilla.mozstumbler.client.ClientPrefs;
 import org.mozilla.mozstumbler.client.MainApp;
 import org.mozilla.mozstumbler.client.serialize.KMLFragment;
 import org.mozilla.mozstumbler.service.AppGlobals;
+import org.mozilla.mozstumbler.service.core.http.HttpMetrics;
+
+import java.util.List;
+
 public class DeveloperActivity extends ActionBarActivity {
 
     private final String LOG_TAG = AppGlobals.makeLogTag(DeveloperActivity.class.getSimpleName());
@@ -131,9 +135,90 @@ public class DeveloperActivity extends ActionBarActivity {
                 public void onNothingSelected(AdapterView<?> arg0) {}
             });
 
+            // Exact counts grow with the session, the sketches stay the same size
+            final String[] uniqueCountArray = {"Exact", "Within 1 %", "Within 2 %", "Within 5 %"};
+            final int[] uniqueCountErrorPercent = {0, 1, 2, 5};
+            final ArrayAdapter<String> uniqueCountAdapter =
+                    new ArrayAdapter<String>(this.getActivity(), android.R.layout.simple_spinner_item, uniqueCountArray);
+            final Spinner uniqueCountSpinner = (Spinner) mRootView.findViewById(R.id.spinnerUniqueCountError);
+            uniqueCountSpinner.setAdapter(uniqueCountAdapter);
+            final int errorPercent = ClientPrefs.getInstance().getUniqueCountErrorPercent();
+            for (int i = 0; i < uniqueCountErrorPercent.length; i++) {
+                if (uniqueCountErrorPercent[i] == errorPercent) {
+                    uniqueCountSpinner.setSelection(i);
+                }
+            }
+
+            uniqueCountSpinner.setOnItemSelectedListener(new AdapterView.OnItemSelectedListener() {
+                @Override
+                public void onItemSelected(AdapterView<?> parent, View arg1, int position, long id) {
+                    ClientPrefs prefs = ClientPrefs.createGlobalInstance(getActivity().getApplicationContext());
+                    if (prefs.getUniqueCountErrorPercent() == uniqueCountErrorPercent[position]) {
+                        return;
+                    }
+                    // Picked up when the reporter starts, and the counts start over
+                    prefs.setUniqueCountErrorPercent(uniqueCountErrorPercent[position]);
+                    MainApp mainApp = ((MainApp)getActivity().getApplication());
+                    if (mainApp.isScanningOrPaused()) {
+                        mainApp.stopScanning();
+                        mainApp.startScanning();
+                    }
+                }
+
+                @Override
+                public void onNothingSelected(AdapterView<?> arg0) {}
+            });
+
+            final String[] noveltyArray = {"Off", "80 %", "90 %", "95 %"};
+            final int[] noveltySimilarityPercent = {0, 80, 90, 95};
+            final ArrayAdapter<String> noveltyAdapter =
+                    new ArrayAdapter<String>(this.getActivity(), android.R.layout.simple_spinner_item, noveltyArray);
+            final Spinner noveltySpinner = (Spinner) mRootView.findViewById(R.id.spinnerNoveltySimilarity);
+            noveltySpinner.setAdapter(noveltyAdapter);
+            final int similarityPercent = ClientPrefs.getInstance().getNoveltySimilarityPercent();
+            for (int i = 0; i < noveltySimilarityPercent.length; i++) {
+                if (noveltySimilarityPercent[i] == similarityPercent) {
+                    noveltySpinner.setSelection(i);
+                }
+            }
+
+            noveltySpinner.setOnItemSelectedListener(new AdapterView.OnItemSelectedListener() {
+                @Override
+                public void onItemSelected(AdapterView<?> parent, View arg1, int position, long id) {
+                    ClientPrefs prefs = ClientPrefs.createGlobalInstance(getActivity().getApplicationContext());
+                    if (prefs.getNoveltySimilarityPercent() == noveltySimilarityPercent[position]) {
+                        return;
+                    }
+                    prefs.setNoveltySimilarityPercent(noveltySimilarityPercent[position]);
+                    MainApp mainApp = ((MainApp)getActivity().getApplication());
+                    if (mainApp.isScanningOrPaused()) {
+                        mainApp.stopScanning();
+                        mainApp.startScanning();
+                    }
+                }
+
+                @Override
+                public void onNothingSelected(AdapterView<?> arg0) {}
+            });
+
             return mRootView;
         }
 
+        @Override
+        public void onResume() {
+            super.onResume();
+            // Per endpoint, for tuning the upload concurrency and payload size
+            final List<HttpMetrics.EndpointStats> endpoints = HttpMetrics.getInstance().snapshot();
+            if (endpoints.isEmpty()) {
+                return;
+            }
+            final StringBuilder text = new StringBuilder();
+            for (HttpMetrics.EndpointStats stats : endpoints) {
+                text.append(stats).append("\n\n");
+            }
+            ((TextView) mRootView.findViewById(R.id.httpMetrics)).setText(text.toString().trim());
+        }
+
         private enum IsDistanceOrTime { DISTANCE, TIME }
         private void changeOfMotionDetectionDistanceOrTime(AdapterView<?> parent, int position, IsDistanceOrTime isDistanceOrTime) {
             String item = parent.getItemAtPosition(position).toString();
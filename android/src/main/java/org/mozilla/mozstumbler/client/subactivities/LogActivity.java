@@ -25,11 +25,10 @@ import android.widget.TextView;
 import org.mozilla.mozstumbler.R;
 import org.mozilla.mozstumbler.service.AppGlobals;
 import org.mozilla.mozstumbler.service.core.logging.Log;
+import org.mozilla.mozstumbler.service.utils.Scheduler;
 
 import java.lang.ref.WeakReference;
 import java.util.LinkedList;
-import java.util.Timer;
-import java.util.TimerTask;
 import java.util.concurrent.ConcurrentLinkedQueue;
 
 public class LogActivity extends ActionBarActivity {
@@ -60,7 +59,6 @@ public class LogActivity extends ActionBarActivity {
             }
         }
 
-        Timer mFlushMessagesTimer = new Timer();
         AddToBufferOnMain mMainThreadHandler;
 
         public static void createGlobalInstance(Context context) {
@@ -74,7 +72,7 @@ public class LogActivity extends ActionBarActivity {
                     new IntentFilter(AppGlobals.ACTION_GUI_LOG_MESSAGE));
 
             final int kMillis = 1000 * 3;
-            mFlushMessagesTimer.scheduleAtFixedRate(new TimerTask() {
+            Scheduler.getInstance().scheduleAtFixedRate(new Runnable() {
                 @Override
                 public void run() {
                     mMainThreadHandler.obtainMessage().sendToTarget();
@@ -22,7 +22,7 @@ public class AppGlobals {
 
     /* Defined here so that the Reporter class can access the time of an Intent in a generic fashion.
      * Classes should have their own constant that is assigned to this, for example,
-     * WifiScanner has ACTION_WIFIS_SCANNED_ARG_TIME = ACTION_ARG_TIME.
+     * a broadcaster would have ACTION_FOO_ARG_TIME = ACTION_ARG_TIME.
      * This member definition in the broadcaster makes it clear what the extra Intent args are for that class. */
     public static final String ACTION_ARG_TIME = "time";
 
@@ -12,6 +12,10 @@ import android.os.Build.VERSION;
 import android.text.TextUtils;
 import android.util.Log;
 
+import org.mozilla.mozstumbler.service.stumblerthread.datahandling.EvictionPolicy;
+import org.mozilla.mozstumbler.service.stumblerthread.datahandling.UploadPlan;
+import org.mozilla.mozstumbler.service.uploadthread.UploadEngine;
+
 public class Prefs {
     private static final String LOG_TAG = AppGlobals.makeLogTag(Prefs.class.getSimpleName());
     public static final String NICKNAME_PREF = "nickname";
@@ -26,6 +30,15 @@ public class Prefs {
     private static final String LAST_ATTEMPTED_UPLOAD_TIME = "last_attempted_upload_time";
     private static final String MOTION_CHANGE_DISTANCE_METERS = "motion_change_distance";
     private static final String MOTION_CHANGE_TIME_WINDOW_SECONDS = "motion_change_time";
+    private static final String UNIQUE_COUNT_ERROR_PERCENT = "unique_count_error_pct";
+    private static final String NOVELTY_SIMILARITY_PERCENT = "novelty_similarity_pct";
+    private static final String AGGREGATE_SCANS = "aggregate_scans";
+    private static final String USE_REPORT_LOG = "use_report_log";
+    private static final String USE_COMPRESSION_DICTIONARY = "use_compression_dictionary";
+    private static final String COMPRESSION_LEVEL = "compression_level";
+    private static final String EVICTION_POLICY = "eviction_policy";
+    private static final String UPLOAD_PAYLOAD_BYTES = "upload_payload_bytes";
+    private static final String UPLOAD_MAX_IN_FLIGHT = "upload_max_in_flight";
 
     protected static final String PREFS_FILE = Prefs.class.getSimpleName();
 
@@ -201,4 +214,101 @@ public class Prefs {
         editor.putInt(MOTION_CHANGE_TIME_WINDOW_SECONDS, value);
         apply(editor);
     }
+
+    // 0 counts the session unique APs and cells exactly, otherwise it is the error target
+    // of the fixed-size sketch used instead.
+    public int getUniqueCountErrorPercent() {
+        return getPrefs().getInt(UNIQUE_COUNT_ERROR_PERCENT, 0);
+    }
+
+    public void setUniqueCountErrorPercent(int value) {
+        SharedPreferences.Editor editor = getPrefs().edit();
+        editor.putInt(UNIQUE_COUNT_ERROR_PERCENT, value);
+        apply(editor);
+    }
+
+    // Bundles sharing at least this percentage of their wifis with a recent report nearby are
+    // skipped as near-duplicates (see NoveltyFilter), 0 keeps all of them. Off unless chosen,
+    // it changes what is uploaded.
+    public int getNoveltySimilarityPercent() {
+        return getPrefs().getInt(NOVELTY_SIMILARITY_PERCENT, 0);
+    }
+
+    public void setNoveltySimilarityPercent(int value) {
+        SharedPreferences.Editor editor = getPrefs().edit();
+        editor.putInt(NOVELTY_SIMILARITY_PERCENT, value);
+        apply(editor);
+    }
+
+    // Merge repeated scans of an AP or cell during a fix, keeping the strongest reading,
+    // instead of keeping only the first one.
+    public synchronized boolean getAggregateScans() {
+        return getBoolPrefWithDefault(AGGREGATE_SCANS, true);
+    }
+
+    public synchronized void setAggregateScans(boolean on) {
+        setBoolPref(AGGREGATE_SCANS, on);
+    }
+
+    // Queue batches in a segmented log instead of a file each, takes effect on the next start
+    public synchronized boolean getUseReportLog() {
+        return getBoolPrefWithDefault(USE_REPORT_LOG, false);
+    }
+
+    public synchronized void setUseReportLog(boolean on) {
+        setBoolPref(USE_REPORT_LOG, on);
+    }
+
+    // Store batches deflated with a preset dictionary instead of gzip, see DictionaryCodec.
+    // Takes effect on the next start, batches stored either way stay readable.
+    public synchronized boolean getUseCompressionDictionary() {
+        return getBoolPrefWithDefault(USE_COMPRESSION_DICTIONARY, false);
+    }
+
+    public synchronized void setUseCompressionDictionary(boolean on) {
+        setBoolPref(USE_COMPRESSION_DICTIONARY, on);
+    }
+
+    // The deflate level for stored batches, 1 (fastest) to 9 (smallest), -1 for the default (6)
+    public synchronized int getCompressionLevel() {
+        return getPrefs().getInt(COMPRESSION_LEVEL, -1);
+    }
+
+    public synchronized void setCompressionLevel(int level) {
+        SharedPreferences.Editor editor = getPrefs().edit();
+        editor.putInt(COMPRESSION_LEVEL, level);
+        apply(editor);
+    }
+
+    // What is dropped when the queued reports fill the storage quota, see EvictionPolicy.
+    // Takes effect on the next start.
+    public synchronized String getEvictionPolicy() {
+        return getPrefs().getString(EVICTION_POLICY, EvictionPolicy.LOWEST_VALUE);
+    }
+
+    public synchronized void setEvictionPolicy(String policy) {
+        setStringPref(EVICTION_POLICY, policy);
+    }
+
+    // About how much of the queued data goes in one upload request, see UploadPlan
+    public synchronized int getUploadPayloadBytes() {
+        return getPrefs().getInt(UPLOAD_PAYLOAD_BYTES, UploadPlan.DEFAULT_TARGET_BYTES);
+    }
+
+    public synchronized void setUploadPayloadBytes(int bytes) {
+        SharedPreferences.Editor editor = getPrefs().edit();
+        editor.putInt(UPLOAD_PAYLOAD_BYTES, bytes);
+        apply(editor);
+    }
+
+    // How many upload requests may be in flight at once, see UploadEngine
+    public synchronized int getUploadMaxInFlight() {
+        return getPrefs().getInt(UPLOAD_MAX_IN_FLIGHT, UploadEngine.DEFAULT_MAX_IN_FLIGHT);
+    }
+
+    public synchronized void setUploadMaxInFlight(int requests) {
+        SharedPreferences.Editor editor = getPrefs().edit();
+        editor.putInt(UPLOAD_MAX_IN_FLIGHT, requests);
+        apply(editor);
+    }
 }
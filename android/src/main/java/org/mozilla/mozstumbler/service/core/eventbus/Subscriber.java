@@ -0,0 +1,10 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.mozstumbler.service.core.eventbus;
+
+public interface Subscriber<T> {
+    /* Called on the publishing thread. The event is shared with the other subscribers, don't modify it. */
+    void onEvent(T event);
+}
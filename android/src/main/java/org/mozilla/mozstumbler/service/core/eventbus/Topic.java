@@ -0,0 +1,84 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.mozstumbler.service.core.eventbus;
+
+/* A typed, in-process replacement for a LocalBroadcastManager action.
+ *
+ * Events are handed to the subscribers by reference, on the publishing thread, before
+ * publish() returns (the same contract as sendBroadcastSync()). There is no Intent, no
+ * extras Bundle and no action string matching, and publish() takes no lock: the subscriber
+ * list is a copy-on-write array, so publishing is one volatile read and a loop.
+ * Subscribing and unsubscribing copy the array, they are rare compared to publishing.
+ *
+ * A subscriber added or removed during a publish() may or may not see that event.
+ */
+public final class Topic<T> {
+    private static final Object[] NO_SUBSCRIBERS = new Object[0];
+
+    private final String mName;
+    private volatile Object[] mSubscribers = NO_SUBSCRIBERS;
+
+    public Topic(String name) {
+        mName = name;
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    /* Subscribing twice has no effect, the subscriber still gets each event once. */
+    public synchronized void subscribe(Subscriber<? super T> subscriber) {
+        final Object[] current = mSubscribers;
+        if (indexOf(current, subscriber) >= 0) {
+            return;
+        }
+        final Object[] updated = new Object[current.length + 1];
+        System.arraycopy(current, 0, updated, 0, current.length);
+        updated[current.length] = subscriber;
+        mSubscribers = updated;
+    }
+
+    public synchronized void unsubscribe(Subscriber<? super T> subscriber) {
+        final Object[] current = mSubscribers;
+        final int index = indexOf(current, subscriber);
+        if (index < 0) {
+            return;
+        }
+        if (current.length == 1) {
+            mSubscribers = NO_SUBSCRIBERS;
+            return;
+        }
+        final Object[] updated = new Object[current.length - 1];
+        System.arraycopy(current, 0, updated, 0, index);
+        System.arraycopy(current, index + 1, updated, index, updated.length - index);
+        mSubscribers = updated;
+    }
+
+    public int getSubscriberCount() {
+        return mSubscribers.length;
+    }
+
+    @SuppressWarnings("unchecked")
+    public void publish(T event) {
+        final Object[] subscribers = mSubscribers;
+        for (int i = 0; i < subscribers.length; i++) {
+            ((Subscriber<? super T>) subscribers[i]).onEvent(event);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return mName;
+    }
+
+    private static int indexOf(Object[] subscribers, Object subscriber) {
+        for (int i = 0; i < subscribers.length; i++) {
+            if (subscribers[i] == subscriber) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
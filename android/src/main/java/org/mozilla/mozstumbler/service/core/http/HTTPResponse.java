@@ -42,8 +42,20 @@ public class HTTPResponse implements IResponse {
     }
     @Override
     public String getFirstHeader(String key) {
+        if (headers == null) {
+            return null;
+        }
         List<String> matches = headers.get(key);
-        if (matches != null) {
+        if (matches == null) {
+            // Header names are case-insensitive, and not every platform's map is
+            for (Map.Entry<String, List<String>> entry : headers.entrySet()) {
+                if (key.equalsIgnoreCase(entry.getKey())) {
+                    matches = entry.getValue();
+                    break;
+                }
+            }
+        }
+        if (matches != null && !matches.isEmpty()) {
             return matches.get(0);
         }
         return null;
@@ -0,0 +1,274 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.mozstumbler.service.core.http;
+
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+/* What the HTTP requests of this process took, per endpoint, as recorded by HttpUtil: the
+ * submits and searches, and the tile GETs.
+ *
+ * An endpoint is the method, host and path of the request; the query is dropped (it has the API key)
+ * and the numbers in the path are collapsed, so the tiles are one endpoint per tile server, not one
+ * per tile. Past MAX_ENDPOINTS, anything new is counted under OTHER_ENDPOINT.
+ *
+ * Each endpoint has latency histograms of the connect (0 on a pooled connection), the first byte
+ * (the response headers) and the whole request, its throughput (bytes sent and received over the
+ * time of the requests that got a response), and counters per HTTP status and per exception.
+ * Each attempt counts, so a stale pooled connection that HttpUtil retries shows as an exception.
+ *
+ * Thread-safe, recorded from the upload threads; snapshot() copies for the UI.
+ */
+public final class HttpMetrics {
+    // Upper bounds of the latency buckets, the last bucket is anything slower
+    static final long[] LATENCY_BOUNDS_MS = {50, 100, 200, 500, 1000, 2000, 5000, 10000, 30000};
+    static final int MAX_ENDPOINTS = 32;
+    public static final String OTHER_ENDPOINT = "other";
+
+    private static final HttpMetrics sInstance = new HttpMetrics();
+
+    private final Map<String, EndpointStats> mEndpoints = new TreeMap<String, EndpointStats>();
+
+    public static HttpMetrics getInstance() {
+        return sInstance;
+    }
+
+    public static final class Histogram {
+        private final int[] mCounts = new int[LATENCY_BOUNDS_MS.length + 1];
+        private int mCount;
+        private long mSumMs;
+        private long mMaxMs;
+
+        Histogram() {}
+
+        Histogram(Histogram other) {
+            System.arraycopy(other.mCounts, 0, mCounts, 0, mCounts.length);
+            mCount = other.mCount;
+            mSumMs = other.mSumMs;
+            mMaxMs = other.mMaxMs;
+        }
+
+        void add(long ms) {
+            int bucket = 0;
+            while (bucket < LATENCY_BOUNDS_MS.length && ms > LATENCY_BOUNDS_MS[bucket]) {
+                bucket++;
+            }
+            mCounts[bucket]++;
+            mCount++;
+            mSumMs += ms;
+            mMaxMs = Math.max(mMaxMs, ms);
+        }
+
+        public int getCount() {
+            return mCount;
+        }
+
+        public long getMeanMs() {
+            return (mCount > 0) ? mSumMs / mCount : 0;
+        }
+
+        public long getMaxMs() {
+            return mMaxMs;
+        }
+
+        /* The upper bound of the bucket the percentile falls in, the max for the last bucket; 0 when empty */
+        public long getPercentileMs(int percent) {
+            if (mCount == 0) {
+                return 0;
+            }
+            final long rank = Math.max(((long) mCount * percent + 99) / 100, 1);
+            long seen = 0;
+            for (int bucket = 0; bucket < LATENCY_BOUNDS_MS.length; bucket++) {
+                seen += mCounts[bucket];
+                if (seen >= rank) {
+                    return Math.min(LATENCY_BOUNDS_MS[bucket], mMaxMs);
+                }
+            }
+            return mMaxMs;
+        }
+
+        @Override
+        public String toString() {
+            if (mCount == 0) {
+                return "-";
+            }
+            return String.format(Locale.US, "p50 %d, p90 %d, max %d ms",
+                    getPercentileMs(50), getPercentileMs(90), mMaxMs);
+        }
+    }
+
+    public static final class EndpointStats {
+        private final String mName;
+        private final Histogram mConnect;
+        private final Histogram mFirstByte;
+        private final Histogram mTotal;
+        private long mBytesSent;
+        private long mBytesReceived;
+        private long mTransferMs;
+        private final Map<Integer, Integer> mStatusCounts;
+        private final Map<String, Integer> mExceptionCounts;
+
+        EndpointStats(String name) {
+            mName = name;
+            mConnect = new Histogram();
+            mFirstByte = new Histogram();
+            mTotal = new Histogram();
+            mStatusCounts = new TreeMap<Integer, Integer>();
+            mExceptionCounts = new TreeMap<String, Integer>();
+        }
+
+        EndpointStats(EndpointStats other) {
+            mName = other.mName;
+            mConnect = new Histogram(other.mConnect);
+            mFirstByte = new Histogram(other.mFirstByte);
+            mTotal = new Histogram(other.mTotal);
+            mBytesSent = other.mBytesSent;
+            mBytesReceived = other.mBytesReceived;
+            mTransferMs = other.mTransferMs;
+            mStatusCounts = new TreeMap<Integer, Integer>(other.mStatusCounts);
+            mExceptionCounts = new TreeMap<String, Integer>(other.mExceptionCounts);
+        }
+
+        public String getName() {
+            return mName;
+        }
+
+        public Histogram getConnectMs() {
+            return mConnect;
+        }
+
+        public Histogram getFirstByteMs() {
+            return mFirstByte;
+        }
+
+        public Histogram getTotalMs() {
+            return mTotal;
+        }
+
+        public long getBytesSent() {
+            return mBytesSent;
+        }
+
+        public long getBytesReceived() {
+            return mBytesReceived;
+        }
+
+        /* Over the requests that got a response, 0 before the first */
+        public long getBytesPerSecond() {
+            return (mTransferMs > 0) ? (mBytesSent + mBytesReceived) * 1000 / mTransferMs : 0;
+        }
+
+        public Map<Integer, Integer> getStatusCounts() {
+            return Collections.unmodifiableMap(mStatusCounts);
+        }
+
+        public Map<String, Integer> getExceptionCounts() {
+            return Collections.unmodifiableMap(mExceptionCounts);
+        }
+
+        /* Requests that got a response, whatever the status, and those that failed with an exception */
+        public int getRequestCount() {
+            int count = 0;
+            for (int n : mStatusCounts.values()) {
+                count += n;
+            }
+            for (int n : mExceptionCounts.values()) {
+                count += n;
+            }
+            return count;
+        }
+
+        @Override
+        public String toString() {
+            final StringBuilder sb = new StringBuilder();
+            sb.append(mName).append(": ").append(getRequestCount()).append(" requests, ")
+              .append(getBytesPerSecond() / 1000.0f).append(" KB/s\n");
+            sb.append("  connect ").append(mConnect).append('\n');
+            sb.append("  first byte ").append(mFirstByte).append('\n');
+            sb.append("  total ").append(mTotal).append('\n');
+            sb.append("  ");
+            for (Map.Entry<Integer, Integer> entry : mStatusCounts.entrySet()) {
+                sb.append(entry.getKey()).append(": ").append(entry.getValue()).append("  ");
+            }
+            for (Map.Entry<String, Integer> entry : mExceptionCounts.entrySet()) {
+                sb.append(entry.getKey()).append(": ").append(entry.getValue()).append("  ");
+            }
+            return sb.toString().trim();
+        }
+    }
+
+    HttpMetrics() {}
+
+    static String getEndpoint(String method, URL url) {
+        return method + " " + url.getHost() + url.getPath().replaceAll("[0-9]+", "#");
+    }
+
+    /* A response: connectMs and firstByteMs as measured from the start of the request */
+    synchronized void onResponse(String endpoint, int status, long connectMs, long firstByteMs, long totalMs,
+                                 long bytesSent, long bytesReceived) {
+        final EndpointStats stats = getStats(endpoint);
+        stats.mConnect.add(connectMs);
+        stats.mFirstByte.add(firstByteMs);
+        stats.mTotal.add(totalMs);
+        stats.mBytesSent += bytesSent;
+        stats.mBytesReceived += bytesReceived;
+        stats.mTransferMs += Math.max(totalMs, 1);
+        increment(stats.mStatusCounts, status);
+    }
+
+    /* No response; the connect time only if it got that far, else -1 */
+    synchronized void onException(String endpoint, Exception ex, long connectMs) {
+        final EndpointStats stats = getStats(endpoint);
+        if (connectMs >= 0) {
+            stats.mConnect.add(connectMs);
+        }
+        increment(stats.mExceptionCounts, ex.getClass().getSimpleName());
+    }
+
+    private static <K> void increment(Map<K, Integer> counts, K key) {
+        final Integer count = counts.get(key);
+        counts.put(key, (count == null) ? 1 : count + 1);
+    }
+
+    private EndpointStats getStats(String endpoint) {
+        if (!mEndpoints.containsKey(endpoint) && mEndpoints.size() >= MAX_ENDPOINTS) {
+            endpoint = OTHER_ENDPOINT;
+        }
+        EndpointStats stats = mEndpoints.get(endpoint);
+        if (stats == null) {
+            stats = new EndpointStats(endpoint);
+            mEndpoints.put(endpoint, stats);
+        }
+        return stats;
+    }
+
+    /* Copies, by endpoint name */
+    public synchronized List<EndpointStats> snapshot() {
+        final List<EndpointStats> copy = new ArrayList<EndpointStats>(mEndpoints.size());
+        for (EndpointStats stats : mEndpoints.values()) {
+            copy.add(new EndpointStats(stats));
+        }
+        return copy;
+    }
+
+    /* The endpoint with this method and path suffix, e.g. "POST" and "/submit", or null */
+    public synchronized EndpointStats snapshot(String method, String pathSuffix) {
+        for (EndpointStats stats : mEndpoints.values()) {
+            if (stats.mName.startsWith(method + " ") && stats.mName.endsWith(pathSuffix)) {
+                return new EndpointStats(stats);
+            }
+        }
+        return null;
+    }
+
+    public synchronized void reset() {
+        mEndpoints.clear();
+    }
+}
@@ -6,7 +6,6 @@ package org.mozilla.mozstumbler.service.core.http;
 
 import android.os.Build;
 
-import org.apache.http.protocol.HTTP;
 import org.mozilla.mozstumbler.client.ClientPrefs;
 import org.mozilla.mozstumbler.service.AppGlobals;
 import org.mozilla.mozstumbler.service.core.logging.Log;
@@ -17,35 +16,118 @@ import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
 import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.net.ConnectException;
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.Proxy;
 import java.net.ProxySelector;
+import java.net.SocketException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URL;
 import java.net.URLConnection;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 
+/* Requests keep their connection alive by default: the response is read to the end and the
+ * connection goes back to HttpURLConnection's pool, so the next request to the same host skips
+ * the TCP and TLS setup. A pooled connection the server has since closed fails on first use,
+ * typically with an EOFException (the reason for the old Connection: Close workaround on API 14-18),
+ * so a request that fails that way is retried once, on a fresh connection.
+ *
+ * A request with a body (a submit) isn't idempotent, so it is only retried when it failed the way
+ * a stale connection does: before the body was all written, or with an end of stream reading the
+ * status line. Any other failure after the body went out, such as a reset, may come after the
+ * server took the reports. Even so, the server may have read the body before the end of stream,
+ * so a retried submit can be a duplicate.
+ *
+ * With reuseConnections false, every request has its own connection, closed after the response.
+ *
+ * The timeouts apply to the requests started after setTimeouts(), which may be called from any thread.
+ *
+ * Bodies are sent in fixed-length streaming mode, so HttpURLConnection doesn't keep a copy of its
+ * own; one in a file is streamed from it through a small buffer, and read again for a retry.
+ *
+ * Every attempt is timed and counted in HttpMetrics.
+ */
 public class HttpUtil implements IHttpUtil {
 
     private static final String LOG_TAG = AppGlobals.makeLogTag(HttpUtil.class.getSimpleName());
     private static final String USER_AGENT_HEADER = "User-Agent";
+    private static final int DEFAULT_CONNECT_TIMEOUT_MS = 5000;
     private final String userAgent;
+    private final boolean reuseConnections;
+
+    /* What a request sends, written again if the request is retried */
+    private interface RequestBody {
+        int length();
+        void writeTo(OutputStream out) throws IOException;
+    }
+
+    private static final class BytesBody implements RequestBody {
+        private final byte[] data;
+
+        BytesBody(byte[] data) {
+            this.data = data;
+        }
+
+        @Override
+        public int length() {
+            return data.length;
+        }
+
+        @Override
+        public void writeTo(OutputStream out) throws IOException {
+            out.write(data);
+        }
+    }
+
+    private static final class FileBody implements RequestBody {
+        private final File file;
+        private final int length;
+
+        FileBody(File file) {
+            this.file = file;
+            length = (int) file.length();
+        }
+
+        @Override
+        public int length() {
+            return length;
+        }
+
+        @Override
+        public void writeTo(OutputStream out) throws IOException {
+            final InputStream in = new FileInputStream(file);
+            try {
+                StreamUtils.copy(in, out);
+            } finally {
+                in.close();
+            }
+        }
+    }
+    private volatile int connectTimeoutMs = DEFAULT_CONNECT_TIMEOUT_MS;
+    private volatile int readTimeoutMs;
 
     public HttpUtil() {
         this(ClientPrefs.getInstance().getUserAgent());
     }
     public HttpUtil(String ua){
+        this(ua, true);
+    }
+    public HttpUtil(String ua, boolean reuseConnections) {
         userAgent = ua;
+        this.reuseConnections = reuseConnections;
     }
 
     private URLConnection openConnectionWithProxy(URL url) throws IOException {
@@ -138,7 +220,6 @@ public class HttpUtil implements IHttpUtil {
 
     private IResponse getHttpResponse(String urlString, Map<String, String> headers, String HTTP_METHOD) {
         URL url = null;
-        HttpURLConnection httpURLConnection = null;
 
         try {
             url = new URL(urlString);
@@ -151,43 +232,123 @@ public class HttpUtil implements IHttpUtil {
             headers = new HashMap<String, String>();
         }
 
-        try {
-            httpURLConnection = (HttpURLConnection) url.openConnection();
-            if (HTTP_METHOD.toUpperCase().equals("HEAD")) {
-                httpURLConnection.setInstanceFollowRedirects(false);
-            }
-            httpURLConnection.setConnectTimeout(5000); // set timeout to 5 seconds
+        return execute(url, HTTP_METHOD, headers, null);
+    }
 
-            httpURLConnection.setRequestMethod(HTTP_METHOD);
-            httpURLConnection.setRequestProperty(USER_AGENT_HEADER, userAgent);
-        } catch (IOException e) {
-            Log.e(LOG_TAG, "Couldn't open a connection: ", e);
-            return null;
-        }
+    /* How far a request got before it failed */
+    private static final class Progress {
+        boolean bodyWritten;
+        boolean statusRead;
+    }
 
-        // Workaround for a bug in Android mHttpURLConnection. When the library
-        // reuses a stale connection, the connection may fail with an EOFException
-        // http://stackoverflow.com/questions/15411213/android-httpsurlconnection-eofexception/17791819#17791819
-        if (Build.VERSION.SDK_INT > 13 && Build.VERSION.SDK_INT < 19) {
-            httpURLConnection.setRequestProperty("Connection", "Close");
+    /* One retry when a pooled connection turns out to be stale, see the class comment.
+     * On IOException, this returns null. */
+    private IResponse execute(URL url, String method, Map<String, String> headers, RequestBody body) {
+        for (int attempt = 0; ; attempt++) {
+            final Progress progress = new Progress();
+            try {
+                return executeOnce(url, method, headers, body, progress);
+            } catch (IOException e) {
+                if (!reuseConnections || attempt > 0 || !isStaleConnection(e, body != null, progress)) {
+                    Log.e(LOG_TAG, method + " error", e);
+                    return null;
+                }
+                Log.d(LOG_TAG, "Stale connection, retrying: " + e);
+            }
         }
+    }
 
-        // Set headers
-        for (Map.Entry<String, String> entry : headers.entrySet()) {
-            httpURLConnection.setRequestProperty(entry.getKey(), entry.getValue());
+    private static boolean isStaleConnection(IOException e, boolean hasBody, Progress progress) {
+        if (e instanceof ConnectException) {
+            // Never got a connection, there is nothing stale to replace
+            return false;
+        }
+        // Closed by the server while idle: an EOF on the first read, or a reset/broken pipe on the write
+        final boolean endOfStream = e instanceof EOFException || (e.getMessage() != null &&
+                e.getMessage().toLowerCase(Locale.US).contains("unexpected end of"));
+        if (!hasBody || !progress.bodyWritten) {
+            return endOfStream || e instanceof SocketException;
         }
+        // The server may have the body, only an EOF before the response is a stale connection
+        return endOfStream && !progress.statusRead;
+    }
 
+    private IResponse executeOnce(URL url, String method, Map<String, String> headers, RequestBody body,
+                                  Progress progress) throws IOException {
+        final HttpURLConnection httpURLConnection = (HttpURLConnection) url.openConnection();
+        final String endpoint = HttpMetrics.getEndpoint(method, url);
+        final long start = elapsedMs();
+        long connectMs = -1;
+        boolean keepConnection = false;
         try {
-            return new HTTPResponse(httpURLConnection.getResponseCode(),
-                                    httpURLConnection.getHeaderFields(),
-                                    getContentBody(httpURLConnection),
-                                    0);
+            if (method.toUpperCase().equals("HEAD")) {
+                httpURLConnection.setInstanceFollowRedirects(false);
+            }
+            httpURLConnection.setConnectTimeout(connectTimeoutMs);
+            httpURLConnection.setReadTimeout(readTimeoutMs);
+            // HttpURLConnection and Java are braindead.
+            // http://stackoverflow.com/questions/8587913/what-exactly-does-urlconnection-setdooutput-affect
+            httpURLConnection.setDoOutput(body != null);
+            httpURLConnection.setRequestMethod(method);
+            httpURLConnection.setRequestProperty(USER_AGENT_HEADER, userAgent);
+
+            // Workaround for a bug in Android mHttpURLConnection. When the library
+            // reuses a stale connection, the connection may fail with an EOFException
+            // http://stackoverflow.com/questions/15411213/android-httpsurlconnection-eofexception/17791819#17791819
+            // When reusing connections, the retry in execute() takes care of that instead.
+            if (!reuseConnections && Build.VERSION.SDK_INT > 13 && Build.VERSION.SDK_INT < 19) {
+                httpURLConnection.setRequestProperty("Connection", "Close");
+            }
+
+            // Set headers
+            for (Map.Entry<String, String> entry : headers.entrySet()) {
+                httpURLConnection.setRequestProperty(entry.getKey(), entry.getValue());
+            }
+
+            if (body != null) {
+                httpURLConnection.setFixedLengthStreamingMode(body.length());
+            }
+            // Explicitly, to time it apart from the rest
+            httpURLConnection.connect();
+            connectMs = elapsedMs() - start;
+
+            if (body != null) {
+                OutputStream out = new BufferedOutputStream(httpURLConnection.getOutputStream());
+                body.writeTo(out);
+                out.flush();
+            }
+            progress.bodyWritten = true;
+
+            final int status = httpURLConnection.getResponseCode();
+            progress.statusRead = true;
+            final long firstByteMs = elapsedMs() - start;
+            // Reads the body to the end, which is what lets the connection be reused
+            final byte[] content = getContentBody(httpURLConnection);
+            final int bytesSent = (body != null) ? body.length() : 0;
+            HttpMetrics.getInstance().onResponse(endpoint, status, connectMs, firstByteMs, elapsedMs() - start,
+                    bytesSent, content.length);
+
+            final IResponse response = new HTTPResponse(status, httpURLConnection.getHeaderFields(), content, bytesSent);
+            keepConnection = reuseConnections;
+            return response;
         } catch (IOException e) {
-            Log.e(LOG_TAG, "Networking error", e);
+            HttpMetrics.getInstance().onException(endpoint, e, connectMs);
+            throw e;
         } finally {
-            httpURLConnection.disconnect();
+            if (!keepConnection) {
+                httpURLConnection.disconnect();
+            }
         }
-        return null;
+    }
+
+    private static long elapsedMs() {
+        return System.nanoTime() / 1000000;
+    }
+
+    @Override
+    public void setTimeouts(int connectTimeoutMs, int readTimeoutMs) {
+        this.connectTimeoutMs = connectTimeoutMs;
+        this.readTimeoutMs = readTimeoutMs;
     }
 
     @Override
@@ -200,7 +361,6 @@ public class HttpUtil implements IHttpUtil {
     public IResponse post(String urlString, byte[] data, Map<String, String> headers, boolean precompressed) {
 
         URL url = null;
-        HttpURLConnection httpURLConnection = null;
 
         try {
             url = new URL(urlString);
@@ -212,68 +372,51 @@ public class HttpUtil implements IHttpUtil {
             throw new IllegalArgumentException("Data must be not null");
         }
 
-        if (headers == null) {
-            headers = new HashMap<String, String>();
-        }
-
-
-        try {
-            httpURLConnection = (HttpURLConnection) url.openConnection();
-            httpURLConnection.setConnectTimeout(5000); // set timeout to 5 seconds
-            // HttpURLConnection and Java are braindead.
-            // http://stackoverflow.com/questions/8587913/what-exactly-does-urlconnection-setdooutput-affect
-            httpURLConnection.setDoOutput(true);
-            httpURLConnection.setRequestMethod("POST");
-
-        } catch (IOException e) {
-            Log.e(LOG_TAG, "Couldn't open a connection: ", e);
-            return null;
-        }
-
-        httpURLConnection.setDoOutput(true);
-        httpURLConnection.setRequestProperty(USER_AGENT_HEADER, userAgent);
-        httpURLConnection.setRequestProperty("Content-Type", "application/json");
-
-        // Workaround for a bug in Android mHttpURLConnection. When the library
-        // reuses a stale connection, the connection may fail with an EOFException
-        // http://stackoverflow.com/questions/15411213/android-httpsurlconnection-eofexception/17791819#17791819
-        if (Build.VERSION.SDK_INT > 13 && Build.VERSION.SDK_INT < 19) {
-            httpURLConnection.setRequestProperty("Connection", "Close");
-        }
-
-        // Set headers
-        for (Map.Entry<String, String> entry : headers.entrySet()) {
-            httpURLConnection.setRequestProperty(entry.getKey(), entry.getValue());
+        // A copy, the caller's headers may be shared by requests on other threads
+        final Map<String, String> requestHeaders = new HashMap<String, String>();
+        requestHeaders.put("Content-Type", "application/json");
+        if (headers != null) {
+            requestHeaders.putAll(headers);
         }
 
         byte[] wire_data = data;
         if (!precompressed) {
             wire_data = Zipper.zipData(data);
             if (wire_data != null) {
-                httpURLConnection.setRequestProperty("Content-Encoding", "gzip");
+                requestHeaders.put("Content-Encoding", "gzip");
             } else {
                 Log.w(LOG_TAG, "Couldn't compress data, falling back to raw data.");
                 wire_data = data;
             }
         } else {
-            httpURLConnection.setRequestProperty("Content-Encoding", "gzip");
+            requestHeaders.put("Content-Encoding", "gzip");
         }
 
-        httpURLConnection.setFixedLengthStreamingMode(wire_data.length);
+        return execute(url, "POST", requestHeaders, new BytesBody(wire_data));
+    }
+
+    @Override
+    public IResponse post(String urlString, File gzippedBody, Map<String, String> headers) {
+        URL url = null;
+
         try {
-            OutputStream out = new BufferedOutputStream(httpURLConnection.getOutputStream());
-            out.write(wire_data);
-            out.flush();
-            return new HTTPResponse(httpURLConnection.getResponseCode(),
-                    httpURLConnection.getHeaderFields(),
-                    getContentBody(httpURLConnection),
-                    wire_data.length);
-        } catch (IOException e) {
-            Log.e(LOG_TAG, "post error", e);
-        } finally {
-            httpURLConnection.disconnect();
+            url = new URL(urlString);
+        } catch (MalformedURLException e) {
+            throw new IllegalArgumentException("Invalid URL", e);
         }
-        return null;
+
+        if (gzippedBody == null) {
+            throw new IllegalArgumentException("Body must be not null");
+        }
+
+        final Map<String, String> requestHeaders = new HashMap<String, String>();
+        requestHeaders.put("Content-Type", "application/json");
+        if (headers != null) {
+            requestHeaders.putAll(headers);
+        }
+        requestHeaders.put("Content-Encoding", "gzip");
+
+        return execute(url, "POST", requestHeaders, new FileBody(gzippedBody));
     }
 
     private byte[] getContentBody(HttpURLConnection httpURLConnection) throws IOException {
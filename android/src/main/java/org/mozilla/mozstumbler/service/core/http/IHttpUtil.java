@@ -29,7 +29,17 @@ public interface IHttpUtil {
     */
     IResponse post(String urlString, byte[] data, Map<String, String> headers, boolean precompressed);
 
+    /*
+     POST a body that is already gzipped, streamed from the file rather than read into memory
+
+     On IOException, this will return null.
+    */
+    IResponse post(String urlString, File gzippedBody, Map<String, String> headers);
+
     IResponse get(String urlString, Map<String, String> headers);
 
     IResponse head(String latestUrl,  Map<String, String> headers);
+
+    // For the requests from now on, 0 is no timeout
+    void setTimeouts(int connectTimeoutMs, int readTimeoutMs);
 }
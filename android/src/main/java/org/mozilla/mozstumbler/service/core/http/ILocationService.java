@@ -5,14 +5,24 @@
 
 package org.mozilla.mozstumbler.service.core.http;
 
+import java.io.File;
 import java.util.Map;
 
 public interface ILocationService {
     // Submit data to MLS
     // Errors will return
     public IResponse submit(byte[] data, Map<String, String> headers, boolean precompressed);
+    // The same, with a gzipped body streamed from a file
+    public IResponse submit(File gzippedBody, Map<String, String> headers);
     public IResponse search(byte[] data, Map<String, String> headers, boolean precompressed);
 
+    // Opens a connection to the service ahead of a burst of requests, so the first of them
+    // doesn't wait for the TCP and TLS setup. Null on error.
+    public IResponse warmUp();
+
+    // For the requests from now on, e.g. as the uploader measures the link. 0 is no timeout.
+    public void setTimeouts(int connectTimeoutMs, int readTimeoutMs);
+
 
 
 }
@@ -7,6 +7,7 @@ package org.mozilla.mozstumbler.service.core.http;
 import org.mozilla.mozstumbler.service.AppGlobals;
 import org.mozilla.mozstumbler.service.Prefs;
 
+import java.io.File;
 import java.util.Map;
 
 public class MLS implements ILocationService {
@@ -31,10 +32,23 @@ public class MLS implements ILocationService {
         return httpDelegate.post(SUBMIT_URL + "?key=" + mozApiKey, data, headers, precompressed);
     }
 
+    public IResponse submit(File gzippedBody, Map<String, String> headers) {
+        return httpDelegate.post(SUBMIT_URL + "?key=" + mozApiKey, gzippedBody, headers);
+    }
+
     public IResponse search(byte[] data, Map<String, String> headers, boolean precompressed) {
         return httpDelegate.post(SEARCH_URL + "?key=" + mozApiKey, data, headers, precompressed);
     }
 
+    // The response doesn't matter, only the connection left in the pool (see HttpUtil)
+    public IResponse warmUp() {
+        return httpDelegate.head(SUBMIT_URL, null);
+    }
+
+    public void setTimeouts(int connectTimeoutMs, int readTimeoutMs) {
+        httpDelegate.setTimeouts(connectTimeoutMs, readTimeoutMs);
+    }
+
 
 
 }
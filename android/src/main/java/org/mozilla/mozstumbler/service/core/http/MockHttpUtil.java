@@ -51,4 +51,13 @@ public class MockHttpUtil implements IHttpUtil {
         return null;
     }
 
+    @Override
+    public IResponse post(String urlString, File gzippedBody, Map<String, String> headers) {
+        return null;
+    }
+
+    @Override
+    public void setTimeouts(int connectTimeoutMs, int readTimeoutMs) {
+    }
+
 }
@@ -22,9 +22,12 @@ public interface IReporter {
      * StumblerService::stopScanning() is called - usually from UI
      * events from an Activity.
      *
-     * The other thread of control is the Android intents pump,
-     * which calls into the Reporter class through onReceive via
-     * an Intent.
+     * The other thread of control is whichever thread publishes
+     * to the scanner topics (see WifiScanner.WIFIS_SCANNED and friends),
+     * which call into the Reporter class through its subscribers.
+     *
+     * Both only enqueue work for the Reporter's pipeline threads,
+     * shutdown() waits for that work to finish.
      * 
      */
 
@@ -36,6 +39,8 @@ public interface IReporter {
 
     public int getObservationCount();
 
+    public int getSuppressedCount();
+
     public int getUniqueAPCount();
 
     public int getUniqueCellCount();
@@ -0,0 +1,139 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.mozstumbler.service.stumblerthread;
+
+import android.location.Location;
+
+import org.mozilla.mozstumbler.service.stumblerthread.datahandling.StumblerBundle;
+import org.mozilla.mozstumbler.service.utils.LongObjectHashMap;
+
+import java.util.Arrays;
+
+/* Drops bundles that see nearly the same wifis, from nearly the same place, as one of the last
+ * few bundles kept.
+ *
+ * Moving slowly (walking, a traffic jam), each GPS fix produces a bundle with almost the same
+ * BSSIDs as the one before, and each would be stored and uploaded as its own report.
+ * The filter keeps the sorted BSSIDs, the cell keys and the position of the last HISTORY_SIZE
+ * bundles it let through, and compares a new bundle against them by Jaccard similarity
+ * (shared BSSIDs / all BSSIDs). At or above the threshold, within MAX_DISTANCE_METERS, and with
+ * no cell the kept bundle doesn't have, the bundle is a near-duplicate: dropping it loses
+ * nothing the kept one doesn't report already.
+ *
+ * Only the kept bundles go into the history, so a slowly changing set still gets a new
+ * report once it has drifted far enough from the last one stored.
+ * Bundles with only a few wifis are always kept, their similarity says too little.
+ *
+ * Not thread-safe, Reporter only uses it on its collect stage.
+ */
+public final class NoveltyFilter {
+    static final int HISTORY_SIZE = 8;
+    static final int MIN_WIFIS_TO_COMPARE = 4;
+    // About the range of a wifi AP, farther than that the same APs still say something new
+    static final float MAX_DISTANCE_METERS = 100;
+
+    private final float mMinSimilarity;
+
+    private static final class Kept {
+        final long[] bssids;
+        final long[] cellKeys;
+        final double latitude;
+        final double longitude;
+
+        Kept(long[] bssids, long[] cellKeys, Location position) {
+            this.bssids = bssids;
+            this.cellKeys = cellKeys;
+            latitude = position.getLatitude();
+            longitude = position.getLongitude();
+        }
+    }
+
+    // Ring of the kept bundles, mHistory[mNext] is the oldest
+    private final Kept[] mHistory = new Kept[HISTORY_SIZE];
+    private int mNext;
+    private final float[] mDistance = new float[1];
+
+    /* similarityPercent of 0 disables the filter */
+    public NoveltyFilter(int similarityPercent) {
+        mMinSimilarity = similarityPercent / 100.0f;
+    }
+
+    public boolean isEnabled() {
+        return mMinSimilarity > 0;
+    }
+
+    /* true if the bundle should be stored, false if it is a near-duplicate */
+    public boolean accept(StumblerBundle bundle) {
+        final Location position = bundle.getGpsPosition();
+        if (!isEnabled() || position == null || bundle.getWifiCount() < MIN_WIFIS_TO_COMPARE) {
+            return true;
+        }
+
+        final long[] bssids = sortedKeys(bundle.getWifiData());
+        final long[] cellKeys = sortedKeys(bundle.getCellData());
+        for (Kept previous : mHistory) {
+            if (previous != null && isNearDuplicate(bssids, cellKeys, position, previous)) {
+                return false;
+            }
+        }
+
+        mHistory[mNext] = new Kept(bssids, cellKeys, position);
+        mNext = (mNext + 1) % HISTORY_SIZE;
+        return true;
+    }
+
+    private boolean isNearDuplicate(long[] bssids, long[] cellKeys, Location position, Kept previous) {
+        if (similarity(bssids, previous.bssids) < mMinSimilarity || !containsAll(previous.cellKeys, cellKeys)) {
+            return false;
+        }
+        Location.distanceBetween(position.getLatitude(), position.getLongitude(),
+                previous.latitude, previous.longitude, mDistance);
+        return mDistance[0] <= MAX_DISTANCE_METERS;
+    }
+
+    /* Both sorted */
+    static boolean containsAll(long[] set, long[] subset) {
+        int i = 0;
+        for (long key : subset) {
+            while (i < set.length && set[i] < key) {
+                i++;
+            }
+            if (i == set.length || set[i] != key) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /* Jaccard similarity of two sorted sets, 0 to 1 */
+    static float similarity(long[] a, long[] b) {
+        int shared = 0;
+        int i = 0;
+        int j = 0;
+        while (i < a.length && j < b.length) {
+            if (a[i] == b[j]) {
+                shared++;
+                i++;
+                j++;
+            } else if (a[i] < b[j]) {
+                i++;
+            } else {
+                j++;
+            }
+        }
+        final int union = a.length + b.length - shared;
+        return (union == 0) ? 1.0f : (float) shared / union;
+    }
+
+    private static long[] sortedKeys(LongObjectHashMap<?> map) {
+        final long[] keys = new long[map.size()];
+        int count = 0;
+        for (int slot = map.nextSlot(-1); slot >= 0; slot = map.nextSlot(slot)) {
+            keys[count++] = map.keyAt(slot);
+        }
+        Arrays.sort(keys);
+        return keys;
+    }
+}
@@ -4,46 +4,150 @@
 
 package org.mozilla.mozstumbler.service.stumblerthread;
 
-import android.content.BroadcastReceiver;
 import android.content.Context;
-import android.content.Intent;
-import android.content.IntentFilter;
 import android.location.Location;
 import android.net.wifi.ScanResult;
-import android.support.v4.content.LocalBroadcastManager;
 import android.telephony.TelephonyManager;
 
-import org.json.JSONException;
-import org.json.JSONObject;
 import org.mozilla.mozstumbler.service.AppGlobals;
+import org.mozilla.mozstumbler.service.Prefs;
+import org.mozilla.mozstumbler.service.core.eventbus.Subscriber;
+import org.mozilla.mozstumbler.service.core.eventbus.Topic;
 import org.mozilla.mozstumbler.service.core.logging.Log;
-import org.mozilla.mozstumbler.service.stumblerthread.datahandling.DataStorageContract;
 import org.mozilla.mozstumbler.service.stumblerthread.datahandling.DataStorageManager;
+import org.mozilla.mozstumbler.service.stumblerthread.datahandling.MLSJSONWriter;
+import org.mozilla.mozstumbler.service.stumblerthread.datahandling.PackedReportWriter;
 import org.mozilla.mozstumbler.service.stumblerthread.datahandling.StumblerBundle;
 import org.mozilla.mozstumbler.service.stumblerthread.scanners.GPSScanner;
 import org.mozilla.mozstumbler.service.stumblerthread.scanners.WifiScanner;
 import org.mozilla.mozstumbler.service.stumblerthread.scanners.cellscanner.CellInfo;
 import org.mozilla.mozstumbler.service.stumblerthread.scanners.cellscanner.CellScanner;
+import org.mozilla.mozstumbler.service.utils.DistinctCounter;
+import org.mozilla.mozstumbler.service.utils.HyperLogLog;
+import org.mozilla.mozstumbler.service.utils.LongHashSet;
+import org.mozilla.mozstumbler.service.utils.PipelineStage;
 
-import java.io.IOException;
-import java.util.HashSet;
 import java.util.List;
-import java.util.Set;
 
-public final class Reporter extends BroadcastReceiver implements IReporter {
+/* Builds a StumblerBundle per GPS fix from the scanner events, and stores the finished bundles.
+ *
+ * The work is done in two pipeline stages, each with its own worker thread, so the scanner
+ * callbacks only ever enqueue:
+ *   collect    applies scanner events to the current bundle (mBundle is only touched here)
+ *   serialize  packs a finished bundle and hands it to DataStorageManager, which compresses
+ *              and writes full batches on its own stages
+ * shutdown() drains both stages, so everything received before it is in the DataStorageManager
+ * when it returns.
+ */
+public final class Reporter implements IReporter {
     private static final String LOG_TAG = AppGlobals.makeLogTag(Reporter.class.getSimpleName());
-    public static final String ACTION_FLUSH_TO_BUNDLE = AppGlobals.ACTION_NAMESPACE + ".FLUSH";
-    public static final String ACTION_NEW_BUNDLE = AppGlobals.ACTION_NAMESPACE + ".NEW_BUNDLE";
-    public static final String NEW_BUNDLE_ARG_BUNDLE = "bundle";
+    /* Publish to make the reporter store its current bundle. The event is unused, publish null. */
+    public static final Topic<Void> FLUSH_TO_BUNDLE = new Topic<Void>(AppGlobals.ACTION_NAMESPACE + ".FLUSH");
+    /* Each bundle after it is stored */
+    public static final Topic<StumblerBundle> NEW_BUNDLE = new Topic<StumblerBundle>(AppGlobals.ACTION_NAMESPACE + ".NEW_BUNDLE");
+
+    // Scanner events arrive a few times a second, these only fill up if a stage stalls
+    private static final int COLLECT_QUEUE_SIZE = 128;
+    private static final int SERIALIZE_QUEUE_SIZE = 16;
+
     private boolean mIsStarted;
 
     private Context mContext;
-    private int mPhoneType;
+    private volatile int mPhoneType;
+    private volatile boolean mAggregateScans;
+
+    // Only changed on the collect stage, volatile for getGPSLocation()
+    volatile StumblerBundle mBundle;
+
+    // Only used on the collect stage, replaced on startup
+    private volatile NoveltyFilter mNoveltyFilter = new NoveltyFilter(0);
 
-    StumblerBundle mBundle;
+    // Only used on the serialize stage
+    private final PackedReportWriter mReportWriter = new PackedReportWriter();
+    private MLSJSONWriter mLogWriter;
+
+    // Guarded by this
     private int mObservationCount = 0;
-    private final Set<String> mUniqueAPs = new HashSet<String>();
-    private final Set<String> mUniqueCells = new HashSet<String>();
+    private int mSuppressedCount = 0;
+    // BSSIDs as longs, and CellInfo.getCellKey() values. Exact sets grow for the whole session,
+    // with Prefs.getUniqueCountErrorPercent() set these are fixed-size sketches instead.
+    private int mUniqueCountErrorPercent;
+    private DistinctCounter mUniqueAPs = new LongHashSet(1024);
+    private DistinctCounter mUniqueCells = new LongHashSet();
+
+    private final PipelineStage<Runnable> mCollectStage = new PipelineStage<Runnable>("collect",
+            COLLECT_QUEUE_SIZE, new PipelineStage.Processor<Runnable>() {
+        @Override
+        public void process(Runnable event) {
+            event.run();
+        }
+    });
+
+    private final PipelineStage<StumblerBundle> mSerializeStage = new PipelineStage<StumblerBundle>("serialize",
+            SERIALIZE_QUEUE_SIZE, new PipelineStage.Processor<StumblerBundle>() {
+        @Override
+        public void process(StumblerBundle bundle) {
+            storeBundle(bundle);
+        }
+    });
+
+    private final Runnable mFlushEvent = new Runnable() {
+        @Override
+        public void run() {
+            flushBundle();
+        }
+    };
+
+    private final Subscriber<List<ScanResult>> mWifiSubscriber = new Subscriber<List<ScanResult>>() {
+        @Override
+        public void onEvent(final List<ScanResult> results) {
+            mCollectStage.submit(new Runnable() {
+                @Override
+                public void run() {
+                    putWifiResults(results);
+                    flushIfFull();
+                }
+            });
+        }
+    };
+
+    private final Subscriber<List<CellInfo>> mCellSubscriber = new Subscriber<List<CellInfo>>() {
+        @Override
+        public void onEvent(final List<CellInfo> cells) {
+            mCollectStage.submit(new Runnable() {
+                @Override
+                public void run() {
+                    putCellResults(cells);
+                    flushIfFull();
+                }
+            });
+        }
+    };
+
+    // This is the common case
+    private final Subscriber<Location> mGpsSubscriber = new Subscriber<Location>() {
+        @Override
+        public void onEvent(final Location newPosition) {
+            mCollectStage.submit(new Runnable() {
+                @Override
+                public void run() {
+                    flushBundle();
+                    // Only create StumblerBundle instances if the position exists, null is a lost fix
+                    if (newPosition != null) {
+                        mBundle = new StumblerBundle(newPosition, mPhoneType);
+                        mBundle.setAggregating(mAggregateScans);
+                    }
+                }
+            });
+        }
+    };
+
+    private final Subscriber<Void> mFlushSubscriber = new Subscriber<Void>() {
+        @Override
+        public void onEvent(Void unused) {
+            flush();
+        }
+    };
 
     public Reporter() {}
 
@@ -61,87 +165,65 @@ public final class Reporter extends BroadcastReceiver implements IReporter {
             mPhoneType = TelephonyManager.PHONE_TYPE_NONE;
         }
 
+        final Prefs prefs = Prefs.createGlobalInstance(mContext);
+        setUniqueCountErrorPercent(prefs.getUniqueCountErrorPercent());
+        mNoveltyFilter = new NoveltyFilter(prefs.getNoveltySimilarityPercent());
+        mAggregateScans = prefs.getAggregateScans();
+
         mIsStarted = true;
 
         mBundle = null;
-        IntentFilter intentFilter = new IntentFilter();
-        intentFilter.addAction(WifiScanner.ACTION_WIFIS_SCANNED);
-        intentFilter.addAction(CellScanner.ACTION_CELLS_SCANNED);
-        intentFilter.addAction(GPSScanner.ACTION_GPS_UPDATED);
-        intentFilter.addAction(ACTION_FLUSH_TO_BUNDLE);
-
-        LocalBroadcastManager.getInstance(mContext).registerReceiver(this,
-                intentFilter);
+        WifiScanner.WIFIS_SCANNED.subscribe(mWifiSubscriber);
+        CellScanner.CELLS_SCANNED.subscribe(mCellSubscriber);
+        GPSScanner.GPS_UPDATED.subscribe(mGpsSubscriber);
+        FLUSH_TO_BUNDLE.subscribe(mFlushSubscriber);
     }
 
-    public synchronized void shutdown() {
-        if (mContext == null) {
-            return;
-        }
+    public void shutdown() {
+        synchronized (this) {
+            if (mContext == null) {
+                return;
+            }
 
-        mIsStarted = false;
+            mIsStarted = false;
 
-        Log.d(LOG_TAG, "shutdown");
-        flush();
-        LocalBroadcastManager.getInstance(mContext).unregisterReceiver(this);
-    }
+            Log.d(LOG_TAG, "shutdown");
+            WifiScanner.WIFIS_SCANNED.unsubscribe(mWifiSubscriber);
+            CellScanner.CELLS_SCANNED.unsubscribe(mCellSubscriber);
+            GPSScanner.GPS_UPDATED.unsubscribe(mGpsSubscriber);
+            FLUSH_TO_BUNDLE.unsubscribe(mFlushSubscriber);
+        }
 
-    private void receivedWifiMessage(Intent intent) {
-        List<ScanResult> results = intent.getParcelableArrayListExtra(WifiScanner.ACTION_WIFIS_SCANNED_ARG_RESULTS);
-        putWifiResults(results);
+        // Not holding the lock here, the serialize stage needs it to update the counts.
+        flush();
+        mCollectStage.shutdown();
+        mSerializeStage.shutdown();
+        Log.d(LOG_TAG, mCollectStage + "; " + mSerializeStage);
     }
 
-    private void receivedCellMessage(Intent intent) {
-        List<CellInfo> results = intent.getParcelableArrayListExtra(CellScanner.ACTION_CELLS_SCANNED_ARG_CELLS);
-        putCellResults(results);
+    /* Wait until the events received so far have been handed to the DataStorageManager */
+    void drain() {
+        mCollectStage.drain();
+        mSerializeStage.drain();
     }
 
-    private void receivedGpsMessage(Intent intent) {
-        String subject = intent.getStringExtra(Intent.EXTRA_SUBJECT);
-
-        if (subject.equals(GPSScanner.SUBJECT_NEW_LOCATION)) {
-            Location newPosition = intent.getParcelableExtra(GPSScanner.NEW_LOCATION_ARG_LOCATION);
-            // Only create StumblerBundle instances if the position exists
-            if (newPosition != null) {
-                flush();
-                mBundle = new StumblerBundle(newPosition, mPhoneType);
-            }
-        } else if (subject.equals(GPSScanner.SUBJECT_LOCATION_LOST)) {
-            flush();
+    public Location getGPSLocation() {
+        final StumblerBundle bundle = mBundle;
+        if (bundle == null){
+            return null;
         }
+        return bundle.getGpsPosition();
     }
 
-    @Override
-    public synchronized void onReceive(Context context, Intent intent) {
-        String action = intent.getAction();
-
-        if (action.equals(ACTION_FLUSH_TO_BUNDLE)) {
-            flush();
-            return;
-        } else if (action.equals(WifiScanner.ACTION_WIFIS_SCANNED)) {
-            receivedWifiMessage(intent);
-        } else if (action.equals(CellScanner.ACTION_CELLS_SCANNED)) {
-            receivedCellMessage(intent);
-        } else if (action.equals(GPSScanner.ACTION_GPS_UPDATED)) {
-            // This is the common case
-            receivedGpsMessage(intent);
-        }
-
+    private void flushIfFull() {
         if (mBundle != null &&
                 (mBundle.hasMaxWifisPerLocation() || mBundle.hasMaxCellsPerLocation()))
         {
             // no gps for a while, have too much data, just bundle it
-            flush();
+            flushBundle();
         }
     }
 
-    public synchronized Location getGPSLocation() {
-        if (mBundle == null){
-            return null;
-        }
-        return mBundle.getGpsPosition();
-    }
-
     private void putWifiResults(List<ScanResult> results) {
         if (mBundle == null) {
             return;
@@ -157,65 +239,95 @@ public final class Reporter extends BroadcastReceiver implements IReporter {
             return;
         }
         for (CellInfo result : cells) {
-            String key = result.getCellIdentity();
-            mBundle.addCellData(key, result);
+            mBundle.addCellData(result.getCellKey(), result);
         }
     }
 
-    public synchronized void flush() {
-        JSONObject mlsObj;
-        int wifiCount = 0;
-        int cellCount = 0;
+    /* Queued behind the scanner events already received, returns before the bundle is stored */
+    public void flush() {
+        mCollectStage.submit(mFlushEvent);
+    }
 
-        if (mBundle == null) {
+    // On the collect stage
+    private void flushBundle() {
+        final StumblerBundle bundle = mBundle;
+        if (bundle == null) {
             return;
         }
+        mBundle = null;
 
-        try {
-            mlsObj = mBundle.toMLSJSON();
-            wifiCount = mlsObj.getInt(DataStorageContract.ReportsColumns.WIFI_COUNT);
-            cellCount = mlsObj.getInt(DataStorageContract.ReportsColumns.CELL_COUNT);
-        } catch (JSONException e) {
-            Log.w(LOG_TAG, "Failed to convert bundle to JSON: " + e);
-            mBundle = null;
+        if (bundle.getWifiCount() + bundle.getCellCount() < 1) {
             return;
         }
-
-        if (wifiCount + cellCount < 1) {
-            mBundle = null;
+        if (!mNoveltyFilter.accept(bundle)) {
+            synchronized (this) {
+                mSuppressedCount++;
+            }
             return;
         }
+        mSerializeStage.submit(bundle);
+    }
 
-        AppGlobals.guiLogInfo("MLS record: " + mlsObj.toString());
+    // On the serialize stage
+    private void storeBundle(StumblerBundle bundle) {
+        final int wifiCount = bundle.getWifiCount();
+        final int cellCount = bundle.getCellCount();
+        final byte[] report = mReportWriter.reset().writeBundle(bundle).toByteArray();
 
-        try {
-            DataStorageManager.getInstance().insert(mlsObj.toString(), wifiCount, cellCount);
+        // JSON is only needed here for the GUI log, storage gets the packed report.
+        if (AppGlobals.guiLogMessageBuffer != null) {
+            if (mLogWriter == null) {
+                mLogWriter = new MLSJSONWriter();
+            }
+            String merged = "";
+            if (bundle.getMergedReadingCount() > 0) {
+                merged = " (" + bundle.getMergedReadingCount() + " repeated readings merged)";
+            }
+            AppGlobals.guiLogInfo("MLS record" + merged + ": " + mLogWriter.reset().writeBundle(bundle).toString());
+        }
 
-            mObservationCount++;
-            mUniqueAPs.addAll(mBundle.getUnmodifiableWifiData().keySet());
-            mUniqueCells.addAll(mBundle.getUnmodifiableCellData().keySet());
+        DataStorageManager.getInstance().insert(report, wifiCount, cellCount);
 
-            Intent i = new Intent(ACTION_NEW_BUNDLE);
-            i.putExtra(NEW_BUNDLE_ARG_BUNDLE, mBundle);
-            i.putExtra(AppGlobals.ACTION_ARG_TIME, System.currentTimeMillis());
-            LocalBroadcastManager.getInstance(mContext).sendBroadcastSync(i);
-        } catch (IOException e) {
-            Log.w(LOG_TAG, e.toString());
+        synchronized (this) {
+            mObservationCount++;
+            mUniqueAPs.addAll(bundle.getWifiData());
+            mUniqueCells.addAll(bundle.getCellData());
         }
 
-        mBundle = null;
+        NEW_BUNDLE.publish(bundle);
     }
 
     public synchronized int getObservationCount() {
         return mObservationCount;
     }
 
+    /* Bundles dropped as near-duplicates of a recent report, see NoveltyFilter */
+    public synchronized int getSuppressedCount() {
+        return mSuppressedCount;
+    }
+
     public synchronized int getUniqueAPCount() {
-        return mUniqueAPs.size();
+        return mUniqueAPs.count();
     }
 
     public synchronized int getUniqueCellCount() {
-        return mUniqueCells.size();
+        return mUniqueCells.count();
+    }
+
+    /* 0 for exact counts. Changing the mode restarts the unique counts, a sketch can't be
+     * converted back to a set. */
+    synchronized void setUniqueCountErrorPercent(int errorPercent) {
+        if (errorPercent == mUniqueCountErrorPercent) {
+            return;
+        }
+        mUniqueCountErrorPercent = errorPercent;
+        if (errorPercent <= 0) {
+            mUniqueAPs = new LongHashSet(1024);
+            mUniqueCells = new LongHashSet();
+        } else {
+            mUniqueAPs = HyperLogLog.forRelativeError(errorPercent / 100.0);
+            mUniqueCells = HyperLogLog.forRelativeError(errorPercent / 100.0);
+        }
     }
 
 }
@@ -15,7 +15,7 @@ import org.mozilla.mozstumbler.service.Prefs;
 import org.mozilla.mozstumbler.service.stumblerthread.blocklist.WifiBlockListInterface;
 import org.mozilla.mozstumbler.service.stumblerthread.datahandling.DataStorageManager;
 import org.mozilla.mozstumbler.service.stumblerthread.scanners.ScanManager;
-import org.mozilla.mozstumbler.service.uploadthread.UploadAlarmReceiver;
+import org.mozilla.mozstumbler.service.uploadthread.UploadScheduler;
 import org.mozilla.mozstumbler.service.utils.NetworkInfo;
 import org.mozilla.mozstumbler.service.utils.PersistentIntentService;
 
@@ -37,13 +37,6 @@ public class StumblerService extends PersistentIntentService
     protected final ScanManager mScanManager = new ScanManager();
     protected final IReporter mReporter = new Reporter();
 
-    // This is a delay before the single-shot upload is attempted. The number is arbitrary
-    // and used to avoid startup tasks bunching up.
-    private static final int DELAY_IN_SEC_BEFORE_STARTING_UPLOAD_IN_PASSIVE_MODE = 2;
-
-    // This is the frequency of the repeating upload alarm in active scanning mode.
-    private static final int FREQUENCY_IN_SEC_OF_UPLOAD_IN_ACTIVE_MODE = 5 * 60;
-
     // Used to guard against attempting to upload too frequently in passive mode.
     private static final long PASSIVE_UPLOAD_FREQ_GUARD_MSEC = 5 * 60 * 1000;
 
@@ -85,6 +78,10 @@ public class StumblerService extends PersistentIntentService
         return mReporter.getObservationCount();
     }
 
+    public synchronized int getSuppressedCount() {
+        return mReporter.getSuppressedCount();
+    }
+
     public synchronized int getWifiStatus() {
         return mScanManager.getWifiStatus();
     }
@@ -145,6 +142,9 @@ public class StumblerService extends PersistentIntentService
                     Prefs.getInstance().setFirefoxScanEnabled(false);
                 }
 
+                // Drains the reporter's pipeline into the DataStorageManager, then that is saved.
+                mReporter.shutdown();
+
                 if (DataStorageManager.getInstance() != null) {
                     try {
                         DataStorageManager.getInstance().saveCurrentReportsToDisk();
@@ -152,12 +152,16 @@ public class StumblerService extends PersistentIntentService
                         AppGlobals.guiLogInfo(ex.toString());
                         Log.e(LOG_TAG, "Exception in onDestroy saving reports" + ex.toString());
                     }
+                    try {
+                        DataStorageManager.getInstance().checkpointSyncStats();
+                    } catch (IOException ex) {
+                        Log.e(LOG_TAG, "Exception in onDestroy saving sync stats" + ex.toString());
+                    }
                 }
                 return null;
             }
         }.execute();
 
-        mReporter.shutdown();
         mScanManager.stopScanning();
     }
 
@@ -200,7 +204,7 @@ public class StumblerService extends PersistentIntentService
                 }
             } else {
                 Prefs.getInstance().setLastAttemptedUploadTime(timeNow);
-                UploadAlarmReceiver.scheduleAlarm(this, DELAY_IN_SEC_BEFORE_STARTING_UPLOAD_IN_PASSIVE_MODE, false /* no repeat*/);
+                UploadScheduler.requestUpload(this, true /* flush */);
             }
         }
 
@@ -224,9 +228,10 @@ public class StumblerService extends PersistentIntentService
     // Note that in passive mode, having data isn't an upload trigger, it is triggered by the start intent
     public synchronized void notifyStorageStateEmpty(boolean isEmpty) {
         if (isEmpty) {
-            UploadAlarmReceiver.cancelAlarm(this, !mScanManager.isPassiveMode());
+            UploadScheduler.cancel(this);
         } else if (!mScanManager.isPassiveMode()) {
-            UploadAlarmReceiver.scheduleAlarm(this, FREQUENCY_IN_SEC_OF_UPLOAD_IN_ACTIVE_MODE, true /* repeating */);
+            // The policy decides whether it is worth a pass yet
+            UploadScheduler.requestUpload(this, false);
         }
     }
 
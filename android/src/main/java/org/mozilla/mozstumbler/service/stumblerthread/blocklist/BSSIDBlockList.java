@@ -61,6 +61,29 @@ public final class BSSIDBlockList {
         return isCanonicalBSSID(BSSID) ? BSSID : "";
     }
 
+    /* The 48-bit value of a canonical BSSID, or -1 if it is not in canonical form.
+     * Used by the packed report format, which stores BSSIDs as 6 bytes. */
+    public static long toLong(String BSSID) {
+        if (BSSID == null || BSSID.length() != 12) {
+            return -1;
+        }
+
+        long value = 0;
+        for (int i = 0; i < 12; i++) {
+            final char c = BSSID.charAt(i);
+            final int digit;
+            if (c >= '0' && c <= '9') {
+                digit = c - '0';
+            } else if (c >= 'a' && c <= 'f') {
+                digit = c - 'a' + 10;
+            } else {
+                return -1;
+            }
+            value = (value << 4) | digit;
+        }
+        return value;
+    }
+
     private static boolean isCanonicalBSSID(String BSSID) {
         return BSSID_PATTERN.matcher(BSSID).matches();
     }
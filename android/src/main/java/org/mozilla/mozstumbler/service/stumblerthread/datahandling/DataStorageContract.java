@@ -27,6 +27,8 @@ public final class DataStorageContract {
         public static final String KEY_OBSERVATIONS_SENT = "observations_sent";
         public static final String KEY_WIFIS_SENT = "wifis_sent";
         public static final String KEY_CELLS_SENT = "cells_sent";
+        public static final String KEY_UPLOAD_FAILURES = "upload_failures";
+        public static final String KEY_NEXT_UPLOAD_ATTEMPT_TIME = "next_upload_attempt_time";
     }
 
     private DataStorageContract() {
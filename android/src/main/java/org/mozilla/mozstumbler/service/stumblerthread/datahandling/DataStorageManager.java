@@ -7,25 +7,39 @@ package org.mozilla.mozstumbler.service.stumblerthread.datahandling;
 import android.content.Context;
 
 import org.mozilla.mozstumbler.service.AppGlobals;
+import org.mozilla.mozstumbler.service.Prefs;
 import org.mozilla.mozstumbler.service.core.logging.Log;
-import org.mozilla.mozstumbler.service.utils.Zipper;
+import org.mozilla.mozstumbler.service.utils.CompressionCodec;
+import org.mozilla.mozstumbler.service.utils.DictionaryCodec;
+import org.mozilla.mozstumbler.service.utils.GzipCodec;
+import org.mozilla.mozstumbler.service.utils.PipelineStage;
+import org.mozilla.mozstumbler.service.utils.Scheduler;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.RandomAccessFile;
-import java.util.Properties;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 /* Stores reports in memory (mCurrentReports) until MAX_REPORTS_IN_MEMORY,
- * then writes them to disk as a .gz file. The name of the file has
- * the time written, the # of reports, and the # of cells and wifis.
+ * then writes them to disk as a gzipped batch, typically 1-5KB.
  *
- * Each .gz file is typically 1-5KB. File name example: reports-t1406863343313-r4-w25-c7.gz
+ * Where the batches go is up to the IReportStore: by default a .gz file per batch (FileReportStore),
+ * or, with Prefs.getUseReportLog(), records appended to a few segment files (SegmentedReportLog).
+ * Batches left in the other store by an earlier run are moved over on startup.
  *
- * The sync stats are written as a key-value pair file (not zipped).
+ * New batches are compressed with gzip, or with a preset dictionary (Prefs.getUseCompressionDictionary()),
+ * at Prefs.getCompressionLevel(). Each batch is tagged with its codec, so batches stored either way
+ * stay readable, and the upload body is always gzip (see CompressionCodec).
+ *
+ * Reports are kept in the packed binary format of PackedReportWriter, both in memory and on disk.
+ * The MLS JSON is only generated when a batch is uploaded (PackedReportReader). Files written by
+ * older versions contain gzipped JSON, the reader passes those through as-is.
+ *
+ * When a batch doesn't fit in the quota (mMaxBytesDiskStorage), the EvictionPolicy picks what is dropped:
+ * queued batches or the new one. getEvictedCounts() has the totals since startup.
+ *
+ * The sync stats are kept in memory and checkpointed to a key-value pair file (not zipped), see SyncStats.
  *
  * The tricky bit is the mCurrentReportsSendBuffer. When the uploader code begins accessing the
  * report batches, mCurrentReports gets pushed to mCurrentReportsSendBuffer.
@@ -37,17 +51,37 @@ import java.util.TimerTask;
  *
  * Also of note: the in-memory buffers (both mCurrentReports and mCurrentReportsSendBuffer) are saved
  * when the service is destroyed.
+ *
+ * mCurrentReports is compressed as reports are inserted (see ReportBatchBuilder), so its size is known
+ * without compressing it again, and taking a batch out of it only ends the gzip stream.
+ *
+ * A full mCurrentReports is not written by the inserting thread. It is handed to the persist stage,
+ * which has its own worker (see PipelineStage), and counted as in flight until it is on disk.
+ * saveCurrentReportsToDisk() waits for batches in flight before saving the rest. The flush a few
+ * minutes after the last insert is queued to the persist stage too, behind those batches.
+ *
+ * Locking: there are two locks, so the Reporter never waits on disk or network I/O.
+ *   mReportsLock  The insert side: mCurrentReports and the in-flight counters. Only held for work
+ *                 in memory, appending a report or taking out a batch; never for I/O.
+ *   mStoreLock    The stored side: mStore, mCurrentReportsSendBuffer and the eviction counters.
+ *                 Held for the file reads and writes, by the uploader and the persist stage.
+ * Where both are needed, mStoreLock is taken first. The uploader works from a snapshot of the
+ * queue (planUpload()), and only takes mReportsLock for the moment it takes mCurrentReports.
+ * The stored counters are a copy of mStore's and the send buffer's, refreshed under mStoreLock
+ * (updateStoredCounts()) but guarded by mReportsLock, so getQueuedCounts() doesn't wait on I/O.
  */
 public class DataStorageManager {
     private static final String LOG_TAG = AppGlobals.makeLogTag(DataStorageManager.class.getSimpleName());
 
-    // Used to cap the amount of data stored. When this limit is hit, no more data is saved to disk
-    // until the data is uploaded, or and data exceeds DEFAULT_MAX_WEEKS_DATA_ON_DISK.
+    // Used to cap the amount of data stored. When this limit is hit, the EvictionPolicy decides what
+    // is dropped to make room, until the data is uploaded, or and data exceeds DEFAULT_MAX_WEEKS_DATA_ON_DISK.
     private static final long DEFAULT_MAX_BYTES_STORED_ON_DISK = 1024 * 250; // 250 KiB max by default
 
     // Used as a safeguard to ensure stumbling data is not persisted. The intended use case of the stumbler lib is not
     // for long-term storage, and so if ANY data on disk is this old, ALL data is wiped as a privacy mechanism.
+    // (With EvictionPolicy.EXPIRY, only the data that old is wiped.)
     private static final int DEFAULT_MAX_WEEKS_DATA_ON_DISK = 2;
+    private static final long MS_PER_WEEK = 604800L * 1000;
 
     // Set to the default value specified above.
     private final long mMaxBytesDiskStorage;
@@ -55,25 +89,110 @@ public class DataStorageManager {
     // Set to the default value specified above.
     private final int mMaxWeeksStored;
 
-    final ReportBatchBuilder mCurrentReports = new ReportBatchBuilder();
-    private final File mReportsDir;
-    private final File mStatsFile;
+    final ReportBatchBuilder mCurrentReports;
+    private final SyncStats mSyncStats;
+    private final EvictionPolicy mEvictionPolicy;
     private final StorageIsEmptyTracker mTracker;
 
     private static DataStorageManager sInstance;
 
     private ReportBatch mCurrentReportsSendBuffer;
     private ReportBatchIterator mReportBatchIterator;
-    private ReportFileList mFileList;
-    private Timer mFlushMemoryBuffersToDiskTimer;
-
-    static final String SEP_REPORT_COUNT = "-r";
-    static final String SEP_WIFI_COUNT = "-w";
-    static final String SEP_CELL_COUNT = "-c";
-    static final String SEP_TIME_MS = "-t";
-    static final String FILENAME_PREFIX = "reports";
+    private final IReportStore mStore;
+    private final File mUploadSpoolDir;
+
+    // If collection stops and wifi not available for uploading, the memory buffer is flushed to disk
+    // a few mins after the last insert. The Scheduler thread only hands the flush to the persist stage,
+    // the write and the wait for mStoreLock are done there.
+    private static final int FLUSH_TO_DISK_DELAY_MS = 1000 * 60 * 3;
+    private final Scheduler.CoalescingTask mFlushToDiskTask = Scheduler.getInstance().createCoalescingTask(
+            new Runnable() {
+                @Override
+                public void run() {
+                    if (!mPersistStage.offer(FLUSH_TO_DISK)) {
+                        // Backed up with full batches, try again later rather than hold up the Scheduler
+                        mFlushToDiskTask.schedule();
+                    }
+                }
+            }, FLUSH_TO_DISK_DELAY_MS);
+
+    // See the class comment for what each guards, mStoreLock is taken first
+    private final Object mStoreLock = new Object();
+    private final Object mReportsLock = new Object();
+
+    // Dropped by the eviction policy or for their age, guarded by mStoreLock
+    private int mEvictedBatchCount;
+    private int mEvictedReportCount;
+    private int mEvictedWifiCount;
+    private int mEvictedCellCount;
+    private long mEvictedBytes;
+
+    // Full batches being written, guarded by mReportsLock
+    private int mInFlightReportCount;
+    private int mInFlightWifiCount;
+    private int mInFlightCellCount;
+    private long mInFlightBytes;
+
+    // What mStore and mCurrentReportsSendBuffer hold, guarded by mReportsLock, see updateStoredCounts()
+    private int mStoredReportCount;
+    private int mStoredWifiCount;
+    private int mStoredCellCount;
+    private long mStoredBytes;
+
+    // A write is slow compared to an insert, these only fill up if storage stalls
+    private static final int WRITE_QUEUE_SIZE = 4;
+
+    private final PipelineStage<PendingBatch> mPersistStage = new PipelineStage<PendingBatch>("persist",
+            WRITE_QUEUE_SIZE, new PipelineStage.Processor<PendingBatch>() {
+        @Override
+        public void process(PendingBatch batch) {
+            if (batch == FLUSH_TO_DISK) {
+                // The batches handed off before it are written already
+                try {
+                    saveReportsInMemoryToDisk();
+                } catch (IOException ex) {
+                    Log.e(LOG_TAG, "Error flushing the reports in memory", ex);
+                }
+                return;
+            }
+            synchronized (mStoreLock) {
+                try {
+                    saveToDisk(batch.data, batch.reportCount, batch.wifiCount, batch.cellCount);
+                } catch (IOException ex) {
+                    Log.e(LOG_TAG, "Error writing full batch", ex);
+                } finally {
+                    // In one step, so the batch isn't counted as both stored and in flight
+                    updateStoredCounts(batch);
+                }
+            }
+        }
+    });
+
     static final String MEMORY_BUFFER_NAME = "in memory send buffer";
 
+    private static final String REPORTS_DIR = "reports";
+    private static final String REPORT_LOG_DIR = "report_log";
+    private static final String REPORTS_INDEX = "reports_index";
+    private static final String UPLOAD_SPOOL_DIR = "upload_spool";
+
+    private static class PendingBatch {
+        // Gzipped, as written to disk
+        final byte[] data;
+        final int reportCount;
+        final int wifiCount;
+        final int cellCount;
+
+        PendingBatch(byte[] data, int reportCount, int wifiCount, int cellCount) {
+            this.data = data;
+            this.reportCount = reportCount;
+            this.wifiCount = wifiCount;
+            this.cellCount = cellCount;
+        }
+    }
+
+    // Not a batch: queued to the persist stage to save what is in memory
+    private static final PendingBatch FLUSH_TO_DISK = new PendingBatch(new byte[0], 0, 0, 0);
+
     public static class QueuedCounts {
         public final int mReportCount;
         public final int mWifiCount;
@@ -88,82 +207,81 @@ public class DataStorageManager {
         }
     }
 
-    /* Some data is calculated on-demand, don't abuse this function */
-    public synchronized QueuedCounts getQueuedCounts() {
-        int reportCount = mFileList.mReportCount + mCurrentReports.reportsCount();
-        int wifiCount = mFileList.mWifiCount + mCurrentReports.wifiCount;
-        int cellCount = mFileList.mCellCount + mCurrentReports.cellCount;
-        long byteLength = 0;
+    /* Only sums up counters, cheap enough to poll from the UI. Doesn't take mStoreLock,
+     * so a write or an upload in progress doesn't hold it up. */
+    public QueuedCounts getQueuedCounts() {
+        synchronized (mReportsLock) {
+            return new QueuedCounts(
+                    mStoredReportCount + mCurrentReports.reportsCount() + mInFlightReportCount,
+                    mStoredWifiCount + mCurrentReports.wifiCount + mInFlightWifiCount,
+                    mStoredCellCount + mCurrentReports.cellCount + mInFlightCellCount,
+                    mStoredBytes + mCurrentReports.getCompressedSize() + mInFlightBytes);
+        }
+    }
 
-        if (mCurrentReports.reportsCount() > 0) {
-            byte[] bytes;
-            bytes = Zipper.zipData(mCurrentReports.finalizeReports().getBytes());
-            if (bytes == null) {
-                Log.e(LOG_TAG, "Error compressing current reports queued", new RuntimeException("GZip Failure"));
-            } else {
-                byteLength += bytes.length;
-            }
-            if (mFileList.mReportCount > 0) {
-                byteLength += mFileList.mFilesOnDiskBytes;
-            }
+    /* All of it, on disk, in the send buffer, in memory and being written, as the upload policy
+     * weighs it. Like getQueuedCounts(), doesn't take mStoreLock. */
+    public long getQueuedBytes() {
+        synchronized (mReportsLock) {
+            return mStoredBytes + mCurrentReports.getCompressedSize() + mInFlightBytes;
         }
+    }
 
+    /* Call under mStoreLock after changing mStore or mCurrentReportsSendBuffer. With the batch that
+     * was in flight, it is moved from the in-flight counters to the stored ones, written or not. */
+    private void updateStoredCounts(PendingBatch written) {
+        int reportCount = mStore.getReportCount();
+        int wifiCount = mStore.getWifiCount();
+        int cellCount = mStore.getCellCount();
+        long bytes = mStore.getBytes();
         if (mCurrentReportsSendBuffer != null) {
             reportCount += mCurrentReportsSendBuffer.reportCount;
             wifiCount += mCurrentReportsSendBuffer.wifiCount;
             cellCount += mCurrentReportsSendBuffer.cellCount;
-            byteLength += mCurrentReportsSendBuffer.data.length;
+            bytes += mCurrentReportsSendBuffer.data.length;
+        }
+
+        synchronized (mReportsLock) {
+            mStoredReportCount = reportCount;
+            mStoredWifiCount = wifiCount;
+            mStoredCellCount = cellCount;
+            mStoredBytes = bytes;
+            if (written != null) {
+                mInFlightReportCount -= written.reportCount;
+                mInFlightWifiCount -= written.wifiCount;
+                mInFlightCellCount -= written.cellCount;
+                mInFlightBytes -= written.data.length;
+            }
         }
-        return new QueuedCounts(reportCount, wifiCount, cellCount, byteLength);
     }
 
-    private static class ReportFileList {
-        File[] mFiles;
-        int mReportCount;
-        int mWifiCount;
-        int mCellCount;
-        long mFilesOnDiskBytes;
-
-        public ReportFileList() {}
-        public ReportFileList(ReportFileList other) {
-            if (other == null) {
-                return;
-            }
-
-            if (other.mFiles != null) {
-                mFiles = other.mFiles.clone();
-            }
+    public static class EvictedCounts {
+        public final int mBatchCount;
+        public final int mReportCount;
+        public final int mWifiCount;
+        public final int mCellCount;
+        public final long mBytes;
 
-            mReportCount = other.mReportCount;
-            mWifiCount = other.mWifiCount;
-            mCellCount = other.mCellCount;
-            mFilesOnDiskBytes = other.mFilesOnDiskBytes;
+        EvictedCounts(int batchCount, int reportCount, int wifiCount, int cellCount, long bytes) {
+            this.mBatchCount = batchCount;
+            this.mReportCount = reportCount;
+            this.mWifiCount = wifiCount;
+            this.mCellCount = cellCount;
+            this.mBytes = bytes;
         }
+    }
 
-        void update(File directory) {
-            mFiles = directory.listFiles();
-            if (mFiles == null) {
-                return;
-            }
-
-            if (AppGlobals.isDebug) {
-                for (File f : mFiles) {
-                    Log.d("StumblerFiles", f.getName());
-                }
-            }
-
-            mFilesOnDiskBytes = mReportCount = mWifiCount = mCellCount = 0;
-            for (File f : mFiles) {
-                mReportCount += (int) getLongFromFilename(f.getName(), SEP_REPORT_COUNT);
-                mWifiCount += (int) getLongFromFilename(f.getName(), SEP_WIFI_COUNT);
-                mCellCount += (int) getLongFromFilename(f.getName(), SEP_CELL_COUNT);
-                mFilesOnDiskBytes += f.length();
-            }
+    /* Since startup */
+    public EvictedCounts getEvictedCounts() {
+        synchronized (mStoreLock) {
+            return new EvictedCounts(mEvictedBatchCount, mEvictedReportCount, mEvictedWifiCount,
+                    mEvictedCellCount, mEvictedBytes);
         }
     }
 
     public static class ReportBatch {
         public final String filename;
+        // Gzipped, as stored on disk. Use PackedReportReader to get the upload body.
         public final byte[] data;
         public final int reportCount;
         public final int wifiCount;
@@ -179,13 +297,13 @@ public class DataStorageManager {
     }
 
     private static class ReportBatchIterator {
-        public ReportBatchIterator(ReportFileList list) {
-            fileList = new ReportFileList(list);
+        public ReportBatchIterator(IReportStore store) {
+            batches = store.listBatches();
         }
 
         static final int BATCH_INDEX_FOR_MEM_BUFFER = -1;
         public int currentIndex = BATCH_INDEX_FOR_MEM_BUFFER;
-        public final ReportFileList fileList;
+        public final String[] batches;
     }
 
     public interface StorageIsEmptyTracker {
@@ -223,8 +341,20 @@ public class DataStorageManager {
 
     public static synchronized DataStorageManager createGlobalInstance(Context context, StorageIsEmptyTracker tracker,
                                                          long maxBytesStoredOnDisk, int maxWeeksDataStored) {
+        final Prefs prefs = Prefs.createGlobalInstance(context);
+        final CompressionCodec codec = prefs.getUseCompressionDictionary() ?
+                new DictionaryCodec(prefs.getCompressionLevel()) : new GzipCodec(prefs.getCompressionLevel());
+        return DataStorageManager.createGlobalInstance(context, tracker, maxBytesStoredOnDisk, maxWeeksDataStored,
+                prefs.getUseReportLog(), codec, EvictionPolicy.forName(prefs.getEvictionPolicy()));
+    }
+
+    public static synchronized DataStorageManager createGlobalInstance(Context context, StorageIsEmptyTracker tracker,
+                                                         long maxBytesStoredOnDisk, int maxWeeksDataStored,
+                                                         boolean useReportLog, CompressionCodec codec,
+                                                         EvictionPolicy evictionPolicy) {
         if (sInstance == null) {
-            sInstance = new DataStorageManager(context, tracker, maxBytesStoredOnDisk, maxWeeksDataStored);
+            sInstance = new DataStorageManager(context, tracker, maxBytesStoredOnDisk, maxWeeksDataStored,
+                    useReportLog, codec, evictionPolicy);
         }
         return sInstance;
     }
@@ -234,263 +364,419 @@ public class DataStorageManager {
     }
 
     private DataStorageManager(Context c, StorageIsEmptyTracker tracker,
-                               long maxBytesStoredOnDisk, int maxWeeksDataStored) {
+                               long maxBytesStoredOnDisk, int maxWeeksDataStored, boolean useReportLog,
+                               CompressionCodec codec, EvictionPolicy evictionPolicy) {
+        mCurrentReports = new ReportBatchBuilder(codec);
+        mEvictionPolicy = evictionPolicy;
         mMaxBytesDiskStorage = maxBytesStoredOnDisk;
         mMaxWeeksStored = maxWeeksDataStored;
         mTracker = tracker;
         final String baseDir = getStorageDir(c);
-        mStatsFile = new File(baseDir, "upload_stats.ini");
-        mReportsDir = new File(baseDir + "/reports");
-        if (!mReportsDir.exists()) {
-            mReportsDir.mkdirs();
+        mSyncStats = new SyncStats(new File(baseDir, "upload_stats.ini"), new File(baseDir, "upload_history"));
+        mSyncStats.load();
+        mUploadSpoolDir = new File(baseDir, UPLOAD_SPOOL_DIR);
+        deleteUploadSpoolFiles();
+
+        mStore = createStore(baseDir, useReportLog);
+        try {
+            mStore.load();
+            moveBatches(baseDir, !useReportLog, mStore);
+        } catch (IOException ex) {
+            Log.e(LOG_TAG, "Error loading the stored reports", ex);
+        }
+        synchronized (mStoreLock) {
+            updateStoredCounts(null);
         }
-        mFileList = new ReportFileList();
-        mFileList.update(mReportsDir);
     }
 
-    public synchronized int getMaxWeeksStored() {
-        return mMaxWeeksStored;
+    private static IReportStore createStore(String baseDir, boolean useReportLog) {
+        if (useReportLog) {
+            return new SegmentedReportLog(new File(baseDir, REPORT_LOG_DIR), SegmentedReportLog.DEFAULT_SEGMENT_SIZE);
+        }
+        return new FileReportStore(new File(baseDir, REPORTS_DIR), new File(baseDir, REPORTS_INDEX));
     }
 
-    private static byte[] readFile(File file) throws IOException {
-        final RandomAccessFile f = new RandomAccessFile(file, "r");
+    /* The store was switched, what the old one has left is queued in the new one. The old one's
+     * directory and journal are then deleted, so it isn't loaded again on every startup. */
+    static void moveBatches(String baseDir, boolean fromReportLog, IReportStore to) throws IOException {
+        final File directory = new File(baseDir, fromReportLog ? REPORT_LOG_DIR : REPORTS_DIR);
+        if (!directory.exists()) {
+            return;
+        }
+        final IReportStore from = createStore(baseDir, fromReportLog);
+        from.load();
+        boolean emptied = false;
         try {
-            final byte[] data = new byte[(int) f.length()];
-            f.readFully(data);
-            return data;
+            final String[] names = from.listBatches();
+            for (String name : names) {
+                final ReportBatch batch = from.read(name);
+                if (batch != null) {
+                    to.write(batch.data, from.getTime(name), batch.reportCount, batch.wifiCount, batch.cellCount);
+                    from.delete(name);
+                }
+            }
+            if (names.length > 0) {
+                Log.d(LOG_TAG, "Moved " + names.length + " queued batches to the current store");
+            }
+            if (from.isEmpty()) {
+                // Uploaded records the log keeps until its cursor passes them, and the cursor itself
+                from.deleteAll();
+                emptied = true;
+            }
         } finally {
-            f.close();
+            from.close();
+        }
+        // Only deletes an empty directory; with anything left, the move is tried again next time
+        if (emptied && directory.delete() && !fromReportLog) {
+            new File(baseDir, REPORTS_INDEX).delete();
         }
     }
 
-    public synchronized boolean isDirEmpty() {
-        return (mFileList.mFiles == null || mFileList.mFiles.length < 1);
+    public int getMaxWeeksStored() {
+        return mMaxWeeksStored;
     }
 
-    /* Pass filename returned from dataToSend() */
-    public synchronized boolean delete(String filename) {
-        // do not use .equals()
-        //noinspection StringEquality
-        if (filename == MEMORY_BUFFER_NAME) {
-            mCurrentReportsSendBuffer = null;
-            return true;
+    public boolean isDirEmpty() {
+        synchronized (mStoreLock) {
+            return mStore.isEmpty();
         }
-
-        final File file = new File(mReportsDir, filename);
-        final boolean ok = file.delete();
-        mFileList.update(mReportsDir);
-        return ok;
     }
 
-    private static long getLongFromFilename(String name, String separator) {
-        final int s = name.indexOf(separator) + separator.length();
-        int e = name.indexOf('-', s);
-        if (e < 0) {
-            e = name.indexOf('.', s);
+    /* Pass filename returned from dataToSend() */
+    public boolean delete(String filename) {
+        synchronized (mStoreLock) {
+            // do not use .equals()
+            //noinspection StringEquality
+            if (filename == MEMORY_BUFFER_NAME) {
+                mCurrentReportsSendBuffer = null;
+                updateStoredCounts(null);
+                return true;
+            }
+
+            final boolean deleted = mStore.delete(filename);
+            updateStoredCounts(null);
+            return deleted;
         }
-        return Long.parseLong(name.substring(s, e));
     }
 
     /* return name of file used, or memory buffer sentinel value.
      * The return value is used to delete the file/buffer later. */
-    public synchronized ReportBatch getFirstBatch() throws IOException {
-        final boolean dirEmpty = isDirEmpty();
-        final int currentReportsCount = mCurrentReports.reportsCount();
+    public ReportBatch getFirstBatch() throws IOException {
+        synchronized (mStoreLock) {
+            final ReportBatch current = takeCurrentReports(MEMORY_BUFFER_NAME);
+            if (mStore.isEmpty() && current == null) {
+                return null;
+            }
 
-        if (dirEmpty && currentReportsCount < 1) {
-            return null;
+            mReportBatchIterator = new ReportBatchIterator(mStore);
+
+            if (current != null) {
+                mCurrentReportsSendBuffer = current;
+                updateStoredCounts(null);
+                return current;
+            } else {
+                return getNextBatch();
+            }
         }
+    }
 
-        mReportBatchIterator = new ReportBatchIterator(mFileList);
+    /* Groups what is queued, the reports in memory included, into payloads for the uploader.
+     * Read the batches with readBatch(), and delete them as the plan says once uploaded.
+     * The plan is a snapshot, reports inserted meanwhile go up with the next one. */
+    public UploadPlan planUpload(long targetBytes) throws IOException {
+        synchronized (mStoreLock) {
+            final ReportBatch current = takeCurrentReports(MEMORY_BUFFER_NAME);
+            if (current != null) {
+                // Left from an upload that didn't get to it, keep it rather than overwrite it
+                saveCurrentReportsSendBufferToDisk();
+                mCurrentReportsSendBuffer = current;
+                updateStoredCounts(null);
+            }
 
-        if (currentReportsCount > 0) {
-            final String filename = MEMORY_BUFFER_NAME;
-            final byte[] data = Zipper.zipData(mCurrentReports.finalizeReports().getBytes());
-            final int wifiCount = mCurrentReports.wifiCount;
-            final int cellCount = mCurrentReports.cellCount;
-            clearCurrentReports();
-            final ReportBatch result = new ReportBatch(filename, data, currentReportsCount, wifiCount, cellCount);
-            mCurrentReportsSendBuffer = result;
-            return result;
-        } else {
-            return getNextBatch();
+            final ArrayList<IReportStore.BatchInfo> batches = new ArrayList<IReportStore.BatchInfo>();
+            if (mCurrentReportsSendBuffer != null) {
+                final ReportBatch buffer = mCurrentReportsSendBuffer;
+                batches.add(new IReportStore.BatchInfo(MEMORY_BUFFER_NAME, System.currentTimeMillis(),
+                        buffer.data.length, buffer.reportCount, buffer.wifiCount, buffer.cellCount));
+            }
+            batches.addAll(Arrays.asList(mStore.listBatchInfo()));
+            return new UploadPlan(batches, targetBytes);
         }
     }
 
-    private void clearCurrentReports() {
-        mCurrentReports.clearReports();
-         mCurrentReports.wifiCount = mCurrentReports.cellCount = 0;
+    /* A new file for an upload body too big to keep in memory, which the uploader deletes once sent */
+    public File createUploadSpoolFile() throws IOException {
+        if (!mUploadSpoolDir.exists() && !mUploadSpoolDir.mkdirs()) {
+            throw new IOException("Can't create " + mUploadSpoolDir);
+        }
+        return File.createTempFile("upload-", ".gz", mUploadSpoolDir);
     }
 
-    public synchronized ReportBatch getNextBatch() throws IOException {
-        if (mReportBatchIterator == null) {
-            return null;
+    /* Left by an upload that didn't finish (the process was killed), only the batches are sent again */
+    private void deleteUploadSpoolFiles() {
+        final File[] files = mUploadSpoolDir.listFiles();
+        if (files == null) {
+            return;
         }
+        for (File file : files) {
+            file.delete();
+        }
+    }
 
-        mReportBatchIterator.currentIndex++;
-        if (mReportBatchIterator.currentIndex < 0 ||
-            mReportBatchIterator.currentIndex > mReportBatchIterator.fileList.mFiles.length - 1) {
-            return null;
+    /* A batch named in an UploadPlan, null if it is gone (uploaded, evicted, or saved to disk) */
+    public ReportBatch readBatch(String name) throws IOException {
+        synchronized (mStoreLock) {
+            // do not use .equals()
+            //noinspection StringEquality
+            if (name == MEMORY_BUFFER_NAME) {
+                return mCurrentReportsSendBuffer;
+            }
+            return mStore.read(name);
         }
+    }
 
-        final File f = mReportBatchIterator.fileList.mFiles[mReportBatchIterator.currentIndex];
-        final String filename = f.getName();
-        final int reportCount = (int) getLongFromFilename(f.getName(), SEP_REPORT_COUNT);
-        final int wifiCount = (int) getLongFromFilename(f.getName(), SEP_WIFI_COUNT);
-        final int cellCount = (int) getLongFromFilename(f.getName(), SEP_CELL_COUNT);
-        final byte[] data = readFile(f);
-        return new ReportBatch(filename, data, reportCount, wifiCount, cellCount);
+    /* Takes what is in mCurrentReports out as a batch, null if it is empty.
+     * Finishing the batch only ends the gzip stream, so the inserts are held up very briefly. */
+    private ReportBatch takeCurrentReports(String name) {
+        synchronized (mReportsLock) {
+            final int reportCount = mCurrentReports.reportsCount();
+            if (reportCount < 1) {
+                return null;
+            }
+            final ReportBatch batch = new ReportBatch(name, mCurrentReports.finishBatch(), reportCount,
+                    mCurrentReports.wifiCount, mCurrentReports.cellCount);
+            clearCurrentReports();
+            return batch;
+        }
     }
 
-    private File createFile(int reportCount, int wifiCount, int cellCount) {
-        final long time = System.currentTimeMillis();
-        final String name = FILENAME_PREFIX +
-                      SEP_TIME_MS + time +
-                      SEP_REPORT_COUNT + reportCount +
-                      SEP_WIFI_COUNT + wifiCount +
-                      SEP_CELL_COUNT + cellCount + ".gz";
-        return new File(mReportsDir, name);
+    private void clearCurrentReports() {
+        mCurrentReports.clearReports();
+         mCurrentReports.wifiCount = mCurrentReports.cellCount = 0;
     }
 
-    public synchronized long getOldestBatchTimeMs() {
-        if (isDirEmpty()) {
-            return 0;
-        }
+    public ReportBatch getNextBatch() throws IOException {
+        synchronized (mStoreLock) {
+            if (mReportBatchIterator == null) {
+                return null;
+            }
 
-        long oldest = Long.MAX_VALUE;
-        for (File f : mFileList.mFiles) {
-            final long t = getLongFromFilename(f.getName(), SEP_TIME_MS);
-            if (t < oldest) {
-                oldest = t;
+            ReportBatch batch = null;
+            // Skips batches deleted since the iteration started
+            while (batch == null) {
+                mReportBatchIterator.currentIndex++;
+                if (mReportBatchIterator.currentIndex < 0 ||
+                    mReportBatchIterator.currentIndex > mReportBatchIterator.batches.length - 1) {
+                    return null;
+                }
+                batch = mStore.read(mReportBatchIterator.batches[mReportBatchIterator.currentIndex]);
             }
+            return batch;
         }
-        return oldest;
     }
 
-    public synchronized void saveCurrentReportsSendBufferToDisk() throws IOException {
-        if (mCurrentReportsSendBuffer == null || mCurrentReportsSendBuffer.reportCount < 1) {
-            return;
+    public long getOldestBatchTimeMs() {
+        synchronized (mStoreLock) {
+            return mStore.getOldestTime();
         }
+    }
 
-        saveToDisk(mCurrentReportsSendBuffer.data,
-                   mCurrentReportsSendBuffer.reportCount,
-                   mCurrentReportsSendBuffer.wifiCount,
-                   mCurrentReportsSendBuffer.cellCount);
-        mCurrentReportsSendBuffer = null;
+    public void saveCurrentReportsSendBufferToDisk() throws IOException {
+        synchronized (mStoreLock) {
+            if (mCurrentReportsSendBuffer == null || mCurrentReportsSendBuffer.reportCount < 1) {
+                return;
+            }
+
+            try {
+                saveToDisk(mCurrentReportsSendBuffer.data,
+                           mCurrentReportsSendBuffer.reportCount,
+                           mCurrentReportsSendBuffer.wifiCount,
+                           mCurrentReportsSendBuffer.cellCount);
+                mCurrentReportsSendBuffer = null;
+            } finally {
+                updateStoredCounts(null);
+            }
+        }
     }
 
     private void saveToDisk(byte[] bytes, int reportCount, int wifiCount, int cellCount)
       throws IOException {
-        if (mFileList.mFilesOnDiskBytes > mMaxBytesDiskStorage) {
+        final long time = System.currentTimeMillis();
+        if (mEvictionPolicy.expiresPerBatch()) {
+            evictExpired(time);
+        }
+        if (!makeRoom(new IReportStore.BatchInfo(null, time, bytes.length, reportCount, wifiCount, cellCount))) {
             return;
         }
 
-        final FileOutputStream fos = new FileOutputStream(createFile(reportCount, wifiCount, cellCount));
-        try {
-            fos.write(bytes);
-        } finally {
-            fos.close();
+        mStore.write(bytes, time, reportCount, wifiCount, cellCount);
+    }
+
+    /* Drops queued batches in the order the eviction policy ranks them, until the new one fits.
+     * False if the new batch ranks before enough of them, then it is the one dropped.
+     * In the segmented log, a batch dropped out of order only frees its segment once the
+     * batches before it are uploaded, see SegmentedReportLog. */
+    private boolean makeRoom(IReportStore.BatchInfo incoming) {
+        final long excess = mStore.getBytes() + incoming.bytes - mMaxBytesDiskStorage;
+        if (excess <= 0) {
+            return true;
+        }
+
+        final List<IReportStore.BatchInfo> victims =
+                mEvictionPolicy.selectVictims(mStore.listBatchInfo(), incoming, excess);
+        if (victims == null) {
+            evicted(incoming, "storage full");
+            return false;
         }
-        mFileList.update(mReportsDir);
+        for (IReportStore.BatchInfo victim : victims) {
+            if (mStore.delete(victim.name)) {
+                evicted(victim, "storage full");
+            }
+        }
+        return true;
     }
 
-    public synchronized void saveCurrentReportsToDisk() throws IOException {
-        saveCurrentReportsSendBufferToDisk();
-        if (mCurrentReports.reportsCount() < 1) {
-            return;
+    private void evictExpired(long now) {
+        final long expiredBefore = now - mMaxWeeksStored * MS_PER_WEEK;
+        for (IReportStore.BatchInfo batch : mStore.listBatchInfo()) {
+            if (batch.time >= expiredBefore) {
+                // Oldest first, the rest are newer
+                break;
+            }
+            if (mStore.delete(batch.name)) {
+                evicted(batch, "expired");
+            }
         }
-        final byte[] bytes = Zipper.zipData(mCurrentReports.finalizeReports().getBytes());
-        saveToDisk(bytes, mCurrentReports.reportsCount(), mCurrentReports.wifiCount, mCurrentReports.cellCount);
-        clearCurrentReports();
     }
 
-    public synchronized void insert(String report, int wifiCount, int cellCount) throws IOException {
-        notifyStorageIsEmpty(false);
+    private void evicted(IReportStore.BatchInfo batch, String reason) {
+        countEvicted(batch);
+        Log.w(LOG_TAG, "Dropped a batch of " + batch.reportCount + " reports (" + reason + ", " +
+                mEvictionPolicy.getName() + "), " + mEvictedReportCount + " reports dropped since startup");
+    }
+
+    private void countEvicted(IReportStore.BatchInfo batch) {
+        mEvictedBatchCount++;
+        mEvictedReportCount += batch.reportCount;
+        mEvictedWifiCount += batch.wifiCount;
+        mEvictedCellCount += batch.cellCount;
+        mEvictedBytes += batch.bytes;
+    }
+
+    /* Enforces getMaxWeeksStored(): if any batch is older, all of them are deleted, as a privacy measure.
+     * With EvictionPolicy.EXPIRY only the batches that old are.
+     * True if that left nothing to upload. */
+    public boolean deleteExpired() {
+        synchronized (mStoreLock) {
+            final long now = System.currentTimeMillis();
+            final long oldest = mStore.getOldestTime();
+            if (oldest <= 0 || now - oldest <= mMaxWeeksStored * MS_PER_WEEK) {
+                return false;
+            }
+
+            if (mEvictionPolicy.expiresPerBatch()) {
+                evictExpired(now);
+                updateStoredCounts(null);
+                return mStore.isEmpty();
+            }
 
-        if (mFlushMemoryBuffersToDiskTimer != null) {
-            mFlushMemoryBuffersToDiskTimer.cancel();
-            mFlushMemoryBuffersToDiskTimer = null;
+            for (IReportStore.BatchInfo batch : mStore.listBatchInfo()) {
+                countEvicted(batch);
+            }
+            Log.w(LOG_TAG, "Dropped all " + mStore.getReportCount() + " queued reports, some were older than " +
+                    mMaxWeeksStored + " weeks");
+            mStore.deleteAll();
+            updateStoredCounts(null);
+            return true;
         }
+    }
 
-        mCurrentReports.addReport(report);
-        mCurrentReports.wifiCount += wifiCount;
-        mCurrentReports.cellCount += cellCount;
+    /* Not holding a lock on the way in, the batches in flight need mStoreLock to finish. */
+    public void saveCurrentReportsToDisk() throws IOException {
+        drainWrites();
+        saveReportsInMemoryToDisk();
+    }
 
-        if (mCurrentReports.maxReportsReached()) {
-            // save to disk
-            saveCurrentReportsToDisk();
-        } else {
-            // Schedule a timer to flush to disk after a few mins.
-            // If collection stops and wifi not available for uploading, the memory buffer is flushed to disk.
-            final int kMillis = 1000 * 60 * 3;
-            mFlushMemoryBuffersToDiskTimer = new Timer();
-            mFlushMemoryBuffersToDiskTimer.schedule(new TimerTask() {
-                @Override
-                public void run() {
-                    try {
-                        saveCurrentReportsToDisk();
-                    } catch (IOException ex) {
-                        Log.e(LOG_TAG, "mFlushMemoryBuffersToDiskTimer exception", ex);
-                    }
+    /* The send buffer and mCurrentReports, not the batches in flight */
+    private void saveReportsInMemoryToDisk() throws IOException {
+        synchronized (mStoreLock) {
+            saveCurrentReportsSendBufferToDisk();
+            final ReportBatch current = takeCurrentReports(null);
+            if (current != null) {
+                try {
+                    saveToDisk(current.data, current.reportCount, current.wifiCount, current.cellCount);
+                } finally {
+                    updateStoredCounts(null);
                 }
-            }, kMillis);
+            }
         }
     }
 
-    public synchronized Properties readSyncStats() throws IOException {
-        if (!mStatsFile.exists()) {
-            return new Properties();
+    /* Wait until the full batches handed off so far are on disk (or have failed) */
+    void drainWrites() {
+        mPersistStage.drain();
+    }
+
+    /* Doesn't do any I/O, and only takes mReportsLock, so an upload or a write in progress doesn't
+     * hold it up. A full batch is written on the persist stage. If that is backed up this blocks
+     * until there is room, that is the backpressure on the Reporter. */
+    public void insert(byte[] report, int wifiCount, int cellCount) {
+        // Outside the lock, the tracker may schedule an alarm
+        notifyStorageIsEmpty(false);
+
+        PendingBatch fullBatch = null;
+        synchronized (mReportsLock) {
+            mCurrentReports.addReport(report);
+            mCurrentReports.wifiCount += wifiCount;
+            mCurrentReports.cellCount += cellCount;
+
+            if (mCurrentReports.maxReportsReached()) {
+                final int reportCount = mCurrentReports.reportsCount();
+                fullBatch = new PendingBatch(mCurrentReports.finishBatch(), reportCount,
+                        mCurrentReports.wifiCount, mCurrentReports.cellCount);
+                clearCurrentReports();
+                mInFlightReportCount += fullBatch.reportCount;
+                mInFlightWifiCount += fullBatch.wifiCount;
+                mInFlightCellCount += fullBatch.cellCount;
+                mInFlightBytes += fullBatch.data.length;
+                mFlushToDiskTask.cancel();
+            } else {
+                // Moves the deadline of an already scheduled flush, no thread or timer per insert
+                mFlushToDiskTask.schedule();
+            }
         }
 
-        final FileInputStream input = new FileInputStream(mStatsFile);
-        try {
-            final Properties props = new Properties();
-            props.load(input);
-            return props;
-        } finally {
-            input.close();
+        if (fullBatch != null) {
+            // Outside the lock, the persist stage needs it
+            mPersistStage.submit(fullBatch);
         }
     }
 
-    public synchronized void incrementSyncStats(long bytesSent, long reports, long cells, long wifis) throws IOException {
-        if (reports + cells + wifis < 1) {
-            return;
-        }
+    /* In memory, reading it doesn't touch the disk */
+    public SyncStats getSyncStats() {
+        return mSyncStats;
+    }
 
-        final Properties properties = readSyncStats();
-        final long time = System.currentTimeMillis();
-        writeSyncStats(time,
-            Long.parseLong(properties.getProperty(DataStorageContract.Stats.KEY_BYTES_SENT, "0")) + bytesSent,
-            Long.parseLong(properties.getProperty(DataStorageContract.Stats.KEY_OBSERVATIONS_SENT, "0")) + reports,
-            Long.parseLong(properties.getProperty(DataStorageContract.Stats.KEY_CELLS_SENT, "0")) + cells,
-            Long.parseLong(properties.getProperty(DataStorageContract.Stats.KEY_WIFIS_SENT, "0")) + wifis);
+    public void incrementSyncStats(long bytesSent, long reports, long cells, long wifis) {
+        mSyncStats.add(bytesSent, reports, cells, wifis);
     }
 
+    /* Replaces the totals and saves them right away */
     public void writeSyncStats(long time, long bytesSent, long totalObs, long totalCells, long totalWifis) throws IOException {
-        final FileOutputStream out = new FileOutputStream(mStatsFile);
-        try {
-            final Properties props = new Properties();
-            props.setProperty(DataStorageContract.Stats.KEY_LAST_UPLOAD_TIME, String.valueOf(time));
-            props.setProperty(DataStorageContract.Stats.KEY_BYTES_SENT, String.valueOf(bytesSent));
-            props.setProperty(DataStorageContract.Stats.KEY_OBSERVATIONS_SENT, String.valueOf(totalObs));
-            props.setProperty(DataStorageContract.Stats.KEY_CELLS_SENT, String.valueOf(totalCells));
-            props.setProperty(DataStorageContract.Stats.KEY_WIFIS_SENT, String.valueOf(totalWifis));
-            props.setProperty(DataStorageContract.Stats.KEY_VERSION, String.valueOf(DataStorageContract.Stats.VERSION_CODE));
-            props.store(out, null);
-        } finally {
-            out.close();
-        }
+        mSyncStats.set(time, bytesSent, totalObs, totalCells, totalWifis);
+        mSyncStats.checkpoint();
     }
 
-    public synchronized void deleteAll() {
-        if (mFileList.mFiles == null) {
-            return;
-        }
+    /* Otherwise they are saved within SyncStats.CHECKPOINT_DELAY_MS of a change */
+    public void checkpointSyncStats() throws IOException {
+        mSyncStats.checkpoint();
+    }
 
-        for (File f : mFileList.mFiles) {
-            f.delete();
+    public void deleteAll() {
+        synchronized (mStoreLock) {
+            mStore.deleteAll();
+            updateStoredCounts(null);
         }
-        mFileList.update(mReportsDir);
     }
 
     private void notifyStorageIsEmpty(boolean isEmpty) {
@@ -0,0 +1,118 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.mozstumbler.service.stumblerthread.datahandling;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/* Which queued batches DataStorageManager gives up when a new batch doesn't fit in the quota.
+ *
+ * rank() orders the queued batches and the new one, most expendable first. They are dropped in
+ * that order until the new batch fits; if the new batch itself comes up first, only it is dropped
+ * and the queue is left as it was. So a batch is never dropped for one that is worth less.
+ *
+ *   OLDEST_FIRST  Drops the oldest batches, the new one only if it is bigger than the whole quota.
+ *   LOWEST_VALUE  Drops the batches with the fewest wifis and cells per byte, the oldest of equals first.
+ *                 On a long trip offline, that keeps the places with the most to tell.
+ *   EXPIRY        Like OLDEST_FIRST, and a batch older than the age limit is dropped by itself.
+ *                 With the others, the whole queue is dropped once any of it is that old.
+ */
+public abstract class EvictionPolicy {
+    public static final String OLDEST_FIRST = "oldest_first";
+    public static final String LOWEST_VALUE = "lowest_value";
+    public static final String EXPIRY = "expiry";
+
+    /* An unknown name gets the default, LOWEST_VALUE */
+    public static EvictionPolicy forName(String name) {
+        if (OLDEST_FIRST.equals(name)) {
+            return new OldestFirst();
+        }
+        if (EXPIRY.equals(name)) {
+            return new Expiry();
+        }
+        return new LowestValue();
+    }
+
+    /* batches are oldest first, as the store lists them, with the new batch last */
+    abstract List<IReportStore.BatchInfo> rank(IReportStore.BatchInfo[] batches);
+
+    /* The queued batches to drop to free excessBytes for the incoming one, or null if the
+     * incoming one should be dropped instead */
+    final List<IReportStore.BatchInfo> selectVictims(IReportStore.BatchInfo[] queued,
+                                                     IReportStore.BatchInfo incoming, long excessBytes) {
+        final IReportStore.BatchInfo[] candidates = Arrays.copyOf(queued, queued.length + 1);
+        candidates[queued.length] = incoming;
+        final ArrayList<IReportStore.BatchInfo> victims = new ArrayList<IReportStore.BatchInfo>();
+        for (IReportStore.BatchInfo batch : rank(candidates)) {
+            if (excessBytes <= 0) {
+                break;
+            }
+            if (batch == incoming) {
+                return null;
+            }
+            victims.add(batch);
+            excessBytes -= batch.bytes;
+        }
+        return victims;
+    }
+
+    boolean expiresPerBatch() {
+        return false;
+    }
+
+    public abstract String getName();
+
+    private static class OldestFirst extends EvictionPolicy {
+        @Override
+        List<IReportStore.BatchInfo> rank(IReportStore.BatchInfo[] batches) {
+            return Arrays.asList(batches);
+        }
+
+        @Override
+        public String getName() {
+            return OLDEST_FIRST;
+        }
+    }
+
+    private static final class Expiry extends OldestFirst {
+        @Override
+        boolean expiresPerBatch() {
+            return true;
+        }
+
+        @Override
+        public String getName() {
+            return EXPIRY;
+        }
+    }
+
+    private static final class LowestValue extends EvictionPolicy {
+        // Observations per byte, compared as cross products to stay in integers
+        private static final Comparator<IReportStore.BatchInfo> BY_VALUE = new Comparator<IReportStore.BatchInfo>() {
+            @Override
+            public int compare(IReportStore.BatchInfo a, IReportStore.BatchInfo b) {
+                final long left = (long) (a.wifiCount + a.cellCount) * Math.max(b.bytes, 1);
+                final long right = (long) (b.wifiCount + b.cellCount) * Math.max(a.bytes, 1);
+                return (left < right) ? -1 : ((left == right) ? 0 : 1);
+            }
+        };
+
+        @Override
+        List<IReportStore.BatchInfo> rank(IReportStore.BatchInfo[] batches) {
+            final ArrayList<IReportStore.BatchInfo> ranked = new ArrayList<IReportStore.BatchInfo>(Arrays.asList(batches));
+            // A stable sort, equals stay oldest first
+            Collections.sort(ranked, BY_VALUE);
+            return ranked;
+        }
+
+        @Override
+        public String getName() {
+            return LOWEST_VALUE;
+        }
+    }
+}
@@ -0,0 +1,148 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.mozstumbler.service.stumblerthread.datahandling;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/* One .gz file per batch in the reports directory, tracked by a ReportIndex.
+ * The name of the file has the time written, the # of reports, and the # of cells and wifis.
+ * File name example: reports-t1406863343313-r4-w25-c7.gz
+ */
+final class FileReportStore implements IReportStore {
+    private final File mDirectory;
+    private final ReportIndex mIndex;
+
+    FileReportStore(File directory, File journal) {
+        mDirectory = directory;
+        mIndex = new ReportIndex(directory, journal);
+    }
+
+    @Override
+    public void load() {
+        if (!mDirectory.exists()) {
+            mDirectory.mkdirs();
+        }
+        mIndex.load();
+    }
+
+    @Override
+    public void write(byte[] data, long time, int reportCount, int wifiCount, int cellCount) throws IOException {
+        File file = new File(mDirectory, ReportIndex.createFilename(time, reportCount, wifiCount, cellCount));
+        // Two batches alike written in the same ms would share a name, the second one is moved a ms on
+        while (file.exists()) {
+            file = new File(mDirectory, ReportIndex.createFilename(++time, reportCount, wifiCount, cellCount));
+        }
+        final FileOutputStream fos = new FileOutputStream(file);
+        try {
+            fos.write(data);
+        } finally {
+            fos.close();
+        }
+        mIndex.add(file, data.length);
+    }
+
+    @Override
+    public String[] listBatches() {
+        final ReportIndex.Entry[] entries = mIndex.snapshot();
+        final String[] names = new String[entries.length];
+        for (int i = 0; i < entries.length; i++) {
+            names[i] = entries[i].getName();
+        }
+        return names;
+    }
+
+    @Override
+    public BatchInfo[] listBatchInfo() {
+        final ReportIndex.Entry[] entries = mIndex.snapshot();
+        final BatchInfo[] infos = new BatchInfo[entries.length];
+        for (int i = 0; i < entries.length; i++) {
+            final ReportIndex.Entry e = entries[i];
+            infos[i] = new BatchInfo(e.getName(), e.time, e.bytes, e.reportCount, e.wifiCount, e.cellCount);
+        }
+        return infos;
+    }
+
+    @Override
+    public DataStorageManager.ReportBatch read(String name) throws IOException {
+        final ReportIndex.Entry entry = mIndex.get(name);
+        if (entry == null) {
+            return null;
+        }
+        return new DataStorageManager.ReportBatch(name, readFile(entry.file),
+                entry.reportCount, entry.wifiCount, entry.cellCount);
+    }
+
+    @Override
+    public long getTime(String name) {
+        final ReportIndex.Entry entry = mIndex.get(name);
+        return (entry == null) ? 0 : entry.time;
+    }
+
+    @Override
+    public boolean delete(String name) {
+        final File file = new File(mDirectory, name);
+        final boolean ok = file.delete();
+        if (ok || !file.exists()) {
+            mIndex.remove(name);
+        }
+        return ok;
+    }
+
+    @Override
+    public void deleteAll() {
+        for (ReportIndex.Entry entry : mIndex.snapshot()) {
+            entry.file.delete();
+        }
+        mIndex.clear();
+    }
+
+    @Override
+    public void close() {
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return mIndex.isEmpty();
+    }
+
+    @Override
+    public int getReportCount() {
+        return mIndex.getReportCount();
+    }
+
+    @Override
+    public int getWifiCount() {
+        return mIndex.getWifiCount();
+    }
+
+    @Override
+    public int getCellCount() {
+        return mIndex.getCellCount();
+    }
+
+    @Override
+    public long getBytes() {
+        return mIndex.getBytes();
+    }
+
+    @Override
+    public long getOldestTime() {
+        return mIndex.getOldestTime();
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        final RandomAccessFile f = new RandomAccessFile(file, "r");
+        try {
+            final byte[] data = new byte[(int) f.length()];
+            f.readFully(data);
+            return data;
+        } finally {
+            f.close();
+        }
+    }
+}
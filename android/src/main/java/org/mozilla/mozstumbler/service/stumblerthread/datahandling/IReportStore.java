@@ -0,0 +1,73 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.mozstumbler.service.stumblerthread.datahandling;
+
+import java.io.IOException;
+
+/* Where DataStorageManager keeps the gzipped batches waiting for upload.
+ * FileReportStore writes a file per batch, SegmentedReportLog appends them to a log.
+ *
+ * Batches are named by the store, the names are what DataStorageManager hands out as
+ * ReportBatch.filename and gets back in delete(). Not thread-safe, DataStorageManager
+ * guards the store with its lock.
+ */
+interface IReportStore {
+    /* What an EvictionPolicy needs to know of a queued batch, without reading it */
+    final class BatchInfo {
+        final String name;
+        final long time;
+        final long bytes;
+        final int reportCount;
+        final int wifiCount;
+        final int cellCount;
+
+        BatchInfo(String name, long time, long bytes, int reportCount, int wifiCount, int cellCount) {
+            this.name = name;
+            this.time = time;
+            this.bytes = bytes;
+            this.reportCount = reportCount;
+            this.wifiCount = wifiCount;
+            this.cellCount = cellCount;
+        }
+    }
+
+    /* Picks up what an earlier run left, once on startup */
+    void load() throws IOException;
+
+    void write(byte[] data, long time, int reportCount, int wifiCount, int cellCount) throws IOException;
+
+    /* The queued batch names, oldest first. A copy, the store can change while it is iterated. */
+    String[] listBatches();
+
+    /* The same, with the times, sizes and counts */
+    BatchInfo[] listBatchInfo();
+
+    /* null if there is no such batch (anymore) */
+    DataStorageManager.ReportBatch read(String name) throws IOException;
+
+    /* The time the batch was written, 0 if there is no such batch */
+    long getTime(String name);
+
+    /* False if the batch wasn't deleted */
+    boolean delete(String name);
+
+    void deleteAll();
+
+    /* Lets go of any open files, load() again to use the store after this */
+    void close();
+
+    boolean isEmpty();
+
+    int getReportCount();
+
+    int getWifiCount();
+
+    int getCellCount();
+
+    long getBytes();
+
+    /* 0 if empty */
+    long getOldestTime();
+}
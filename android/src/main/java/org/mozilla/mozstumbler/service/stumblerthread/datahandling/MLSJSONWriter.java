@@ -0,0 +1,323 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.mozstumbler.service.stumblerthread.datahandling;
+
+import android.location.Location;
+import android.net.wifi.ScanResult;
+import android.telephony.TelephonyManager;
+
+import org.mozilla.mozstumbler.service.stumblerthread.scanners.cellscanner.CellInfo;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/* Writes the MLS submit JSON for a StumblerBundle straight into a reusable buffer.
+ *
+ * The output is byte-identical to StumblerBundle.toMLSJSON().toString(): same key order,
+ * same number formatting and same string escaping as org.json's JSONStringer.
+ * Unlike toMLSJSON(), no JSONObject/JSONArray tree is built, so a report costs a handful
+ * of allocations instead of one JSONObject per wifi and cell.
+ *
+ * Not thread-safe, each writer is meant to be owned by a single thread and reused.
+ */
+public final class MLSJSONWriter {
+    private static final int DEFAULT_CAPACITY = 16 * 1024;
+    private static final int BYTE_CHUNK_SIZE = 4096;
+    private static final long NEGATIVE_ZERO_BITS = Double.doubleToRawLongBits(-0.0d);
+
+    private final StringBuilder mBuffer;
+    private byte[] mByteChunk;
+
+    public MLSJSONWriter() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public MLSJSONWriter(int initialCapacity) {
+        mBuffer = new StringBuilder(initialCapacity);
+    }
+
+    public MLSJSONWriter reset() {
+        mBuffer.setLength(0);
+        return this;
+    }
+
+    public int length() {
+        return mBuffer.length();
+    }
+
+    /* Drops what was written after length(), to take back a report that turned out unreadable */
+    void setLength(int length) {
+        mBuffer.setLength(length);
+    }
+
+    public CharSequence getChars() {
+        return mBuffer;
+    }
+
+    @Override
+    public String toString() {
+        return mBuffer.toString();
+    }
+
+    /* Raw text, used to write the batch prefix/separators around reports. */
+    public MLSJSONWriter append(String s) {
+        mBuffer.append(s);
+        return this;
+    }
+
+    public MLSJSONWriter writeBundle(StumblerBundle bundle) {
+        final Location position = bundle.getGpsPosition();
+
+        beginReport(position.getTime(),
+                    Math.floor(position.getLatitude() * 1.0E6) / 1.0E6,
+                    Math.floor(position.getLongitude() * 1.0E6) / 1.0E6);
+        if (position.hasAccuracy()) {
+            writeAccuracy((int) Math.ceil(position.getAccuracy()));
+        }
+        if (position.hasAltitude()) {
+            writeAltitude(Math.round(position.getAltitude()));
+        }
+        writeRadio(bundle.getPhoneType());
+
+        beginCells();
+        int cellCount = 0;
+        for (CellInfo cell : bundle.getCellData().values()) {
+            writeCell(cell, cellCount++);
+        }
+        endCells(cellCount);
+
+        beginWifis();
+        int wifiCount = 0;
+        for (ScanResult scan : bundle.getWifiData().values()) {
+            writeWifi(scan.BSSID, scan.frequency, scan.level, wifiCount++);
+        }
+        endWifis(wifiCount);
+
+        endReport();
+        return this;
+    }
+
+    /* The pieces below are called in order: beginReport, the optional accuracy and altitude,
+     * radio, the cells, the wifis, endReport. They are also used to expand packed reports
+     * (see PackedReportReader), which is why they take primitives and not a bundle.
+     * lat and lon are expected to be already truncated to 6 decimal places. */
+    void beginReport(long time, double lat, double lon) {
+        mBuffer.append('{');
+        key(DataStorageContract.ReportsColumns.TIME, true).append(time);
+        key(DataStorageContract.ReportsColumns.LAT, false);
+        number(lat);
+        key(DataStorageContract.ReportsColumns.LON, false);
+        number(lon);
+    }
+
+    void writeAccuracy(int accuracy) {
+        key(DataStorageContract.ReportsColumns.ACCURACY, false).append(accuracy);
+    }
+
+    void writeAltitude(long altitude) {
+        key(DataStorageContract.ReportsColumns.ALTITUDE, false).append(altitude);
+    }
+
+    void writeRadio(int phoneType) {
+        key(DataStorageContract.ReportsColumns.RADIO, false);
+        if (phoneType == TelephonyManager.PHONE_TYPE_GSM) {
+            string("gsm");
+        } else if (phoneType == TelephonyManager.PHONE_TYPE_CDMA) {
+            string("cdma");
+        } else {
+            string("");
+        }
+    }
+
+    void beginCells() {
+        key(DataStorageContract.ReportsColumns.CELL, false).append('[');
+    }
+
+    void endCells(int cellCount) {
+        mBuffer.append(']');
+        key(DataStorageContract.ReportsColumns.CELL_COUNT, false).append(cellCount);
+    }
+
+    void beginWifis() {
+        key(DataStorageContract.ReportsColumns.WIFI, false).append('[');
+    }
+
+    void endWifis(int wifiCount) {
+        mBuffer.append(']');
+        key(DataStorageContract.ReportsColumns.WIFI_COUNT, false).append(wifiCount);
+    }
+
+    void endReport() {
+        mBuffer.append('}');
+    }
+
+    void writeCell(CellInfo cell, int index) {
+        writeCell(cell.getCellRadio(), cell.getMcc(), cell.getMnc(), cell.getLac(), cell.getCid(),
+                  cell.getSignal(), cell.getAsu(), cell.getTa(), cell.getPsc(), index);
+    }
+
+    /* Mirrors CellInfo.toJSONObject() */
+    void writeCell(String cellRadio, int mcc, int mnc, int lac, int cid,
+                   int signal, int asu, int ta, int psc, int index) {
+        if (index > 0) {
+            mBuffer.append(',');
+        }
+        mBuffer.append('{');
+        key("radio", true);
+        string(cellRadio);
+        key("mcc", false).append(mcc);
+        key("mnc", false).append(mnc);
+        if (lac != CellInfo.UNKNOWN_CID) {
+            key("lac", false).append(lac);
+        }
+        if (cid != CellInfo.UNKNOWN_CID) {
+            key("cid", false).append(cid);
+        }
+        if (signal != CellInfo.UNKNOWN_SIGNAL) {
+            key("signal", false).append(signal);
+        }
+        if (asu != CellInfo.UNKNOWN_SIGNAL) {
+            key("asu", false).append(asu);
+        }
+        if (ta != CellInfo.UNKNOWN_CID) {
+            key("ta", false).append(ta);
+        }
+        if (psc != CellInfo.UNKNOWN_CID) {
+            key("psc", false).append(psc);
+        }
+        mBuffer.append('}');
+    }
+
+    void writeWifi(String bssid, int frequency, int signal, int index) {
+        if (index > 0) {
+            mBuffer.append(',');
+        }
+        mBuffer.append('{');
+        key("key", true);
+        string(bssid);
+        key("frequency", false).append(frequency);
+        key("signal", false).append(signal);
+        mBuffer.append('}');
+    }
+
+    /* Same output as writeWifi(String...) for a canonical BSSID, without building the string. */
+    void writeWifi(long bssid, int frequency, int signal, int index) {
+        if (index > 0) {
+            mBuffer.append(',');
+        }
+        mBuffer.append('{');
+        key("key", true).append('"');
+        for (int shift = 44; shift >= 0; shift -= 4) {
+            mBuffer.append(Character.forDigit((int) (bssid >>> shift) & 0xf, 16));
+        }
+        mBuffer.append('"');
+        key("frequency", false).append(frequency);
+        key("signal", false).append(signal);
+        mBuffer.append('}');
+    }
+
+    /* Encode the buffer as UTF-8 into out, through a reused chunk instead of String.getBytes(). */
+    public void writeTo(OutputStream out) throws IOException {
+        if (mByteChunk == null) {
+            mByteChunk = new byte[BYTE_CHUNK_SIZE];
+        }
+        final byte[] chunk = mByteChunk;
+        final int length = mBuffer.length();
+        int pos = 0;
+        for (int i = 0; i < length; i++) {
+            if (pos > chunk.length - 4) {
+                out.write(chunk, 0, pos);
+                pos = 0;
+            }
+
+            final char c = mBuffer.charAt(i);
+            if (c < 0x80) {
+                chunk[pos++] = (byte) c;
+            } else if (c < 0x800) {
+                chunk[pos++] = (byte) (0xc0 | (c >> 6));
+                chunk[pos++] = (byte) (0x80 | (c & 0x3f));
+            } else if (Character.isHighSurrogate(c) && i + 1 < length &&
+                       Character.isLowSurrogate(mBuffer.charAt(i + 1))) {
+                final int cp = Character.toCodePoint(c, mBuffer.charAt(++i));
+                chunk[pos++] = (byte) (0xf0 | (cp >> 18));
+                chunk[pos++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+                chunk[pos++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+                chunk[pos++] = (byte) (0x80 | (cp & 0x3f));
+            } else if (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE) {
+                // unpaired surrogate, same replacement String.getBytes("UTF-8") uses
+                chunk[pos++] = (byte) '?';
+            } else {
+                chunk[pos++] = (byte) (0xe0 | (c >> 12));
+                chunk[pos++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                chunk[pos++] = (byte) (0x80 | (c & 0x3f));
+            }
+        }
+        if (pos > 0) {
+            out.write(chunk, 0, pos);
+        }
+    }
+
+    private StringBuilder key(String name, boolean isFirst) {
+        if (!isFirst) {
+            mBuffer.append(',');
+        }
+        string(name);
+        return mBuffer.append(':');
+    }
+
+    /* Same formatting as org.json JSONObject.numberToString() */
+    private void number(double value) {
+        if (Double.doubleToRawLongBits(value) == NEGATIVE_ZERO_BITS) {
+            mBuffer.append("-0");
+            return;
+        }
+        final long longValue = (long) value;
+        if (value == (double) longValue) {
+            mBuffer.append(longValue);
+        } else {
+            mBuffer.append(value);
+        }
+    }
+
+    /* Same escaping as org.json JSONStringer.string() */
+    private void string(String value) {
+        mBuffer.append('"');
+        for (int i = 0, length = value.length(); i < length; i++) {
+            final char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                case '\\':
+                case '/':
+                    mBuffer.append('\\').append(c);
+                    break;
+                case '\t':
+                    mBuffer.append("\\t");
+                    break;
+                case '\b':
+                    mBuffer.append("\\b");
+                    break;
+                case '\n':
+                    mBuffer.append("\\n");
+                    break;
+                case '\r':
+                    mBuffer.append("\\r");
+                    break;
+                case '\f':
+                    mBuffer.append("\\f");
+                    break;
+                default:
+                    if (c <= 0x1F) {
+                        mBuffer.append("\\u00");
+                        mBuffer.append(Character.forDigit(c >> 4, 16));
+                        mBuffer.append(Character.forDigit(c & 0xf, 16));
+                    } else {
+                        mBuffer.append(c);
+                    }
+                    break;
+            }
+        }
+        mBuffer.append('"');
+    }
+}
@@ -0,0 +1,371 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.mozstumbler.service.stumblerthread.datahandling;
+
+import org.mozilla.mozstumbler.service.stumblerthread.scanners.cellscanner.CellInfo;
+import org.mozilla.mozstumbler.service.utils.CompressionCodec;
+import org.mozilla.mozstumbler.service.utils.GzipCodec;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/* Expands stored report batches (see PackedReportWriter for the format) into the gzipped
+ * MLS submit body, just before upload. The batch is streamed one record at a time:
+ * decompress -> decode record -> MLSJSONWriter -> compress, so neither the whole JSON
+ * text nor a JSON object tree is ever held in memory.
+ *
+ * startBody(), appendReports() and finishBody() do the same for one body out of several
+ * batches, or out of part of one, as an UploadPlan groups them. The body can go to a stream
+ * instead of memory (startBody(OutputStream), endBody()), e.g. a file to upload from.
+ *
+ * Stored batches can be in any CompressionCodec, the body is always gzip.
+ * Batches written before the packed format existed are gzipped JSON, those are passed
+ * through unchanged.
+ *
+ * Not thread-safe, buffers are reused between batches.
+ */
+public final class PackedReportReader {
+    private static final String ITEMS_PREFIX = "{\"items\":[";
+    private static final String ITEMS_SUFFIX = "]}";
+
+    // Hand the JSON to the compressor in chunks of about this many chars
+    private static final int JSON_FLUSH_THRESHOLD = 8 * 1024;
+    // A record can't legitimately be bigger than this, a larger length means the data is corrupt
+    private static final int MAX_RECORD_LENGTH = 64 * 1024;
+
+    /* The stored batch can't be read, as opposed to the body not being written */
+    public static final class UnreadableBatchException extends IOException {
+        UnreadableBatchException(IOException cause) {
+            super(cause.toString(), cause);
+        }
+    }
+
+    private final MLSJSONWriter mWriter = new MLSJSONWriter(JSON_FLUSH_THRESHOLD * 2);
+    private byte[] mRecord = new byte[1024];
+    private int mPos;
+    private int mEnd;
+
+    // The body being built from several batches, see startBody()
+    private ByteArrayOutputStream mBodyBytes;
+    private GZIPOutputStream mBody;
+    private int mBodyReportCount;
+
+    /* Returns the gzipped MLS submit body for a batch as stored by DataStorageManager. */
+    public byte[] toSubmitBody(byte[] storedBatch) throws IOException {
+        final InputStream in = new BufferedInputStream(CompressionCodec.decompress(storedBatch));
+        try {
+            if (!readBatchHeader(in)) {
+                if (!GzipCodec.isGzip(storedBatch)) {
+                    throw new IOException("Batch is neither packed nor gzipped JSON");
+                }
+                return storedBatch;
+            }
+
+            // The JSON compresses about as well as the packed data, this is roughly the final size
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream(storedBatch.length * 2);
+            final GZIPOutputStream out = new GZIPOutputStream(bytes);
+            try {
+                mWriter.reset().append(ITEMS_PREFIX);
+                int count = 0;
+                int length;
+                while ((length = readRecordLength(in)) >= 0) {
+                    readRecord(in, length);
+                    if (count++ > 0) {
+                        mWriter.append(",");
+                    }
+                    expandRecord();
+
+                    if (mWriter.length() > JSON_FLUSH_THRESHOLD) {
+                        mWriter.writeTo(out);
+                        mWriter.reset();
+                    }
+                }
+                mWriter.append(ITEMS_SUFFIX).writeTo(out);
+                mWriter.reset();
+                out.finish();
+            } finally {
+                out.close();
+            }
+            return bytes.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+
+    /* Starts a submit body that appendReports() adds to and finishBody() returns, for uploading
+     * reports from several batches (or part of one) in one request. */
+    public void startBody(int expectedBytes) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(expectedBytes);
+        startBody(bytes);
+        mBodyBytes = bytes;
+    }
+
+    /* The same, with the body going to out, which endBody() closes */
+    public void startBody(OutputStream out) throws IOException {
+        mBodyBytes = null;
+        mBody = new GZIPOutputStream(out);
+        mBodyReportCount = 0;
+        mWriter.reset().append(ITEMS_PREFIX);
+    }
+
+    /* Adds reports [firstReport, firstReport + reportCount) of a stored batch to the body.
+     * All or nothing: if the batch turns out to be unreadable, none of it is added and the body
+     * can carry on without it (UnreadableBatchException). Batches of JSON from older versions
+     * can't be split, all of one is added with the slice that starts at 0, none with the others. */
+    public void appendReports(byte[] storedBatch, int firstReport, int reportCount) throws IOException {
+        final int mark = mWriter.length();
+        final int countBefore = mBodyReportCount;
+        try {
+            final InputStream in = new BufferedInputStream(CompressionCodec.decompress(storedBatch));
+            try {
+                if (!readBatchHeader(in)) {
+                    if (firstReport == 0) {
+                        appendLegacyItems(storedBatch);
+                    }
+                    return;
+                }
+
+                final int end = firstReport + reportCount;
+                int index = 0;
+                int length;
+                while (index < end && (length = readRecordLength(in)) >= 0) {
+                    readRecord(in, length);
+                    if (index++ < firstReport) {
+                        continue;
+                    }
+                    if (mBodyReportCount++ > 0) {
+                        mWriter.append(",");
+                    }
+                    expandRecord();
+                }
+            } finally {
+                in.close();
+            }
+        } catch (IOException ex) {
+            mWriter.setLength(mark);
+            mBodyReportCount = countBefore;
+            throw new UnreadableBatchException(ex);
+        }
+
+        // Only whole batches go to the compressor, until then a bad one can be taken back out
+        if (mWriter.length() > JSON_FLUSH_THRESHOLD) {
+            mWriter.writeTo(mBody);
+            mWriter.reset();
+        }
+    }
+
+    /* The gzipped body, null if no reports were added */
+    public byte[] finishBody() throws IOException {
+        if (!endBody()) {
+            mBodyBytes = null;
+            return null;
+        }
+        final byte[] body = mBodyBytes.toByteArray();
+        mBodyBytes = null;
+        return body;
+    }
+
+    /* Ends the body and closes its stream. False if no reports were added, the stream then has
+     * no complete body. */
+    public boolean endBody() throws IOException {
+        try {
+            if (mBodyReportCount == 0) {
+                return false;
+            }
+            mWriter.append(ITEMS_SUFFIX).writeTo(mBody);
+            mBody.finish();
+            return true;
+        } finally {
+            mWriter.reset();
+            mBody.close();
+            mBody = null;
+        }
+    }
+
+    private void appendLegacyItems(byte[] storedBatch) throws IOException {
+        if (!GzipCodec.isGzip(storedBatch)) {
+            throw new IOException("Batch is neither packed nor gzipped JSON");
+        }
+        final String json = new String(CompressionCodec.decompressToBytes(storedBatch), "UTF-8");
+        if (!json.startsWith(ITEMS_PREFIX) || !json.endsWith(ITEMS_SUFFIX)) {
+            throw new IOException("Unexpected JSON batch");
+        }
+        final String items = json.substring(ITEMS_PREFIX.length(), json.length() - ITEMS_SUFFIX.length());
+        if (items.length() == 0) {
+            return;
+        }
+        if (mBodyReportCount++ > 0) {
+            mWriter.append(",");
+        }
+        mWriter.append(items);
+    }
+
+    /* false if this isn't a packed batch, i.e. legacy JSON */
+    private static boolean readBatchHeader(InputStream in) throws IOException {
+        final byte[] magic = PackedReportWriter.BATCH_MAGIC;
+        for (byte b : magic) {
+            if (in.read() != b) {
+                return false;
+            }
+        }
+
+        final int version = in.read();
+        if (version != PackedReportWriter.FORMAT_VERSION) {
+            throw new IOException("Unsupported packed report version: " + version);
+        }
+        return true;
+    }
+
+    /* -1 at the end of the batch */
+    private static int readRecordLength(InputStream in) throws IOException {
+        int b = in.read();
+        if (b < 0) {
+            return -1;
+        }
+
+        int result = 0;
+        int shift = 0;
+        while (true) {
+            result |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                break;
+            }
+            shift += 7;
+            b = in.read();
+            if (b < 0) {
+                throw new EOFException("Truncated packed report batch");
+            }
+            if (shift > 21) {
+                throw new IOException("Corrupt packed report length");
+            }
+        }
+
+        if (result > MAX_RECORD_LENGTH) {
+            throw new IOException("Corrupt packed report length: " + result);
+        }
+        return result;
+    }
+
+    private void readRecord(InputStream in, int length) throws IOException {
+        if (mRecord.length < length) {
+            mRecord = new byte[length];
+        }
+
+        int read = 0;
+        while (read < length) {
+            final int n = in.read(mRecord, read, length - read);
+            if (n < 0) {
+                throw new EOFException("Truncated packed report batch");
+            }
+            read += n;
+        }
+        mPos = 0;
+        mEnd = length;
+    }
+
+    private void expandRecord() throws IOException {
+        final int flags = readByte();
+        final int phoneType = readByte();
+        final long time = readVarint();
+        final double lat = readInt() / 1.0E6;
+        final double lon = readInt() / 1.0E6;
+
+        mWriter.beginReport(time, lat, lon);
+        if ((flags & PackedReportWriter.FLAG_HAS_ACCURACY) != 0) {
+            mWriter.writeAccuracy((int) readVarint());
+        }
+        if ((flags & PackedReportWriter.FLAG_HAS_ALTITUDE) != 0) {
+            mWriter.writeAltitude(readZigzag());
+        }
+        mWriter.writeRadio(phoneType);
+
+        mWriter.beginCells();
+        final int cellCount = readByte();
+        for (int i = 0; i < cellCount; i++) {
+            expandCell(i);
+        }
+        mWriter.endCells(cellCount);
+
+        mWriter.beginWifis();
+        final int wifiCount = readByte();
+        for (int i = 0; i < wifiCount; i++) {
+            long bssid = 0;
+            for (int b = 0; b < 6; b++) {
+                bssid = (bssid << 8) | readByte();
+            }
+            final int frequency = (int) readVarint();
+            final int signal = (int) readZigzag();
+            mWriter.writeWifi(bssid, frequency, signal, i);
+        }
+        mWriter.endWifis(wifiCount);
+
+        mWriter.endReport();
+    }
+
+    private void expandCell(int index) throws IOException {
+        final int radioIndex = readByte();
+        final String radio;
+        if (radioIndex < PackedReportWriter.CELL_RADIOS.length) {
+            radio = PackedReportWriter.CELL_RADIOS[radioIndex];
+        } else if (radioIndex == PackedReportWriter.RADIO_OTHER) {
+            final int length = readByte();
+            final char[] chars = new char[length];
+            for (int i = 0; i < length; i++) {
+                chars[i] = (char) readByte();
+            }
+            radio = new String(chars);
+        } else {
+            throw new IOException("Corrupt packed report, cell radio: " + radioIndex);
+        }
+
+        final int mcc = (int) readZigzag();
+        final int mnc = (int) readZigzag();
+        final int present = readByte();
+        final int lac = readOptional(present, PackedReportWriter.CELL_HAS_LAC, CellInfo.UNKNOWN_CID);
+        final int cid = readOptional(present, PackedReportWriter.CELL_HAS_CID, CellInfo.UNKNOWN_CID);
+        final int signal = readOptional(present, PackedReportWriter.CELL_HAS_SIGNAL, CellInfo.UNKNOWN_SIGNAL);
+        final int asu = readOptional(present, PackedReportWriter.CELL_HAS_ASU, CellInfo.UNKNOWN_SIGNAL);
+        final int ta = readOptional(present, PackedReportWriter.CELL_HAS_TA, CellInfo.UNKNOWN_CID);
+        final int psc = readOptional(present, PackedReportWriter.CELL_HAS_PSC, CellInfo.UNKNOWN_CID);
+        mWriter.writeCell(radio, mcc, mnc, lac, cid, signal, asu, ta, psc, index);
+    }
+
+    private int readOptional(int present, int bit, int unknown) throws IOException {
+        return ((present & bit) != 0) ? (int) readZigzag() : unknown;
+    }
+
+    private int readByte() throws IOException {
+        if (mPos >= mEnd) {
+            throw new EOFException("Truncated packed report");
+        }
+        return mRecord[mPos++] & 0xff;
+    }
+
+    private int readInt() throws IOException {
+        return (readByte() << 24) | (readByte() << 16) | (readByte() << 8) | readByte();
+    }
+
+    private long readVarint() throws IOException {
+        long result = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            final int b = readByte();
+            result |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return result;
+            }
+        }
+        throw new IOException("Corrupt packed report varint");
+    }
+
+    private long readZigzag() throws IOException {
+        final long value = readVarint();
+        return (value >>> 1) ^ -(value & 1);
+    }
+}
@@ -0,0 +1,253 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.mozstumbler.service.stumblerthread.datahandling;
+
+import android.location.Location;
+import android.net.wifi.ScanResult;
+
+import org.mozilla.mozstumbler.service.stumblerthread.scanners.cellscanner.CellInfo;
+import org.mozilla.mozstumbler.service.utils.LongObjectHashMap;
+
+/* Packs a StumblerBundle into the binary record format used for queued reports.
+ * The MLS JSON is only produced at upload time, by PackedReportReader.
+ *
+ * A batch (the uncompressed content of a reports-*.gz file) is:
+ *   'M' 'S' 'P' <version byte>, then for each report: varint length, record bytes.
+ *
+ * A version 1 record is:
+ *   flags       u8       FLAG_HAS_ACCURACY | FLAG_HAS_ALTITUDE
+ *   phone type  u8       TelephonyManager.PHONE_TYPE_*
+ *   time        varint   ms
+ *   lat, lon    2 x s32  floor(degrees * 1e6), big-endian
+ *   accuracy    varint   metres, rounded up (if flagged)
+ *   altitude    zigzag   metres, rounded (if flagged)
+ *   cell count  u8, then per cell:
+ *     radio     u8       index in CELL_RADIOS, or RADIO_OTHER followed by u8 length + ASCII
+ *     mcc, mnc  zigzag
+ *     present   u8       CELL_HAS_* bits, then a zigzag for each set bit, in bit order
+ *   wifi count  u8, then per wifi:
+ *     bssid     6 bytes
+ *     frequency varint
+ *     signal    zigzag
+ *
+ * Varints are 7 bits per byte, low bits first. Zigzag maps signed values to varints.
+ * A report with 20 wifis packs to about 230 bytes, versus about 1.3KB of JSON.
+ *
+ * Not thread-safe, the writer is meant to be owned by the Reporter and reused.
+ */
+public final class PackedReportWriter {
+    public static final byte[] BATCH_MAGIC = { 'M', 'S', 'P' };
+    public static final int FORMAT_VERSION = 1;
+
+    static final int FLAG_HAS_ACCURACY = 1;
+    static final int FLAG_HAS_ALTITUDE = 1 << 1;
+
+    static final int CELL_HAS_LAC = 1;
+    static final int CELL_HAS_CID = 1 << 1;
+    static final int CELL_HAS_SIGNAL = 1 << 2;
+    static final int CELL_HAS_ASU = 1 << 3;
+    static final int CELL_HAS_TA = 1 << 4;
+    static final int CELL_HAS_PSC = 1 << 5;
+
+    static final String[] CELL_RADIOS = {
+        CellInfo.CELL_RADIO_UNKNOWN,
+        CellInfo.CELL_RADIO_GSM,
+        CellInfo.CELL_RADIO_UMTS,
+        CellInfo.CELL_RADIO_CDMA,
+        CellInfo.CELL_RADIO_LTE,
+    };
+    static final int RADIO_OTHER = 0xff;
+
+    // cell and wifi counts are a single byte
+    private static final int MAX_ENTRIES = 0xff;
+
+    private static final int DEFAULT_CAPACITY = 4096;
+
+    private byte[] mBuffer;
+    private int mLength;
+
+    public PackedReportWriter() {
+        mBuffer = new byte[DEFAULT_CAPACITY];
+    }
+
+    public PackedReportWriter reset() {
+        mLength = 0;
+        return this;
+    }
+
+    public int length() {
+        return mLength;
+    }
+
+    public byte[] toByteArray() {
+        final byte[] result = new byte[mLength];
+        System.arraycopy(mBuffer, 0, result, 0, mLength);
+        return result;
+    }
+
+    public PackedReportWriter writeBundle(StumblerBundle bundle) {
+        final Location position = bundle.getGpsPosition();
+
+        int flags = 0;
+        if (position.hasAccuracy()) {
+            flags |= FLAG_HAS_ACCURACY;
+        }
+        if (position.hasAltitude()) {
+            flags |= FLAG_HAS_ALTITUDE;
+        }
+        writeByte(flags);
+        writeByte(bundle.getPhoneType());
+        writeVarint(position.getTime());
+        writeInt((int) Math.floor(position.getLatitude() * 1.0E6));
+        writeInt((int) Math.floor(position.getLongitude() * 1.0E6));
+        if (position.hasAccuracy()) {
+            writeVarint((int) Math.ceil(position.getAccuracy()));
+        }
+        if (position.hasAltitude()) {
+            writeZigzag(Math.round(position.getAltitude()));
+        }
+
+        // Counts are patched in after the entries. The bundle limits are below the u8 maximum.
+        int countOffset = mLength;
+        int count = 0;
+        writeByte(0);
+        for (CellInfo cell : bundle.getCellData().values()) {
+            if (count == MAX_ENTRIES) {
+                break;
+            }
+            writeCell(cell);
+            count++;
+        }
+        mBuffer[countOffset] = (byte) count;
+
+        countOffset = mLength;
+        count = 0;
+        writeByte(0);
+        final LongObjectHashMap<ScanResult> wifis = bundle.getWifiData();
+        for (int i = wifis.nextSlot(-1); i >= 0 && count < MAX_ENTRIES; i = wifis.nextSlot(i)) {
+            final long bssid = wifis.keyAt(i);
+            final ScanResult scan = wifis.valueAt(i);
+            ensureCapacity(6);
+            for (int shift = 40; shift >= 0; shift -= 8) {
+                mBuffer[mLength++] = (byte) (bssid >>> shift);
+            }
+            writeVarint(scan.frequency);
+            writeZigzag(scan.level);
+            count++;
+        }
+        mBuffer[countOffset] = (byte) count;
+        return this;
+    }
+
+    private void writeCell(CellInfo cell) {
+        final String radio = cell.getCellRadio();
+        int radioIndex = RADIO_OTHER;
+        for (int i = 0; i < CELL_RADIOS.length; i++) {
+            if (CELL_RADIOS[i].equals(radio)) {
+                radioIndex = i;
+                break;
+            }
+        }
+        writeByte(radioIndex);
+        if (radioIndex == RADIO_OTHER) {
+            final int length = Math.min(radio.length(), 0xff);
+            writeByte(length);
+            for (int i = 0; i < length; i++) {
+                writeByte(radio.charAt(i));
+            }
+        }
+
+        writeZigzag(cell.getMcc());
+        writeZigzag(cell.getMnc());
+
+        int present = 0;
+        if (cell.getLac() != CellInfo.UNKNOWN_CID) {
+            present |= CELL_HAS_LAC;
+        }
+        if (cell.getCid() != CellInfo.UNKNOWN_CID) {
+            present |= CELL_HAS_CID;
+        }
+        if (cell.getSignal() != CellInfo.UNKNOWN_SIGNAL) {
+            present |= CELL_HAS_SIGNAL;
+        }
+        if (cell.getAsu() != CellInfo.UNKNOWN_SIGNAL) {
+            present |= CELL_HAS_ASU;
+        }
+        if (cell.getTa() != CellInfo.UNKNOWN_CID) {
+            present |= CELL_HAS_TA;
+        }
+        if (cell.getPsc() != CellInfo.UNKNOWN_CID) {
+            present |= CELL_HAS_PSC;
+        }
+        writeByte(present);
+        if ((present & CELL_HAS_LAC) != 0) {
+            writeZigzag(cell.getLac());
+        }
+        if ((present & CELL_HAS_CID) != 0) {
+            writeZigzag(cell.getCid());
+        }
+        if ((present & CELL_HAS_SIGNAL) != 0) {
+            writeZigzag(cell.getSignal());
+        }
+        if ((present & CELL_HAS_ASU) != 0) {
+            writeZigzag(cell.getAsu());
+        }
+        if ((present & CELL_HAS_TA) != 0) {
+            writeZigzag(cell.getTa());
+        }
+        if ((present & CELL_HAS_PSC) != 0) {
+            writeZigzag(cell.getPsc());
+        }
+    }
+
+    private void writeByte(int value) {
+        ensureCapacity(1);
+        mBuffer[mLength++] = (byte) value;
+    }
+
+    private void writeInt(int value) {
+        ensureCapacity(4);
+        mBuffer[mLength++] = (byte) (value >>> 24);
+        mBuffer[mLength++] = (byte) (value >>> 16);
+        mBuffer[mLength++] = (byte) (value >>> 8);
+        mBuffer[mLength++] = (byte) value;
+    }
+
+    private void writeZigzag(long value) {
+        writeVarint((value << 1) ^ (value >> 63));
+    }
+
+    private void writeVarint(long value) {
+        ensureCapacity(10);
+        mLength = putVarint(mBuffer, mLength, value);
+    }
+
+    private void ensureCapacity(int extra) {
+        if (mLength + extra > mBuffer.length) {
+            final byte[] bigger = new byte[Math.max(mBuffer.length * 2, mLength + extra)];
+            System.arraycopy(mBuffer, 0, bigger, 0, mLength);
+            mBuffer = bigger;
+        }
+    }
+
+    /* Writes value at offset, returns the offset after it. The caller makes sure there are 10 bytes free. */
+    static int putVarint(byte[] dest, int offset, long value) {
+        while ((value & ~0x7fL) != 0) {
+            dest[offset++] = (byte) ((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        dest[offset++] = (byte) value;
+        return offset;
+    }
+
+    static int varintSize(long value) {
+        int size = 1;
+        while ((value & ~0x7fL) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+}
@@ -1,57 +1,176 @@
 package org.mozilla.mozstumbler.service.stumblerthread.datahandling;
 
+import android.annotation.TargetApi;
+import android.os.Build;
+
 import org.mozilla.mozstumbler.service.AppGlobals;
-import org.mozilla.mozstumbler.service.core.logging.Log;
+import org.mozilla.mozstumbler.service.utils.CompressionCodec;
+import org.mozilla.mozstumbler.service.utils.GzipCodec;
 
-import java.util.ArrayList;
+import java.io.ByteArrayOutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
 
 /**
 * Created by victorng on 14-11-20.
+*
+* The reports are compressed as they are added: the batch is held as an open deflate stream,
+* in the packed format described in PackedReportWriter, framed by the CompressionCodec (gzip
+* by default). getCompressedSize() is O(1), and finishBatch() only has to end the stream,
+* nothing is compressed twice.
+*
+* From API 19 each report is sync flushed, so the size is exact, but for the few bytes that
+* end the stream. Before that the deflater may hold back input until its block is full, and the
+* size is only an estimate: it counts the input since the deflater last produced output
+* uncompressed, but that output may not cover all the input before it, so it may undercount.
 */
 public class ReportBatchBuilder {
     // The max number of reports stored in the mCurrentReports. Each report is a GPS location plus wifi and cell scan.
     // Once this size is reached, data is persisted to disk, mCurrentReports is cleared.
     public static final int MAX_REPORTS_IN_MEMORY = 50;
     private static final String LOG_TAG = AppGlobals.makeLogTag(ReportBatchBuilder.class);
-    private final ArrayList<String> reports = new ArrayList<String>();
+
+    private final CompressionCodec mCodec;
+    private final byte[] mHeader;
+    private final Deflater mDeflater;
+    private final CRC32 mCrc = new CRC32();
+    private final ByteArrayOutputStream mCompressed = new ByteArrayOutputStream();
+    private final byte[] mChunk = new byte[2048];
+    private final byte[] mLengthPrefix = new byte[10];
+    private final boolean mSyncFlush;
+
+    private int mReportCount;
+    private long mUncompressedSize;
+    // Input since the deflater last produced output, only before API 19. It may still hold some
+    // from before that too, see the class comment.
+    private long mPendingInput;
+
     public int wifiCount;
     public int cellCount;
 
+    public ReportBatchBuilder() {
+        this(GzipCodec.DEFAULT);
+    }
+
+    public ReportBatchBuilder(CompressionCodec codec) {
+        this(codec, Build.VERSION.SDK_INT >= 19);
+    }
+
+    // Tests run as an older API level, this lets them cover both
+    ReportBatchBuilder(CompressionCodec codec, boolean syncFlush) {
+        mCodec = codec;
+        mHeader = codec.getHeader();
+        mDeflater = codec.createDeflater();
+        mSyncFlush = syncFlush;
+    }
+
+    public CompressionCodec getCodec() {
+        return mCodec;
+    }
+
     public int reportsCount() {
-        return reports.size();
+        return mReportCount;
     }
 
-    String finalizeReports() {
-        final String kPrefix = "{\"items\":[";
-        final String kSuffix = "]}";
-        final StringBuilder sb = new StringBuilder(kPrefix);
-        String sep = "";
-        final String separator = ",";
-        if (reports != null) {
-            for(String s: reports) {
-                sb.append(sep).append(s);
-                sep = separator;
-            }
+    /* About the size of the batch finishBatch() would return now; before API 19 it may be less */
+    public long getCompressedSize() {
+        if (mReportCount == 0) {
+            return 0;
         }
+        return mHeader.length + mCompressed.size() + mPendingInput + CompressionCodec.TRAILER_SIZE;
+    }
 
-        final String result = sb.append(kSuffix).toString();
+    public long getUncompressedSize() {
+        return mUncompressedSize;
+    }
+
+    /* Ends the stream and returns the compressed batch, ready to be stored.
+     * The builder is left empty. wifiCount and cellCount are the caller's to reset. */
+    byte[] finishBatch() {
+        if (mReportCount == 0) {
+            writeBatchHeader();
+        }
+        mDeflater.finish();
+        while (!mDeflater.finished()) {
+            drainDeflater();
+        }
+
+        final byte[] result = new byte[mHeader.length + mCompressed.size() + CompressionCodec.TRAILER_SIZE];
+        System.arraycopy(mHeader, 0, result, 0, mHeader.length);
+        final byte[] body = mCompressed.toByteArray();
+        System.arraycopy(body, 0, result, mHeader.length, body.length);
+        CompressionCodec.putTrailer(result, mHeader.length + body.length, (int) mCrc.getValue(), (int) mUncompressedSize);
+
+        clearReports();
         return result;
     }
 
     public void clearReports() {
-        reports.clear();
+        mCodec.reset(mDeflater);
+        mCrc.reset();
+        mCompressed.reset();
+        mReportCount = 0;
+        mUncompressedSize = 0;
+        mPendingInput = 0;
     }
 
-    public void addReport(String report) {
-        if (reports.size() == MAX_REPORTS_IN_MEMORY) {
+    public void addReport(byte[] report) {
+        if (mReportCount == MAX_REPORTS_IN_MEMORY) {
             // This can happen in the event that serializing reports to disk fails
             // and the reports list is never cleared.
             return;
         }
-        reports.add(report);
+        if (mReportCount == 0) {
+            writeBatchHeader();
+        }
+        final int prefixLength = PackedReportWriter.putVarint(mLengthPrefix, 0, report.length);
+        write(mLengthPrefix, prefixLength);
+        write(report, report.length);
+        mReportCount++;
+        flush();
     }
 
     public boolean maxReportsReached() {
         return reportsCount() == MAX_REPORTS_IN_MEMORY;
     }
+
+    private void writeBatchHeader() {
+        final byte[] magic = PackedReportWriter.BATCH_MAGIC;
+        write(magic, magic.length);
+        write(new byte[] { (byte) PackedReportWriter.FORMAT_VERSION }, 1);
+    }
+
+    private void write(byte[] data, int length) {
+        mCrc.update(data, 0, length);
+        mUncompressedSize += length;
+        mPendingInput += length;
+        mDeflater.setInput(data, 0, length);
+        while (!mDeflater.needsInput()) {
+            drainDeflater();
+        }
+    }
+
+    private void flush() {
+        if (mSyncFlush) {
+            syncFlush();
+        }
+    }
+
+    @TargetApi(19)
+    private void syncFlush() {
+        int count;
+        do {
+            count = mDeflater.deflate(mChunk, 0, mChunk.length, Deflater.SYNC_FLUSH);
+            mCompressed.write(mChunk, 0, count);
+        } while (count == mChunk.length);
+        mPendingInput = 0;
+    }
+
+    private void drainDeflater() {
+        final int count = mDeflater.deflate(mChunk);
+        if (count > 0) {
+            mCompressed.write(mChunk, 0, count);
+            mPendingInput = 0;
+        }
+    }
 }
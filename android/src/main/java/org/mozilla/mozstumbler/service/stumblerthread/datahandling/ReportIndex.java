@@ -0,0 +1,297 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.mozstumbler.service.stumblerthread.datahandling;
+
+import org.mozilla.mozstumbler.service.AppGlobals;
+import org.mozilla.mozstumbler.service.core.logging.Log;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/* The batch files queued in the reports directory, with their counts, sizes and times.
+ *
+ * Kept up to date as batches are added and removed, in O(1) each, instead of listing the
+ * directory and parsing every filename after each change. Entries are in the order they
+ * were added, which is the order the files were written, so the oldest is the first.
+ *
+ * Each change is appended to a journal file ("+ name bytes" or "- name"). On startup, load()
+ * lists the directory once and reconciles it with the journal: files the journal knows keep
+ * their recorded size, files it doesn't know are read from their names, entries for missing
+ * files are dropped. The journal is then rewritten to just the current entries.
+ * The directory always wins, a lost or damaged journal only costs the size lookups.
+ * The journal is also compacted that way once it has many more lines than entries.
+ *
+ * Not thread-safe, DataStorageManager guards it with its lock.
+ */
+final class ReportIndex {
+    private static final String LOG_TAG = AppGlobals.makeLogTag(ReportIndex.class.getSimpleName());
+
+    private static final char ADDED = '+';
+    private static final char REMOVED = '-';
+    // Lines beyond twice the entries before the journal is compacted
+    private static final int MAX_JOURNAL_SLACK = 64;
+
+    static final String SEP_REPORT_COUNT = "-r";
+    static final String SEP_WIFI_COUNT = "-w";
+    static final String SEP_CELL_COUNT = "-c";
+    static final String SEP_TIME_MS = "-t";
+    static final String FILENAME_PREFIX = "reports";
+
+    static final class Entry {
+        final File file;
+        final long time;
+        final int reportCount;
+        final int wifiCount;
+        final int cellCount;
+        final long bytes;
+
+        Entry(File file, long bytes) {
+            this.file = file;
+            final String name = file.getName();
+            this.time = getLongFromFilename(name, SEP_TIME_MS);
+            this.reportCount = (int) getLongFromFilename(name, SEP_REPORT_COUNT);
+            this.wifiCount = (int) getLongFromFilename(name, SEP_WIFI_COUNT);
+            this.cellCount = (int) getLongFromFilename(name, SEP_CELL_COUNT);
+            this.bytes = bytes;
+        }
+
+        String getName() {
+            return file.getName();
+        }
+    }
+
+    private final File mDirectory;
+    private final File mJournal;
+    private final LinkedHashMap<String, Entry> mEntries = new LinkedHashMap<String, Entry>();
+
+    private int mReportCount;
+    private int mWifiCount;
+    private int mCellCount;
+    private long mBytes;
+    private int mJournalLines;
+
+    ReportIndex(File directory, File journal) {
+        mDirectory = directory;
+        mJournal = journal;
+    }
+
+    static String createFilename(long time, int reportCount, int wifiCount, int cellCount) {
+        return FILENAME_PREFIX +
+                SEP_TIME_MS + time +
+                SEP_REPORT_COUNT + reportCount +
+                SEP_WIFI_COUNT + wifiCount +
+                SEP_CELL_COUNT + cellCount + ".gz";
+    }
+
+    static long getLongFromFilename(String name, String separator) {
+        final int s = name.indexOf(separator) + separator.length();
+        int e = name.indexOf('-', s);
+        if (e < 0) {
+            e = name.indexOf('.', s);
+        }
+        return Long.parseLong(name.substring(s, e));
+    }
+
+    /* The only directory listing, done once on startup */
+    void load() {
+        final Map<String, Long> journalSizes = readJournal();
+
+        clearEntries();
+        final File[] files = mDirectory.listFiles();
+        if (files != null) {
+            final ArrayList<Entry> found = new ArrayList<Entry>(files.length);
+            for (File f : files) {
+                Long bytes = journalSizes.get(f.getName());
+                if (bytes == null) {
+                    bytes = f.length();
+                }
+                try {
+                    found.add(new Entry(f, bytes));
+                } catch (RuntimeException e) {
+                    Log.w(LOG_TAG, "Not a batch file: " + f.getName());
+                }
+            }
+            Collections.sort(found, new Comparator<Entry>() {
+                @Override
+                public int compare(Entry lhs, Entry rhs) {
+                    return (lhs.time < rhs.time) ? -1 : ((lhs.time == rhs.time) ? 0 : 1);
+                }
+            });
+            for (Entry entry : found) {
+                put(entry);
+            }
+        }
+
+        if (AppGlobals.isDebug) {
+            for (String name : mEntries.keySet()) {
+                Log.d("StumblerFiles", name);
+            }
+        }
+
+        rewriteJournal();
+    }
+
+    /* A batch file was just written */
+    void add(File file, long bytes) {
+        final Entry entry = new Entry(file, bytes);
+        put(entry);
+        appendToJournal(ADDED + " " + entry.getName() + " " + bytes);
+    }
+
+    /* A batch file was deleted, false if it wasn't in the index */
+    boolean remove(String name) {
+        final Entry entry = mEntries.remove(name);
+        if (entry == null) {
+            return false;
+        }
+        count(entry, -1);
+        appendToJournal(REMOVED + " " + name);
+        return true;
+    }
+
+    /* Forget everything, the caller deletes the files */
+    void clear() {
+        clearEntries();
+        rewriteJournal();
+    }
+
+    boolean isEmpty() {
+        return mEntries.isEmpty();
+    }
+
+    int size() {
+        return mEntries.size();
+    }
+
+    int getReportCount() {
+        return mReportCount;
+    }
+
+    int getWifiCount() {
+        return mWifiCount;
+    }
+
+    int getCellCount() {
+        return mCellCount;
+    }
+
+    long getBytes() {
+        return mBytes;
+    }
+
+    /* null if not in the index */
+    Entry get(String name) {
+        return mEntries.get(name);
+    }
+
+    /* 0 if empty */
+    long getOldestTime() {
+        final Iterator<Entry> it = mEntries.values().iterator();
+        return it.hasNext() ? it.next().time : 0;
+    }
+
+    /* A copy, oldest first, for iterating while the index changes */
+    Entry[] snapshot() {
+        return mEntries.values().toArray(new Entry[mEntries.size()]);
+    }
+
+    private void put(Entry entry) {
+        final Entry previous = mEntries.put(entry.getName(), entry);
+        if (previous != null) {
+            count(previous, -1);
+        }
+        count(entry, 1);
+    }
+
+    private void count(Entry entry, int sign) {
+        mReportCount += sign * entry.reportCount;
+        mWifiCount += sign * entry.wifiCount;
+        mCellCount += sign * entry.cellCount;
+        mBytes += sign * entry.bytes;
+    }
+
+    private void clearEntries() {
+        mEntries.clear();
+        mReportCount = mWifiCount = mCellCount = 0;
+        mBytes = 0;
+    }
+
+    private Map<String, Long> readJournal() {
+        final Map<String, Long> sizes = new HashMap<String, Long>();
+        if (!mJournal.exists()) {
+            return sizes;
+        }
+        try {
+            final BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(mJournal), "UTF-8"));
+            try {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    if (line.length() < 3) {
+                        continue;
+                    }
+                    final String[] parts = line.split(" ");
+                    if (parts.length == 3 && parts[0].charAt(0) == ADDED) {
+                        sizes.put(parts[1], Long.parseLong(parts[2]));
+                    } else if (parts.length == 2 && parts[0].charAt(0) == REMOVED) {
+                        sizes.remove(parts[1]);
+                    }
+                }
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Error reading journal, using the directory only: " + e);
+        } catch (RuntimeException e) {
+            // A half-written last line, from a crash mid-append
+            Log.w(LOG_TAG, "Damaged journal, using what was read: " + e);
+        }
+        return sizes;
+    }
+
+    private void rewriteJournal() {
+        final StringBuilder contents = new StringBuilder();
+        for (Entry entry : mEntries.values()) {
+            contents.append(ADDED).append(' ').append(entry.getName()).append(' ').append(entry.bytes).append('\n');
+        }
+        write(contents.toString(), false);
+        mJournalLines = mEntries.size();
+    }
+
+    private void appendToJournal(String line) {
+        if (mJournalLines > MAX_JOURNAL_SLACK + 2 * mEntries.size()) {
+            rewriteJournal();
+            return;
+        }
+        write(line + "\n", true);
+        mJournalLines++;
+    }
+
+    // The journal is only a cache of the directory, failing to write it isn't fatal
+    private void write(String text, boolean append) {
+        try {
+            final Writer out = new OutputStreamWriter(new FileOutputStream(mJournal, append), "UTF-8");
+            try {
+                out.write(text);
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Error writing journal: " + e);
+        }
+    }
+}
@@ -0,0 +1,489 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.mozstumbler.service.stumblerthread.datahandling;
+
+import org.mozilla.mozstumbler.service.AppGlobals;
+import org.mozilla.mozstumbler.service.core.logging.Log;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.zip.CRC32;
+
+/* Batches appended to a log of segment files, instead of a file per batch.
+ *
+ * A segment (segment-<n>.log) is filled up to about its size, then the next one is started, so
+ * a long offline session creates a file per segment rather than per batch, and deletes them the
+ * same way. Each batch is a record: a header with a magic, the length, a CRC32 of the rest of the
+ * header and the data, the time written and the counts, followed by the gzipped batch.
+ *
+ * Uploaded records are marked, and the upload cursor moves past the oldest ones that are marked.
+ * It is kept in a small file (segment, offset and a CRC32), and once it has moved past a segment
+ * the segment is deleted. A record uploaded out of order is only forgotten once the cursor reaches
+ * it, if the app dies before that it is uploaded again, as any batch whose delete didn't make it.
+ *
+ * On startup, load() scans the segments from the cursor on. The first record with a bad header or
+ * checksum is where a write was torn, the segment is truncated there and appends carry on from it.
+ *
+ * Reads use FileChannel positional reads of just the record's bytes. A record is a few KB that
+ * has to end up in a byte[] for the upload anyway, so mapping the segment wouldn't save the copy.
+ */
+final class SegmentedReportLog implements IReportStore {
+    private static final String LOG_TAG = AppGlobals.makeLogTag(SegmentedReportLog.class.getSimpleName());
+
+    static final int DEFAULT_SEGMENT_SIZE = 64 * 1024;
+
+    private static final int RECORD_MAGIC = 0x4d53524c; // "MSRL"
+    // magic, data length, CRC32, time, report count, wifi count, cell count
+    static final int HEADER_SIZE = 4 + 4 + 4 + 8 + 4 + 4 + 4;
+    // The CRC covers everything after it
+    private static final int CRC_OFFSET = 8;
+    private static final int CHECKED_OFFSET = 12;
+
+    // segment, offset, CRC32 of the two
+    private static final int CURSOR_SIZE = 8 + 8 + 4;
+
+    static final String SEGMENT_PREFIX = "segment-";
+    static final String SEGMENT_SUFFIX = ".log";
+    private static final String CURSOR_FILENAME = "cursor";
+
+    private static final class Record {
+        final String name;
+        final long segment;
+        final long offset;
+        final int length;
+        final long time;
+        final int reportCount;
+        final int wifiCount;
+        final int cellCount;
+        boolean uploaded;
+
+        Record(long segment, long offset, int length, long time, int reportCount, int wifiCount, int cellCount) {
+            this.name = SEGMENT_PREFIX + segment + "@" + offset;
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+            this.time = time;
+            this.reportCount = reportCount;
+            this.wifiCount = wifiCount;
+            this.cellCount = cellCount;
+        }
+
+        long size() {
+            return HEADER_SIZE + length;
+        }
+    }
+
+    private final File mDirectory;
+    private final File mCursorFile;
+    private final int mSegmentSize;
+
+    // Oldest first, uploaded records stay until the cursor has passed them
+    private final LinkedHashMap<String, Record> mRecords = new LinkedHashMap<String, Record>();
+
+    private RandomAccessFile mActiveFile;
+    private long mActiveSegment = -1;
+    private long mActiveLength;
+    private long mNextSegment;
+    private long mOldestSegment;
+
+    // Of the records not uploaded yet
+    private int mPendingRecords;
+    private int mReportCount;
+    private int mWifiCount;
+    private int mCellCount;
+    private long mBytes;
+
+    SegmentedReportLog(File directory, int segmentSize) {
+        mDirectory = directory;
+        mCursorFile = new File(directory, CURSOR_FILENAME);
+        mSegmentSize = segmentSize;
+    }
+
+    @Override
+    public void load() throws IOException {
+        close();
+        clearRecords();
+        if (!mDirectory.exists()) {
+            mDirectory.mkdirs();
+        }
+
+        final long[] cursor = readCursor();
+        final ArrayList<Long> segments = listSegments();
+        mNextSegment = segments.isEmpty() ? cursor[0] : Math.max(cursor[0], segments.get(segments.size() - 1) + 1);
+        mOldestSegment = mNextSegment;
+
+        long validLength = 0;
+        for (long segment : segments) {
+            if (segment < cursor[0]) {
+                // Uploaded, the app died before it was deleted
+                segmentFile(segment).delete();
+                continue;
+            }
+            mOldestSegment = Math.min(mOldestSegment, segment);
+            validLength = recover(segment, (segment == cursor[0]) ? cursor[1] : 0);
+        }
+
+        if (!segments.isEmpty()) {
+            final long last = segments.get(segments.size() - 1);
+            if (last >= cursor[0] && validLength < mSegmentSize) {
+                mActiveSegment = last;
+                mActiveLength = validLength;
+                mActiveFile = new RandomAccessFile(segmentFile(last), "rw");
+            }
+        }
+    }
+
+    @Override
+    public void write(byte[] data, long time, int reportCount, int wifiCount, int cellCount) throws IOException {
+        final long size = HEADER_SIZE + data.length;
+        if (mActiveFile == null || (mActiveLength > 0 && mActiveLength + size > mSegmentSize)) {
+            startSegment();
+        }
+
+        final byte[] record = new byte[(int) size];
+        final ByteBuffer buffer = ByteBuffer.wrap(record);
+        buffer.putInt(RECORD_MAGIC).putInt(data.length).putInt(0).putLong(time)
+              .putInt(reportCount).putInt(wifiCount).putInt(cellCount).put(data);
+        buffer.putInt(CRC_OFFSET, checksum(record, CHECKED_OFFSET, record.length - CHECKED_OFFSET));
+        buffer.flip();
+
+        // Positional, a write that failed half way is overwritten by the next one
+        final FileChannel channel = mActiveFile.getChannel();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer, mActiveLength + buffer.position());
+        }
+
+        final Record r = new Record(mActiveSegment, mActiveLength, data.length, time, reportCount, wifiCount, cellCount);
+        mActiveLength += size;
+        mRecords.put(r.name, r);
+        count(r, 1);
+    }
+
+    @Override
+    public String[] listBatches() {
+        final ArrayList<String> names = new ArrayList<String>(mPendingRecords);
+        for (Record r : mRecords.values()) {
+            if (!r.uploaded) {
+                names.add(r.name);
+            }
+        }
+        return names.toArray(new String[names.size()]);
+    }
+
+    @Override
+    public BatchInfo[] listBatchInfo() {
+        final ArrayList<BatchInfo> infos = new ArrayList<BatchInfo>(mPendingRecords);
+        for (Record r : mRecords.values()) {
+            if (!r.uploaded) {
+                infos.add(new BatchInfo(r.name, r.time, r.size(), r.reportCount, r.wifiCount, r.cellCount));
+            }
+        }
+        return infos.toArray(new BatchInfo[infos.size()]);
+    }
+
+    @Override
+    public DataStorageManager.ReportBatch read(String name) throws IOException {
+        final Record r = mRecords.get(name);
+        if (r == null || r.uploaded) {
+            return null;
+        }
+
+        final byte[] data = new byte[r.length];
+        final RandomAccessFile file = new RandomAccessFile(segmentFile(r.segment), "r");
+        try {
+            readFully(file.getChannel(), ByteBuffer.wrap(data), r.offset + HEADER_SIZE);
+        } finally {
+            file.close();
+        }
+        return new DataStorageManager.ReportBatch(name, data, r.reportCount, r.wifiCount, r.cellCount);
+    }
+
+    @Override
+    public long getTime(String name) {
+        final Record r = mRecords.get(name);
+        return (r == null || r.uploaded) ? 0 : r.time;
+    }
+
+    @Override
+    public boolean delete(String name) {
+        final Record r = mRecords.get(name);
+        if (r == null || r.uploaded) {
+            return false;
+        }
+        r.uploaded = true;
+        count(r, -1);
+        advanceCursor();
+        return true;
+    }
+
+    @Override
+    public void deleteAll() {
+        close();
+        for (long segment : listSegments()) {
+            segmentFile(segment).delete();
+        }
+        mCursorFile.delete();
+        clearRecords();
+        mOldestSegment = mNextSegment;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return mPendingRecords == 0;
+    }
+
+    @Override
+    public int getReportCount() {
+        return mReportCount;
+    }
+
+    @Override
+    public int getWifiCount() {
+        return mWifiCount;
+    }
+
+    @Override
+    public int getCellCount() {
+        return mCellCount;
+    }
+
+    @Override
+    public long getBytes() {
+        return mBytes;
+    }
+
+    @Override
+    public long getOldestTime() {
+        // The first record is never an uploaded one, the cursor would have moved past it
+        final Iterator<Record> it = mRecords.values().iterator();
+        return it.hasNext() ? it.next().time : 0;
+    }
+
+    /* Closes the segment being appended to, the next write starts a new one */
+    @Override
+    public void close() {
+        if (mActiveFile == null) {
+            return;
+        }
+        try {
+            mActiveFile.close();
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Error closing segment: " + e);
+        }
+        mActiveFile = null;
+        mActiveSegment = -1;
+        mActiveLength = 0;
+    }
+
+    File segmentFile(long segment) {
+        return new File(mDirectory, SEGMENT_PREFIX + segment + SEGMENT_SUFFIX);
+    }
+
+    private void startSegment() throws IOException {
+        close();
+        final long segment = mNextSegment++;
+        final RandomAccessFile file = new RandomAccessFile(segmentFile(segment), "rw");
+        file.setLength(0);
+        mActiveFile = file;
+        mActiveSegment = segment;
+    }
+
+    /* Reads the records of a segment from the given offset, truncating it at the first bad one.
+     * Returns the length of the valid part. */
+    private long recover(long segment, long start) throws IOException {
+        final RandomAccessFile file = new RandomAccessFile(segmentFile(segment), "rw");
+        try {
+            final FileChannel channel = file.getChannel();
+            final long length = channel.size();
+            final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            long offset = Math.min(start, length);
+
+            while (offset < length) {
+                final Record r = readRecord(channel, header, segment, offset, length);
+                if (r == null) {
+                    Log.w(LOG_TAG, "Truncating " + segmentFile(segment).getName() + " at " + offset +
+                            " of " + length + ", a write was interrupted");
+                    channel.truncate(offset);
+                    break;
+                }
+                mRecords.put(r.name, r);
+                count(r, 1);
+                offset += r.size();
+            }
+            return offset;
+        } finally {
+            file.close();
+        }
+    }
+
+    /* null if the record at offset isn't whole and intact */
+    private static Record readRecord(FileChannel channel, ByteBuffer header, long segment, long offset, long length)
+            throws IOException {
+        if (length - offset < HEADER_SIZE) {
+            return null;
+        }
+        header.clear();
+        readFully(channel, header, offset);
+        header.flip();
+        if (header.getInt() != RECORD_MAGIC) {
+            return null;
+        }
+        final int dataLength = header.getInt();
+        if (dataLength < 0 || dataLength > length - offset - HEADER_SIZE) {
+            return null;
+        }
+        final int crc = header.getInt();
+
+        final byte[] record = new byte[HEADER_SIZE + dataLength];
+        System.arraycopy(header.array(), 0, record, 0, HEADER_SIZE);
+        readFully(channel, ByteBuffer.wrap(record, HEADER_SIZE, dataLength), offset + HEADER_SIZE);
+        if (checksum(record, CHECKED_OFFSET, record.length - CHECKED_OFFSET) != crc) {
+            return null;
+        }
+
+        return new Record(segment, offset, dataLength, header.getLong(),
+                header.getInt(), header.getInt(), header.getInt());
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        final int start = buffer.position();
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position() - start) < 0) {
+                throw new EOFException();
+            }
+        }
+    }
+
+    private void advanceCursor() {
+        boolean moved = false;
+        final Iterator<Record> it = mRecords.values().iterator();
+        while (it.hasNext()) {
+            if (!it.next().uploaded) {
+                break;
+            }
+            it.remove();
+            moved = true;
+        }
+        if (!moved) {
+            return;
+        }
+
+        long segment;
+        long offset;
+        final Iterator<Record> oldest = mRecords.values().iterator();
+        if (oldest.hasNext()) {
+            final Record r = oldest.next();
+            segment = r.segment;
+            offset = r.offset;
+        } else if (mActiveFile != null) {
+            segment = mActiveSegment;
+            offset = mActiveLength;
+        } else {
+            segment = mNextSegment;
+            offset = 0;
+        }
+
+        // The cursor goes first, a segment deleted before it would be looked for on startup
+        writeCursor(segment, offset);
+        for (long s = mOldestSegment; s < segment; s++) {
+            segmentFile(s).delete();
+        }
+        mOldestSegment = segment;
+    }
+
+    /* {segment, offset}, or the start of the oldest segment if there is no (valid) cursor */
+    private long[] readCursor() {
+        if (mCursorFile.length() != CURSOR_SIZE) {
+            return new long[] { 0, 0 };
+        }
+        try {
+            final byte[] bytes = new byte[CURSOR_SIZE];
+            final RandomAccessFile file = new RandomAccessFile(mCursorFile, "r");
+            try {
+                file.readFully(bytes);
+            } finally {
+                file.close();
+            }
+            final ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            final long segment = buffer.getLong();
+            final long offset = buffer.getLong();
+            if (buffer.getInt() == checksum(bytes, 0, CURSOR_SIZE - 4)) {
+                return new long[] { segment, offset };
+            }
+            Log.w(LOG_TAG, "Damaged cursor, starting from the oldest segment");
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Error reading cursor, starting from the oldest segment: " + e);
+        }
+        return new long[] { 0, 0 };
+    }
+
+    // Losing the cursor only means uploading some batches again, failing to write it isn't fatal
+    private void writeCursor(long segment, long offset) {
+        final byte[] bytes = new byte[CURSOR_SIZE];
+        final ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        buffer.putLong(segment).putLong(offset);
+        buffer.putInt(checksum(bytes, 0, CURSOR_SIZE - 4));
+        try {
+            final RandomAccessFile file = new RandomAccessFile(mCursorFile, "rw");
+            try {
+                file.write(bytes);
+                file.setLength(CURSOR_SIZE);
+            } finally {
+                file.close();
+            }
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Error writing cursor: " + e);
+        }
+    }
+
+    private ArrayList<Long> listSegments() {
+        final ArrayList<Long> segments = new ArrayList<Long>();
+        final String[] names = mDirectory.list();
+        if (names == null) {
+            return segments;
+        }
+        for (String name : names) {
+            if (!name.startsWith(SEGMENT_PREFIX) || !name.endsWith(SEGMENT_SUFFIX)) {
+                continue;
+            }
+            try {
+                segments.add(Long.parseLong(name.substring(SEGMENT_PREFIX.length(),
+                        name.length() - SEGMENT_SUFFIX.length())));
+            } catch (NumberFormatException e) {
+                Log.w(LOG_TAG, "Not a segment: " + name);
+            }
+        }
+        Collections.sort(segments);
+        return segments;
+    }
+
+    private static int checksum(byte[] bytes, int offset, int length) {
+        final CRC32 crc = new CRC32();
+        crc.update(bytes, offset, length);
+        return (int) crc.getValue();
+    }
+
+    private void count(Record r, int sign) {
+        mPendingRecords += sign;
+        mReportCount += sign * r.reportCount;
+        mWifiCount += sign * r.wifiCount;
+        mCellCount += sign * r.cellCount;
+        mBytes += sign * r.size();
+    }
+
+    private void clearRecords() {
+        mRecords.clear();
+        mPendingRecords = mReportCount = mWifiCount = mCellCount = 0;
+        mBytes = 0;
+    }
+}
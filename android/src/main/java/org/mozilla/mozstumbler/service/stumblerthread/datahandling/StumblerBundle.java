@@ -15,12 +15,9 @@ import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 import org.mozilla.mozstumbler.service.AppGlobals;
+import org.mozilla.mozstumbler.service.stumblerthread.blocklist.BSSIDBlockList;
 import org.mozilla.mozstumbler.service.stumblerthread.scanners.cellscanner.CellInfo;
-
-import java.util.Collection;
-import java.util.Collections;
-import java.util.HashMap;
-import java.util.Map;
+import org.mozilla.mozstumbler.service.utils.LongObjectHashMap;
 
 /**
  * A StumblerBundle contains stumbling data related to a single GPS lat/long fix.
@@ -29,8 +26,13 @@ public final class StumblerBundle implements Parcelable {
     private final int mPhoneType;
     private final Location mGpsPosition;
 
-    private final Map<String, ScanResult> mWifiData;
-    private final Map<String, CellInfo> mCellData;
+    // Keyed by the BSSID as a 48-bit long, see BSSIDBlockList.toLong()
+    private final LongObjectHashMap<ScanResult> mWifiData;
+    // Keyed by CellInfo.getCellKey()
+    private final LongObjectHashMap<CellInfo> mCellData;
+
+    private boolean mAggregating;
+    private int mMergedReadingCount;
 
     /* The maximum number of Wi-Fi access points in a single observation. */
     public static final int MAX_WIFIS_PER_LOCATION = 200;
@@ -46,15 +48,13 @@ public final class StumblerBundle implements Parcelable {
     @Override
     public void writeToParcel(Parcel out, int flags) {
         Bundle wifiBundle = new Bundle(ScanResult.class.getClassLoader());
-        Collection<String> scans = mWifiData.keySet();
-        for (String s : scans) {
-            wifiBundle.putParcelable(s, mWifiData.get(s));
+        for (ScanResult s : mWifiData.values()) {
+            wifiBundle.putParcelable(s.BSSID, s);
         }
 
         Bundle cellBundle = new Bundle(CellInfo.class.getClassLoader());
-        Collection<String> cells = mCellData.keySet();
-        for (String c : cells) {
-            cellBundle.putParcelable(c, mCellData.get(c));
+        for (int i = mCellData.nextSlot(-1); i >= 0; i = mCellData.nextSlot(i)) {
+            cellBundle.putParcelable(Long.toHexString(mCellData.keyAt(i)), mCellData.valueAt(i));
         }
 
         out.writeBundle(wifiBundle);
@@ -66,26 +66,51 @@ public final class StumblerBundle implements Parcelable {
     public StumblerBundle(Location position, int phoneType) {
         mGpsPosition = position;
         mPhoneType = phoneType;
-        mWifiData = new HashMap<String, ScanResult>();
-        mCellData = new HashMap<String, CellInfo>();
+        mWifiData = new LongObjectHashMap<ScanResult>(MAX_WIFIS_PER_LOCATION);
+        mCellData = new LongObjectHashMap<CellInfo>(MAX_CELLS_PER_LOCATION);
+    }
+
+    /* Off by default: the first reading of each AP and cell is kept and repeats are dropped.
+     * On, repeated readings during this fix are merged: the strongest one is the entry that gets
+     * reported. The submit schema has no fields for a mean, a sample count or an age, so only the
+     * strongest reading is kept, which costs nothing per reading. */
+    public void setAggregating(boolean aggregating) {
+        mAggregating = aggregating;
+    }
+
+    public boolean isAggregating() {
+        return mAggregating;
+    }
+
+    /* Readings folded into an existing entry rather than dropped */
+    public int getMergedReadingCount() {
+        return mMergedReadingCount;
     }
 
     public Location getGpsPosition() {
         return mGpsPosition;
     }
 
-    public Map<String, ScanResult> getUnmodifiableWifiData() {
-        if (mWifiData == null) {
-            return null;
-        }
-        return Collections.unmodifiableMap(mWifiData);
+    public int getPhoneType() {
+        return mPhoneType;
     }
 
-    public Map<String, CellInfo> getUnmodifiableCellData() {
-        if (mCellData == null) {
-            return null;
-        }
-        return Collections.unmodifiableMap(mCellData);
+    public int getWifiCount() {
+        return mWifiData.size();
+    }
+
+    /* Keyed by BSSID as a long. Don't modify, use addWifiData(). */
+    public LongObjectHashMap<ScanResult> getWifiData() {
+        return mWifiData;
+    }
+
+    public int getCellCount() {
+        return mCellData.size();
+    }
+
+    /* Keyed by CellInfo.getCellKey(). Don't modify, use addCellData(). */
+    public LongObjectHashMap<CellInfo> getCellData() {
+        return mCellData;
     }
 
     public JSONObject toMLSJSON() throws JSONException {
@@ -143,22 +168,49 @@ public final class StumblerBundle implements Parcelable {
     }
 
     public void addWifiData(String key, ScanResult result) {
+        final long bssid = BSSIDBlockList.toLong(key);
+        if (bssid < 0) {
+            // the scanner only lets canonical BSSIDs through
+            return;
+        }
+        // A repeat of an AP already in the bundle is merged even when the bundle is full
+        final ScanResult previous = mWifiData.get(bssid);
+        if (previous != null) {
+            if (mAggregating) {
+                mMergedReadingCount++;
+                if (result.level > previous.level) {
+                    mWifiData.put(bssid, result);
+                }
+            }
+            return;
+        }
         if (mWifiData.size() == MAX_WIFIS_PER_LOCATION) {
             AppGlobals.guiLogInfo("Max wifi limit reached for this location, ignoring data.");
             return;
         }
-        if (!mWifiData.containsKey(key)) {
-            mWifiData.put(key, result);
-        }
+        mWifiData.put(bssid, result);
     }
 
-    public void addCellData(String key, CellInfo result) {
+    public void addCellData(long key, CellInfo result) {
+        final CellInfo previous = mCellData.get(key);
+        if (previous != null) {
+            if (mAggregating) {
+                mMergedReadingCount++;
+                if (cellSignal(result) > cellSignal(previous)) {
+                    mCellData.put(key, result);
+                }
+            }
+            return;
+        }
         if (mCellData.size() > MAX_CELLS_PER_LOCATION) {
             AppGlobals.guiLogInfo("Max cell limit reached for this location, ignoring data.");
             return;
         }
-        if (!mCellData.containsKey(key)) {
-            mCellData.put(key, result);
-        }
+        mCellData.put(key, result);
+    }
+
+    // The asu where known, it is what most radios report
+    private static int cellSignal(CellInfo cell) {
+        return (cell.getAsu() != CellInfo.UNKNOWN_SIGNAL) ? cell.getAsu() : cell.getSignal();
     }
 }
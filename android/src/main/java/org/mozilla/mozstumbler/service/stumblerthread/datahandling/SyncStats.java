@@ -0,0 +1,325 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.mozstumbler.service.stumblerthread.datahandling;
+
+import org.mozilla.mozstumbler.service.AppGlobals;
+import org.mozilla.mozstumbler.service.core.logging.Log;
+import org.mozilla.mozstumbler.service.utils.PipelineStage;
+import org.mozilla.mozstumbler.service.utils.Scheduler;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/* The all-time upload totals, and the last HISTORY_SIZE uploads (one per batch submitted).
+ * Also the uploader's backoff state, the consecutive failures and when to try next (see UploadBackoff),
+ * so a server that is down isn't tried again on every alarm and across restarts.
+ *
+ * Both are kept in memory, so reading them costs no I/O and an upload only bumps a few counters.
+ * The totals are in the key-value file they always were in (upload_stats.ini), the history in a
+ * small binary file next to it. Neither is written on every change: the first change after a
+ * checkpoint schedules the next one CHECKPOINT_DELAY_MS later, written off the Scheduler thread,
+ * and the service checkpoints when it is destroyed. A crash loses at most that much.
+ *
+ * The totals are updated one counter at a time, a reader can see an upload half counted.
+ */
+public final class SyncStats {
+    private static final String LOG_TAG = AppGlobals.makeLogTag(SyncStats.class.getSimpleName());
+
+    public static final int HISTORY_SIZE = 64;
+    static final long CHECKPOINT_DELAY_MS = 1000 * 30;
+    private static final int HISTORY_VERSION = 1;
+
+    /* One batch submitted. httpStatus is 0 if there was no response. */
+    public static final class Upload {
+        public final long time;
+        public final long bytes;
+        public final int reports;
+        public final int durationMs;
+        public final int httpStatus;
+
+        Upload(long time, long bytes, int reports, int durationMs, int httpStatus) {
+            this.time = time;
+            this.bytes = bytes;
+            this.reports = reports;
+            this.durationMs = durationMs;
+            this.httpStatus = httpStatus;
+        }
+
+        public boolean isSuccess() {
+            return httpStatus >= 200 && httpStatus < 300;
+        }
+    }
+
+    private final File mStatsFile;
+    private final File mHistoryFile;
+
+    private final AtomicLong mLastUploadTime = new AtomicLong();
+    private final AtomicLong mBytesSent = new AtomicLong();
+    private final AtomicLong mObservationsSent = new AtomicLong();
+    private final AtomicLong mCellsSent = new AtomicLong();
+    private final AtomicLong mWifisSent = new AtomicLong();
+    private final AtomicLong mUploadFailures = new AtomicLong();
+    private final AtomicLong mNextUploadAttemptTime = new AtomicLong();
+
+    // A ring, the oldest at mHistoryStart. Guarded by mHistory.
+    private final Upload[] mHistory = new Upload[HISTORY_SIZE];
+    private int mHistoryStart;
+    private int mHistoryCount;
+
+    private final AtomicBoolean mDirty = new AtomicBoolean();
+    // The files are written on this stage's worker, not on the Scheduler thread the scans share
+    private final PipelineStage<SyncStats> mCheckpointStage = new PipelineStage<SyncStats>("sync stats", 1,
+            new PipelineStage.Processor<SyncStats>() {
+        @Override
+        public void process(SyncStats stats) {
+            try {
+                stats.checkpoint();
+            } catch (IOException ex) {
+                Log.e(LOG_TAG, "Error saving the sync stats", ex);
+            }
+        }
+    });
+    private final Runnable mCheckpointTask = new Runnable() {
+        @Override
+        public void run() {
+            // If one is queued already, it writes what is current when it runs
+            mCheckpointStage.offer(SyncStats.this);
+        }
+    };
+
+    SyncStats(File statsFile, File historyFile) {
+        mStatsFile = statsFile;
+        mHistoryFile = historyFile;
+    }
+
+    /* Once, at startup */
+    void load() {
+        if (mStatsFile.exists()) {
+            try {
+                final FileInputStream input = new FileInputStream(mStatsFile);
+                try {
+                    final Properties props = new Properties();
+                    props.load(input);
+                    mLastUploadTime.set(getLong(props, DataStorageContract.Stats.KEY_LAST_UPLOAD_TIME));
+                    mBytesSent.set(getLong(props, DataStorageContract.Stats.KEY_BYTES_SENT));
+                    mObservationsSent.set(getLong(props, DataStorageContract.Stats.KEY_OBSERVATIONS_SENT));
+                    mCellsSent.set(getLong(props, DataStorageContract.Stats.KEY_CELLS_SENT));
+                    mWifisSent.set(getLong(props, DataStorageContract.Stats.KEY_WIFIS_SENT));
+                    mUploadFailures.set(getLong(props, DataStorageContract.Stats.KEY_UPLOAD_FAILURES));
+                    mNextUploadAttemptTime.set(getLong(props, DataStorageContract.Stats.KEY_NEXT_UPLOAD_ATTEMPT_TIME));
+                } finally {
+                    input.close();
+                }
+            } catch (IOException ex) {
+                Log.e(LOG_TAG, "Error reading the sync stats", ex);
+            }
+        }
+
+        if (mHistoryFile.exists()) {
+            try {
+                loadHistory();
+            } catch (IOException ex) {
+                // Only the history, not worth more than starting it over
+                Log.e(LOG_TAG, "Error reading the upload history", ex);
+            }
+        }
+    }
+
+    private static long getLong(Properties props, String key) {
+        try {
+            return Long.parseLong(props.getProperty(key, "0"));
+        } catch (NumberFormatException ex) {
+            return 0;
+        }
+    }
+
+    private void loadHistory() throws IOException {
+        final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(mHistoryFile)));
+        try {
+            if (in.readInt() != HISTORY_VERSION) {
+                return;
+            }
+            final int count = Math.min(in.readInt(), HISTORY_SIZE);
+            synchronized (mHistory) {
+                for (int i = 0; i < count; i++) {
+                    appendToHistory(new Upload(in.readLong(), in.readLong(), in.readInt(), in.readInt(), in.readInt()));
+                }
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /* The uploads of one sync, all batches together */
+    public void add(long bytesSent, long reports, long cells, long wifis) {
+        if (reports + cells + wifis < 1) {
+            return;
+        }
+        mBytesSent.addAndGet(bytesSent);
+        mObservationsSent.addAndGet(reports);
+        mCellsSent.addAndGet(cells);
+        mWifisSent.addAndGet(wifis);
+        mLastUploadTime.set(System.currentTimeMillis());
+        changed();
+    }
+
+    /* Replaces the totals, for stats carried over from an older version */
+    public void set(long time, long bytesSent, long totalObs, long totalCells, long totalWifis) {
+        mLastUploadTime.set(time);
+        mBytesSent.set(bytesSent);
+        mObservationsSent.set(totalObs);
+        mCellsSent.set(totalCells);
+        mWifisSent.set(totalWifis);
+        changed();
+    }
+
+    public void recordUpload(long bytes, int reports, long durationMs, int httpStatus) {
+        final Upload upload = new Upload(System.currentTimeMillis(), bytes, reports,
+                (int) Math.min(durationMs, Integer.MAX_VALUE), httpStatus);
+        synchronized (mHistory) {
+            appendToHistory(upload);
+        }
+        changed();
+    }
+
+    private void appendToHistory(Upload upload) {
+        if (mHistoryCount < HISTORY_SIZE) {
+            mHistory[(mHistoryStart + mHistoryCount++) % HISTORY_SIZE] = upload;
+        } else {
+            mHistory[mHistoryStart] = upload;
+            mHistoryStart = (mHistoryStart + 1) % HISTORY_SIZE;
+        }
+    }
+
+    /* Oldest first */
+    public Upload[] getUploadHistory() {
+        synchronized (mHistory) {
+            final Upload[] uploads = new Upload[mHistoryCount];
+            for (int i = 0; i < mHistoryCount; i++) {
+                uploads[i] = mHistory[(mHistoryStart + i) % HISTORY_SIZE];
+            }
+            return uploads;
+        }
+    }
+
+    /* Where the uploader's backoff left off */
+    public void setUploadBackoff(int consecutiveFailures, long nextAttemptTime) {
+        final long previousFailures = mUploadFailures.getAndSet(consecutiveFailures);
+        final long previousTime = mNextUploadAttemptTime.getAndSet(nextAttemptTime);
+        if (previousFailures != consecutiveFailures || previousTime != nextAttemptTime) {
+            changed();
+        }
+    }
+
+    public int getUploadFailures() {
+        return (int) mUploadFailures.get();
+    }
+
+    public long getNextUploadAttemptTime() {
+        return mNextUploadAttemptTime.get();
+    }
+
+    public long getLastUploadTime() {
+        return mLastUploadTime.get();
+    }
+
+    public long getBytesSent() {
+        return mBytesSent.get();
+    }
+
+    public long getObservationsSent() {
+        return mObservationsSent.get();
+    }
+
+    public long getCellsSent() {
+        return mCellsSent.get();
+    }
+
+    public long getWifisSent() {
+        return mWifisSent.get();
+    }
+
+    public Properties toProperties() {
+        final Properties props = new Properties();
+        props.setProperty(DataStorageContract.Stats.KEY_LAST_UPLOAD_TIME, String.valueOf(getLastUploadTime()));
+        props.setProperty(DataStorageContract.Stats.KEY_BYTES_SENT, String.valueOf(getBytesSent()));
+        props.setProperty(DataStorageContract.Stats.KEY_OBSERVATIONS_SENT, String.valueOf(getObservationsSent()));
+        props.setProperty(DataStorageContract.Stats.KEY_CELLS_SENT, String.valueOf(getCellsSent()));
+        props.setProperty(DataStorageContract.Stats.KEY_WIFIS_SENT, String.valueOf(getWifisSent()));
+        props.setProperty(DataStorageContract.Stats.KEY_UPLOAD_FAILURES, String.valueOf(getUploadFailures()));
+        props.setProperty(DataStorageContract.Stats.KEY_NEXT_UPLOAD_ATTEMPT_TIME, String.valueOf(getNextUploadAttemptTime()));
+        props.setProperty(DataStorageContract.Stats.KEY_VERSION, String.valueOf(DataStorageContract.Stats.VERSION_CODE));
+        return props;
+    }
+
+    private void changed() {
+        if (mDirty.compareAndSet(false, true)) {
+            Scheduler.getInstance().schedule(mCheckpointTask, CHECKPOINT_DELAY_MS);
+        }
+    }
+
+    boolean isDirty() {
+        return mDirty.get();
+    }
+
+    /* Writes what changed since the last checkpoint, if anything did */
+    public synchronized void checkpoint() throws IOException {
+        if (!mDirty.getAndSet(false)) {
+            return;
+        }
+        try {
+            final Properties props = toProperties();
+            final File tmp = new File(mStatsFile.getPath() + ".tmp");
+            final FileOutputStream out = new FileOutputStream(tmp);
+            try {
+                props.store(out, null);
+            } finally {
+                out.close();
+            }
+            replace(tmp, mStatsFile);
+
+            writeHistory();
+        } catch (IOException ex) {
+            // Try again later
+            changed();
+            throw ex;
+        }
+    }
+
+    private void writeHistory() throws IOException {
+        final Upload[] uploads = getUploadHistory();
+        final File tmp = new File(mHistoryFile.getPath() + ".tmp");
+        final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+        try {
+            out.writeInt(HISTORY_VERSION);
+            out.writeInt(uploads.length);
+            for (Upload upload : uploads) {
+                out.writeLong(upload.time);
+                out.writeLong(upload.bytes);
+                out.writeInt(upload.reports);
+                out.writeInt(upload.durationMs);
+                out.writeInt(upload.httpStatus);
+            }
+        } finally {
+            out.close();
+        }
+        replace(tmp, mHistoryFile);
+    }
+
+    private static void replace(File from, File to) throws IOException {
+        if (!from.renameTo(to)) {
+            throw new IOException("Failed to rename " + from + " to " + to);
+        }
+    }
+}
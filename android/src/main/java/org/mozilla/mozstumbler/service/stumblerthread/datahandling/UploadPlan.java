@@ -0,0 +1,292 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.mozstumbler.service.stumblerthread.datahandling;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+
+/* Groups the queued batches into upload payloads of about a target size, so a queue of many
+ * small batches doesn't cost a request each, and a big batch isn't one huge request.
+ *
+ * Sizes are the stored (compressed) bytes, which the gzipped upload body comes close to.
+ * Adjacent batches are merged while they fit in the target. A batch over half again the target
+ * is split by its reports into payloads of its own; the parts go in order, one after the other.
+ *
+ * The plan keeps track of which batches each payload carries. succeeded() returns the batches
+ * that are now completely uploaded, to delete. A batch that was split is only deleted once all
+ * of its parts went through, in whatever order they complete; if one part fails, the whole batch
+ * stays queued and the parts that did go through are sent again next time.
+ *
+ * A payload the server rejects as bad (400) can be retried with one payload per batch, to find
+ * the bad one without dropping the others with it; rejected() then says what to drop. A part of
+ * a split batch isn't dropped, its other parts may be fine or still in flight: the batch is kept
+ * as if the part had failed. One it rejects as too large (413) can be retried in smaller payloads.
+ *
+ * The target can change as the upload goes (setTargetBytes(), see LinkEstimator); the payloads not
+ * handed out yet are then grouped again for the new target, parts of a batch back together first.
+ *
+ * Not thread-safe. With several requests in flight (UploadEngine), only the thread that
+ * runs the upload uses the plan.
+ */
+public final class UploadPlan {
+    // About the size of a full in-memory batch of reports with plenty of wifis
+    public static final int DEFAULT_TARGET_BYTES = 32 * 1024;
+    // Batches up to this much over the target are still sent whole
+    private static final int SPLIT_FACTOR_PERCENT = 150;
+
+    /* Reports [firstReport, firstReport + reportCount) of a stored batch */
+    public static final class Slice {
+        public final String name;
+        public final int firstReport;
+        public final int reportCount;
+        public final int wifiCount;
+        public final int cellCount;
+        // Stored bytes, shared out by reports for part of a batch
+        public final long bytes;
+
+        Slice(String name, int firstReport, int reportCount, int wifiCount, int cellCount, long bytes) {
+            this.name = name;
+            this.firstReport = firstReport;
+            this.reportCount = reportCount;
+            this.wifiCount = wifiCount;
+            this.cellCount = cellCount;
+            this.bytes = bytes;
+        }
+    }
+
+    public static final class Payload {
+        public final List<Slice> slices;
+        public final int reportCount;
+        public final int wifiCount;
+        public final int cellCount;
+        // Stored bytes, an estimate of the body size
+        public final long bytes;
+        // Sent on its own, never grouped again (retrySeparately())
+        final boolean separate;
+
+        Payload(List<Slice> slices, boolean separate) {
+            this.slices = Collections.unmodifiableList(slices);
+            int reports = 0;
+            int wifis = 0;
+            int cells = 0;
+            long total = 0;
+            for (Slice slice : slices) {
+                reports += slice.reportCount;
+                wifis += slice.wifiCount;
+                cells += slice.cellCount;
+                total += slice.bytes;
+            }
+            this.reportCount = reports;
+            this.wifiCount = wifis;
+            this.cellCount = cells;
+            this.bytes = total;
+            this.separate = separate;
+        }
+    }
+
+    private final LinkedList<Payload> mPayloads = new LinkedList<Payload>();
+    private final HashSet<String> mFailedBatches = new HashSet<String>();
+    // Slices of each batch, queued or in flight, not acknowledged yet
+    private final HashMap<String, Integer> mPendingSlices = new HashMap<String, Integer>();
+    private final int mBatchCount;
+    private long mTargetBytes;
+
+    /* batches in upload order */
+    UploadPlan(List<IReportStore.BatchInfo> batches, long targetBytes) {
+        mBatchCount = batches.size();
+        mTargetBytes = targetBytes;
+        final ArrayList<Slice> whole = new ArrayList<Slice>(batches.size());
+        for (IReportStore.BatchInfo batch : batches) {
+            whole.add(new Slice(batch.name, 0, batch.reportCount, batch.wifiCount, batch.cellCount, batch.bytes));
+        }
+        group(whole, targetBytes, mPayloads);
+    }
+
+    /* Adds the slices to out as payloads, in order: adjacent ones merged while they fit in
+     * targetBytes, and one well over it split. */
+    private void group(List<Slice> slices, long targetBytes, List<Payload> out) {
+        ArrayList<Slice> current = new ArrayList<Slice>();
+        long currentBytes = 0;
+        for (Slice slice : slices) {
+            if (slice.bytes * 100 > targetBytes * SPLIT_FACTOR_PERCENT && slice.reportCount > 1) {
+                if (!current.isEmpty()) {
+                    out.add(new Payload(current, false));
+                    current = new ArrayList<Slice>();
+                    currentBytes = 0;
+                }
+                split(slice, targetBytes, out);
+                continue;
+            }
+
+            if (!current.isEmpty() && currentBytes + slice.bytes > targetBytes) {
+                out.add(new Payload(current, false));
+                current = new ArrayList<Slice>();
+                currentBytes = 0;
+            }
+            current.add(slice);
+            addPending(slice.name, 1);
+            currentBytes += slice.bytes;
+        }
+        if (!current.isEmpty()) {
+            out.add(new Payload(current, false));
+        }
+    }
+
+    /* Evenly by reports, the counts of wifis and cells and the bytes are shared out the same way */
+    private void split(Slice whole, long targetBytes, List<Payload> out) {
+        final int parts = (int) Math.min((whole.bytes + targetBytes - 1) / targetBytes, whole.reportCount);
+        addPending(whole.name, parts);
+        int first = 0;
+        int wifis = 0;
+        int cells = 0;
+        long bytes = 0;
+        for (int i = 1; i <= parts; i++) {
+            final int end = (int) ((long) whole.reportCount * i / parts);
+            final int wifiEnd = (int) ((long) whole.wifiCount * i / parts);
+            final int cellEnd = (int) ((long) whole.cellCount * i / parts);
+            final long bytesEnd = whole.bytes * end / whole.reportCount;
+            final ArrayList<Slice> one = new ArrayList<Slice>(1);
+            one.add(new Slice(whole.name, whole.firstReport + first, end - first,
+                    wifiEnd - wifis, cellEnd - cells, bytesEnd - bytes));
+            out.add(new Payload(one, false));
+            first = end;
+            wifis = wifiEnd;
+            cells = cellEnd;
+            bytes = bytesEnd;
+        }
+    }
+
+    private void addPending(String name, int slices) {
+        final Integer pending = mPendingSlices.get(name);
+        mPendingSlices.put(name, ((pending == null) ? 0 : pending) + slices);
+    }
+
+    /* Groups the payloads not handed out yet again, for the new target */
+    public void setTargetBytes(long targetBytes) {
+        if (targetBytes <= 0 || targetBytes == mTargetBytes) {
+            return;
+        }
+        mTargetBytes = targetBytes;
+
+        final ArrayList<Payload> queued = new ArrayList<Payload>(mPayloads);
+        mPayloads.clear();
+        final ArrayList<Slice> slices = new ArrayList<Slice>();
+        for (Payload payload : queued) {
+            if (payload.separate) {
+                group(slices, targetBytes, mPayloads);
+                slices.clear();
+                mPayloads.add(payload);
+                continue;
+            }
+            for (Slice slice : payload.slices) {
+                addPending(slice.name, -1);
+                final Slice last = slices.isEmpty() ? null : slices.get(slices.size() - 1);
+                if (last != null && last.name.equals(slice.name) &&
+                    last.firstReport + last.reportCount == slice.firstReport) {
+                    // Parts of a batch that was split for a smaller target
+                    slices.set(slices.size() - 1, new Slice(last.name, last.firstReport,
+                            last.reportCount + slice.reportCount, last.wifiCount + slice.wifiCount,
+                            last.cellCount + slice.cellCount, last.bytes + slice.bytes));
+                } else {
+                    slices.add(slice);
+                }
+            }
+        }
+        group(slices, targetBytes, mPayloads);
+    }
+
+    public long getTargetBytes() {
+        return mTargetBytes;
+    }
+
+    public int getBatchCount() {
+        return mBatchCount;
+    }
+
+    public int getPayloadCount() {
+        return mPayloads.size();
+    }
+
+    /* null when there are no more */
+    public Payload next() {
+        return mPayloads.poll();
+    }
+
+    /* The batches the payload completed, to delete now */
+    public List<String> succeeded(Payload payload) {
+        final ArrayList<String> done = new ArrayList<String>(payload.slices.size());
+        for (Slice slice : payload.slices) {
+            final Integer pending = mPendingSlices.get(slice.name);
+            if (pending == null) {
+                continue;
+            }
+            if (pending > 1) {
+                mPendingSlices.put(slice.name, pending - 1);
+            } else {
+                mPendingSlices.remove(slice.name);
+                if (!mFailedBatches.contains(slice.name)) {
+                    done.add(slice.name);
+                }
+            }
+        }
+        return done;
+    }
+
+    public void failed(Payload payload) {
+        for (Slice slice : payload.slices) {
+            mFailedBatches.add(slice.name);
+        }
+    }
+
+    /* The batches to delete for a payload the server rejected as bad. Only a batch that has nothing
+     * else queued, in flight or failed; otherwise the batch is marked failed, as for failed(). */
+    public List<String> rejected(Payload payload) {
+        final ArrayList<String> bad = new ArrayList<String>(payload.slices.size());
+        for (Slice slice : payload.slices) {
+            final Integer pending = mPendingSlices.get(slice.name);
+            if (pending != null && pending == 1 && !mFailedBatches.contains(slice.name)) {
+                mPendingSlices.remove(slice.name);
+                bad.add(slice.name);
+            } else {
+                mFailedBatches.add(slice.name);
+            }
+        }
+        return bad;
+    }
+
+    /* Queues the payload's slices as a payload each, to be sent next. False if it has only the one. */
+    public boolean retrySeparately(Payload payload) {
+        if (payload.slices.size() < 2) {
+            return false;
+        }
+        for (int i = payload.slices.size() - 1; i >= 0; i--) {
+            final ArrayList<Slice> one = new ArrayList<Slice>(1);
+            one.add(payload.slices.get(i));
+            mPayloads.addFirst(new Payload(one, true));
+        }
+        return true;
+    }
+
+    /* Queues the payload's reports again, to be sent next, grouped for half its size (or the target
+     * if smaller), so each of the new payloads is smaller than it was. False if it is a single
+     * report, which can't be made smaller. */
+    public boolean retrySmaller(Payload payload) {
+        // A size of 0 or 1 byte is only a rounded estimate, halving it wouldn't make it any smaller
+        if (payload.reportCount < 2 || payload.bytes < 2) {
+            return false;
+        }
+        for (Slice slice : payload.slices) {
+            addPending(slice.name, -1);
+        }
+        final LinkedList<Payload> smaller = new LinkedList<Payload>();
+        group(payload.slices, Math.min(mTargetBytes, Math.max(payload.bytes / 2, 1)), smaller);
+        mPayloads.addAll(0, smaller);
+        return true;
+    }
+}
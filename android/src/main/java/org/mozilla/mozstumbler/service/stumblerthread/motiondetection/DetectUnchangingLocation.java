@@ -10,9 +10,10 @@ import android.support.v4.content.LocalBroadcastManager;
 
 import org.mozilla.mozstumbler.service.AppGlobals;
 import org.mozilla.mozstumbler.service.Prefs;
+import org.mozilla.mozstumbler.service.core.eventbus.Subscriber;
 import org.mozilla.mozstumbler.service.stumblerthread.scanners.GPSScanner;
 
-public class DetectUnchangingLocation extends BroadcastReceiver {
+public class DetectUnchangingLocation implements Subscriber<Location> {
     private static final String LOG_TAG = AppGlobals.makeLogTag(BroadcastReceiver.class.getSimpleName());
     private final Context mContext;
     private Location mLastLocation;
@@ -55,30 +56,18 @@ public class DetectUnchangingLocation extends BroadcastReceiver {
         mPrefMotionChangeDistanceMeters = Prefs.getInstance().getMotionChangeDistanceMeters();
         mPrefMotionChangeTimeWindowMs = 1000 * Prefs.getInstance().getMotionChangeTimeWindowSeconds();
 
-        IntentFilter intentFilter = new IntentFilter();
-        intentFilter.addAction(GPSScanner.ACTION_GPS_UPDATED);
-        LocalBroadcastManager.getInstance(mContext).registerReceiver(this,  intentFilter);
+        GPSScanner.GPS_UPDATED.subscribe(this);
         mHandler.postDelayed(mCheckTimeout, INITIAL_DELAY_TO_WAIT_FOR_GPS_FIX_MS);
     }
 
     public void stop() {
         mHandler.removeCallbacks(mCheckTimeout);
-        try {
-            LocalBroadcastManager.getInstance(mContext).unregisterReceiver(this);
-        } catch (Exception e) {}
+        GPSScanner.GPS_UPDATED.unsubscribe(this);
     }
 
-    public void onReceive(Context context, Intent intent) {
-        if (intent == null || !intent.getAction().equals(GPSScanner.ACTION_GPS_UPDATED)) {
-            return;
-        }
-
-        String subject = intent.getStringExtra(Intent.EXTRA_SUBJECT);
-        if (subject == null || !subject.equals(GPSScanner.SUBJECT_NEW_LOCATION)) {
-            return;
-        }
-
-        Location newPosition = intent.getParcelableExtra(GPSScanner.NEW_LOCATION_ARG_LOCATION);
+    @Override
+    public void onEvent(Location newPosition) {
+        // null is a lost fix
         if (newPosition == null) {
             return;
         }
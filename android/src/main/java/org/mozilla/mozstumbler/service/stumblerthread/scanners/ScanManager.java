@@ -19,16 +19,22 @@ import org.mozilla.mozstumbler.service.stumblerthread.Reporter;
 import org.mozilla.mozstumbler.service.stumblerthread.blocklist.WifiBlockListInterface;
 import org.mozilla.mozstumbler.service.stumblerthread.scanners.cellscanner.CellScanner;
 import org.mozilla.mozstumbler.service.utils.BatteryCheckReceiver;
-
-import java.util.Date;
-import java.util.Timer;
-import java.util.TimerTask;
+import org.mozilla.mozstumbler.service.utils.Scheduler;
 
 public class ScanManager {
     public static final String ACTION_SCAN_PAUSED_USER_MOTIONLESS = AppGlobals.ACTION_NAMESPACE + ".NOTIFY_USER_MOTIONLESS";
     public static final String ACTION_EXTRA_IS_PAUSED = "IS_PAUSED";
     private static final String LOG_TAG = AppGlobals.makeLogTag(ScanManager.class.getSimpleName());
-    private Timer mPassiveModeFlushTimer;
+    // how often to flush a leftover bundle to the reports table
+    // If there is a bundle, and nothing happens for 10sec, then flush it
+    private static final int PASSIVE_MODE_FLUSH_DELAY_MS = 10000;
+    private final Scheduler.CoalescingTask mPassiveModeFlushTask = Scheduler.getInstance().createCoalescingTask(
+            new Runnable() {
+                @Override
+                public void run() {
+                    Reporter.FLUSH_TO_BUNDLE.publish(null);
+                }
+            }, PASSIVE_MODE_FLUSH_DELAY_MS);
     private Context mContext;
     private boolean mIsScanning;
     private GPSScanner mGPSScanner;
@@ -75,24 +81,7 @@ public class ScanManager {
         mWifiScanner.start(ActiveOrPassiveStumbling.PASSIVE_STUMBLING);
         mCellScanner.start(ActiveOrPassiveStumbling.PASSIVE_STUMBLING);
 
-        // how often to flush a leftover bundle to the reports table
-        // If there is a bundle, and nothing happens for 10sec, then flush it
-        final int flushRate_ms = 10000;
-
-        if (mPassiveModeFlushTimer != null) {
-            mPassiveModeFlushTimer.cancel();
-        }
-
-        Date when = new Date();
-        when.setTime(when.getTime() + flushRate_ms);
-        mPassiveModeFlushTimer = new Timer();
-        mPassiveModeFlushTimer.schedule(new TimerTask() {
-            @Override
-            public void run() {
-                Intent flush = new Intent(Reporter.ACTION_FLUSH_TO_BUNDLE);
-                LocalBroadcastManager.getInstance(mContext).sendBroadcastSync(flush);
-            }
-        }, when);
+        mPassiveModeFlushTask.schedule();
     }
 
     public synchronized boolean isPassiveMode() {
@@ -12,26 +12,25 @@ import android.net.wifi.ScanResult;
 import android.net.wifi.WifiManager;
 import android.net.wifi.WifiManager.WifiLock;
 import android.os.Build;
-import android.support.v4.content.LocalBroadcastManager;
 import android.util.Log;
 
 import org.mozilla.mozstumbler.service.AppGlobals;
 import org.mozilla.mozstumbler.service.AppGlobals.ActiveOrPassiveStumbling;
+import org.mozilla.mozstumbler.service.core.eventbus.Topic;
 import org.mozilla.mozstumbler.service.stumblerthread.blocklist.BSSIDBlockList;
 import org.mozilla.mozstumbler.service.stumblerthread.blocklist.SSIDBlockList;
 import org.mozilla.mozstumbler.service.stumblerthread.blocklist.WifiBlockListInterface;
+import org.mozilla.mozstumbler.service.utils.Scheduler;
 
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.atomic.AtomicInteger;
 
 public class WifiScanner extends BroadcastReceiver {
     public static final String ACTION_BASE = AppGlobals.ACTION_NAMESPACE + ".WifiScanner.";
-    public static final String ACTION_WIFIS_SCANNED = ACTION_BASE + "WIFIS_SCANNED";
-    public static final String ACTION_WIFIS_SCANNED_ARG_RESULTS = "scan_results";
-    public static final String ACTION_WIFIS_SCANNED_ARG_TIME = AppGlobals.ACTION_ARG_TIME;
+    /* The filtered results of each scan, published on the thread that receives the scan */
+    public static final Topic<List<ScanResult>> WIFIS_SCANNED = new Topic<List<ScanResult>>(ACTION_BASE + "WIFIS_SCANNED");
 
     public static final int STATUS_IDLE = 0;
     public static final int STATUS_ACTIVE = 1;
@@ -43,7 +42,7 @@ public class WifiScanner extends BroadcastReceiver {
     private boolean mStarted;
     private final Context mContext;
     private WifiLock mWifiLock;
-    private Timer mWifiScanTimer;
+    private ScheduledFuture<?> mWifiScanTask;
     private AtomicInteger mVisibleAPs = new AtomicInteger();
 
     public WifiScanner(Context c) {
@@ -137,14 +136,14 @@ public class WifiScanner extends BroadcastReceiver {
         if (!mStarted) {
             return STATUS_IDLE;
         }
-        if (mWifiScanTimer == null) {
+        if (mWifiScanTask == null) {
             return STATUS_WIFI_DISABLED;
         }
         return STATUS_ACTIVE;
     }
 
     private synchronized void activatePeriodicScan(final ActiveOrPassiveStumbling stumblingMode) {
-        if (mWifiScanTimer != null) {
+        if (mWifiScanTask != null) {
             return;
         }
 
@@ -156,8 +155,7 @@ public class WifiScanner extends BroadcastReceiver {
         mWifiLock.acquire();
 
         // Ensure that we are constantly scanning for new access points.
-        mWifiScanTimer = new Timer();
-        mWifiScanTimer.schedule(new TimerTask() {
+        mWifiScanTask = Scheduler.getInstance().scheduleWithFixedDelay(new Runnable() {
             int mPassiveScanCount;
             @Override
             public void run() {
@@ -165,7 +163,7 @@ public class WifiScanner extends BroadcastReceiver {
                     mPassiveScanCount++ > AppGlobals.PASSIVE_MODE_MAX_SCANS_PER_GPS)
                 {
                     mPassiveScanCount = 0;
-                    stop(); // set mWifiScanTimer to null
+                    stop(); // set mWifiScanTask to null
                     return;
                 }
                 if (AppGlobals.isDebug) {
@@ -177,7 +175,7 @@ public class WifiScanner extends BroadcastReceiver {
     }
 
     private synchronized void deactivatePeriodicScan() {
-        if (mWifiScanTimer == null) {
+        if (mWifiScanTask == null) {
             return;
         }
 
@@ -188,8 +186,8 @@ public class WifiScanner extends BroadcastReceiver {
         mWifiLock.release();
         mWifiLock = null;
 
-        mWifiScanTimer.cancel();
-        mWifiScanTimer = null;
+        mWifiScanTask.cancel(false);
+        mWifiScanTask = null;
 
         mVisibleAPs.set(0);
     }
@@ -215,9 +213,6 @@ public class WifiScanner extends BroadcastReceiver {
             return;
         }
 
-        Intent i = new Intent(ACTION_WIFIS_SCANNED);
-        i.putParcelableArrayListExtra(ACTION_WIFIS_SCANNED_ARG_RESULTS, scanResults);
-        i.putExtra(ACTION_WIFIS_SCANNED_ARG_TIME, System.currentTimeMillis());
-        LocalBroadcastManager.getInstance(mContext).sendBroadcastSync(i);
+        WIFIS_SCANNED.publish(scanResults);
     }
 }
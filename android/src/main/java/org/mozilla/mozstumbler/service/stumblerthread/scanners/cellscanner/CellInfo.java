@@ -82,6 +82,18 @@ public class CellInfo implements Parcelable {
         return mPsc;
     }
 
+    public int getSignal() {
+        return mSignal;
+    }
+
+    public int getAsu() {
+        return mAsu;
+    }
+
+    public int getTa() {
+        return mTa;
+    }
+
     public JSONObject toJSONObject() {
         final JSONObject obj = new JSONObject();
 
@@ -102,14 +114,39 @@ public class CellInfo implements Parcelable {
         return obj;
     }
 
-    public String getCellIdentity() {
-        return getRadio()
-                + " " + getCellRadio()
-                + " " + getMcc()
-                + " " + getMnc()
-                + " " + getLac()
-                + " " + getCid()
-                + " " + getPsc();
+    /* A 64-bit key identifying the cell: radio, cell radio, MCC, MNC, LAC, CID and PSC.
+     * Used to de-duplicate cells in sets and maps without building a string per cell.
+     *
+     * The fields take more than 64 bits (a 28-bit LTE CID and 15-bit CDMA SID alone make
+     * an exact packing impossible), so this is a well-mixed 64-bit fingerprint of them.
+     * Two different cells colliding is vanishingly unlikely at stumbling volumes
+     * (well under 1 in 10^9 for a session with 100k distinct cells), and the cost of a collision
+     * is only a cell missing from one report or the unique cell count.
+     */
+    public long getCellKey() {
+        // The radio strings are constants, their hash codes are cached by String
+        final long radios = ((long) hashOf(mRadio) << 32) | (hashOf(mCellRadio) & 0xffffffffL);
+        final long area = ((long) mMcc << 48) ^ ((long) mMnc << 32) ^ (mLac & 0xffffffffL);
+        final long cell = ((long) mCid << 32) | (mPsc & 0xffffffffL);
+
+        long key = mix64(radios);
+        key = mix64(key ^ area);
+        key = mix64(key ^ cell);
+        return key;
+    }
+
+    private static int hashOf(String s) {
+        return (s == null) ? 0 : s.hashCode();
+    }
+
+    // MurmurHash3 64-bit finalizer
+    private static long mix64(long k) {
+        k ^= k >>> 33;
+        k *= 0xff51afd7ed558ccdL;
+        k ^= k >>> 33;
+        k *= 0xc4ceb9fe1a85ec53L;
+        k ^= k >>> 33;
+        return k;
     }
 
     @Override
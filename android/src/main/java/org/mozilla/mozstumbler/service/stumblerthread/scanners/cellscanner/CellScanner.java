@@ -4,39 +4,37 @@
 
 package org.mozilla.mozstumbler.service.stumblerthread.scanners.cellscanner;
 
-import android.content.BroadcastReceiver;
 import android.content.Context;
-import android.content.Intent;
-import android.content.IntentFilter;
 import android.os.Handler;
 import android.os.Message;
-import android.support.v4.content.LocalBroadcastManager;
 import android.telephony.TelephonyManager;
 
 import org.mozilla.mozstumbler.service.AppGlobals;
 import org.mozilla.mozstumbler.service.AppGlobals.ActiveOrPassiveStumbling;
+import org.mozilla.mozstumbler.service.core.eventbus.Subscriber;
+import org.mozilla.mozstumbler.service.core.eventbus.Topic;
 import org.mozilla.mozstumbler.service.stumblerthread.Reporter;
+import org.mozilla.mozstumbler.service.stumblerthread.datahandling.StumblerBundle;
+import org.mozilla.mozstumbler.service.utils.LongHashSet;
+import org.mozilla.mozstumbler.service.utils.Scheduler;
 
 import java.util.ArrayList;
-import java.util.HashSet;
 import java.util.List;
-import java.util.Set;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 public class CellScanner {
     public static final String ACTION_BASE = AppGlobals.ACTION_NAMESPACE + ".CellScanner.";
-    public static final String ACTION_CELLS_SCANNED = ACTION_BASE + "CELLS_SCANNED";
-    public static final String ACTION_CELLS_SCANNED_ARG_CELLS = "cells";
-    public static final String ACTION_CELLS_SCANNED_ARG_TIME = AppGlobals.ACTION_ARG_TIME;
+    /* The cells from each poll, published on the thread that called start() */
+    public static final Topic<List<CellInfo>> CELLS_SCANNED = new Topic<List<CellInfo>>(ACTION_BASE + "CELLS_SCANNED");
 
     private static final String LOG_TAG = AppGlobals.makeLogTag(CellScanner.class.getSimpleName());
     private static final long CELL_MIN_UPDATE_TIME = 1000; // milliseconds
 
     private final Context mContext;
-    private Timer mCellScanTimer;
-    private final Set<String> mVisibleCells = new HashSet<String>();
+    private ScheduledFuture<?> mCellScanTask;
+    // CellInfo.getCellKey() of the cells seen since the last report
+    private final LongHashSet mVisibleCells = new LongHashSet();
     private final ReportFlushedReceiver mReportFlushedReceiver = new ReportFlushedReceiver();
     private final AtomicBoolean mReportWasFlushed = new AtomicBoolean();
     private Handler mBroadcastScannedHandler;
@@ -62,27 +60,25 @@ public class CellScanner {
             return;
         }
 
-        if (mCellScanTimer != null) {
+        if (mCellScanTask != null) {
             return;
         }
 
-        LocalBroadcastManager.getInstance(mContext).registerReceiver(mReportFlushedReceiver,
-                new IntentFilter(Reporter.ACTION_NEW_BUNDLE));
+        Reporter.NEW_BUNDLE.subscribe(mReportFlushedReceiver);
 
-        // This is to ensure the broadcast happens from the same thread the CellScanner start() is on
+        // This is to ensure the publish happens from the same thread the CellScanner start() is on
         mBroadcastScannedHandler = new Handler() {
             @Override
             public void handleMessage(Message msg) {
-                Intent intent = (Intent) msg.obj;
-                LocalBroadcastManager.getInstance(mContext).sendBroadcastSync(intent);
+                @SuppressWarnings("unchecked")
+                List<CellInfo> cells = (List<CellInfo>) msg.obj;
+                CELLS_SCANNED.publish(cells);
             }
         };
 
         mCellScannerImplementation.start();
 
-        mCellScanTimer = new Timer();
-
-        mCellScanTimer.schedule(new TimerTask() {
+        mCellScanTask = Scheduler.getInstance().scheduleWithFixedDelay(new Runnable() {
             int mPassiveScanCount;
             @Override
             public void run() {
@@ -98,8 +94,6 @@ public class CellScanner {
                     return;
                 }
 
-                final long curTime = System.currentTimeMillis();
-
                 ArrayList<CellInfo> cells = (sTestingModeCellInfoArray != null)? sTestingModeCellInfoArray :
                         new ArrayList<CellInfo>(mCellScannerImplementation.getCellInfo());
 
@@ -112,15 +106,12 @@ public class CellScanner {
                 }
 
                 for (CellInfo cell : cells) {
-                    addToCells(cell.getCellIdentity());
+                    addToCells(cell.getCellKey());
                 }
 
-                Intent intent = new Intent(ACTION_CELLS_SCANNED);
-                intent.putParcelableArrayListExtra(ACTION_CELLS_SCANNED_ARG_CELLS, cells);
-                intent.putExtra(ACTION_CELLS_SCANNED_ARG_TIME, curTime);
-                // send to handler, so broadcast is not from timer thread
+                // send to handler, so the publish is not from the scheduler thread
                 Message message = new Message();
-                message.obj = intent;
+                message.obj = cells;
                 mBroadcastScannedHandler.sendMessage(message);
 
             }
@@ -131,18 +122,18 @@ public class CellScanner {
         mVisibleCells.clear();
     }
 
-    private synchronized void addToCells(String cell) {
+    private synchronized void addToCells(long cell) {
         mVisibleCells.add(cell);
     }
 
     public synchronized void stop() {
         mReportWasFlushed.set(false);
         clearCells();
-        LocalBroadcastManager.getInstance(mContext).unregisterReceiver(mReportFlushedReceiver);
+        Reporter.NEW_BUNDLE.unsubscribe(mReportFlushedReceiver);
 
-        if (mCellScanTimer != null) {
-            mCellScanTimer.cancel();
-            mCellScanTimer = null;
+        if (mCellScanTask != null) {
+            mCellScanTask.cancel(false);
+            mCellScanTask = null;
         }
         mCellScannerImplementation.stop();
     }
@@ -151,9 +142,9 @@ public class CellScanner {
         return mVisibleCells.size();
     }
 
-    private class ReportFlushedReceiver extends BroadcastReceiver {
+    private class ReportFlushedReceiver implements Subscriber<StumblerBundle> {
         @Override
-        public void onReceive(Context c, Intent i) {
+        public void onEvent(StumblerBundle bundle) {
             mReportWasFlushed.set(true);
         }
     }
@@ -4,6 +4,8 @@
 
 package org.mozilla.mozstumbler.service.uploadthread;
 
+import org.mozilla.mozstumbler.service.stumblerthread.datahandling.UploadPlan;
+
 /**
  * Created by victorng on 2014-09-29.
  */
@@ -12,10 +14,33 @@ public class AsyncUploadParam {
     final boolean useWifiOnly;
     final String nickname;
     final String emailAddress;
+    // What the UploadPlan aims for, in stored bytes per request, until the link is measured (LinkEstimator)
+    final int targetPayloadBytes;
+    // Requests the UploadEngine keeps in flight
+    final int maxRequestsInFlight;
+    // Upload even if the server failed recently, for an upload the user asked for
+    final boolean ignoreBackoff;
 
     public AsyncUploadParam(boolean wifiOnly,
                             String nick,
                             String email) {
+        this(wifiOnly, nick, email, UploadPlan.DEFAULT_TARGET_BYTES, UploadEngine.DEFAULT_MAX_IN_FLIGHT);
+    }
+
+    public AsyncUploadParam(boolean wifiOnly,
+                            String nick,
+                            String email,
+                            int targetPayloadBytes,
+                            int maxRequestsInFlight) {
+        this(wifiOnly, nick, email, targetPayloadBytes, maxRequestsInFlight, false);
+    }
+
+    public AsyncUploadParam(boolean wifiOnly,
+                            String nick,
+                            String email,
+                            int targetPayloadBytes,
+                            int maxRequestsInFlight,
+                            boolean ignoreBackoff) {
 
         if (email == null) {
             email = "";
@@ -28,5 +53,8 @@ public class AsyncUploadParam {
         useWifiOnly = wifiOnly;
         nickname = nick;
         emailAddress = email;
+        this.targetPayloadBytes = targetPayloadBytes;
+        this.maxRequestsInFlight = maxRequestsInFlight;
+        this.ignoreBackoff = ignoreBackoff;
     }
 }
@@ -11,11 +11,11 @@ import org.mozilla.mozstumbler.service.AppGlobals;
 import org.mozilla.mozstumbler.service.core.http.HttpUtil;
 import org.mozilla.mozstumbler.service.core.http.IHttpUtil;
 import org.mozilla.mozstumbler.service.core.http.ILocationService;
-import org.mozilla.mozstumbler.service.core.http.IResponse;
 import org.mozilla.mozstumbler.service.core.http.MLS;
 import org.mozilla.mozstumbler.service.stumblerthread.datahandling.DataStorageManager;
+import org.mozilla.mozstumbler.service.stumblerthread.datahandling.SyncStats;
+import org.mozilla.mozstumbler.service.stumblerthread.datahandling.UploadPlan;
 import org.mozilla.mozstumbler.service.utils.NetworkInfo;
-import org.mozilla.mozstumbler.service.utils.Zipper;
 
 import java.io.IOException;
 import java.util.HashMap;
@@ -29,11 +29,14 @@ import java.util.concurrent.atomic.AtomicLong;
 * Uploads on a separate thread. ONLY DataStorageManager is thread-safe, do not call
 * preferences, do not call any code that isn't thread-safe. You will cause suffering.
 * An exception is made for AppGlobals.isDebug, a false reading is of no consequence.
+* The requests go out from the UploadEngine's own threads, several at a time
+* (AsyncUploadParam.maxRequestsInFlight); everything else stays on the upload thread.
 *
-* AsyncUploader is used in 3 places.
-*   1. the MetricsView in the upload button.
-*   2. MainApp where it is invoked immediately when scanning is stopped
-*   3. On a timer by the UploadAlarmReceiver.
+* AsyncUploader is started only by the UploadScheduler:
+*   1. right away for the upload button of the MetricsView (uploadNow).
+*   2. when the UploadPolicy says it is worth it, which the scheduler checks on its alarm
+*      (UploadAlarmReceiver), after reports are queued, scanning is stopped (MainApp),
+*      or the connection or the power changed (UploadConditionsReceiver).
 *
 * We have a weak method of managing access to the AsyncUploader by using an
 * AtomicBoolean AsyncUploader.isUploading and use it as a guard before
@@ -50,6 +53,10 @@ public class AsyncUploader extends AsyncTask<AsyncUploadParam, AsyncProgressList
     private static final String LOG_TAG = AppGlobals.makeLogTag(AsyncUploader.class.getSimpleName());
     public static final AtomicLong sTotalBytesUploadedThisSession = new AtomicLong();
     public static final AtomicBoolean isUploading = new AtomicBoolean();
+    // What the uploads measured of the link so far, one for wifi and one for mobile data.
+    // Only used by the one upload at a time.
+    private static LinkEstimator sWifiLink;
+    private static LinkEstimator sMobileLink;
 
     // This listener can show progress for any AsyncUploader. This global use is particularly
     // useful for UI to show progress when this has been scheduled internally in the service.
@@ -99,6 +106,19 @@ public class AsyncUploader extends AsyncTask<AsyncUploadParam, AsyncProgressList
         }
     }
 
+    private static LinkEstimator getLinkEstimator(boolean wifi, long initialPayloadBytes) {
+        if (wifi) {
+            if (sWifiLink == null) {
+                sWifiLink = new LinkEstimator(initialPayloadBytes);
+            }
+            return sWifiLink;
+        }
+        if (sMobileLink == null) {
+            sMobileLink = new LinkEstimator(initialPayloadBytes);
+        }
+        return sMobileLink;
+    }
+
     private void uploadReports(AsyncUploadParam param) {
         long uploadedObservations = 0;
         long uploadedCells = 0;
@@ -112,69 +132,59 @@ public class AsyncUploader extends AsyncTask<AsyncUploadParam, AsyncProgressList
             return;
         }
 
+        DataStorageManager dm = DataStorageManager.getInstance();
+        SyncStats stats = dm.getSyncStats();
+        UploadBackoff backoff = new UploadBackoff(stats.getUploadFailures(), stats.getNextUploadAttemptTime());
+        if (!param.ignoreBackoff && !backoff.canAttempt(System.currentTimeMillis())) {
+            // The server failed the last few times, see UploadBackoff
+            if (AppGlobals.isDebug) {
+                Log.d(LOG_TAG, "backing off, next attempt at " + backoff.getNextAttemptTime());
+            }
+            return;
+        }
+
+        LinkEstimator link = getLinkEstimator(NetworkInfo.getInstance().isWifiAvailable(), param.targetPayloadBytes);
         IHttpUtil httpUtil = new HttpUtil();
         ILocationService mls = new MLS(httpUtil);
-        DataStorageManager dm = DataStorageManager.getInstance();
 
         String error = null;
+        UploadEngine engine = null;
 
         try {
-            DataStorageManager.ReportBatch batch = dm.getFirstBatch();
+            // Small batches are sent together, big ones in parts, sized for the link, see UploadPlan
+            UploadPlan plan = dm.planUpload(link.getPayloadBytes());
+            if (AppGlobals.isDebug) {
+                Log.d(LOG_TAG, plan.getBatchCount() + " batches in " + plan.getPayloadCount() + " payloads");
+            }
             HashMap<String, String> headers = new HashMap<String, String>();
             headers.put(MLS.EMAIL_HEADER, param.emailAddress);
             headers.put(MLS.NICKNAME_HEADER, param.nickname);
 
-            while (batch != null) {
-               IResponse result = mls.submit(batch.data, headers, true);
-
-                if (result != null && result.isSuccessCode2XX()) {
-                    totalBytesSent += result.bytesSent();
-
-                    String logMsg =  "MLS Submit: [HTTP Status:" + result.httpResponse() + "], [Bytes Sent:" + result.bytesSent() + "]";
-                    AppGlobals.guiLogInfo(logMsg, "#FFFFCC", true, false);
-
-                    dm.delete(batch.filename);
-
-                    uploadedObservations += batch.reportCount;
-                    uploadedWifis += batch.wifiCount;
-                    uploadedCells += batch.cellCount;
-                } else {
-                    String logMsg = "HTTP error unknown";
-                    if (result != null) {
-                        logMsg = "HTTP non-success code: " + result.httpResponse();
-                    }
-                    
-                    if (result != null && result.isErrorCode400BadRequest()) {
-                        logMsg += ", 400 Error, deleting bad report";
-                        if (AppGlobals.guiLogMessageBuffer != null) { // if true, this is a GUI app
-                            String unzipped = Zipper.unzipData(batch.data);
-                            AppGlobals.guiLogInfo(unzipped, "red", false, true);
-                        }
-                        dm.delete(batch.filename);
-                    } else {
-                        DataStorageManager.getInstance().saveCurrentReportsSendBufferToDisk();
-                    }
-                    AppGlobals.guiLogError(logMsg);
-                }
-
-                batch = dm.getNextBatch();
-            }
+            engine = new UploadEngine(mls, dm, headers, param.maxRequestsInFlight, backoff, link);
+            engine.run(plan);
         }
         catch (IOException ex) {
             error = ex.toString();
         }
 
+        stats.setUploadBackoff(backoff.getConsecutiveFailures(), backoff.getNextAttemptTime());
+
+        if (engine != null) {
+            // Counts what was sent before any error too
+            totalBytesSent = engine.getBytesSent();
+            uploadedObservations = engine.getReportsSent();
+            uploadedWifis = engine.getWifisSent();
+            uploadedCells = engine.getCellsSent();
+        }
+
         sTotalBytesUploadedThisSession.addAndGet(totalBytesSent);
 
-        try {
-            dm.incrementSyncStats(totalBytesSent, uploadedObservations, uploadedCells, uploadedWifis);
-        } catch (IOException ex) {
-            error = ex.toString();
-        } finally {
-            if (error != null) {
-                Log.d(LOG_TAG, error);
-                AppGlobals.guiLogError(error + " (uploadReports)");
-            }
+        // In memory, saved to disk shortly after
+        dm.incrementSyncStats(totalBytesSent, uploadedObservations, uploadedCells, uploadedWifis);
+
+        if (error != null) {
+            Log.d(LOG_TAG, error);
+            AppGlobals.guiLogError(error + " (uploadReports)");
         }
     }
 }
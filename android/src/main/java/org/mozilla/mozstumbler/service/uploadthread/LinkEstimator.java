@@ -0,0 +1,120 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.mozstumbler.service.uploadthread;
+
+/* Estimates the round trip time and the throughput of the link from the upload requests
+ * (bytes sent and how long the request took), and from them how big a payload is, and how long
+ * the timeouts are, for a request to take about TARGET_REQUEST_MS.
+ *
+ * So a weak 2G/3G link gets smaller payloads and longer timeouts, and fast wifi fewer, larger
+ * requests. Before the first request, the payload size is the one it was created with.
+ *
+ * The round trip is a floor of the request durations: a request takes at least one. Requests that
+ * are mostly round trip (no body, or one that takes less than a round trip to send) also let the
+ * floor creep up, so a link that got slower is noticed. What a request takes over the round trip is
+ * the transfer, which gives the throughput, smoothed like TCP does its RTT (1/4 weight).
+ * A request that didn't get a response (most likely a timeout) halves the throughput and doubles
+ * the timeouts until one does; a 413 caps the payload size to half the rejected one.
+ *
+ * With several requests in flight, each request measures its share of the link, which is the
+ * share it gets next time too.
+ *
+ * Not thread-safe, used from the thread running the upload.
+ */
+public final class LinkEstimator {
+    static final long TARGET_REQUEST_MS = 4000;
+    static final long MIN_PAYLOAD_BYTES = 4 * 1024;
+    static final long MAX_PAYLOAD_BYTES = 256 * 1024;
+    // The TCP and TLS handshakes are a few round trips, and DNS one more
+    static final int CONNECT_ROUND_TRIPS = 6;
+    static final int DEFAULT_CONNECT_TIMEOUT_MS = 5000;
+    static final int MAX_CONNECT_TIMEOUT_MS = 30 * 1000;
+    // The read timeout is this many times the expected duration of the request
+    static final int READ_TIMEOUT_FACTOR = 3;
+    static final int DEFAULT_READ_TIMEOUT_MS = 30 * 1000;
+    static final int MIN_READ_TIMEOUT_MS = 10 * 1000;
+    static final int MAX_READ_TIMEOUT_MS = 120 * 1000;
+    private static final int MAX_TIMEOUT_SCALE = 4;
+
+    private final long mInitialPayloadBytes;
+    private final long mMinPayloadBytes;
+    private long mMaxPayloadBytes;
+    private long mRttMs;
+    // Bytes per second, 0 until measured
+    private long mThroughput;
+    private int mTimeoutScale = 1;
+
+    public LinkEstimator(long initialPayloadBytes) {
+        this(initialPayloadBytes, MIN_PAYLOAD_BYTES, MAX_PAYLOAD_BYTES);
+    }
+
+    LinkEstimator(long initialPayloadBytes, long minPayloadBytes, long maxPayloadBytes) {
+        mInitialPayloadBytes = initialPayloadBytes;
+        mMinPayloadBytes = minPayloadBytes;
+        mMaxPayloadBytes = maxPayloadBytes;
+    }
+
+    public void onResponse(long bytesSent, long durationMs) {
+        durationMs = Math.max(durationMs, 1);
+        mTimeoutScale = 1;
+        final boolean mostlyRoundTrip = bytesSent <= 0 ||
+                (mThroughput > 0 && bytesSent * 1000 / mThroughput < mRttMs);
+        if (mRttMs == 0 || durationMs < mRttMs) {
+            mRttMs = durationMs;
+        } else if (mostlyRoundTrip) {
+            mRttMs += (durationMs - mRttMs) / 16;
+        }
+        if (bytesSent <= 0) {
+            return;
+        }
+        // With the round trip close to the whole duration, the difference says little; a quarter of it at least
+        final long transferMs = Math.max(durationMs - mRttMs, Math.max(durationMs / 4, 1));
+        final long sample = bytesSent * 1000 / transferMs;
+        mThroughput = (mThroughput == 0) ? sample : mThroughput + (sample - mThroughput) / 4;
+    }
+
+    /* No response at all, most likely a timeout */
+    public void onNoResponse() {
+        mThroughput /= 2;
+        mTimeoutScale = Math.min(mTimeoutScale * 2, MAX_TIMEOUT_SCALE);
+    }
+
+    public void onTooLarge(long payloadBytes) {
+        mMaxPayloadBytes = Math.max(Math.min(mMaxPayloadBytes, payloadBytes / 2), 1);
+    }
+
+    /* Stored bytes for the next payloads */
+    public long getPayloadBytes() {
+        long bytes = mInitialPayloadBytes;
+        if (mThroughput > 0) {
+            final long transferMs = Math.max(TARGET_REQUEST_MS - mRttMs, TARGET_REQUEST_MS / 4);
+            bytes = Math.max(mThroughput * transferMs / 1000, mMinPayloadBytes);
+        }
+        return Math.min(bytes, mMaxPayloadBytes);
+    }
+
+    public int getConnectTimeoutMs() {
+        final long timeout = Math.max(mRttMs * CONNECT_ROUND_TRIPS, DEFAULT_CONNECT_TIMEOUT_MS) * mTimeoutScale;
+        return (int) Math.min(timeout, MAX_CONNECT_TIMEOUT_MS);
+    }
+
+    /* For requests of about payloadBytes */
+    public int getReadTimeoutMs(long payloadBytes) {
+        long timeout = DEFAULT_READ_TIMEOUT_MS;
+        if (mThroughput > 0) {
+            final long expectedMs = mRttMs + payloadBytes * 1000 / mThroughput;
+            timeout = Math.max(expectedMs * READ_TIMEOUT_FACTOR, MIN_READ_TIMEOUT_MS);
+        }
+        return (int) Math.min(timeout * mTimeoutScale, MAX_READ_TIMEOUT_MS);
+    }
+
+    public long getRttMs() {
+        return mRttMs;
+    }
+
+    public long getThroughput() {
+        return mThroughput;
+    }
+}
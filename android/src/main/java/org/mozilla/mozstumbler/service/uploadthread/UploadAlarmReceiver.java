@@ -4,35 +4,27 @@
 
 package org.mozilla.mozstumbler.service.uploadthread;
 
-import android.app.AlarmManager;
 import android.app.IntentService;
-import android.app.PendingIntent;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
-import android.util.Log;
 
 import org.mozilla.mozstumbler.service.AppGlobals;
-import org.mozilla.mozstumbler.service.Prefs;
 import org.mozilla.mozstumbler.service.stumblerthread.datahandling.DataStorageManager;
 import org.mozilla.mozstumbler.service.utils.NetworkInfo;
 
-// Only if data is queued and device awake: check network availability and upload.
-// Mozilla Stumbler use: this alarm is periodic and repeating.
-// Fennec use: The alarm is single-shot and it is set to run -if there is data in the queue-
-// under these conditions:
-// 1) Fennec start/pause (actually gecko start which is ~4 sec after Fennec start).
-// 2) Changing the pref in Fennec to stumble or not.
-// 3) Boot intent (and SD card app available intent).
+// Goes off when UploadScheduler set it to: UploadAlarmService checks whether to upload now
+// (UploadScheduler.check()), and if not, when to look again.
+// Mozilla Stumbler use: set while data is queued, by the triggers that call UploadScheduler.requestUpload().
+// Fennec use: set on Fennec start/pause (actually gecko start which is ~4 sec after Fennec start),
+// when the pref to stumble changes, and on boot, if there is data in the queue.
 //
 // Threading:
-// - scheduled from the stumbler thread
+// - set from any thread
 // - triggered from the main thread
-// - actual work is done the upload thread (AsyncUploader)
+// - the check runs on the UploadAlarmService thread, the upload on the upload thread (AsyncUploader)
 public class UploadAlarmReceiver extends BroadcastReceiver {
     private static final String LOG_TAG = AppGlobals.makeLogTag(UploadAlarmReceiver.class.getSimpleName());
-    private static final String EXTRA_IS_REPEATING = "is_repeating";
-    private static boolean sIsAlreadyScheduled;
 
     public static class UploadAlarmService extends IntentService {
 
@@ -46,81 +38,11 @@ public class UploadAlarmReceiver extends BroadcastReceiver {
 
         @Override
         protected void onHandleIntent(Intent intent) {
-            boolean isRepeating = intent.getBooleanExtra(EXTRA_IS_REPEATING, true);
             if (DataStorageManager.getInstance() == null) {
                 DataStorageManager.createGlobalInstance(this, null);
             }
-            upload(isRepeating);
-        }
-
-        void upload(boolean isRepeating) {
-            if (!isRepeating) {
-                sIsAlreadyScheduled = false;
-            }
-
-            // Defensive approach: if it is too old, delete all data
-            long oldestMs = DataStorageManager.getInstance().getOldestBatchTimeMs();
-            int maxWeeks = DataStorageManager.getInstance().getMaxWeeksStored();
-            if (oldestMs > 0) {
-                long currentTime = System.currentTimeMillis();
-                long msPerWeek = 604800 * 1000;
-                if (currentTime - oldestMs > maxWeeks * msPerWeek) {
-                    DataStorageManager.getInstance().deleteAll();
-                    UploadAlarmReceiver.cancelAlarm(this, isRepeating);
-                    return;
-                }
-            }
-
-            // @TODO: Check the buildtype to see if we're running in Client mode
-            // or inside of Fennec.  If we're in Client mode, we should send a
-            // signal to MainApp that we want to initiate
-            // an upload instead of doing it right here.
-            if (NetworkInfo.getInstance().isWifiAvailable()) {
-                Log.d(LOG_TAG, "Alarm upload(), call AsyncUploader");
-
-                AsyncUploader uploader = new AsyncUploader();
-                AsyncUploadParam param = new AsyncUploadParam(
-                        Prefs.getInstance().getUseWifiOnly(),
-                        Prefs.getInstance().getNickname(),
-                        Prefs.getInstance().getEmail()
-                );
-                uploader.execute(param);
-            }
-        }
-    }
-
-    private static PendingIntent createIntent(Context c, boolean isRepeating) {
-        Intent intent = new Intent(c, UploadAlarmReceiver.class);
-        intent.putExtra(EXTRA_IS_REPEATING, isRepeating);
-        return PendingIntent.getBroadcast(c, 0, intent, 0);
-    }
-
-    public static void cancelAlarm(Context c, boolean isRepeating) {
-        Log.d(LOG_TAG, "cancelAlarm");
-        // this is to stop scheduleAlarm from constantly rescheduling, not to guard cancellation.
-        sIsAlreadyScheduled = false;
-        AlarmManager alarmManager = (AlarmManager) c.getSystemService(Context.ALARM_SERVICE);
-        PendingIntent pi = createIntent(c, isRepeating);
-        alarmManager.cancel(pi);
-    }
-
-    public static void scheduleAlarm(Context c, long secondsToWait, boolean isRepeating) {
-        if (sIsAlreadyScheduled) {
-            return;
-        }
-
-        long intervalMsec = secondsToWait * 1000;
-        Log.d(LOG_TAG, "schedule alarm (ms):" + intervalMsec);
-
-        sIsAlreadyScheduled = true;
-        AlarmManager alarmManager = (AlarmManager) c.getSystemService(Context.ALARM_SERVICE);
-        PendingIntent pi = createIntent(c, isRepeating);
-
-        long triggerAtMs = System.currentTimeMillis() + intervalMsec;
-        if (isRepeating) {
-            alarmManager.setInexactRepeating(AlarmManager.RTC, triggerAtMs, intervalMsec, pi);
-        } else {
-            alarmManager.set(AlarmManager.RTC, triggerAtMs, pi);
+            NetworkInfo.createGlobalInstance(this);
+            UploadScheduler.check(this);
         }
     }
 
@@ -0,0 +1,120 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.mozstumbler.service.uploadthread;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Random;
+
+/* When to send the next upload request, after requests failed (no response, or an error status
+ * other than 400, which is about the data rather than the server).
+ *
+ * Within an upload pass, each failure in a row doubles the wait before the next request, from
+ * IN_PASS_BASE_DELAY_MS. After BREAKER_FAILURES in a row the circuit breaker opens: the pass stops,
+ * and no pass starts before getNextAttemptTime(), OPEN_BASE_DELAY_MS away, doubling with each
+ * further failure up to MAX_OPEN_DELAY_MS. The first request after that is the test; one more
+ * failure opens the breaker again, a success closes it. The failures and the next attempt time
+ * are kept across passes and restarts (SyncStats).
+ *
+ * Every wait is jittered, half of it at random, so phones that lost the server together don't
+ * all come back at the same moment. A Retry-After from the server is a lower bound on the wait,
+ * and one too long to wait out within the pass opens the breaker right away.
+ *
+ * Not thread-safe, used from the thread running the upload.
+ */
+public final class UploadBackoff {
+    public static final long STOP = -1;
+
+    static final int BREAKER_FAILURES = 3;
+    static final long IN_PASS_BASE_DELAY_MS = 1000;
+    // Longer than this, and the pass is stopped instead of waiting
+    static final long MAX_IN_PASS_DELAY_MS = 1000 * 30;
+    static final long OPEN_BASE_DELAY_MS = 1000 * 60 * 5;
+    static final long MAX_OPEN_DELAY_MS = 1000 * 60 * 60 * 6;
+
+    private final Random mRandom;
+    private int mFailures;
+    private long mNextAttemptTime;
+
+    public UploadBackoff(int consecutiveFailures, long nextAttemptTime) {
+        this(consecutiveFailures, nextAttemptTime, new Random());
+    }
+
+    UploadBackoff(int consecutiveFailures, long nextAttemptTime, Random random) {
+        mFailures = Math.max(consecutiveFailures, 0);
+        mNextAttemptTime = nextAttemptTime;
+        mRandom = random;
+    }
+
+    /* False while the breaker is open */
+    public boolean canAttempt(long now) {
+        // A next attempt further off than it can be means the clock was set back
+        return now >= mNextAttemptTime || mNextAttemptTime - now > MAX_OPEN_DELAY_MS;
+    }
+
+    public void onSuccess() {
+        mFailures = 0;
+        mNextAttemptTime = 0;
+    }
+
+    /* The ms to wait before the next request of the pass, or STOP if the breaker opened.
+     * retryAfterMs is the server's Retry-After, or -1. */
+    public long onFailure(long now, long retryAfterMs) {
+        mFailures++;
+        retryAfterMs = Math.min(retryAfterMs, MAX_OPEN_DELAY_MS);
+        if (mFailures < BREAKER_FAILURES && retryAfterMs <= MAX_IN_PASS_DELAY_MS) {
+            return Math.max(jitter(exponential(IN_PASS_BASE_DELAY_MS, mFailures - 1, MAX_IN_PASS_DELAY_MS)),
+                    retryAfterMs);
+        }
+
+        final long delay = jitter(exponential(OPEN_BASE_DELAY_MS, mFailures - BREAKER_FAILURES, MAX_OPEN_DELAY_MS));
+        mNextAttemptTime = now + Math.max(delay, retryAfterMs);
+        return STOP;
+    }
+
+    private static long exponential(long base, int doublings, long max) {
+        if (doublings <= 0) {
+            return base;
+        }
+        // Doubling past the max would overflow before long
+        return (doublings >= 30 || (base << doublings) > max) ? max : base << doublings;
+    }
+
+    private long jitter(long delay) {
+        final long half = delay / 2;
+        return half + (long) (mRandom.nextDouble() * half);
+    }
+
+    public int getConsecutiveFailures() {
+        return mFailures;
+    }
+
+    /* 0 if there is no wait */
+    public long getNextAttemptTime() {
+        return mNextAttemptTime;
+    }
+
+    /* Retry-After is either seconds, or an HTTP date. -1 if missing or unreadable. */
+    public static long parseRetryAfter(String value, long now) {
+        if (value == null) {
+            return -1;
+        }
+        value = value.trim();
+        try {
+            return Math.max(Long.parseLong(value) * 1000, 0);
+        } catch (NumberFormatException ex) {
+            // Not seconds
+        }
+        final SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+        try {
+            final Date date = format.parse(value);
+            return Math.max(date.getTime() - now, 0);
+        } catch (ParseException ex) {
+            return -1;
+        }
+    }
+}
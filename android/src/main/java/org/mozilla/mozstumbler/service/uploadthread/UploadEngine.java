@@ -0,0 +1,415 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.mozstumbler.service.uploadthread;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.mozilla.mozstumbler.service.AppGlobals;
+import org.mozilla.mozstumbler.service.core.http.ILocationService;
+import org.mozilla.mozstumbler.service.core.http.IResponse;
+import org.mozilla.mozstumbler.service.stumblerthread.datahandling.DataStorageManager;
+import org.mozilla.mozstumbler.service.stumblerthread.datahandling.PackedReportReader;
+import org.mozilla.mozstumbler.service.stumblerthread.datahandling.UploadPlan;
+import org.mozilla.mozstumbler.service.utils.Zipper;
+import org.mozilla.osmdroid.tileprovider.util.StreamUtils;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/* Sends the payloads of an UploadPlan with up to maxInFlight requests at a time.
+ *
+ * The thread calling run() does everything but the requests: it reads and compresses the next
+ * payload while the requests are in flight, hands it to a request thread once one is free, and
+ * handles the responses as they come back, in whatever order. So the plan and DataStorageManager
+ * are only used from that thread, and a batch is deleted as soon as the plan says it is uploaded.
+ *
+ * With maxInFlight of 1 the requests go one after the other as before, only the reading of the
+ * next payload overlaps the request.
+ *
+ * When there is more than one payload, a request thread first warms up a connection to the
+ * service (ILocationService.warmUp()) while the first payload is being read.
+ *
+ * A failed request holds back the next ones for as long as the UploadBackoff says, and once its
+ * circuit breaker opens, no more are sent; the pass ends when the requests in flight are back.
+ *
+ * A payload over SPOOL_PAYLOAD_BYTES has its body built into a file (DataStorageManager.createUploadSpoolFile())
+ * and streamed from it, so big payloads don't each hold their body in memory while in flight.
+ *
+ * Each response goes to the LinkEstimator, and the payloads still to send and the timeouts follow
+ * its estimate. A payload rejected as too large (413) is sent again in smaller ones; a single report
+ * rejected as too large stays queued.
+ */
+public final class UploadEngine {
+    private static final String LOG_TAG = AppGlobals.makeLogTag(UploadEngine.class.getSimpleName());
+
+    // Enough to hide the round trip on a phone, few enough not to crowd the server
+    public static final int DEFAULT_MAX_IN_FLIGHT = 2;
+    public static final int MAX_IN_FLIGHT_LIMIT = 8;
+    // Payloads over this are built in a file rather than in memory
+    static final long SPOOL_PAYLOAD_BYTES = 64 * 1024;
+
+    private final ILocationService mService;
+    private final DataStorageManager mStorage;
+    private final Map<String, String> mHeaders;
+    private final int mMaxInFlight;
+    private final UploadBackoff mBackoff;
+    private final LinkEstimator mLink;
+    private final PackedReportReader mReportReader = new PackedReportReader();
+
+    private long mSpoolPayloadBytes = SPOOL_PAYLOAD_BYTES;
+    private int mInFlight;
+    // SystemClock.elapsedRealtime() before which no request is sent
+    private long mResumeAt;
+    // The breaker opened
+    private boolean mStopped;
+    private long mBytesSent;
+    private long mReportsSent;
+    private long mWifisSent;
+    private long mCellsSent;
+
+    private static final class Request implements Callable<Request> {
+        final ILocationService service;
+        final Map<String, String> headers;
+        final UploadPlan.Payload payload;
+        // One or the other
+        final byte[] body;
+        final File bodyFile;
+        final int reportCount;
+        final int wifiCount;
+        final int cellCount;
+        IResponse response;
+        long durationMs;
+
+        Request(ILocationService service, Map<String, String> headers, UploadPlan.Payload payload,
+                byte[] body, File bodyFile, int reportCount, int wifiCount, int cellCount) {
+            this.service = service;
+            this.headers = headers;
+            this.payload = payload;
+            this.body = body;
+            this.bodyFile = bodyFile;
+            this.reportCount = reportCount;
+            this.wifiCount = wifiCount;
+            this.cellCount = cellCount;
+        }
+
+        @Override
+        public Request call() {
+            final long start = SystemClock.elapsedRealtime();
+            if (bodyFile == null) {
+                response = service.submit(body, headers, true);
+            } else {
+                try {
+                    response = service.submit(bodyFile, headers);
+                } finally {
+                    // Not needed any more, whatever the response; a payload sent again is built again
+                    bodyFile.delete();
+                }
+            }
+            durationMs = SystemClock.elapsedRealtime() - start;
+            return this;
+        }
+    }
+
+    UploadEngine(ILocationService service, DataStorageManager storage, Map<String, String> headers, int maxInFlight,
+                 UploadBackoff backoff, LinkEstimator link) {
+        mService = service;
+        mStorage = storage;
+        mHeaders = headers;
+        mMaxInFlight = Math.max(1, Math.min(maxInFlight, MAX_IN_FLIGHT_LIMIT));
+        mBackoff = backoff;
+        mLink = link;
+    }
+
+    /* Returns when every payload of the plan has been sent, when the backoff's breaker opens, or on an
+     * IOException from storage. Either way, the requests in flight are waited for and their responses handled. */
+    void run(UploadPlan plan) throws IOException {
+        final ExecutorService executor = createExecutor(mMaxInFlight);
+        final CompletionService<Request> completed = new ExecutorCompletionService<Request>(executor);
+        followLink(plan);
+        if (plan.getPayloadCount() > 1) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    mService.warmUp();
+                }
+            });
+        }
+        Request next = null;
+        try {
+            while (!mStopped) {
+                if (next == null) {
+                    // Overlaps the requests in flight
+                    next = prepare(plan);
+                }
+                final long waitMs = mResumeAt - SystemClock.elapsedRealtime();
+                final boolean canSend = next != null && mInFlight < mMaxInFlight;
+                if (canSend && waitMs <= 0) {
+                    completed.submit(next);
+                    mInFlight++;
+                    next = null;
+                    continue;
+                }
+                if (mInFlight == 0) {
+                    if (next == null) {
+                        return;
+                    }
+                    sleep(waitMs);
+                    continue;
+                }
+                // Backing off with a request ready, a response may come back meanwhile
+                final Request done = takeCompleted(completed, canSend ? waitMs : -1);
+                if (done != null) {
+                    handleResponse(plan, done);
+                }
+            }
+        } finally {
+            if (next != null && next.bodyFile != null) {
+                // Prepared but not sent, the request would have deleted it
+                next.bodyFile.delete();
+            }
+            try {
+                while (mInFlight > 0) {
+                    handleResponse(plan, takeCompleted(completed, -1));
+                }
+            } finally {
+                executor.shutdown();
+            }
+        }
+    }
+
+    private static ExecutorService createExecutor(int threads) {
+        final AtomicInteger count = new AtomicInteger();
+        return new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        return new Thread(runnable, "UploadRequest-" + count.incrementAndGet());
+                    }
+                });
+    }
+
+    /* Waits up to timeoutMs, or for as long as it takes if that is negative. Null on a timeout. */
+    private Request takeCompleted(CompletionService<Request> completed, long timeoutMs) throws IOException {
+        try {
+            final Future<Request> future = (timeoutMs < 0) ? completed.take() :
+                    completed.poll(timeoutMs, TimeUnit.MILLISECONDS);
+            if (future == null) {
+                return null;
+            }
+            final Request request = future.get();
+            mInFlight--;
+            return request;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            // The requests in flight finish on their own, their batches are sent again next time
+            mInFlight = 0;
+            throw new InterruptedIOException("Upload interrupted");
+        } catch (ExecutionException ex) {
+            // The request threw rather than returning null, e.g. on a bad URL
+            mInFlight--;
+            Log.e(LOG_TAG, "Upload request failed", ex.getCause());
+            throw new IOException(ex.getCause().toString());
+        }
+    }
+
+    private static void sleep(long ms) throws IOException {
+        try {
+            Thread.sleep(ms);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Upload interrupted");
+        }
+    }
+
+    /* The next payload ready to send, null when the plan has no more.
+     * Batches are stored packed, the JSON body is only generated here. */
+    private Request prepare(UploadPlan plan) throws IOException {
+        UploadPlan.Payload payload;
+        while ((payload = plan.next()) != null) {
+            if (payload.bytes <= mSpoolPayloadBytes) {
+                mReportReader.startBody((int) payload.bytes);
+                final int[] counts = appendPayload(payload);
+                final byte[] body = mReportReader.finishBody();
+                if (body != null) {
+                    return new Request(mService, mHeaders, payload, body, null, counts[0], counts[1], counts[2]);
+                }
+                continue;
+            }
+
+            final File bodyFile = mStorage.createUploadSpoolFile();
+            final FileOutputStream out = new FileOutputStream(bodyFile);
+            boolean sending = false;
+            try {
+                mReportReader.startBody(new BufferedOutputStream(out, StreamUtils.IO_BUFFER_SIZE));
+                final int[] counts = appendPayload(payload);
+                if (mReportReader.endBody()) {
+                    sending = true;
+                    return new Request(mService, mHeaders, payload, null, bodyFile, counts[0], counts[1], counts[2]);
+                }
+            } finally {
+                // Closed already unless something failed on the way
+                out.close();
+                if (!sending) {
+                    bodyFile.delete();
+                }
+            }
+        }
+        return null;
+    }
+
+    /* Adds the payload's reports to the body started, returns the counts of reports, wifis and cells added */
+    private int[] appendPayload(UploadPlan.Payload payload) throws IOException {
+        int reports = 0;
+        int wifis = 0;
+        int cells = 0;
+        for (UploadPlan.Slice slice : payload.slices) {
+            final DataStorageManager.ReportBatch batch = mStorage.readBatch(slice.name);
+            if (batch == null) {
+                // Gone since the plan was made
+                continue;
+            }
+            try {
+                mReportReader.appendReports(batch.data, slice.firstReport, slice.reportCount);
+            } catch (PackedReportReader.UnreadableBatchException ex) {
+                AppGlobals.guiLogError("Unreadable report batch, deleting: " + ex);
+                mStorage.delete(slice.name);
+                continue;
+            }
+            reports += slice.reportCount;
+            wifis += slice.wifiCount;
+            cells += slice.cellCount;
+        }
+        return new int[] { reports, wifis, cells };
+    }
+
+    /* Sizes the payloads not prepared yet, and sets the timeouts, for the link as estimated */
+    private void followLink(UploadPlan plan) {
+        plan.setTargetBytes(mLink.getPayloadBytes());
+        mService.setTimeouts(mLink.getConnectTimeoutMs(), mLink.getReadTimeoutMs(plan.getTargetBytes()));
+    }
+
+    private void handleResponse(UploadPlan plan, Request request) throws IOException {
+        final IResponse result = request.response;
+        mStorage.getSyncStats().recordUpload((result != null) ? result.bytesSent() : 0, request.reportCount,
+                request.durationMs, (result != null) ? result.httpResponse() : 0);
+
+        if (result != null) {
+            mLink.onResponse(result.bytesSent(), request.durationMs);
+        } else {
+            mLink.onNoResponse();
+        }
+        final boolean tooLarge = result != null && result.httpResponse() == HttpURLConnection.HTTP_ENTITY_TOO_LARGE;
+        if (tooLarge) {
+            mLink.onTooLarge(request.payload.bytes);
+        }
+        followLink(plan);
+
+        if (result != null && result.isSuccessCode2XX()) {
+            mBytesSent += result.bytesSent();
+
+            String logMsg =  "MLS Submit: [HTTP Status:" + result.httpResponse() + "], [Bytes Sent:" + result.bytesSent() + "]";
+            AppGlobals.guiLogInfo(logMsg, "#FFFFCC", true, false);
+
+            for (String name : plan.succeeded(request.payload)) {
+                mStorage.delete(name);
+            }
+
+            mReportsSent += request.reportCount;
+            mWifisSent += request.wifiCount;
+            mCellsSent += request.cellCount;
+            mBackoff.onSuccess();
+            return;
+        }
+
+        String logMsg = "HTTP error unknown";
+        if (result != null) {
+            logMsg = "HTTP non-success code: " + result.httpResponse();
+        }
+
+        if (tooLarge && plan.retrySmaller(request.payload)) {
+            logMsg += ", too large, retrying in smaller payloads";
+        } else if (tooLarge) {
+            // A single report, nothing wrong with it but its size, so it isn't dropped. Not a server
+            // failure either, so no backoff; the link estimate has shrunk the next payloads.
+            logMsg += ", too large as a single report, keeping it queued";
+            plan.failed(request.payload);
+            mStorage.saveCurrentReportsSendBufferToDisk();
+        } else if (result != null && result.isErrorCode400BadRequest()) {
+            if (plan.retrySeparately(request.payload)) {
+                // One bad batch shouldn't take the others down with it
+                logMsg += ", 400 Error, retrying batches separately";
+            } else {
+                final List<String> bad = plan.rejected(request.payload);
+                if (bad.isEmpty()) {
+                    logMsg += ", 400 Error on part of a batch, keeping the batch";
+                    mStorage.saveCurrentReportsSendBufferToDisk();
+                } else {
+                    logMsg += ", 400 Error, deleting bad report";
+                    if (AppGlobals.guiLogMessageBuffer != null && request.body != null) { // if true, this is a GUI app
+                        String unzipped = Zipper.unzipData(request.body);
+                        AppGlobals.guiLogInfo(unzipped, "red", false, true);
+                    }
+                    for (String name : bad) {
+                        mStorage.delete(name);
+                    }
+                }
+            }
+        } else {
+            plan.failed(request.payload);
+            mStorage.saveCurrentReportsSendBufferToDisk();
+
+            final long now = System.currentTimeMillis();
+            final long retryAfterMs = (result != null) ?
+                    UploadBackoff.parseRetryAfter(result.getFirstHeader("Retry-After"), now) : -1;
+            final long waitMs = mBackoff.onFailure(now, retryAfterMs);
+            if (waitMs == UploadBackoff.STOP) {
+                mStopped = true;
+                logMsg += ", " + mBackoff.getConsecutiveFailures() + " failures in a row, next upload in " +
+                        (mBackoff.getNextAttemptTime() - now) / 1000 + " s";
+            } else {
+                mResumeAt = Math.max(mResumeAt, SystemClock.elapsedRealtime() + waitMs);
+            }
+        }
+        AppGlobals.guiLogError(logMsg);
+    }
+
+    void setSpoolPayloadBytes(long bytes) {
+        mSpoolPayloadBytes = bytes;
+    }
+
+    long getBytesSent() {
+        return mBytesSent;
+    }
+
+    long getReportsSent() {
+        return mReportsSent;
+    }
+
+    long getWifisSent() {
+        return mWifisSent;
+    }
+
+    long getCellsSent() {
+        return mCellsSent;
+    }
+}
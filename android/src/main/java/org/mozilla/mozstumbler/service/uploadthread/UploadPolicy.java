@@ -0,0 +1,90 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.mozstumbler.service.uploadthread;
+
+/* Decides when what is queued goes up, from the queue, the connection, the power and the server.
+ *
+ * Nothing is scheduled without reports, without a connection, or on a metered connection with the
+ * wifi-only pref: there is no point waking up for that, a connectivity or power event brings the
+ * decision back (UploadScheduler). Otherwise the queue goes up once it is worth a pass:
+ *  - unmetered: when UNMETERED_MIN_BYTES are queued, the oldest report is UNMETERED_MAX_AGE_MS
+ *    old, or the device is charging;
+ *  - metered: when METERED_MIN_BYTES are queued or the oldest report is METERED_MAX_AGE_MS old;
+ *  - either way, right away when the session was flushed (scanning stopped);
+ * and never before the server's backoff allows (UploadBackoff), nor within MIN_INTERVAL_MS of the
+ * previous pass unless flushed.
+ */
+public final class UploadPolicy {
+    // No time is set, wait for an event
+    public static final long NOT_SCHEDULED = -1;
+
+    static final long MIN_INTERVAL_MS = 1000 * 60 * 5;
+    static final long UNMETERED_MIN_BYTES = 32 * 1024;
+    static final long UNMETERED_MAX_AGE_MS = 1000 * 60 * 30;
+    static final long METERED_MIN_BYTES = 128 * 1024;
+    static final long METERED_MAX_AGE_MS = 1000 * 60 * 60 * 6;
+
+    public static final class Conditions {
+        final long queuedBytes;
+        // 0 when unknown, e.g. the reports are all in memory still
+        final long oldestReportTime;
+        final boolean connected;
+        final boolean unmetered;
+        final boolean charging;
+        final boolean wifiOnly;
+        // The server's backoff, 0 for none
+        final long notBefore;
+        // 0 for none
+        final long lastPassTime;
+        // Send what there is, e.g. scanning was stopped
+        final boolean flush;
+
+        public Conditions(long queuedBytes,
+                          long oldestReportTime,
+                          boolean connected,
+                          boolean unmetered,
+                          boolean charging,
+                          boolean wifiOnly,
+                          long notBefore,
+                          long lastPassTime,
+                          boolean flush) {
+            this.queuedBytes = queuedBytes;
+            this.oldestReportTime = oldestReportTime;
+            this.connected = connected;
+            this.unmetered = unmetered;
+            this.charging = charging;
+            this.wifiOnly = wifiOnly;
+            this.notBefore = notBefore;
+            this.lastPassTime = lastPassTime;
+            this.flush = flush;
+        }
+    }
+
+    private UploadPolicy() {}
+
+    /* ms until the next pass, 0 for now, or NOT_SCHEDULED */
+    public static long getDelayMs(Conditions c, long now) {
+        if (c.queuedBytes <= 0 || !c.connected || (c.wifiOnly && !c.unmetered)) {
+            return NOT_SCHEDULED;
+        }
+
+        final long oldest = (c.oldestReportTime > 0 && c.oldestReportTime <= now) ? c.oldestReportTime : now;
+        long due;
+        if (c.flush) {
+            due = now;
+        } else if (c.unmetered) {
+            due = (c.charging || c.queuedBytes >= UNMETERED_MIN_BYTES) ? now : oldest + UNMETERED_MAX_AGE_MS;
+        } else {
+            due = (c.queuedBytes >= METERED_MIN_BYTES) ? now : oldest + METERED_MAX_AGE_MS;
+        }
+
+        due = Math.max(due, c.notBefore);
+        // A previous pass in the future means the clock was set back
+        if (!c.flush && c.lastPassTime > 0 && c.lastPassTime <= now) {
+            due = Math.max(due, c.lastPassTime + MIN_INTERVAL_MS);
+        }
+        return Math.max(due - now, 0);
+    }
+}
@@ -0,0 +1,201 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.mozstumbler.service.uploadthread;
+
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.PackageManager;
+import android.os.BatteryManager;
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.mozilla.mozstumbler.service.AppGlobals;
+import org.mozilla.mozstumbler.service.Prefs;
+import org.mozilla.mozstumbler.service.stumblerthread.datahandling.DataStorageManager;
+import org.mozilla.mozstumbler.service.stumblerthread.datahandling.SyncStats;
+import org.mozilla.mozstumbler.service.utils.NetworkInfo;
+
+/* Starts the upload passes when UploadPolicy says, rather than on a fixed interval.
+ *
+ * Whatever may make an upload worth it (reports queued, scanning stopped) calls requestUpload(),
+ * and UploadConditionsReceiver calls onConditionsChanged() when the connection or the power changes.
+ * Those only set the one alarm (UploadAlarmReceiver) for COALESCE_MS later, so triggers close
+ * together make one pass. When the alarm goes off, check() asks the policy, and either starts a pass,
+ * or sets the alarm for when the policy says, or, if there is no point until the connection or the
+ * power changes, sets none and leaves it to UploadConditionsReceiver. That receiver is only enabled
+ * while reports are queued, so the app isn't woken on every network change for nothing. The alarms
+ * don't wake the device up, they go off when it is awake anyway.
+ *
+ * What the policy decided holds until a flush or a condition change: a plain requestUpload(), as
+ * on every insert, doesn't bring its alarm forward, nor set one while it waits for a condition.
+ * Otherwise the reports coming in would have the policy asked again every COALESCE_MS.
+ *
+ * uploadNow() is for the user asking: a pass right away, whatever the policy, on any connection.
+ * With a pass running already, any other pass asked for is that one (AsyncUploader.isUploading).
+ *
+ * Threading: requestUpload(), onConditionsChanged() and uploadNow() from any thread, check() on the
+ * UploadAlarmService thread.
+ */
+public final class UploadScheduler {
+    private static final String LOG_TAG = AppGlobals.makeLogTag(UploadScheduler.class.getSimpleName());
+
+    // Triggers this close together make one pass
+    static final long COALESCE_MS = 10 * 1000;
+
+    // SystemClock.elapsedRealtime() of the alarm set, 0 for none
+    private static long sAlarmAt;
+    // check() left it to a condition change, with reports queued
+    private static boolean sWaitingForConditions;
+    private static boolean sFlushRequested;
+    private static long sLastPassTime;
+    // What was last set, null if unknown
+    private static Boolean sReceiverEnabled;
+
+    private UploadScheduler() {}
+
+    /* Decides shortly, unless a decision is pending already. flush: send what is queued without
+     * waiting for more, as when scanning stops, that decides again shortly in any case. */
+    public static synchronized void requestUpload(Context c, boolean flush) {
+        sFlushRequested |= flush;
+        if (!flush && (sAlarmAt > 0 || sWaitingForConditions)) {
+            return;
+        }
+        decideSoon(c);
+    }
+
+    /* The connection or the power changed, what the policy decided on may not hold any more */
+    public static synchronized void onConditionsChanged(Context c) {
+        decideSoon(c);
+    }
+
+    private static void decideSoon(Context c) {
+        sWaitingForConditions = false;
+        final long at = SystemClock.elapsedRealtime() + COALESCE_MS;
+        if (sAlarmAt > 0 && sAlarmAt <= at) {
+            return;
+        }
+        setAlarm(c, at);
+    }
+
+    public static void uploadNow(Context c) {
+        startPass(false /* useWifiOnly */, true /* ignoreBackoff */);
+    }
+
+    /* Nothing is queued */
+    public static synchronized void cancel(Context c) {
+        Log.d(LOG_TAG, "cancel");
+        sAlarmAt = 0;
+        sWaitingForConditions = false;
+        sFlushRequested = false;
+        getAlarmManager(c).cancel(createAlarmIntent(c));
+        setConditionsReceiverEnabled(c, false);
+    }
+
+    static synchronized void check(Context c) {
+        sAlarmAt = 0;
+        sWaitingForConditions = false;
+        final boolean flush = sFlushRequested;
+        sFlushRequested = false;
+
+        final DataStorageManager dm = DataStorageManager.getInstance();
+        // Defensive approach: if it is too old, delete the data
+        if (dm.deleteExpired()) {
+            cancel(c);
+            return;
+        }
+
+        final long now = System.currentTimeMillis();
+        final SyncStats stats = dm.getSyncStats();
+        final UploadBackoff backoff = new UploadBackoff(stats.getUploadFailures(), stats.getNextUploadAttemptTime());
+        final NetworkInfo network = NetworkInfo.getInstance();
+        final UploadPolicy.Conditions conditions = new UploadPolicy.Conditions(
+                dm.getQueuedBytes(),
+                dm.getOldestBatchTimeMs(),
+                network.isConnected(),
+                network.isUnmetered(),
+                isCharging(c),
+                Prefs.getInstance().getUseWifiOnly(),
+                backoff.canAttempt(now) ? 0 : backoff.getNextAttemptTime(),
+                sLastPassTime,
+                flush);
+        final long delayMs = UploadPolicy.getDelayMs(conditions, now);
+        if (AppGlobals.isDebug) {
+            Log.d(LOG_TAG, "check: " + conditions.queuedBytes + " bytes queued, next pass in " + delayMs + " ms");
+        }
+
+        setConditionsReceiverEnabled(c, conditions.queuedBytes > 0);
+        if (delayMs == UploadPolicy.NOT_SCHEDULED) {
+            sWaitingForConditions = conditions.queuedBytes > 0;
+            getAlarmManager(c).cancel(createAlarmIntent(c));
+            return;
+        }
+        if (delayMs > 0) {
+            setAlarm(c, SystemClock.elapsedRealtime() + delayMs);
+            return;
+        }
+
+        sLastPassTime = now;
+        startPass(Prefs.getInstance().getUseWifiOnly(), false);
+        // Whatever the pass leaves, e.g. if it failed, is for the next check
+        setAlarm(c, SystemClock.elapsedRealtime() + UploadPolicy.MIN_INTERVAL_MS);
+    }
+
+    private static void startPass(boolean useWifiOnly, boolean ignoreBackoff) {
+        Log.d(LOG_TAG, "startPass, call AsyncUploader");
+        AsyncUploader uploader = new AsyncUploader();
+        AsyncUploadParam param = new AsyncUploadParam(
+                useWifiOnly,
+                Prefs.getInstance().getNickname(),
+                Prefs.getInstance().getEmail(),
+                Prefs.getInstance().getUploadPayloadBytes(),
+                Prefs.getInstance().getUploadMaxInFlight(),
+                ignoreBackoff);
+        uploader.execute(param);
+    }
+
+    private static boolean isCharging(Context c) {
+        // Sticky, nothing is actually registered
+        final Intent battery = c.registerReceiver(null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+        return battery != null && battery.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0;
+    }
+
+    private static void setAlarm(Context c, long elapsedRealtimeMs) {
+        Log.d(LOG_TAG, "set alarm in (ms): " + (elapsedRealtimeMs - SystemClock.elapsedRealtime()));
+        sAlarmAt = elapsedRealtimeMs;
+        // Replaces the one set before, if any
+        getAlarmManager(c).set(AlarmManager.ELAPSED_REALTIME, elapsedRealtimeMs, createAlarmIntent(c));
+    }
+
+    private static AlarmManager getAlarmManager(Context c) {
+        return (AlarmManager) c.getSystemService(Context.ALARM_SERVICE);
+    }
+
+    private static PendingIntent createAlarmIntent(Context c) {
+        return PendingIntent.getBroadcast(c, 0, new Intent(c, UploadAlarmReceiver.class), 0);
+    }
+
+    private static void setConditionsReceiverEnabled(Context c, boolean enabled) {
+        if (sReceiverEnabled != null && sReceiverEnabled == enabled) {
+            return;
+        }
+        sReceiverEnabled = enabled;
+        final ComponentName receiver = new ComponentName(c, UploadConditionsReceiver.class);
+        try {
+            c.getPackageManager().setComponentEnabledSetting(receiver,
+                    enabled ? PackageManager.COMPONENT_ENABLED_STATE_ENABLED :
+                              PackageManager.COMPONENT_ENABLED_STATE_DISABLED,
+                    PackageManager.DONT_KILL_APP);
+        } catch (IllegalArgumentException ex) {
+            // Not in the manifest, as when embedded in Fennec: only the alarms and the start intent trigger uploads
+            if (AppGlobals.isDebug) {
+                Log.d(LOG_TAG, "No UploadConditionsReceiver: " + ex);
+            }
+        }
+    }
+}
@@ -0,0 +1,153 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.mozstumbler.service.utils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/* How stored data is compressed: a header that tags the codec, a raw deflate stream, and a
+ * trailer with the CRC32 and length of the uncompressed data, as in gzip.
+ *
+ * GzipCodec is plain gzip, what the upload body has to be. DictionaryCodec primes the deflater
+ * with a preset dictionary, which small batches gain from, but needs the same dictionary to read
+ * the data back, so it is only for data that stays on the device.
+ *
+ * decompress() picks the codec from the header, so data written with any codec stays readable
+ * whichever one is used for writing.
+ */
+public abstract class CompressionCodec {
+    public static final int TRAILER_SIZE = 8;
+
+    private final int mLevel;
+
+    protected CompressionCodec(int level) {
+        mLevel = level;
+    }
+
+    /* Deflater.DEFAULT_COMPRESSION, or 1 (fastest) to 9 (smallest) */
+    public int getLevel() {
+        return mLevel;
+    }
+
+    /* Written before the deflate stream, identifies the codec */
+    public abstract byte[] getHeader();
+
+    /* null if there is none */
+    protected byte[] getDictionary() {
+        return null;
+    }
+
+    /* A raw deflater at this codec's level, ready for the data after the header */
+    public Deflater createDeflater() {
+        final Deflater deflater = new Deflater(mLevel, true /* raw, the codec writes the framing */);
+        prime(deflater);
+        return deflater;
+    }
+
+    /* Deflater.reset() also drops the dictionary, use this to start the next stream */
+    public void reset(Deflater deflater) {
+        deflater.reset();
+        prime(deflater);
+    }
+
+    private void prime(Deflater deflater) {
+        final byte[] dictionary = getDictionary();
+        if (dictionary != null) {
+            deflater.setDictionary(dictionary);
+        }
+    }
+
+    public static int putTrailer(byte[] dest, int offset, int crc, int uncompressedSize) {
+        offset = putIntLE(dest, offset, crc);
+        return putIntLE(dest, offset, uncompressedSize);
+    }
+
+    public byte[] compress(byte[] data) {
+        final Deflater deflater = createDeflater();
+        try {
+            final byte[] header = getHeader();
+            final ByteArrayOutputStream out = new ByteArrayOutputStream(header.length + data.length / 2 + TRAILER_SIZE);
+            out.write(header, 0, header.length);
+
+            deflater.setInput(data);
+            deflater.finish();
+            final byte[] chunk = new byte[2048];
+            while (!deflater.finished()) {
+                final int count = deflater.deflate(chunk);
+                out.write(chunk, 0, count);
+            }
+
+            final CRC32 crc = new CRC32();
+            crc.update(data);
+            final byte[] trailer = new byte[TRAILER_SIZE];
+            putTrailer(trailer, 0, (int) crc.getValue(), data.length);
+            out.write(trailer, 0, TRAILER_SIZE);
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /* The uncompressed data, whichever codec wrote it */
+    public static InputStream decompress(byte[] data) throws IOException {
+        if (GzipCodec.isGzip(data)) {
+            return GzipCodec.decompressGzip(data);
+        }
+        if (DictionaryCodec.isDictionaryCodec(data)) {
+            return DictionaryCodec.decompressDictionary(data);
+        }
+        throw new IOException("Unknown compression, header: " +
+                ((data.length > 0) ? Integer.toHexString(data[0] & 0xff) : "empty"));
+    }
+
+    public static byte[] decompressToBytes(byte[] data) throws IOException {
+        final InputStream in = decompress(data);
+        try {
+            final ByteArrayOutputStream out = new ByteArrayOutputStream(data.length * 4);
+            final byte[] chunk = new byte[4096];
+            int count;
+            while ((count = in.read(chunk)) > 0) {
+                out.write(chunk, 0, count);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+
+    static boolean startsWith(byte[] data, byte[] prefix) {
+        if (data.length < prefix.length + TRAILER_SIZE) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (data[i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // The trailer is left in, a raw inflater may need a byte past the end of the stream
+    static InputStream body(byte[] data, int headerLength) {
+        return new ByteArrayInputStream(data, headerLength, data.length - headerLength);
+    }
+
+    static int getIntLE(byte[] src, int offset) {
+        return (src[offset] & 0xff) | (src[offset + 1] & 0xff) << 8 |
+               (src[offset + 2] & 0xff) << 16 | (src[offset + 3] & 0xff) << 24;
+    }
+
+    private static int putIntLE(byte[] dest, int offset, int value) {
+        dest[offset++] = (byte) value;
+        dest[offset++] = (byte) (value >>> 8);
+        dest[offset++] = (byte) (value >>> 16);
+        dest[offset++] = (byte) (value >>> 24);
+        return offset;
+    }
+}
@@ -0,0 +1,154 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.mozstumbler.service.utils;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/* Raw deflate primed with a preset dictionary. Header: 'M' 'S' 'Z' <dictionary version>.
+ *
+ * The dictionary is for the packed batches of PackedReportWriter, which is what gets stored.
+ * Most of a packed report is coordinates, times and BSSIDs that no dictionary can predict,
+ * what repeats across batches is the batch header and the frequency and signal after each BSSID.
+ * A small batch (flushed after a few minutes) can't have learned those yet, a full one has.
+ * CompressionCodecTest has the benchmark: about 2% smaller for a 5 report batch, under 1% for 50.
+ *
+ * A dictionary can never change once data has been written with it, a new one gets a new version.
+ */
+public final class DictionaryCodec extends CompressionCodec {
+    public static final DictionaryCodec DEFAULT = new DictionaryCodec(Deflater.DEFAULT_COMPRESSION);
+
+    private static final byte[] MAGIC = { 'M', 'S', 'Z' };
+    private static final int DICTIONARY_VERSION = 1;
+    private static final int HEADER_SIZE = MAGIC.length + 1;
+
+    private static byte[] sDictionary;
+
+    public DictionaryCodec(int level) {
+        super(level);
+    }
+
+    @Override
+    public byte[] getHeader() {
+        final byte[] header = new byte[HEADER_SIZE];
+        System.arraycopy(MAGIC, 0, header, 0, MAGIC.length);
+        header[MAGIC.length] = DICTIONARY_VERSION;
+        return header;
+    }
+
+    @Override
+    protected byte[] getDictionary() {
+        return getDictionary(DICTIONARY_VERSION);
+    }
+
+    public static boolean isDictionaryCodec(byte[] data) {
+        return startsWith(data, MAGIC);
+    }
+
+    static InputStream decompressDictionary(byte[] data) throws IOException {
+        final int version = data[MAGIC.length];
+        final byte[] dictionary = getDictionary(version);
+        if (dictionary == null) {
+            throw new IOException("Unknown compression dictionary: " + version);
+        }
+        final Inflater inflater = new Inflater(true);
+        inflater.setDictionary(dictionary);
+        final InputStream inflated = new InflaterInputStream(body(data, HEADER_SIZE), inflater) {
+            @Override
+            public void close() throws IOException {
+                super.close();
+                inflater.end();
+            }
+        };
+        return new VerifyingInputStream(inflated,
+                getIntLE(data, data.length - TRAILER_SIZE), getIntLE(data, data.length - TRAILER_SIZE + 4));
+    }
+
+    private static synchronized byte[] getDictionary(int version) {
+        if (version != DICTIONARY_VERSION) {
+            return null;
+        }
+        if (sDictionary == null) {
+            sDictionary = buildDictionaryV1();
+        }
+        return sDictionary;
+    }
+
+    /* The packed batch header, then a wifi's frequency (varint) and signal (zigzag) for the
+     * common channels and signals. Most common last, deflate codes near matches in fewer bits. */
+    private static byte[] buildDictionaryV1() {
+        final int[] frequencies = { 5180, 5200, 5220, 5240, 5745, 5765, 5785, 5805, 2412, 2437, 2462 };
+        final int minSignal = -95;
+        final int maxSignal = -40;
+        final byte[] dictionary = new byte[4 + frequencies.length * (maxSignal - minSignal + 1) * 3];
+        int i = 0;
+        dictionary[i++] = 'M';
+        dictionary[i++] = 'S';
+        dictionary[i++] = 'P';
+        dictionary[i++] = 1;
+        for (int frequency : frequencies) {
+            for (int signal = minSignal; signal <= maxSignal; signal++) {
+                dictionary[i++] = (byte) ((frequency & 0x7f) | 0x80);
+                dictionary[i++] = (byte) (frequency >>> 7);
+                dictionary[i++] = (byte) ((signal << 1) ^ (signal >> 31));
+            }
+        }
+        return dictionary;
+    }
+
+    /* Checks the trailer once the data has all been read */
+    private static final class VerifyingInputStream extends FilterInputStream {
+        private final CRC32 mCrc = new CRC32();
+        private final int mExpectedCrc;
+        private final int mExpectedSize;
+        private int mSize;
+
+        VerifyingInputStream(InputStream in, int expectedCrc, int expectedSize) {
+            super(in);
+            mExpectedCrc = expectedCrc;
+            mExpectedSize = expectedSize;
+        }
+
+        @Override
+        public int read() throws IOException {
+            final int b = super.read();
+            if (b < 0) {
+                verify();
+            } else {
+                mCrc.update(b);
+                mSize++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            final int n = super.read(buffer, offset, count);
+            if (n < 0) {
+                verify();
+            } else {
+                mCrc.update(buffer, offset, n);
+                mSize += n;
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long count) throws IOException {
+            throw new IOException("skip() not supported");
+        }
+
+        private void verify() throws IOException {
+            if ((int) mCrc.getValue() != mExpectedCrc || mSize != mExpectedSize) {
+                throw new IOException("Corrupt compressed data, checksum mismatch");
+            }
+        }
+    }
+}
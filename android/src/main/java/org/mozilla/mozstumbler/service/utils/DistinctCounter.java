@@ -0,0 +1,19 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.mozstumbler.service.utils;
+
+/* Counts distinct long keys (BSSIDs, cell keys). Either exactly (LongHashSet), or
+ * approximately in fixed memory (HyperLogLog). */
+public interface DistinctCounter {
+    /* false if the key certainly was already counted */
+    boolean add(long key);
+
+    /* Adds all the keys of the map */
+    void addAll(LongObjectHashMap<?> map);
+
+    int count();
+
+    void clear();
+}
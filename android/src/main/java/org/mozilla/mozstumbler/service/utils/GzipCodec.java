@@ -0,0 +1,39 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.mozstumbler.service.utils;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+
+/* Standard gzip, as GZIPOutputStream writes it. What /v1/submit takes, and what batches
+ * were stored as before there were codecs. */
+public final class GzipCodec extends CompressionCodec {
+    public static final GzipCodec DEFAULT = new GzipCodec(Deflater.DEFAULT_COMPRESSION);
+
+    // magic, deflate, no flags, no time, no extra flags, unknown OS
+    private static final byte[] HEADER = { 0x1f, (byte) 0x8b, 8, 0, 0, 0, 0, 0, 0, (byte) 0xff };
+    private static final byte[] MAGIC = { 0x1f, (byte) 0x8b };
+
+    public GzipCodec(int level) {
+        super(level);
+    }
+
+    @Override
+    public byte[] getHeader() {
+        return HEADER.clone();
+    }
+
+    public static boolean isGzip(byte[] data) {
+        return startsWith(data, MAGIC);
+    }
+
+    // The header can have optional fields when written by something else, GZIPInputStream knows them
+    static InputStream decompressGzip(byte[] data) throws IOException {
+        return new GZIPInputStream(new ByteArrayInputStream(data));
+    }
+}
@@ -0,0 +1,151 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.mozstumbler.service.utils;
+
+import java.util.Arrays;
+
+/* Approximate distinct count in fixed memory (Flajolet et al., HyperLogLog).
+ *
+ * Each key is hashed to 64 bits. The top `precision` bits pick one of 2^precision byte
+ * registers, which keeps the longest run of leading zeros seen in the remaining bits.
+ * The count is estimated from the harmonic mean of the registers, with linear counting
+ * for small cardinalities, where it is close to exact.
+ *
+ * The typical relative error is 1.04 / sqrt(2^precision): 1 KB of registers gives ~3.3%,
+ * 16 KB gives ~0.8%, however many keys are added.
+ *
+ * Not thread-safe.
+ */
+public class HyperLogLog implements DistinctCounter {
+    public static final int MIN_PRECISION = 4;
+    public static final int MAX_PRECISION = 16;
+
+    private final int mPrecision;
+    private final byte[] mRegisters;
+
+    // count() is polled by the UI, only recompute it after a register changed
+    private int mCachedCount;
+    private boolean mIsCountValid = true;
+
+    public HyperLogLog(int precision) {
+        if (precision < MIN_PRECISION || precision > MAX_PRECISION) {
+            throw new IllegalArgumentException("precision out of range: " + precision);
+        }
+        mPrecision = precision;
+        mRegisters = new byte[1 << precision];
+    }
+
+    /* Smallest sketch whose typical relative error is at most relativeError (0.02 is 2%) */
+    public static HyperLogLog forRelativeError(double relativeError) {
+        int precision = MIN_PRECISION;
+        while (precision < MAX_PRECISION && relativeErrorFor(precision) > relativeError) {
+            precision++;
+        }
+        return new HyperLogLog(precision);
+    }
+
+    public static double relativeErrorFor(int precision) {
+        return 1.04 / Math.sqrt(1 << precision);
+    }
+
+    public double getRelativeError() {
+        return relativeErrorFor(mPrecision);
+    }
+
+    public int getPrecision() {
+        return mPrecision;
+    }
+
+    /* The whole state, it doesn't grow with the number of keys */
+    public int getSizeInBytes() {
+        return mRegisters.length;
+    }
+
+    @Override
+    public boolean add(long key) {
+        final long hash = mix(key);
+        final int index = (int) (hash >>> (64 - mPrecision));
+        // The guard bit caps the rank when all the remaining bits are zero
+        final long rest = (hash << mPrecision) | (1L << (mPrecision - 1));
+        final byte rank = (byte) (Long.numberOfLeadingZeros(rest) + 1);
+        if (rank <= mRegisters[index]) {
+            return false;
+        }
+        mRegisters[index] = rank;
+        mIsCountValid = false;
+        return true;
+    }
+
+    @Override
+    public void addAll(LongObjectHashMap<?> map) {
+        if (map.mHasZeroKey) {
+            add(0);
+        }
+        for (long key : map.mKeys) {
+            if (key != 0) {
+                add(key);
+            }
+        }
+    }
+
+    @Override
+    public int count() {
+        if (!mIsCountValid) {
+            mCachedCount = (int) Math.min(Math.round(estimate()), Integer.MAX_VALUE);
+            mIsCountValid = true;
+        }
+        return mCachedCount;
+    }
+
+    @Override
+    public void clear() {
+        Arrays.fill(mRegisters, (byte) 0);
+        mCachedCount = 0;
+        mIsCountValid = true;
+    }
+
+    private double estimate() {
+        final int m = mRegisters.length;
+        double sum = 0;
+        int zeros = 0;
+        for (byte register : mRegisters) {
+            // 2^-register, registers are at most 64 - precision + 1
+            sum += 1.0 / (1L << register);
+            if (register == 0) {
+                zeros++;
+            }
+        }
+
+        final double estimate = alpha(m) * m * m / sum;
+        if (estimate <= 2.5 * m && zeros > 0) {
+            return m * Math.log((double) m / zeros);
+        }
+        // With 64-bit hashes there is no large range correction to make
+        return estimate;
+    }
+
+    private static double alpha(int m) {
+        switch (m) {
+            case 16:
+                return 0.673;
+            case 32:
+                return 0.697;
+            case 64:
+                return 0.709;
+            default:
+                return 0.7213 / (1 + 1.079 / m);
+        }
+    }
+
+    /* Unlike LongHashSet.hash(), all 64 bits need to be well spread here (murmur3 fmix64) */
+    static long mix(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return key;
+    }
+}
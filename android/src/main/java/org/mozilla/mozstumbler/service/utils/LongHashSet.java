@@ -0,0 +1,145 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.mozstumbler.service.utils;
+
+import java.util.Arrays;
+
+/* A set of primitive longs using open addressing (linear probing) in a single long[].
+ * Costs 8-16 bytes per entry, where a HashSet<String> of BSSIDs costs well over 100.
+ *
+ * Key 0 is used to mark empty slots, so it is tracked with a flag.
+ * There is no remove(), the stumbler only ever adds to these sets and clears them.
+ *
+ * Not thread-safe.
+ */
+public class LongHashSet implements DistinctCounter {
+    private static final int MIN_CAPACITY = 8;
+    private static final float LOAD_FACTOR = 0.75f;
+
+    private long[] mKeys;
+    private boolean mHasZero;
+    private int mSize;
+    private int mResizeAt;
+
+    public LongHashSet() {
+        this(MIN_CAPACITY);
+    }
+
+    public LongHashSet(int expectedSize) {
+        allocate(capacityFor(expectedSize));
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    @Override
+    public int count() {
+        return mSize;
+    }
+
+    public boolean isEmpty() {
+        return mSize == 0;
+    }
+
+    public boolean contains(long key) {
+        if (key == 0) {
+            return mHasZero;
+        }
+        return mKeys[slot(key)] == key;
+    }
+
+    /* true if the key was not already in the set */
+    @Override
+    public boolean add(long key) {
+        if (key == 0) {
+            if (mHasZero) {
+                return false;
+            }
+            mHasZero = true;
+            mSize++;
+            return true;
+        }
+
+        final int slot = slot(key);
+        if (mKeys[slot] == key) {
+            return false;
+        }
+
+        mKeys[slot] = key;
+        if (++mSize > mResizeAt) {
+            rehash(mKeys.length * 2);
+        }
+        return true;
+    }
+
+    /* Adds all the keys of the map */
+    @Override
+    public void addAll(LongObjectHashMap<?> map) {
+        if (map.mHasZeroKey) {
+            add(0);
+        }
+        for (long key : map.mKeys) {
+            if (key != 0) {
+                add(key);
+            }
+        }
+    }
+
+    @Override
+    public void clear() {
+        Arrays.fill(mKeys, 0);
+        mHasZero = false;
+        mSize = 0;
+    }
+
+    private int slot(long key) {
+        final int mask = mKeys.length - 1;
+        int slot = hash(key) & mask;
+        while (mKeys[slot] != 0 && mKeys[slot] != key) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private void allocate(int capacity) {
+        mKeys = new long[capacity];
+        mResizeAt = resizeThreshold(capacity);
+    }
+
+    private void rehash(int capacity) {
+        final long[] oldKeys = mKeys;
+        allocate(capacity);
+        for (long key : oldKeys) {
+            if (key != 0) {
+                mKeys[slot(key)] = key;
+            }
+        }
+    }
+
+    // Shared with LongObjectHashMap
+
+    /* Spreads the bits of the key. BSSIDs from one vendor share their top 24 bits, and
+     * sequential ones differ only in the last few, so the raw value hashes badly. */
+    static int hash(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        return (int) key;
+    }
+
+    /* Power of two table size that holds expectedSize entries without resizing */
+    static int capacityFor(int expectedSize) {
+        int capacity = MIN_CAPACITY;
+        while (resizeThreshold(capacity) < expectedSize) {
+            capacity <<= 1;
+        }
+        return capacity;
+    }
+
+    static int resizeThreshold(int capacity) {
+        return (int) (capacity * LOAD_FACTOR);
+    }
+}
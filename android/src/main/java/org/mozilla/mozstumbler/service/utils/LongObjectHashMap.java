@@ -0,0 +1,180 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.mozstumbler.service.utils;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/* A map from primitive long keys to objects, using open addressing (linear probing)
+ * in parallel key/value arrays. No boxing and no per-entry objects, unlike HashMap<Long, V>.
+ *
+ * Key 0 is used to mark empty slots in the key array, so a 0 key is stored on the side.
+ * There is no remove(), the stumbler only ever adds to these maps and clears them.
+ *
+ * Not thread-safe.
+ */
+public class LongObjectHashMap<V> {
+    private static final int MIN_CAPACITY = 8;
+
+    long[] mKeys;
+    Object[] mValues;
+    boolean mHasZeroKey;
+    Object mZeroValue;
+    private int mSize;
+    private int mResizeAt;
+
+    public LongObjectHashMap() {
+        this(MIN_CAPACITY);
+    }
+
+    public LongObjectHashMap(int expectedSize) {
+        allocate(LongHashSet.capacityFor(expectedSize));
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    public boolean isEmpty() {
+        return mSize == 0;
+    }
+
+    public boolean containsKey(long key) {
+        if (key == 0) {
+            return mHasZeroKey;
+        }
+        return mKeys[slot(key)] == key;
+    }
+
+    @SuppressWarnings("unchecked")
+    public V get(long key) {
+        if (key == 0) {
+            return (V) mZeroValue;
+        }
+        final int slot = slot(key);
+        return (mKeys[slot] == key) ? (V) mValues[slot] : null;
+    }
+
+    /* Returns the previous value for the key, or null */
+    @SuppressWarnings("unchecked")
+    public V put(long key, V value) {
+        if (key == 0) {
+            final Object previous = mZeroValue;
+            if (!mHasZeroKey) {
+                mHasZeroKey = true;
+                mSize++;
+            }
+            mZeroValue = value;
+            return (V) previous;
+        }
+
+        final int slot = slot(key);
+        if (mKeys[slot] == key) {
+            final Object previous = mValues[slot];
+            mValues[slot] = value;
+            return (V) previous;
+        }
+
+        mKeys[slot] = key;
+        mValues[slot] = value;
+        if (++mSize > mResizeAt) {
+            rehash(mKeys.length * 2);
+        }
+        return null;
+    }
+
+    public void clear() {
+        Arrays.fill(mKeys, 0);
+        Arrays.fill(mValues, null);
+        mHasZeroKey = false;
+        mZeroValue = null;
+        mSize = 0;
+    }
+
+    /* Slot cursor, for walking keys and values together without allocating:
+     *   for (int i = map.nextSlot(-1); i >= 0; i = map.nextSlot(i)) { map.keyAt(i); map.valueAt(i); }
+     * The 0 key, if present, comes last. Don't modify the map while iterating. */
+    public int nextSlot(int slot) {
+        for (int i = slot + 1; i < mKeys.length; i++) {
+            if (mKeys[i] != 0) {
+                return i;
+            }
+        }
+        return (mHasZeroKey && slot < mKeys.length) ? mKeys.length : -1;
+    }
+
+    public long keyAt(int slot) {
+        return (slot == mKeys.length) ? 0 : mKeys[slot];
+    }
+
+    @SuppressWarnings("unchecked")
+    public V valueAt(int slot) {
+        return (V) ((slot == mKeys.length) ? mZeroValue : mValues[slot]);
+    }
+
+    /* Iterates the values in no particular order. Don't modify the map while iterating. */
+    public Iterable<V> values() {
+        return new Iterable<V>() {
+            @Override
+            public Iterator<V> iterator() {
+                return new ValueIterator();
+            }
+        };
+    }
+
+    private class ValueIterator implements Iterator<V> {
+        private int mNext = nextSlot(-1);
+
+        @Override
+        public boolean hasNext() {
+            return mNext >= 0;
+        }
+
+        @Override
+        public V next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            final V value = valueAt(mNext);
+            mNext = nextSlot(mNext);
+            return value;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    /* The slot holding key, or the empty slot where it would go */
+    private int slot(long key) {
+        final int mask = mKeys.length - 1;
+        int slot = LongHashSet.hash(key) & mask;
+        while (mKeys[slot] != 0 && mKeys[slot] != key) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private void allocate(int capacity) {
+        mKeys = new long[capacity];
+        mValues = new Object[capacity];
+        mResizeAt = LongHashSet.resizeThreshold(capacity);
+    }
+
+    private void rehash(int capacity) {
+        final long[] oldKeys = mKeys;
+        final Object[] oldValues = mValues;
+        allocate(capacity);
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != 0) {
+                final int slot = slot(oldKeys[i]);
+                mKeys[slot] = oldKeys[i];
+                mValues[slot] = oldValues[i];
+            }
+        }
+    }
+}
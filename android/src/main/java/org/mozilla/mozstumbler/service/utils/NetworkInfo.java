@@ -4,8 +4,10 @@
 
 package org.mozilla.mozstumbler.service.utils;
 
+import android.annotation.TargetApi;
 import android.content.Context;
 import android.net.ConnectivityManager;
+import android.os.Build;
 import android.util.Log;
 
 import org.mozilla.mozstumbler.service.AppGlobals;
@@ -41,4 +43,28 @@ public final class NetworkInfo {
         return (aNet != null && aNet.getType() == ConnectivityManager.TYPE_WIFI);
     }
 
+    public synchronized boolean isConnected() {
+        if (mConnectivityManager == null) {
+            Log.e(LOG_TAG, "ConnectivityManager is null!");
+            return false;
+        }
+
+        android.net.NetworkInfo aNet = mConnectivityManager.getActiveNetworkInfo();
+        return (aNet != null && aNet.isConnected());
+    }
+
+    /* Before API 16 there is no telling, wifi is taken as unmetered and the rest as metered */
+    @TargetApi(16)
+    public synchronized boolean isUnmetered() {
+        if (mConnectivityManager == null) {
+            Log.e(LOG_TAG, "ConnectivityManager is null!");
+            return false;
+        }
+
+        if (Build.VERSION.SDK_INT >= 16) {
+            return !mConnectivityManager.isActiveNetworkMetered();
+        }
+        return isWifiAvailable();
+    }
+
 }
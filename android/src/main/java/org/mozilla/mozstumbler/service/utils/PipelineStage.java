@@ -0,0 +1,222 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.mozstumbler.service.utils;
+
+import org.mozilla.mozstumbler.service.AppGlobals;
+import org.mozilla.mozstumbler.service.core.logging.Log;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/* One stage of a pipeline: a bounded queue, and a worker thread that hands each item to
+ * the Processor, in the order submitted.
+ *
+ * submit() blocks while the queue is full. That is the backpressure, a stalled stage slows
+ * down whoever feeds it rather than growing without limit. The counters record how often
+ * that happened and how deep the queue got. offer() is for a caller that mustn't wait, such
+ * as a Scheduler task: it gives up instead.
+ *
+ * drain() waits until everything submitted so far is processed, shutdown() drains and then
+ * stops the worker. The worker is (re)started by the next submit().
+ * Don't call drain() or shutdown() from the stage's own Processor, it would wait on itself.
+ *
+ * The worker is stopped by queueing STOP behind the last item, never by an interrupt, so it is
+ * never stopped in the middle of process() (e.g. in FileChannel I/O, which an interrupt closes).
+ * STOP is only queued with nothing pending, and a worker started by a later submit() is started
+ * after it is queued: whichever worker takes STOP exits, and items queued behind it are only taken
+ * after that, so there is never more than one worker processing, and the order holds.
+ */
+public final class PipelineStage<T> {
+    private static final String LOG_TAG = AppGlobals.makeLogTag(PipelineStage.class.getSimpleName());
+
+    public interface Processor<T> {
+        void process(T item);
+    }
+
+    private final String mName;
+    // Items and STOP
+    private final BlockingQueue<Object> mQueue;
+    private static final Object STOP = new Object();
+    private final Processor<T> mProcessor;
+
+    // Submitted and not yet processed, guarded by mIdleLock
+    private final Object mIdleLock = new Object();
+    private int mPending;
+
+    private Thread mWorker;
+
+    private final AtomicLong mSubmittedCount = new AtomicLong();
+    private final AtomicLong mBlockedCount = new AtomicLong();
+    private volatile int mMaxQueueDepth;
+
+    public PipelineStage(String name, int capacity, Processor<T> processor) {
+        mName = name;
+        mQueue = new ArrayBlockingQueue<Object>(capacity);
+        mProcessor = processor;
+    }
+
+    public void submit(T item) {
+        synchronized (mIdleLock) {
+            mPending++;
+        }
+        ensureWorker();
+
+        mSubmittedCount.incrementAndGet();
+        enqueue(item);
+
+        final int depth = mQueue.size();
+        if (depth > mMaxQueueDepth) {
+            mMaxQueueDepth = depth;
+        }
+    }
+
+    /* Like submit(), but false, and nothing queued, if the queue is full */
+    public boolean offer(T item) {
+        synchronized (mIdleLock) {
+            mPending++;
+        }
+        ensureWorker();
+
+        if (!mQueue.offer(item)) {
+            synchronized (mIdleLock) {
+                if (--mPending == 0) {
+                    mIdleLock.notifyAll();
+                }
+            }
+            return false;
+        }
+        mSubmittedCount.incrementAndGet();
+
+        final int depth = mQueue.size();
+        if (depth > mMaxQueueDepth) {
+            mMaxQueueDepth = depth;
+        }
+        return true;
+    }
+
+    public void drain() {
+        boolean interrupted = false;
+        synchronized (mIdleLock) {
+            while (mPending > 0) {
+                try {
+                    mIdleLock.wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public void shutdown() {
+        while (true) {
+            drain();
+            synchronized (this) {
+                synchronized (mIdleLock) {
+                    if (mPending > 0) {
+                        // Submitted since, drain that too
+                        continue;
+                    }
+                }
+                if (mWorker != null) {
+                    mWorker = null;
+                    enqueue(STOP);
+                }
+                return;
+            }
+        }
+    }
+
+    public long getSubmittedCount() {
+        return mSubmittedCount.get();
+    }
+
+    /* How many submit() calls found the queue full and had to wait */
+    public long getBlockedCount() {
+        return mBlockedCount.get();
+    }
+
+    public int getMaxQueueDepth() {
+        return mMaxQueueDepth;
+    }
+
+    public int getQueueDepth() {
+        return mQueue.size();
+    }
+
+    @Override
+    public String toString() {
+        return mName + ": submitted " + getSubmittedCount() + ", blocked " + getBlockedCount() +
+                ", max depth " + getMaxQueueDepth();
+    }
+
+    private void enqueue(Object item) {
+        if (mQueue.offer(item)) {
+            return;
+        }
+        mBlockedCount.incrementAndGet();
+        boolean interrupted = false;
+        while (true) {
+            try {
+                mQueue.put(item);
+                break;
+            } catch (InterruptedException e) {
+                // Keep trying, dropping the item here would lose it silently
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private synchronized void ensureWorker() {
+        if (mWorker != null) {
+            return;
+        }
+        mWorker = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                work();
+            }
+        }, "MozStumbler-" + mName);
+        mWorker.setDaemon(true);
+        mWorker.start();
+    }
+
+    @SuppressWarnings("unchecked")
+    private void work() {
+        while (true) {
+            final Object item;
+            try {
+                item = mQueue.take();
+            } catch (InterruptedException e) {
+                // Not how the worker is stopped, see STOP
+                continue;
+            }
+            if (item == STOP) {
+                return;
+            }
+            process((T) item);
+        }
+    }
+
+    private void process(T item) {
+        try {
+            mProcessor.process(item);
+        } catch (RuntimeException e) {
+            Log.e(LOG_TAG, mName + " stage failed", e);
+        } finally {
+            synchronized (mIdleLock) {
+                if (--mPending == 0) {
+                    mIdleLock.notifyAll();
+                }
+            }
+        }
+    }
+}
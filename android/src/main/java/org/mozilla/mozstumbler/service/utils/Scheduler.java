@@ -0,0 +1,166 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.mozstumbler.service.utils;
+
+import org.mozilla.mozstumbler.service.AppGlobals;
+import org.mozilla.mozstumbler.service.core.logging.Log;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/* Delayed and periodic work for the service and the client, on one shared thread instead of
+ * a java.util.Timer (a thread each) per use.
+ *
+ * Tasks share the thread, so they should be short: kick off a scan, post to a Handler, hand
+ * a batch to a PipelineStage. Anything slow or blocking on the network belongs elsewhere.
+ * A task that throws is logged, and a periodic one keeps running, unlike on a Timer where
+ * the exception kills the thread and every task on it.
+ *
+ * For "do this once things have been quiet for a while", use a CoalescingTask: schedule()
+ * only moves its deadline, so calling it on every report costs no thread and no allocation.
+ *
+ * getInstance() is the shared scheduler, setInstance() replaces it (for tests).
+ */
+public final class Scheduler {
+    private static final String LOG_TAG = AppGlobals.makeLogTag(Scheduler.class.getSimpleName());
+
+    private static Scheduler sInstance;
+
+    private final ScheduledExecutorService mExecutor;
+
+    public static synchronized Scheduler getInstance() {
+        if (sInstance == null) {
+            sInstance = new Scheduler();
+        }
+        return sInstance;
+    }
+
+    public static synchronized void setInstance(Scheduler scheduler) {
+        sInstance = scheduler;
+    }
+
+    public Scheduler() {
+        this(createExecutor());
+    }
+
+    public Scheduler(ScheduledExecutorService executor) {
+        mExecutor = executor;
+    }
+
+    private static ScheduledExecutorService createExecutor() {
+        final AtomicInteger count = new AtomicInteger();
+        return new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                final Thread thread = new Thread(runnable, "Scheduler-" + count.incrementAndGet());
+                // Like the Timers this replaces, nothing here should keep the process alive
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    public ScheduledFuture<?> schedule(Runnable task, long delayMs) {
+        return mExecutor.schedule(guard(task), delayMs, TimeUnit.MILLISECONDS);
+    }
+
+    /* Runs every periodMs, measured from the end of the previous run */
+    public ScheduledFuture<?> scheduleWithFixedDelay(Runnable task, long initialDelayMs, long periodMs) {
+        return mExecutor.scheduleWithFixedDelay(guard(task), initialDelayMs, periodMs, TimeUnit.MILLISECONDS);
+    }
+
+    /* Runs every periodMs, measured from the start of the first run */
+    public ScheduledFuture<?> scheduleAtFixedRate(Runnable task, long initialDelayMs, long periodMs) {
+        return mExecutor.scheduleAtFixedRate(guard(task), initialDelayMs, periodMs, TimeUnit.MILLISECONDS);
+    }
+
+    public CoalescingTask createCoalescingTask(Runnable task, long delayMs) {
+        return new CoalescingTask(task, delayMs);
+    }
+
+    /* Stops the thread, queued tasks are dropped. Only for schedulers that aren't shared. */
+    public void shutdown() {
+        mExecutor.shutdownNow();
+    }
+
+    private static Runnable guard(final Runnable task) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    task.run();
+                } catch (RuntimeException ex) {
+                    Log.e(LOG_TAG, "Scheduled task failed", ex);
+                }
+            }
+        };
+    }
+
+    private static long now() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+    }
+
+    /* Runs the task once, delayMs after the latest schedule(); the calls in between coalesce.
+     * At most one wakeup is queued at a time: if it comes early because the deadline moved,
+     * it re-queues itself for the rest. */
+    public final class CoalescingTask {
+        private final Runnable mTask;
+        private final long mDelayMs;
+
+        // Guarded by this. mDeadline is 0 when nothing is scheduled.
+        private long mDeadline;
+        private boolean mWakeupQueued;
+
+        private final Runnable mWakeup = new Runnable() {
+            @Override
+            public void run() {
+                synchronized (CoalescingTask.this) {
+                    mWakeupQueued = false;
+                    if (mDeadline == 0) {
+                        return;
+                    }
+                    final long remaining = mDeadline - now();
+                    if (remaining > 0) {
+                        queueWakeup(remaining);
+                        return;
+                    }
+                    mDeadline = 0;
+                }
+                mTask.run();
+            }
+        };
+
+        private CoalescingTask(Runnable task, long delayMs) {
+            mTask = task;
+            mDelayMs = delayMs;
+        }
+
+        public synchronized void schedule() {
+            // Never 0, that means unscheduled
+            mDeadline = Math.max(now() + mDelayMs, 1);
+            if (!mWakeupQueued) {
+                queueWakeup(mDelayMs);
+            }
+        }
+
+        /* A wakeup already queued stays queued and finds nothing to do */
+        public synchronized void cancel() {
+            mDeadline = 0;
+        }
+
+        public synchronized boolean isScheduled() {
+            return mDeadline != 0;
+        }
+
+        private void queueWakeup(long delayMs) {
+            mWakeupQueued = true;
+            Scheduler.this.schedule(mWakeup, delayMs);
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package org.mozilla.mozstumbler.service.core.eventbus;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.wifi.ScanResult;
+import android.support.v4.content.LocalBroadcastManager;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertSame;
+import static org.mozilla.mozstumbler.service.stumblerthread.ReporterTest.createScanResult;
+
+@Config(emulateSdk = 18)
+@RunWith(RobolectricTestRunner.class)
+public class TopicTest {
+
+    static class CountingSubscriber implements Subscriber<String> {
+        int count;
+        String last;
+
+        @Override
+        public void onEvent(String event) {
+            count++;
+            last = event;
+        }
+    }
+
+    @Test
+    public void testPublishBySubscriber() {
+        Topic<String> topic = new Topic<String>("test");
+        CountingSubscriber a = new CountingSubscriber();
+        CountingSubscriber b = new CountingSubscriber();
+
+        topic.publish("nobody listening");
+        topic.subscribe(a);
+        topic.subscribe(a);
+        topic.subscribe(b);
+        assertEquals(2, topic.getSubscriberCount());
+
+        String event = new String("event");
+        topic.publish(event);
+        assertEquals(1, a.count);
+        assertEquals(1, b.count);
+        // passed by reference, not copied
+        assertSame(event, a.last);
+
+        topic.unsubscribe(a);
+        topic.unsubscribe(a);
+        topic.publish("second");
+        assertEquals(1, a.count);
+        assertEquals(2, b.count);
+        assertEquals(1, topic.getSubscriberCount());
+    }
+
+    @Test
+    public void testUnsubscribeDuringPublish() {
+        final Topic<String> topic = new Topic<String>("test");
+        final CountingSubscriber after = new CountingSubscriber();
+        Subscriber<String> once = new Subscriber<String>() {
+            @Override
+            public void onEvent(String event) {
+                topic.unsubscribe(this);
+            }
+        };
+        topic.subscribe(once);
+        topic.subscribe(after);
+
+        // the publish in progress still reaches everyone who was subscribed when it started
+        topic.publish("first");
+        assertEquals(1, after.count);
+        assertEquals(1, topic.getSubscriberCount());
+
+        topic.publish("second");
+        assertEquals(2, after.count);
+    }
+
+    // Not a pass/fail test, this prints the events per second of the old and new paths,
+    // with the payload WifiScanner sends.
+    @Test
+    public void benchmarkEventsPerSecond() {
+        final int kIterations = 20000;
+        final ArrayList<ScanResult> scans = new ArrayList<ScanResult>();
+        for (int i = 0; i < 20; i++) {
+            scans.add(createScanResult(Long.toHexString(i | 0xabcd00000000L), "caps", -50, 2412, 10));
+        }
+
+        final String action = "org.mozilla.mozstumbler.test.BENCHMARK";
+        final int[] received = new int[2];
+        final Context context = Robolectric.application;
+        final LocalBroadcastManager broadcastManager = LocalBroadcastManager.getInstance(context);
+        final BroadcastReceiver receiver = new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context c, Intent intent) {
+                if (intent.getAction().equals(action)) {
+                    List<ScanResult> results = intent.getParcelableArrayListExtra("scan_results");
+                    received[0] += results.size();
+                }
+            }
+        };
+        broadcastManager.registerReceiver(receiver, new IntentFilter(action));
+
+        final Topic<List<ScanResult>> topic = new Topic<List<ScanResult>>(action);
+        final Subscriber<List<ScanResult>> subscriber = new Subscriber<List<ScanResult>>() {
+            @Override
+            public void onEvent(List<ScanResult> results) {
+                received[1] += results.size();
+            }
+        };
+        topic.subscribe(subscriber);
+
+        long start = System.nanoTime();
+        for (int i = 0; i < kIterations; i++) {
+            Intent intent = new Intent(action);
+            intent.putParcelableArrayListExtra("scan_results", scans);
+            intent.putExtra("time", System.currentTimeMillis());
+            broadcastManager.sendBroadcastSync(intent);
+        }
+        long broadcastNanos = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < kIterations; i++) {
+            topic.publish(scans);
+        }
+        long topicNanos = System.nanoTime() - start;
+
+        broadcastManager.unregisterReceiver(receiver);
+        topic.unsubscribe(subscriber);
+
+        assertEquals(kIterations * scans.size(), received[1]);
+        System.out.println("Event delivery benchmark (" + kIterations + " events)");
+        System.out.println("  LocalBroadcastManager: " + eventsPerSecond(kIterations, broadcastNanos) +
+                " events/s, " + received[0] + " results received");
+        System.out.println("  Topic:                 " + eventsPerSecond(kIterations, topicNanos) +
+                " events/s, " + received[1] + " results received");
+    }
+
+    private static long eventsPerSecond(int events, long nanos) {
+        return (nanos > 0) ? events * 1000000000L / nanos : -1;
+    }
+}
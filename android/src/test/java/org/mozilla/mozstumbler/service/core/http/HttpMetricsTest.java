@@ -0,0 +1,72 @@
+package org.mozilla.mozstumbler.service.core.http;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.EOFException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.List;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNull;
+
+@Config(emulateSdk = 18)
+@RunWith(RobolectricTestRunner.class)
+public class HttpMetricsTest {
+    private static final String SUBMIT = "POST location.services.mozilla.com/v#/submit";
+
+    @Test
+    public void testEndpoints() throws MalformedURLException {
+        assertEquals(SUBMIT, HttpMetrics.getEndpoint("POST",
+                new URL("https://location.services.mozilla.com/v1/submit?key=secret")));
+        // One per tile server, not per tile
+        assertEquals(HttpMetrics.getEndpoint("GET", new URL("https://tiles.example.com/12/2134/1432.png")),
+                HttpMetrics.getEndpoint("GET", new URL("https://tiles.example.com/3/5/7.png")));
+
+        HttpMetrics metrics = new HttpMetrics();
+        for (int i = 0; i < HttpMetrics.MAX_ENDPOINTS + 5; i++) {
+            metrics.onResponse("GET host" + (char) ('a' + i), 200, 0, 1, 1, 0, 10);
+        }
+        // Sorted by name, "other" after the "GET ..."
+        List<HttpMetrics.EndpointStats> all = metrics.snapshot();
+        assertEquals(HttpMetrics.MAX_ENDPOINTS + 1, all.size());
+        assertEquals(HttpMetrics.OTHER_ENDPOINT, all.get(HttpMetrics.MAX_ENDPOINTS).getName());
+        assertEquals(5, all.get(HttpMetrics.MAX_ENDPOINTS).getRequestCount());
+    }
+
+    @Test
+    public void testCountsAndHistograms() {
+        HttpMetrics metrics = new HttpMetrics();
+        for (int i = 1; i <= 10; i++) {
+            metrics.onResponse(SUBMIT, (i == 10) ? 503 : 200, 0, i * 100, i * 100, 1000, 2);
+        }
+        metrics.onException(SUBMIT, new EOFException(), 5);
+        metrics.onException(SUBMIT, new EOFException(), -1);
+
+        HttpMetrics.EndpointStats stats = metrics.snapshot("POST", "/submit");
+        assertEquals(12, stats.getRequestCount());
+        assertEquals(9, (int) stats.getStatusCounts().get(200));
+        assertEquals(1, (int) stats.getStatusCounts().get(503));
+        assertEquals(2, (int) stats.getExceptionCounts().get("EOFException"));
+        assertEquals(11, stats.getConnectMs().getCount());
+        assertEquals(10, stats.getTotalMs().getCount());
+
+        // 100 ms to 1 s: p50 at 500 ms falls in the (200, 500] bucket, p90 in (500, 1000], the max is exact
+        assertEquals(500, stats.getTotalMs().getPercentileMs(50));
+        assertEquals(1000, stats.getTotalMs().getPercentileMs(90));
+        assertEquals(1000, stats.getTotalMs().getMaxMs());
+        assertEquals(550, stats.getTotalMs().getMeanMs());
+        // 10 * 1002 bytes in 5.5 s
+        assertEquals(10020 * 1000 / 5500, stats.getBytesPerSecond());
+
+        // A copy, the snapshot doesn't move
+        metrics.onResponse(SUBMIT, 200, 0, 1, 1, 0, 0);
+        assertEquals(12, stats.getRequestCount());
+        assertNull(metrics.snapshot("GET", "/submit"));
+        metrics.reset();
+        assertEquals(0, metrics.snapshot().size());
+    }
+}
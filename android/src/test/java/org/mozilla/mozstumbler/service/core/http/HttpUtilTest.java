@@ -0,0 +1,243 @@
+package org.mozilla.mozstumbler.service.core.http;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNotNull;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+
+@Config(emulateSdk = 18)
+@RunWith(RobolectricTestRunner.class)
+public class HttpUtilTest {
+    private static final int REQUESTS = 100;
+
+    /* A stand-in for the server, HTTP/1.1 with keep-alive. Counts the connections it accepts,
+     * i.e. the TCP handshakes, and can drop a connection while idle, the way a server times one out. */
+    private static class LocalServer implements Runnable {
+        final ServerSocket serverSocket;
+        final AtomicInteger connections = new AtomicInteger();
+        final AtomicInteger requests = new AtomicInteger();
+        volatile byte[] lastBody;
+        // Closes the connection without a word after this many responses on it, 0 for never
+        final int dropAfter;
+        // Resets the connection once it has read a request, instead of responding
+        final boolean resetAfterRequest;
+
+        LocalServer(int dropAfter) throws IOException {
+            this(dropAfter, false);
+        }
+
+        LocalServer(int dropAfter, boolean resetAfterRequest) throws IOException {
+            this.dropAfter = dropAfter;
+            this.resetAfterRequest = resetAfterRequest;
+            serverSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+            Thread thread = new Thread(this, "LocalServer");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        String url(String path) {
+            return "http://127.0.0.1:" + serverSocket.getLocalPort() + path;
+        }
+
+        @Override
+        public void run() {
+            while (!serverSocket.isClosed()) {
+                try {
+                    final Socket socket = serverSocket.accept();
+                    connections.incrementAndGet();
+                    Thread handler = new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            serve(socket);
+                        }
+                    });
+                    handler.setDaemon(true);
+                    handler.start();
+                } catch (IOException ex) {
+                    return;
+                }
+            }
+        }
+
+        private void serve(Socket socket) {
+            try {
+                InputStream in = new BufferedInputStream(socket.getInputStream());
+                OutputStream out = socket.getOutputStream();
+                int served = 0;
+                String requestLine;
+                while ((requestLine = readLine(in)) != null) {
+                    int contentLength = 0;
+                    boolean close = false;
+                    String header;
+                    while ((header = readLine(in)) != null && header.length() > 0) {
+                        String lower = header.toLowerCase(Locale.US);
+                        if (lower.startsWith("content-length:")) {
+                            contentLength = Integer.parseInt(lower.substring(15).trim());
+                        } else if (lower.startsWith("connection:") && lower.contains("close")) {
+                            close = true;
+                        }
+                    }
+                    byte[] body = new byte[contentLength];
+                    for (int i = 0; i < contentLength; i++) {
+                        body[i] = (byte) in.read();
+                    }
+                    lastBody = body;
+                    requests.incrementAndGet();
+                    if (resetAfterRequest) {
+                        socket.setSoLinger(true, 0);
+                        break;
+                    }
+                    boolean head = requestLine.startsWith("HEAD");
+                    out.write(("HTTP/1.1 200 OK\r\nContent-Length: 2\r\n" +
+                            (close ? "Connection: close\r\n" : "") + "\r\n" + (head ? "" : "{}")).getBytes("US-ASCII"));
+                    out.flush();
+                    if (close || (dropAfter > 0 && ++served == dropAfter)) {
+                        break;
+                    }
+                }
+            } catch (IOException ex) {
+                // The client went away
+            } finally {
+                try {
+                    socket.close();
+                } catch (IOException ex) {
+                }
+            }
+        }
+
+        private static String readLine(InputStream in) throws IOException {
+            StringBuilder line = new StringBuilder();
+            int c;
+            while ((c = in.read()) != '\n') {
+                if (c < 0) {
+                    return null;
+                }
+                if (c != '\r') {
+                    line.append((char) c);
+                }
+            }
+            return line.toString();
+        }
+
+        void close() throws IOException {
+            serverSocket.close();
+        }
+    }
+
+    private LocalServer mServer;
+
+    @After
+    public void tearDown() throws IOException {
+        if (mServer != null) {
+            mServer.close();
+        }
+    }
+
+    private int postAll(HttpUtil http) {
+        int ok = 0;
+        for (int i = 0; i < REQUESTS; i++) {
+            IResponse response = (i % 10 == 0) ?
+                    http.get(mServer.url("/tile/" + i), null) :
+                    http.post(mServer.url("/v1/submit"), "{\"items\":[]}".getBytes(), null, false);
+            if (response != null && response.isSuccessCode2XX()) {
+                ok++;
+            }
+        }
+        return ok;
+    }
+
+    @Test
+    public void testReusesConnections() throws IOException {
+        mServer = new LocalServer(0);
+        assertEquals(REQUESTS, postAll(new HttpUtil("test", false)));
+        int closing = mServer.connections.get();
+
+        mServer.close();
+        mServer = new LocalServer(0);
+        HttpUtil http = new HttpUtil("test", true);
+        assertNotNull(http.head(mServer.url("/v1/submit"), null));
+        assertEquals(REQUESTS, postAll(http));
+        int reusing = mServer.connections.get();
+
+        System.out.println("HttpUtil, connections per " + REQUESTS + " requests: " + closing +
+                " closing each, " + reusing + " reusing");
+        // Connection: Close on the emulated API 18
+        assertEquals(REQUESTS, closing);
+        // The warm-up connection is the one used
+        assertEquals(1, reusing);
+    }
+
+    @Test
+    public void testRetriesStaleConnection() throws IOException {
+        // Every tenth request finds its pooled connection closed, and goes again on a new one
+        mServer = new LocalServer(10);
+        HttpMetrics.getInstance().reset();
+        assertEquals(REQUESTS, postAll(new HttpUtil("test", true)));
+        assertEquals(REQUESTS, mServer.requests.get());
+        assertTrue(mServer.connections.get() <= REQUESTS / 10 + 1);
+
+        // The tiles apart from the submits; a stale attempt, when it gets to HttpUtil, is an exception
+        HttpMetrics.EndpointStats submit = HttpMetrics.getInstance().snapshot("POST", "/v#/submit");
+        HttpMetrics.EndpointStats tiles = HttpMetrics.getInstance().snapshot("GET", "/tile/#");
+        assertEquals(REQUESTS - REQUESTS / 10, (int) submit.getStatusCounts().get(200));
+        assertEquals(REQUESTS / 10, (int) tiles.getStatusCounts().get(200));
+        assertEquals(REQUESTS, submit.getTotalMs().getCount() + tiles.getTotalMs().getCount());
+        assertTrue(submit.getRequestCount() + tiles.getRequestCount() >= REQUESTS);
+        assertTrue(submit.getBytesSent() > 0);
+        assertTrue(submit.getBytesPerSecond() > 0);
+    }
+
+    @Test
+    public void testSubmitResetAfterItsBodyIsNotSent() throws IOException {
+        // The server may have taken the reports, sending them again could count them twice
+        mServer = new LocalServer(0, true);
+        HttpUtil http = new HttpUtil("test", true);
+        assertNull(http.post(mServer.url("/v1/submit"), "{\"items\":[]}".getBytes(), null, false));
+        assertEquals(1, mServer.requests.get());
+    }
+
+    @Test
+    public void testPostsFromFile() throws IOException {
+        byte[] body = new byte[200 * 1024];
+        new Random(42).nextBytes(body);
+        File file = File.createTempFile("body", ".gz");
+        try {
+            FileOutputStream out = new FileOutputStream(file);
+            out.write(body);
+            out.close();
+
+            // The connection is dropped after each response, so the second post is sent again, from the file again
+            mServer = new LocalServer(1);
+            HttpUtil http = new HttpUtil("test", true);
+            for (int i = 0; i < 2; i++) {
+                IResponse response = http.post(mServer.url("/v1/submit"), file, null);
+                assertNotNull(response);
+                assertEquals(body.length, response.bytesSent());
+                assertTrue(Arrays.equals(body, mServer.lastBody));
+            }
+            assertEquals(2, mServer.requests.get());
+        } finally {
+            file.delete();
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package org.mozilla.mozstumbler.service.stumblerthread;
+
+import android.location.Location;
+import android.net.wifi.ScanResult;
+import android.telephony.TelephonyManager;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mozilla.mozstumbler.service.stumblerthread.datahandling.StumblerBundle;
+import org.mozilla.mozstumbler.service.stumblerthread.scanners.cellscanner.CellInfo;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+import static org.mozilla.mozstumbler.service.stumblerthread.ReporterTest.createScanResult;
+
+@Config(emulateSdk = 18)
+@RunWith(RobolectricTestRunner.class)
+public class NoveltyFilterTest {
+
+    // wifis [first, first + count)
+    private static StumblerBundle createBundle(int first, int count) {
+        Location loc = new Location("mock");
+        loc.setLatitude(42 + first * 0.0001);
+        loc.setLongitude(45);
+        StumblerBundle bundle = new StumblerBundle(loc, TelephonyManager.PHONE_TYPE_GSM);
+        for (int i = first; i < first + count; i++) {
+            String bssid = Long.toHexString(i | 0xabcd00000000L);
+            ScanResult scan = createScanResult(bssid, "caps", -60, 2412, 10);
+            bundle.addWifiData(bssid, scan);
+        }
+        return bundle;
+    }
+
+    @Test
+    public void testSimilarity() {
+        assertEquals(1.0f, NoveltyFilter.similarity(new long[] {1, 2, 3}, new long[] {1, 2, 3}), 1e-6f);
+        assertEquals(0.5f, NoveltyFilter.similarity(new long[] {1, 2, 3}, new long[] {2, 3, 4}), 1e-6f);
+        assertEquals(0.0f, NoveltyFilter.similarity(new long[] {1, 2}, new long[] {3, 4}), 1e-6f);
+        assertEquals(1.0f, NoveltyFilter.similarity(new long[] {}, new long[] {}), 1e-6f);
+    }
+
+    @Test
+    public void testNearDuplicatesAreSuppressed() {
+        NoveltyFilter filter = new NoveltyFilter(90);
+        assertTrue(filter.accept(createBundle(0, 20)));
+        // 19 of 21 shared
+        assertFalse(filter.accept(createBundle(1, 20)));
+        // Only compared against what was kept, 18 of 22 shared with the first bundle
+        assertTrue(filter.accept(createBundle(2, 20)));
+        // Still in the history
+        assertFalse(filter.accept(createBundle(0, 20)));
+        // Disjoint
+        assertTrue(filter.accept(createBundle(100, 20)));
+    }
+
+    @Test
+    public void testMovedOrNewCellsAreKept() {
+        NoveltyFilter filter = new NoveltyFilter(90);
+        assertTrue(filter.accept(createBundle(0, 20)));
+
+        // The same wifis, a km away: e.g. a bus with its own hotspots
+        StumblerBundle far = createBundle(0, 20);
+        far.getGpsPosition().setLatitude(42.01);
+        assertTrue(filter.accept(far));
+
+        // The same wifis and place, with a cell the kept bundle doesn't have
+        StumblerBundle withCell = createBundle(1, 20);
+        withCell.addCellData(1234, new CellInfo(TelephonyManager.PHONE_TYPE_GSM));
+        assertTrue(filter.accept(withCell));
+        // That cell is known now
+        StumblerBundle sameCell = createBundle(1, 20);
+        sameCell.addCellData(1234, new CellInfo(TelephonyManager.PHONE_TYPE_GSM));
+        assertFalse(filter.accept(sameCell));
+
+        assertTrue(NoveltyFilter.containsAll(new long[] {1, 3, 5}, new long[] {3, 5}));
+        assertTrue(NoveltyFilter.containsAll(new long[] {1}, new long[] {}));
+        assertFalse(NoveltyFilter.containsAll(new long[] {1, 3, 5}, new long[] {2}));
+        assertFalse(NoveltyFilter.containsAll(new long[] {1, 3}, new long[] {3, 7}));
+    }
+
+    @Test
+    public void testDisabledAndSmallBundlesAreKept() {
+        NoveltyFilter disabled = new NoveltyFilter(0);
+        assertTrue(disabled.accept(createBundle(0, 20)));
+        assertTrue(disabled.accept(createBundle(0, 20)));
+
+        NoveltyFilter filter = new NoveltyFilter(90);
+        final int small = NoveltyFilter.MIN_WIFIS_TO_COMPARE - 1;
+        assertTrue(filter.accept(createBundle(0, small)));
+        assertTrue(filter.accept(createBundle(0, small)));
+    }
+
+    @Test
+    public void testHistoryIsBounded() {
+        NoveltyFilter filter = new NoveltyFilter(90);
+        for (int i = 0; i <= NoveltyFilter.HISTORY_SIZE; i++) {
+            assertTrue(filter.accept(createBundle(i * 100, 20)));
+        }
+        // The first bundle has been pushed out of the history
+        assertTrue(filter.accept(createBundle(0, 20)));
+    }
+
+    // Walking past 40 visible APs, one GPS fix per AP gained and lost: most fixes add nothing new.
+    @Test
+    public void testWalkingSpeedSavings() {
+        NoveltyFilter filter = new NoveltyFilter(90);
+        int kept = 0;
+        final int kFixes = 1000;
+        for (int fix = 0; fix < kFixes; fix++) {
+            if (filter.accept(createBundle(fix, 40))) {
+                kept++;
+            }
+        }
+        assertTrue(kept < kFixes / 2);
+    }
+}
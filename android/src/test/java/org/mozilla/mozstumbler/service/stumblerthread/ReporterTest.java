@@ -2,11 +2,11 @@ package org.mozilla.mozstumbler.service.stumblerthread;
 
 import android.app.Application;
 import android.content.Context;
-import android.content.Intent;
 import android.location.Location;
 import android.net.wifi.ScanResult;
 import android.telephony.TelephonyManager;
 
+import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -22,6 +22,7 @@ import org.robolectric.RobolectricTestRunner;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.Method;
 import java.util.ArrayList;
+import java.util.List;
 
 import static junit.framework.Assert.assertEquals;
 import static junit.framework.Assert.assertNull;
@@ -56,11 +57,17 @@ public class ReporterTest {
         // The Reporter class needs a reference to a context
         rp.startup(ctx);
 
-        Intent gpsUpdated = getLocationIntent();
-        rp.onReceive(ctx, gpsUpdated);
+        GPSScanner.GPS_UPDATED.publish(getLocation());
+        rp.drain();
         assertTrue(null != rp.getGPSLocation());
     }
 
+    @After
+    public void tearDown() {
+        // The topics are static, don't leave this reporter subscribed for the next test
+        rp.shutdown();
+    }
+
     @Test
     public void testReporterWifiLimits() {
         // Spam the Reporter with wifi data
@@ -75,15 +82,15 @@ public class ReporterTest {
 
         // This should push the reporter into a state that forces a
         // flush on the next wifi record.
-        Intent wifiIntent = getWifiIntent(bssidArray);
-        rp.onReceive(ctx, wifiIntent);
+        WifiScanner.WIFIS_SCANNED.publish(getScanResults(bssidArray));
+        rp.drain();
         assertEquals(StumblerBundle.MAX_WIFIS_PER_LOCATION-1,
-                rp.mBundle.getUnmodifiableWifiData().size());
+                rp.mBundle.getWifiCount());
 
         bssidArray = new String[] { Long.toHexString(0xabcd99999999L) };
-        wifiIntent = getWifiIntent(bssidArray);
         // This will force a flush and the bundle should go to null
-        rp.onReceive(ctx, wifiIntent);
+        WifiScanner.WIFIS_SCANNED.publish(getScanResults(bssidArray));
+        rp.drain();
         assertNull(rp.mBundle);
     }
 
@@ -96,31 +103,22 @@ public class ReporterTest {
             cellIdList.add(cell);
         }
 
-        Intent cellIntent = getCellIntent(cellIdList);
-        rp.onReceive(ctx, cellIntent);
+        CellScanner.CELLS_SCANNED.publish(cellIdList);
+        rp.drain();
         assertEquals(StumblerBundle.MAX_CELLS_PER_LOCATION-1,
-                rp.mBundle.getUnmodifiableCellData().size());
+                rp.mBundle.getCellCount());
 
         cellIdList.clear();
         CellInfo cell  = createCellInfo(1, 1, 2000 + StumblerBundle.MAX_CELLS_PER_LOCATION + 1,
                 1600199 + StumblerBundle.MAX_CELLS_PER_LOCATION + 1, 19);
         cellIdList.add(cell);
-        cellIntent = getCellIntent(cellIdList);
         // This will force a flush and the bundle should go to null
-        rp.onReceive(ctx, cellIntent);
+        CellScanner.CELLS_SCANNED.publish(cellIdList);
+        rp.drain();
         assertEquals(null, rp.mBundle);
     }
 
-    private Intent getCellIntent(ArrayList<CellInfo> cells) {
-        long curTime = System.currentTimeMillis();
-        Intent intent = new Intent(CellScanner.ACTION_CELLS_SCANNED);
-        intent.putParcelableArrayListExtra(CellScanner.ACTION_CELLS_SCANNED_ARG_CELLS, cells);
-        intent.putExtra(CellScanner.ACTION_CELLS_SCANNED_ARG_TIME, curTime);
-        return intent;
-
-    }
-
-    private Intent getWifiIntent(String[] bssids) {
+    private List<ScanResult> getScanResults(String[] bssids) {
         ArrayList<ScanResult> scanResults = new ArrayList<ScanResult>();
 
         ScanResult scan;
@@ -129,10 +127,7 @@ public class ReporterTest {
             scanResults.add(scan);
         }
 
-        Intent i = new Intent(WifiScanner.ACTION_WIFIS_SCANNED);
-        i.putParcelableArrayListExtra(WifiScanner.ACTION_WIFIS_SCANNED_ARG_RESULTS, scanResults);
-        i.putExtra(WifiScanner.ACTION_WIFIS_SCANNED_ARG_TIME, System.currentTimeMillis());
-        return i;
+        return scanResults;
     }
 
     public static CellInfo createCellInfo(int mcc, int mnc, int lac, int cid, int asu) {
@@ -188,15 +183,11 @@ public class ReporterTest {
         return scan;
     }
 
-    private Intent getLocationIntent() {
+    private Location getLocation() {
         Location location = new Location("mock");
         location.setLongitude(20);
         location.setLatitude(30);
-        Intent i = new Intent(GPSScanner.ACTION_GPS_UPDATED);
-        i.putExtra(Intent.EXTRA_SUBJECT, GPSScanner.SUBJECT_NEW_LOCATION);
-        i.putExtra(GPSScanner.NEW_LOCATION_ARG_LOCATION, location);
-        i.putExtra(GPSScanner.ACTION_ARG_TIME, System.currentTimeMillis());
-        return i;
+        return location;
     }
 
     private Application getApplicationContext() {
@@ -20,10 +20,14 @@ import org.robolectric.Robolectric;
 import org.robolectric.RobolectricTestRunner;
 import org.robolectric.annotation.Config;
 
-import java.io.FileNotFoundException;
+import java.io.File;
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
 import static junit.framework.Assert.assertTrue;
 import static org.mozilla.mozstumbler.service.stumblerthread.ReporterTest.createCellInfo;
 import static org.mozilla.mozstumbler.service.stumblerthread.ReporterTest.createScanResult;
@@ -58,6 +62,7 @@ public class DataStorageManagerTest {
 
         // Force the current reports to clear out between test runs.
         dm.mCurrentReports.clearReports();
+        dm.mCurrentReports.wifiCount = dm.mCurrentReports.cellCount = 0;
 
         rp = new Reporter();
 
@@ -86,17 +91,15 @@ public class DataStorageManagerTest {
 
             for (int offset = 0; offset< StumblerBundle.MAX_CELLS_PER_LOCATION*20; offset++) {
                 CellInfo cell = createCellInfo(1, 1, 2000 + offset, 1600199 + offset, 19);
-                String key = cell.getCellIdentity();
+                long key = cell.getCellKey();
                 bundle.addCellData(key, cell);
             }
 
             JSONObject mlsObj = bundle.toMLSJSON();
             int wifiCount = mlsObj.getInt(DataStorageContract.ReportsColumns.WIFI_COUNT);
             int cellCount = mlsObj.getInt(DataStorageContract.ReportsColumns.CELL_COUNT);
-            try {
-                dm.insert(mlsObj.toString(), wifiCount, cellCount);
-            } catch (IOException ioEx) {
-            }
+            byte[] report = new PackedReportWriter().writeBundle(bundle).toByteArray();
+            dm.insert(report, wifiCount, cellCount);
         }
         assertEquals(ReportBatchBuilder.MAX_REPORTS_IN_MEMORY-1,
                 dm.mCurrentReports.reportsCount());
@@ -119,22 +122,173 @@ public class DataStorageManagerTest {
 
             for (int offset = 0; offset < StumblerBundle.MAX_CELLS_PER_LOCATION * 20; offset++) {
                 CellInfo cell = createCellInfo(1, 1, 2000 + offset, 1600199 + offset, 19);
-                String key = cell.getCellIdentity();
+                long key = cell.getCellKey();
                 bundle.addCellData(key, cell);
             }
 
             JSONObject mlsObj = bundle.toMLSJSON();
             int wifiCount = mlsObj.getInt(DataStorageContract.ReportsColumns.WIFI_COUNT);
             int cellCount = mlsObj.getInt(DataStorageContract.ReportsColumns.CELL_COUNT);
-            try {
-                dm.insert(mlsObj.toString(), wifiCount, cellCount);
-            } catch (FileNotFoundException fex) {
-                // This is ok
-            } catch (IOException ioEx) {
+            byte[] report = new PackedReportWriter().writeBundle(bundle).toByteArray();
+            dm.insert(report, wifiCount, cellCount);
+
+            // A full batch is handed to the write stages, it never stays in memory
+            assertTrue(dm.mCurrentReports.reportsCount() < ReportBatchBuilder.MAX_REPORTS_IN_MEMORY);
+        }
+
+        // Whether or not the writes worked, draining them finishes, and the partial batch stays in memory
+        dm.drainWrites();
+        assertEquals((ReportBatchBuilder.MAX_REPORTS_IN_MEMORY - 1 + 100) % ReportBatchBuilder.MAX_REPORTS_IN_MEMORY,
+                dm.mCurrentReports.reportsCount());
+    }
+
+    @Test
+    public void testQueuedCountsFollowTheStore() throws IOException {
+        dm.deleteAll();
+        final byte[] report = new byte[] {1, 2, 3};
+        for (int i = 0; i < 3; i++) {
+            dm.insert(report, 10, 1);
+        }
+        assertEquals(3, dm.getQueuedCounts().mReportCount);
+        assertEquals(30, dm.getQueuedCounts().mWifiCount);
+
+        // On disk, then one more in the send buffer
+        dm.saveCurrentReportsToDisk();
+        assertEquals(0, dm.mCurrentReports.reportsCount());
+        assertEquals(3, dm.getQueuedCounts().mReportCount);
+        assertTrue(dm.getQueuedCounts().mBytes > 0);
+        dm.insert(report, 10, 1);
+        UploadPlan plan = dm.planUpload(UploadPlan.DEFAULT_TARGET_BYTES);
+        assertEquals(4, dm.getQueuedCounts().mReportCount);
+        assertEquals(4, dm.getQueuedCounts().mCellCount);
+
+        // Uploaded
+        UploadPlan.Payload payload;
+        while ((payload = plan.next()) != null) {
+            for (UploadPlan.Slice slice : payload.slices) {
+                dm.delete(slice.name);
             }
+        }
+        assertEquals(0, dm.getQueuedCounts().mReportCount);
+        assertEquals(0, dm.getQueuedCounts().mBytes);
+    }
+
+    @Test
+    public void testQueuedBytesOnDisk() throws IOException {
+        dm.deleteAll();
+        final byte[] report = new byte[] {1, 2, 3};
+        dm.insert(report, 10, 1);
+        final long inMemory = dm.getQueuedBytes();
+        assertTrue(inMemory > 0);
+
+        // Nothing left in memory, the upload policy still sees what is on disk
+        dm.saveCurrentReportsToDisk();
+        assertEquals(0, dm.mCurrentReports.reportsCount());
+        assertTrue(dm.getQueuedBytes() > 0);
+        assertEquals(dm.getQueuedCounts().mBytes, dm.getQueuedBytes());
 
-            assertTrue(dm.mCurrentReports.reportsCount() == ReportBatchBuilder.MAX_REPORTS_IN_MEMORY);
+        dm.insert(report, 10, 1);
+        assertTrue(dm.getQueuedBytes() > inMemory);
+        dm.deleteAll();
+        dm.saveCurrentReportsToDisk();
+        dm.deleteAll();
+        assertEquals(0, dm.getQueuedBytes());
+    }
+
+    @Test
+    public void testSwitchedStoreIsMovedOnce() throws IOException {
+        File baseDir = File.createTempFile("stores", "");
+        baseDir.delete();
+        baseDir.mkdirs();
+        FileReportStore files = new FileReportStore(new File(baseDir, "reports"), new File(baseDir, "reports_index"));
+        files.load();
+        files.write(new byte[] {1, 2, 3}, 1000, 2, 20, 2);
+
+        // Switched to the report log: the batch moves, and the old store's files go with it
+        SegmentedReportLog log = new SegmentedReportLog(new File(baseDir, "report_log"),
+                SegmentedReportLog.DEFAULT_SEGMENT_SIZE);
+        log.load();
+        DataStorageManager.moveBatches(baseDir.getPath(), false, log);
+        assertEquals(2, log.getReportCount());
+        assertFalse(new File(baseDir, "reports").exists());
+        assertFalse(new File(baseDir, "reports_index").exists());
+
+        // Nothing left to move, nothing recreated
+        DataStorageManager.moveBatches(baseDir.getPath(), false, log);
+        assertEquals(2, log.getReportCount());
+        assertFalse(new File(baseDir, "reports").exists());
+        log.deleteAll();
+    }
+
+    private static long[] timeInserts(DataStorageManager dm, byte[] report, int count) {
+        long[] nanos = new long[count];
+        for (int i = 0; i < count; i++) {
+            long start = System.nanoTime();
+            dm.insert(report, 10, 1);
+            nanos[i] = System.nanoTime() - start;
         }
+        Arrays.sort(nanos);
+        return nanos;
+    }
+
+    private static String describe(long[] sortedNanos) {
+        return "p50 " + sortedNanos[sortedNanos.length / 2] / 1000 + " us, p99 " +
+                sortedNanos[sortedNanos.length * 99 / 100] / 1000 + " us, max " +
+                sortedNanos[sortedNanos.length - 1] / 1000 + " us";
     }
 
+    @Test
+    public void benchmarkInsertWhileUploading() throws InterruptedException, IOException {
+        Location loc = new Location("mock");
+        loc.setLatitude(42);
+        loc.setLongitude(45);
+        StumblerBundle bundle = new StumblerBundle(loc, TelephonyManager.PHONE_TYPE_GSM);
+        for (int offset = 0; offset < 10; offset++) {
+            String bssid = Long.toHexString(offset | 0xabcd00000000L);
+            bundle.addWifiData(bssid, createScanResult(bssid, "caps", 3, 11, 10));
+        }
+        final byte[] report = new PackedReportWriter().writeBundle(bundle).toByteArray();
+        final int inserts = ReportBatchBuilder.MAX_REPORTS_IN_MEMORY * 20;
+
+        dm.saveCurrentReportsToDisk();
+        final int before = dm.getQueuedCounts().mReportCount + dm.getEvictedCounts().mReportCount;
+        long[] alone = timeInserts(dm, report, inserts);
+
+        // An uploader that reads everything queued, and puts it back, over and over
+        final AtomicBoolean done = new AtomicBoolean();
+        final AtomicInteger batchesRead = new AtomicInteger();
+        Thread uploader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (!done.get()) {
+                        UploadPlan plan = dm.planUpload(UploadPlan.DEFAULT_TARGET_BYTES);
+                        UploadPlan.Payload payload;
+                        while ((payload = plan.next()) != null) {
+                            for (UploadPlan.Slice slice : payload.slices) {
+                                if (dm.readBatch(slice.name) != null) {
+                                    batchesRead.incrementAndGet();
+                                }
+                            }
+                        }
+                        dm.saveCurrentReportsSendBufferToDisk();
+                    }
+                } catch (IOException ex) {
+                    throw new RuntimeException(ex);
+                }
+            }
+        });
+        uploader.start();
+        long[] contended = timeInserts(dm, report, inserts);
+        done.set(true);
+        uploader.join();
+
+        System.out.println("DataStorageManager insert, " + inserts + " reports");
+        System.out.println("  alone:          " + describe(alone));
+        System.out.println("  while uploading: " + describe(contended) + ", " + batchesRead.get() + " batches read");
+
+        // Every report is queued or was evicted, none lost between the two sides
+        dm.saveCurrentReportsToDisk();
+        assertEquals(before + 2 * inserts, dm.getQueuedCounts().mReportCount + dm.getEvictedCounts().mReportCount);
+    }
 }
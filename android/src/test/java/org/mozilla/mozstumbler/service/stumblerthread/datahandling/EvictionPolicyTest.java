@@ -0,0 +1,74 @@
+package org.mozilla.mozstumbler.service.stumblerthread.datahandling;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.List;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+
+@Config(emulateSdk = 18)
+@RunWith(RobolectricTestRunner.class)
+public class EvictionPolicyTest {
+
+    private static IReportStore.BatchInfo batch(String name, long time, int wifis, int cells) {
+        return new IReportStore.BatchInfo(name, time, 1000, 10, wifis, cells);
+    }
+
+    // Oldest first, as a store lists them
+    private static final IReportStore.BatchInfo[] QUEUED = {
+            batch("a", 1, 200, 10),
+            batch("b", 2, 20, 5),
+            batch("c", 3, 300, 20),
+            batch("d", 4, 20, 5),
+    };
+
+    @Test
+    public void testOldestFirst() {
+        EvictionPolicy policy = EvictionPolicy.forName(EvictionPolicy.OLDEST_FIRST);
+        List<IReportStore.BatchInfo> victims = policy.selectVictims(QUEUED, batch("new", 5, 1, 0), 1500);
+        assertEquals(2, victims.size());
+        assertEquals("a", victims.get(0).name);
+        assertEquals("b", victims.get(1).name);
+
+        // Bigger than everything queued, only then is the new batch the one dropped
+        assertNull(policy.selectVictims(QUEUED, batch("new", 5, 1, 0), 4500));
+        assertFalse(policy.expiresPerBatch());
+    }
+
+    @Test
+    public void testLowestValue() {
+        EvictionPolicy policy = EvictionPolicy.forName(EvictionPolicy.LOWEST_VALUE);
+        List<IReportStore.BatchInfo> victims = policy.selectVictims(QUEUED, batch("new", 5, 100, 10), 1500);
+        // The two with the fewest observations, the older of the equals first
+        assertEquals(2, victims.size());
+        assertEquals("b", victims.get(0).name);
+        assertEquals("d", victims.get(1).name);
+
+        // Worth less than anything queued, so nothing is dropped for it
+        assertNull(policy.selectVictims(QUEUED, batch("new", 5, 2, 0), 500));
+
+        // Per byte, not per batch
+        IReportStore.BatchInfo[] sized = {
+                new IReportStore.BatchInfo("big", 1, 4000, 10, 100, 0),
+                new IReportStore.BatchInfo("small", 2, 500, 10, 50, 0),
+        };
+        victims = policy.selectVictims(sized, batch("new", 3, 200, 0), 100);
+        assertEquals("big", victims.get(0).name);
+    }
+
+    @Test
+    public void testExpiryAndDefault() {
+        EvictionPolicy expiry = EvictionPolicy.forName(EvictionPolicy.EXPIRY);
+        assertTrue(expiry.expiresPerBatch());
+        assertEquals("a", expiry.selectVictims(QUEUED, batch("new", 5, 1, 0), 1).get(0).name);
+
+        assertEquals(EvictionPolicy.LOWEST_VALUE, EvictionPolicy.forName(null).getName());
+        assertEquals(EvictionPolicy.LOWEST_VALUE, EvictionPolicy.forName("unknown").getName());
+    }
+}
@@ -0,0 +1,125 @@
+package org.mozilla.mozstumbler.service.stumblerthread.datahandling;
+
+import android.location.Location;
+import android.net.wifi.ScanResult;
+import android.telephony.TelephonyManager;
+
+import org.json.JSONException;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mozilla.mozstumbler.service.stumblerthread.scanners.cellscanner.CellInfo;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+import static org.mozilla.mozstumbler.service.stumblerthread.ReporterTest.createCellInfo;
+import static org.mozilla.mozstumbler.service.stumblerthread.ReporterTest.createScanResult;
+
+@Config(emulateSdk = 18)
+@RunWith(RobolectricTestRunner.class)
+public class MLSJSONWriterTest {
+
+    static StumblerBundle createBundle(double lat, double lon, int phoneType, int wifis, int cells) {
+        Location loc = new Location("mock");
+        loc.setTime(1406863343313L);
+        loc.setLatitude(lat);
+        loc.setLongitude(lon);
+        loc.setAccuracy(12.3f);
+        loc.setAltitude(101.5);
+
+        StumblerBundle bundle = new StumblerBundle(loc, phoneType);
+        for (int offset = 0; offset < wifis; offset++) {
+            String bssid = Long.toHexString(offset | 0xabcd00000000L);
+            ScanResult scan = createScanResult(bssid, "caps", -40 - offset % 50, 2412 + offset % 13, 10);
+            bundle.addWifiData(bssid, scan);
+        }
+        for (int offset = 0; offset < cells; offset++) {
+            CellInfo cell = createCellInfo(310, 410, 2000 + offset, 1600199 + offset, 19);
+            bundle.addCellData(cell.getCellKey(), cell);
+        }
+        return bundle;
+    }
+
+    @Test
+    public void testIdenticalToJSONObject() throws JSONException {
+        MLSJSONWriter writer = new MLSJSONWriter();
+        StumblerBundle[] bundles = {
+            createBundle(42.123456789, -71.5, TelephonyManager.PHONE_TYPE_GSM, 25, 3),
+            createBundle(-33.8, 151.2, TelephonyManager.PHONE_TYPE_CDMA, 1, 0),
+            createBundle(30, 20, TelephonyManager.PHONE_TYPE_NONE, 0, 1),
+            createBundle(51.0000001, -0.0000001, TelephonyManager.PHONE_TYPE_GSM,
+                    StumblerBundle.MAX_WIFIS_PER_LOCATION, StumblerBundle.MAX_CELLS_PER_LOCATION),
+        };
+
+        for (StumblerBundle bundle : bundles) {
+            String expected = bundle.toMLSJSON().toString();
+            assertEquals(expected, writer.reset().writeBundle(bundle).toString());
+        }
+    }
+
+    @Test
+    public void testWriteToMatchesStringBytes() throws IOException {
+        MLSJSONWriter writer = new MLSJSONWriter(16);
+        writer.writeBundle(createBundle(42.1, 45.2, TelephonyManager.PHONE_TYPE_GSM, 150, 10));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writer.writeTo(out);
+        assertTrue(Arrays.equals(writer.toString().getBytes("UTF-8"), out.toByteArray()));
+    }
+
+    // Not a pass/fail test, this prints the cost of the old and new serialization paths.
+    @Test
+    public void benchmarkReportSerialization() throws JSONException {
+        final int kIterations = 2000;
+        final StumblerBundle bundle = createBundle(42.1, 45.2, TelephonyManager.PHONE_TYPE_GSM,
+                StumblerBundle.MAX_WIFIS_PER_LOCATION, 5);
+        final MLSJSONWriter writer = new MLSJSONWriter();
+
+        // warm up both paths
+        for (int i = 0; i < kIterations; i++) {
+            bundle.toMLSJSON().toString();
+            writer.reset().writeBundle(bundle).toString();
+        }
+
+        long bytes = allocatedBytes();
+        long start = System.nanoTime();
+        int sink = 0;
+        for (int i = 0; i < kIterations; i++) {
+            // Reporter.flush() used to call toString() twice, for the GUI log and for the insert
+            sink += bundle.toMLSJSON().toString().length();
+            sink += bundle.toMLSJSON().toString().length();
+        }
+        long jsonNanos = System.nanoTime() - start;
+        long jsonBytes = allocatedBytes() - bytes;
+
+        bytes = allocatedBytes();
+        start = System.nanoTime();
+        for (int i = 0; i < kIterations; i++) {
+            sink += writer.reset().writeBundle(bundle).toString().length();
+        }
+        long writerNanos = System.nanoTime() - start;
+        long writerBytes = allocatedBytes() - bytes;
+
+        System.out.println("MLSJSONWriter benchmark (" + sink + " chars)");
+        System.out.println("  org.json tree: " + (jsonNanos / kIterations / 1000) + " us/report, " +
+                (jsonBytes / kIterations) + " bytes allocated/report");
+        System.out.println("  MLSJSONWriter: " + (writerNanos / kIterations / 1000) + " us/report, " +
+                (writerBytes / kIterations) + " bytes allocated/report");
+    }
+
+    // -1 where the JVM does not support per-thread allocation counters
+    private static long allocatedBytes() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,199 @@
+package org.mozilla.mozstumbler.service.stumblerthread.datahandling;
+
+import android.location.Location;
+import android.net.wifi.ScanResult;
+import android.telephony.TelephonyManager;
+
+import org.json.JSONException;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mozilla.mozstumbler.service.stumblerthread.scanners.cellscanner.CellInfo;
+import org.mozilla.mozstumbler.service.utils.CompressionCodec;
+import org.mozilla.mozstumbler.service.utils.DictionaryCodec;
+import org.mozilla.mozstumbler.service.utils.GzipCodec;
+import org.mozilla.mozstumbler.service.utils.Zipper;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertSame;
+import static junit.framework.Assert.assertTrue;
+import static junit.framework.Assert.fail;
+import static org.mozilla.mozstumbler.service.stumblerthread.ReporterTest.createCellInfo;
+import static org.mozilla.mozstumbler.service.stumblerthread.ReporterTest.createScanResult;
+import static org.mozilla.mozstumbler.service.stumblerthread.datahandling.MLSJSONWriterTest.createBundle;
+
+@Config(emulateSdk = 18)
+@RunWith(RobolectricTestRunner.class)
+public class PackedReportTest {
+
+    private static StumblerBundle createBundleWithoutAccuracy() {
+        Location loc = new Location("mock");
+        loc.setTime(1406863343313L);
+        loc.setLatitude(-12.3456789);
+        loc.setLongitude(0.5);
+
+        StumblerBundle bundle = new StumblerBundle(loc, TelephonyManager.PHONE_TYPE_GSM);
+        ScanResult scan = createScanResult("0123456789ab", "caps", -90, 5180, 10);
+        bundle.addWifiData(scan.BSSID, scan);
+        CellInfo cell = createCellInfo(1, 1, 2000, 1600199, 19);
+        bundle.addCellData(cell.getCellKey(), cell);
+        return bundle;
+    }
+
+    private static StumblerBundle[] createBundles() {
+        return new StumblerBundle[] {
+            createBundle(42.123456789, -71.5, TelephonyManager.PHONE_TYPE_GSM, 25, 3),
+            createBundle(-33.8, 151.2, TelephonyManager.PHONE_TYPE_CDMA, 1, 0),
+            createBundle(30, 20, TelephonyManager.PHONE_TYPE_NONE, 0, 1),
+            createBundle(51.0000001, -0.0000001, TelephonyManager.PHONE_TYPE_GSM,
+                    StumblerBundle.MAX_WIFIS_PER_LOCATION, StumblerBundle.MAX_CELLS_PER_LOCATION),
+            createBundleWithoutAccuracy(),
+        };
+    }
+
+    @Test
+    public void testSubmitBodyMatchesJSON() throws JSONException, IOException {
+        ReportBatchBuilder builder = new ReportBatchBuilder();
+        PackedReportWriter writer = new PackedReportWriter();
+        StringBuilder expected = new StringBuilder("{\"items\":[");
+        String sep = "";
+        for (StumblerBundle bundle : createBundles()) {
+            builder.addReport(writer.reset().writeBundle(bundle).toByteArray());
+            expected.append(sep).append(bundle.toMLSJSON().toString());
+            sep = ",";
+        }
+        expected.append("]}");
+
+        byte[] stored = builder.finishBatch();
+        byte[] body = new PackedReportReader().toSubmitBody(stored);
+        assertEquals(expected.toString(), Zipper.unzipData(body));
+    }
+
+    @Test
+    public void testLegacyJSONBatchIsUnchanged() throws IOException {
+        byte[] legacy = Zipper.zipData("{\"items\":[{\"lat\":1}]}".getBytes());
+        assertSame(legacy, new PackedReportReader().toSubmitBody(legacy));
+    }
+
+    @Test
+    public void testPackedBatchIsSmaller() throws JSONException {
+        ReportBatchBuilder builder = new ReportBatchBuilder();
+        PackedReportWriter writer = new PackedReportWriter();
+        StringBuilder json = new StringBuilder("{\"items\":[");
+        for (int i = 0; i < ReportBatchBuilder.MAX_REPORTS_IN_MEMORY; i++) {
+            StumblerBundle bundle = createBundle(42 + i * 0.001, 45 + i * 0.001,
+                    TelephonyManager.PHONE_TYPE_GSM, 20, 2);
+            builder.addReport(writer.reset().writeBundle(bundle).toByteArray());
+            json.append(i > 0 ? "," : "").append(bundle.toMLSJSON().toString());
+        }
+        json.append("]}");
+
+        long packed = builder.getUncompressedSize();
+        int packedZipped = builder.finishBatch().length;
+        int jsonZipped = Zipper.zipData(json.toString().getBytes()).length;
+        assertTrue(packed * 4 < json.length());
+        assertTrue(packedZipped < jsonZipped);
+    }
+
+    @Test
+    public void testIncrementalCompression() throws IOException {
+        final boolean[] modes = {true, false};
+        final CompressionCodec[] codecs = {GzipCodec.DEFAULT, DictionaryCodec.DEFAULT};
+        for (int mode = 0; mode < 4; mode++) {
+            boolean syncFlush = modes[mode % 2];
+            ReportBatchBuilder builder = new ReportBatchBuilder(codecs[mode / 2], syncFlush);
+            PackedReportWriter writer = new PackedReportWriter();
+            StringBuilder expected = new StringBuilder("{\"items\":[");
+            assertEquals(0, builder.getCompressedSize());
+
+            long lastSize = 0;
+            for (int i = 0; i < ReportBatchBuilder.MAX_REPORTS_IN_MEMORY; i++) {
+                StumblerBundle bundle = createBundle(42 + i * 0.001, 45 + i * 0.001,
+                        TelephonyManager.PHONE_TYPE_GSM, 20 + i, 2);
+                builder.addReport(writer.reset().writeBundle(bundle).toByteArray());
+                expected.append(i > 0 ? "," : "").append(new MLSJSONWriter().writeBundle(bundle));
+
+                assertTrue(builder.getCompressedSize() >= lastSize);
+                lastSize = builder.getCompressedSize();
+            }
+            expected.append("]}");
+
+            byte[] stored = builder.finishBatch();
+            if (syncFlush) {
+                // Only the end of the stream is missing from the running size
+                assertTrue(Math.abs(stored.length - lastSize) <= 8);
+            } else {
+                assertTrue(lastSize >= stored.length);
+            }
+            assertEquals(0, builder.reportsCount());
+            assertEquals(mode >= 2, DictionaryCodec.isDictionaryCodec(stored));
+            assertEquals(expected.toString(),
+                    Zipper.unzipData(new PackedReportReader().toSubmitBody(stored)));
+
+            // Reusable after finishing
+            builder.addReport(writer.reset().writeBundle(createBundle(1, 2, TelephonyManager.PHONE_TYPE_GSM, 1, 1)).toByteArray());
+            assertEquals(1, builder.reportsCount());
+            assertTrue(Zipper.unzipData(new PackedReportReader().toSubmitBody(builder.finishBatch())).startsWith("{\"items\":[{"));
+        }
+    }
+
+    @Test
+    public void testBodyFromSeveralBatches() throws JSONException, IOException {
+        PackedReportWriter writer = new PackedReportWriter();
+        StumblerBundle[] bundles = createBundles();
+        ReportBatchBuilder builder = new ReportBatchBuilder();
+        for (int i = 0; i < 3; i++) {
+            builder.addReport(writer.reset().writeBundle(bundles[i]).toByteArray());
+        }
+        byte[] first = builder.finishBatch();
+        for (int i = 3; i < bundles.length; i++) {
+            builder.addReport(writer.reset().writeBundle(bundles[i]).toByteArray());
+        }
+        byte[] second = builder.finishBatch();
+        byte[] legacy = Zipper.zipData("{\"items\":[{\"lat\":1},{\"lat\":2}]}".getBytes());
+
+        PackedReportReader reader = new PackedReportReader();
+        reader.startBody(1024);
+        reader.appendReports(first, 0, 3);
+        // The tail of the second batch only, the way a split batch is sent
+        reader.appendReports(second, 1, 1);
+        reader.appendReports(legacy, 0, 2);
+        // Legacy JSON can't be split, the later slices of it are empty
+        reader.appendReports(legacy, 1, 1);
+
+        // A bad batch is taken back out, the body carries on without it
+        byte[] corrupt = Arrays.copyOf(second, second.length / 2);
+        try {
+            reader.appendReports(corrupt, 0, 2);
+            fail("Expected UnreadableBatchException");
+        } catch (PackedReportReader.UnreadableBatchException expected) {
+        }
+
+        StringBuilder expected = new StringBuilder("{\"items\":[");
+        for (int i = 0; i < 3; i++) {
+            expected.append(bundles[i].toMLSJSON().toString()).append(",");
+        }
+        expected.append(bundles[4].toMLSJSON().toString()).append(",{\"lat\":1},{\"lat\":2}]}");
+        assertEquals(expected.toString(), Zipper.unzipData(reader.finishBody()));
+
+        // Nothing added, nothing to send
+        reader.startBody(1024);
+        reader.appendReports(legacy, 1, 1);
+        assertNull(reader.finishBody());
+
+        // The same body, to a stream
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        reader.startBody(out);
+        reader.appendReports(first, 0, 3);
+        reader.appendReports(second, 1, 1);
+        reader.appendReports(legacy, 0, 2);
+        assertTrue(reader.endBody());
+        assertEquals(expected.toString(), Zipper.unzipData(out.toByteArray()));
+    }
+}
@@ -0,0 +1,132 @@
+package org.mozilla.mozstumbler.service.stumblerthread.datahandling;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+
+@Config(emulateSdk = 18)
+@RunWith(RobolectricTestRunner.class)
+public class ReportIndexTest {
+    private File mDir;
+    private File mReportsDir;
+    private File mJournal;
+
+    @Before
+    public void setUp() throws IOException {
+        mDir = File.createTempFile("reportindex", "");
+        mDir.delete();
+        mReportsDir = new File(mDir, "reports");
+        mReportsDir.mkdirs();
+        mJournal = new File(mDir, "reports_index");
+    }
+
+    @After
+    public void tearDown() {
+        deleteAll(mDir);
+    }
+
+    private static void deleteAll(File f) {
+        File[] children = f.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteAll(child);
+            }
+        }
+        f.delete();
+    }
+
+    private File writeBatch(long time, int reports, int wifis, int cells, int bytes) throws IOException {
+        File f = new File(mReportsDir, ReportIndex.createFilename(time, reports, wifis, cells));
+        FileOutputStream out = new FileOutputStream(f);
+        try {
+            out.write(new byte[bytes]);
+        } finally {
+            out.close();
+        }
+        return f;
+    }
+
+    @Test
+    public void testCountsFollowAddAndRemove() throws IOException {
+        ReportIndex index = new ReportIndex(mReportsDir, mJournal);
+        index.load();
+        assertTrue(index.isEmpty());
+        assertEquals(0, index.getOldestTime());
+
+        index.add(writeBatch(1000, 50, 200, 10, 30), 30);
+        index.add(writeBatch(2000, 20, 100, 5, 20), 20);
+        assertEquals(2, index.size());
+        assertEquals(70, index.getReportCount());
+        assertEquals(300, index.getWifiCount());
+        assertEquals(15, index.getCellCount());
+        assertEquals(50, index.getBytes());
+        assertEquals(1000, index.getOldestTime());
+
+        assertTrue(index.remove(ReportIndex.createFilename(1000, 50, 200, 10)));
+        assertFalse(index.remove("not-a-batch"));
+        assertEquals(1, index.size());
+        assertEquals(20, index.getReportCount());
+        assertEquals(20, index.getBytes());
+        assertEquals(2000, index.getOldestTime());
+    }
+
+    @Test
+    public void testLoadReconcilesJournalWithDirectory() throws IOException {
+        ReportIndex index = new ReportIndex(mReportsDir, mJournal);
+        index.load();
+        File first = writeBatch(1000, 50, 200, 10, 30);
+        index.add(first, 30);
+        File second = writeBatch(2000, 20, 100, 5, 20);
+        index.add(second, 20);
+        index.remove(first.getName());
+        first.delete();
+
+        // Written by something the journal never heard about, and a file gone behind its back
+        writeBatch(500, 1, 2, 3, 7);
+        second.delete();
+        writeBatch(3000, 4, 5, 6, 9);
+
+        ReportIndex reloaded = new ReportIndex(mReportsDir, mJournal);
+        reloaded.load();
+        assertEquals(2, reloaded.size());
+        assertEquals(5, reloaded.getReportCount());
+        assertEquals(16, reloaded.getBytes());
+        assertEquals(500, reloaded.getOldestTime());
+
+        ReportIndex.Entry[] entries = reloaded.snapshot();
+        assertEquals(500, entries[0].time);
+        assertEquals(3000, entries[1].time);
+    }
+
+    @Test
+    public void testJournalIsCompacted() throws IOException {
+        ReportIndex index = new ReportIndex(mReportsDir, mJournal);
+        index.load();
+        for (int i = 0; i < 500; i++) {
+            File f = writeBatch(1000 + i, 1, 1, 1, 10);
+            index.add(f, 10);
+            index.remove(f.getName());
+            f.delete();
+        }
+        index.add(writeBatch(5000, 1, 1, 1, 10), 10);
+
+        // Bounded by the slack, not by the 1000 changes
+        assertTrue(mJournal.length() < 200 * 64);
+
+        ReportIndex reloaded = new ReportIndex(mReportsDir, mJournal);
+        reloaded.load();
+        assertEquals(1, reloaded.size());
+        assertEquals(5000, reloaded.getOldestTime());
+    }
+}
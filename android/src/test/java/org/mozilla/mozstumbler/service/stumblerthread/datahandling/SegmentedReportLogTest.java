@@ -0,0 +1,191 @@
+package org.mozilla.mozstumbler.service.stumblerthread.datahandling;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+
+@Config(emulateSdk = 18)
+@RunWith(RobolectricTestRunner.class)
+public class SegmentedReportLogTest {
+    private static final int BATCH_SIZE = 100;
+    // Three batches to a segment
+    private static final int SEGMENT_SIZE = 3 * (SegmentedReportLog.HEADER_SIZE + BATCH_SIZE);
+
+    private File mDir;
+
+    @Before
+    public void setUp() throws IOException {
+        mDir = File.createTempFile("reportlog", "");
+        mDir.delete();
+    }
+
+    @After
+    public void tearDown() {
+        File[] children = mDir.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                child.delete();
+            }
+        }
+        mDir.delete();
+    }
+
+    private SegmentedReportLog open() throws IOException {
+        SegmentedReportLog log = new SegmentedReportLog(mDir, SEGMENT_SIZE);
+        log.load();
+        return log;
+    }
+
+    private static byte[] batch(int i) {
+        byte[] data = new byte[BATCH_SIZE];
+        Arrays.fill(data, (byte) i);
+        return data;
+    }
+
+    private static void write(SegmentedReportLog log, int i) throws IOException {
+        log.write(batch(i), 1000 + i, i, 10 * i, 100 * i);
+    }
+
+    private int segmentCount() {
+        int count = 0;
+        for (String name : mDir.list()) {
+            if (name.startsWith(SegmentedReportLog.SEGMENT_PREFIX)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    @Test
+    public void testWriteReadAndDelete() throws IOException {
+        SegmentedReportLog log = open();
+        assertTrue(log.isEmpty());
+        for (int i = 1; i <= 7; i++) {
+            write(log, i);
+        }
+        assertEquals(3, segmentCount());
+        assertEquals(28, log.getReportCount());
+        assertEquals(280, log.getWifiCount());
+        assertEquals(2800, log.getCellCount());
+        assertEquals(7 * (SegmentedReportLog.HEADER_SIZE + BATCH_SIZE), log.getBytes());
+        assertEquals(1001, log.getOldestTime());
+
+        String[] names = log.listBatches();
+        assertEquals(7, names.length);
+        for (int i = 0; i < names.length; i++) {
+            DataStorageManager.ReportBatch b = log.read(names[i]);
+            assertTrue(Arrays.equals(batch(i + 1), b.data));
+            assertEquals(i + 1, b.reportCount);
+            assertEquals(10 * (i + 1), b.wifiCount);
+            assertEquals(1000 + i + 1, log.getTime(names[i]));
+        }
+
+        // Uploading the first segment's batches drops it
+        for (int i = 0; i < 3; i++) {
+            assertTrue(log.delete(names[i]));
+        }
+        assertFalse(log.delete(names[0]));
+        assertNull(log.read(names[0]));
+        assertEquals(2, segmentCount());
+        assertEquals(1004, log.getOldestTime());
+        assertEquals(22, log.getReportCount());
+        log.close();
+    }
+
+    @Test
+    public void testCursorSurvivesRestart() throws IOException {
+        SegmentedReportLog log = open();
+        for (int i = 1; i <= 5; i++) {
+            write(log, i);
+        }
+        String[] names = log.listBatches();
+        log.delete(names[0]);
+        log.delete(names[1]);
+        // Out of order, forgotten only once the cursor reaches it
+        log.delete(names[3]);
+        assertEquals(2, log.listBatches().length);
+        log.close();
+
+        log = open();
+        names = log.listBatches();
+        assertEquals(3, names.length);
+        assertEquals(1003, log.getTime(names[0]));
+        assertEquals(3 + 4 + 5, log.getReportCount());
+
+        // Appends carry on in the last segment
+        write(log, 6);
+        assertEquals(2, segmentCount());
+        log.close();
+
+        log = open();
+        assertEquals(4, log.listBatches().length);
+        log.close();
+    }
+
+    @Test
+    public void testTornWriteIsTruncated() throws IOException {
+        SegmentedReportLog log = open();
+        for (int i = 1; i <= 2; i++) {
+            write(log, i);
+        }
+        log.close();
+        File segment = log.segmentFile(0);
+
+        // A crash in the middle of a third record, and a flipped bit in the second
+        long validLength = segment.length();
+        RandomAccessFile f = new RandomAccessFile(segment, "rw");
+        try {
+            f.seek(validLength);
+            f.write(new byte[SegmentedReportLog.HEADER_SIZE / 2]);
+            f.seek(validLength - 1);
+            f.write(0x7f);
+        } finally {
+            f.close();
+        }
+
+        log = open();
+        assertEquals(1, log.listBatches().length);
+        assertEquals(1, log.getReportCount());
+        assertEquals(SegmentedReportLog.HEADER_SIZE + BATCH_SIZE, segment.length());
+
+        write(log, 3);
+        log.close();
+        log = open();
+        String[] names = log.listBatches();
+        assertEquals(2, names.length);
+        assertTrue(Arrays.equals(batch(3), log.read(names[1]).data));
+        log.close();
+    }
+
+    @Test
+    public void testDeleteAll() throws IOException {
+        SegmentedReportLog log = open();
+        for (int i = 1; i <= 4; i++) {
+            write(log, i);
+        }
+        log.deleteAll();
+        assertTrue(log.isEmpty());
+        assertEquals(0, log.getOldestTime());
+        assertEquals(0, segmentCount());
+
+        write(log, 5);
+        log.close();
+        log = open();
+        assertEquals(1, log.listBatches().length);
+        assertEquals(5, log.getReportCount());
+        log.close();
+    }
+}
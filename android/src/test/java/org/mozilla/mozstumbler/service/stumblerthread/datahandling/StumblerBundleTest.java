@@ -0,0 +1,94 @@
+package org.mozilla.mozstumbler.service.stumblerthread.datahandling;
+
+import android.location.Location;
+import android.net.wifi.ScanResult;
+import android.telephony.TelephonyManager;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mozilla.mozstumbler.service.stumblerthread.scanners.cellscanner.CellInfo;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+import static org.mozilla.mozstumbler.service.stumblerthread.ReporterTest.createCellInfo;
+import static org.mozilla.mozstumbler.service.stumblerthread.ReporterTest.createScanResult;
+
+@Config(emulateSdk = 18)
+@RunWith(RobolectricTestRunner.class)
+public class StumblerBundleTest {
+    private static final String BSSID = "abcd00000001";
+    private static final long BSSID_KEY = 0xabcd00000001L;
+
+    private static StumblerBundle createBundle(boolean aggregating) {
+        Location loc = new Location("mock");
+        loc.setLatitude(42);
+        loc.setLongitude(45);
+        loc.setTime(System.currentTimeMillis());
+        StumblerBundle bundle = new StumblerBundle(loc, TelephonyManager.PHONE_TYPE_GSM);
+        bundle.setAggregating(aggregating);
+        return bundle;
+    }
+
+    private static void addWifiReadings(StumblerBundle bundle, int... levels) {
+        for (int level : levels) {
+            bundle.addWifiData(BSSID, createScanResult(BSSID, "caps", level, 2412, 10));
+        }
+    }
+
+    @Test
+    public void testFirstReadingKeptWhenNotAggregating() {
+        StumblerBundle bundle = createBundle(false);
+        addWifiReadings(bundle, -80, -50, -65);
+
+        assertEquals(1, bundle.getWifiCount());
+        assertEquals(-80, bundle.getWifiData().get(BSSID_KEY).level);
+        assertEquals(0, bundle.getMergedReadingCount());
+    }
+
+    @Test
+    public void testWifiReadingsAreMerged() {
+        StumblerBundle bundle = createBundle(true);
+        addWifiReadings(bundle, -80, -50, -65);
+
+        assertEquals(1, bundle.getWifiCount());
+        assertEquals(-50, bundle.getWifiData().get(BSSID_KEY).level);
+        assertEquals(2, bundle.getMergedReadingCount());
+
+        // The report carries the strongest reading
+        assertTrue(new MLSJSONWriter().writeBundle(bundle).toString().contains("\"signal\":-50"));
+    }
+
+    @Test
+    public void testCellReadingsAreMerged() {
+        StumblerBundle bundle = createBundle(true);
+        CellInfo weak = createCellInfo(1, 1, 2000, 1600199, 5);
+        CellInfo strong = createCellInfo(1, 1, 2000, 1600199, 20);
+        bundle.addCellData(weak.getCellKey(), weak);
+        bundle.addCellData(strong.getCellKey(), strong);
+        bundle.addCellData(weak.getCellKey(), weak);
+
+        assertEquals(1, bundle.getCellCount());
+        assertEquals(20, bundle.getCellData().get(weak.getCellKey()).getAsu());
+        assertEquals(2, bundle.getMergedReadingCount());
+    }
+
+    @Test
+    public void testFullBundleStillMergesRepeats() {
+        StumblerBundle bundle = createBundle(true);
+        addWifiReadings(bundle, -80);
+        for (int i = 2; bundle.getWifiCount() < StumblerBundle.MAX_WIFIS_PER_LOCATION; i++) {
+            String bssid = Long.toHexString(i | 0xabcd00000000L);
+            bundle.addWifiData(bssid, createScanResult(bssid, "caps", -70, 2412, 10));
+        }
+        assertTrue(bundle.hasMaxWifisPerLocation());
+
+        addWifiReadings(bundle, -40);
+        assertEquals(-40, bundle.getWifiData().get(BSSID_KEY).level);
+        assertEquals(1, bundle.getMergedReadingCount());
+        // A new AP is still dropped
+        bundle.addWifiData("abcdef000001", createScanResult("abcdef000001", "caps", -40, 2412, 10));
+        assertEquals(StumblerBundle.MAX_WIFIS_PER_LOCATION, bundle.getWifiCount());
+    }
+}
@@ -0,0 +1,118 @@
+package org.mozilla.mozstumbler.service.stumblerthread.datahandling;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Properties;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+
+@Config(emulateSdk = 18)
+@RunWith(RobolectricTestRunner.class)
+public class SyncStatsTest {
+    private File mDir;
+
+    @Before
+    public void setUp() throws IOException {
+        mDir = File.createTempFile("syncstats", "");
+        mDir.delete();
+        mDir.mkdirs();
+    }
+
+    @After
+    public void tearDown() {
+        for (File child : mDir.listFiles()) {
+            child.delete();
+        }
+        mDir.delete();
+    }
+
+    private SyncStats open() {
+        SyncStats stats = new SyncStats(new File(mDir, "upload_stats.ini"), new File(mDir, "upload_history"));
+        stats.load();
+        return stats;
+    }
+
+    @Test
+    public void testTotalsAreCheckpointed() throws IOException {
+        SyncStats stats = open();
+        stats.add(1000, 10, 20, 30);
+        stats.add(500, 5, 0, 1);
+        // Nothing uploaded, nothing counted
+        stats.add(100, 0, 0, 0);
+        assertEquals(1500, stats.getBytesSent());
+        assertEquals(15, stats.getObservationsSent());
+        assertTrue(stats.getLastUploadTime() > 0);
+
+        // Only in memory until the checkpoint
+        assertTrue(stats.isDirty());
+        assertFalse(new File(mDir, "upload_stats.ini").exists());
+        stats.checkpoint();
+        assertFalse(stats.isDirty());
+
+        SyncStats reopened = open();
+        assertEquals(1500, reopened.getBytesSent());
+        assertEquals(15, reopened.getObservationsSent());
+        assertEquals(20, reopened.getCellsSent());
+        assertEquals(31, reopened.getWifisSent());
+        assertEquals(stats.getLastUploadTime(), reopened.getLastUploadTime());
+    }
+
+    @Test
+    public void testReadsStatsFileFromEarlierVersions() throws IOException {
+        Properties props = new Properties();
+        props.setProperty(DataStorageContract.Stats.KEY_LAST_UPLOAD_TIME, "1406863343313");
+        props.setProperty(DataStorageContract.Stats.KEY_BYTES_SENT, "4096");
+        props.setProperty(DataStorageContract.Stats.KEY_OBSERVATIONS_SENT, "42");
+        props.setProperty(DataStorageContract.Stats.KEY_CELLS_SENT, "7");
+        props.setProperty(DataStorageContract.Stats.KEY_WIFIS_SENT, "99");
+        FileOutputStream out = new FileOutputStream(new File(mDir, "upload_stats.ini"));
+        props.store(out, null);
+        out.close();
+
+        SyncStats stats = open();
+        assertEquals(1406863343313L, stats.getLastUploadTime());
+        assertEquals(4096, stats.getBytesSent());
+        assertEquals(42, stats.getObservationsSent());
+        assertEquals(7, stats.getCellsSent());
+        assertEquals(99, stats.getWifisSent());
+        assertEquals(0, stats.getUploadHistory().length);
+    }
+
+    @Test
+    public void testUploadHistoryRing() throws IOException {
+        SyncStats stats = open();
+        int total = SyncStats.HISTORY_SIZE + 10;
+        for (int i = 0; i < total; i++) {
+            stats.recordUpload(100 * i, i, 10 + i, (i % 5 == 0) ? 503 : 200);
+        }
+
+        SyncStats.Upload[] history = stats.getUploadHistory();
+        assertEquals(SyncStats.HISTORY_SIZE, history.length);
+        // The oldest were dropped
+        assertEquals(10, history[0].reports);
+        assertEquals(total - 1, history[history.length - 1].reports);
+        assertFalse(history[0].isSuccess());
+        assertTrue(history[1].isSuccess());
+
+        stats.checkpoint();
+        SyncStats.Upload[] reloaded = open().getUploadHistory();
+        assertEquals(history.length, reloaded.length);
+        for (int i = 0; i < history.length; i++) {
+            assertEquals(history[i].time, reloaded[i].time);
+            assertEquals(history[i].bytes, reloaded[i].bytes);
+            assertEquals(history[i].reports, reloaded[i].reports);
+            assertEquals(history[i].durationMs, reloaded[i].durationMs);
+            assertEquals(history[i].httpStatus, reloaded[i].httpStatus);
+        }
+    }
+}
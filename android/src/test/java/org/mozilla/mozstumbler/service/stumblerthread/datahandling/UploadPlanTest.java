@@ -0,0 +1,182 @@
+package org.mozilla.mozstumbler.service.stumblerthread.datahandling;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+
+@Config(emulateSdk = 18)
+@RunWith(RobolectricTestRunner.class)
+public class UploadPlanTest {
+    private static final int TARGET = 1000;
+
+    private static IReportStore.BatchInfo batch(String name, long bytes, int reports) {
+        return new IReportStore.BatchInfo(name, 0, bytes, reports, reports * 10, reports);
+    }
+
+    @Test
+    public void testSmallBatchesAreMerged() {
+        UploadPlan plan = new UploadPlan(Arrays.asList(
+                batch("a", 300, 5), batch("b", 300, 5), batch("c", 300, 5), batch("d", 300, 5),
+                batch("e", 1400, 20)), TARGET);
+        assertEquals(5, plan.getBatchCount());
+        // a+b+c fit, d on its own, e is too big to merge but not enough over to split
+        assertEquals(3, plan.getPayloadCount());
+
+        UploadPlan.Payload payload = plan.next();
+        assertEquals(3, payload.slices.size());
+        assertEquals(15, payload.reportCount);
+        assertEquals(150, payload.wifiCount);
+        assertEquals(900, payload.bytes);
+        assertEquals(Arrays.asList("a", "b", "c"), plan.succeeded(payload));
+
+        assertEquals(1, plan.next().slices.size());
+        payload = plan.next();
+        assertEquals("e", payload.slices.get(0).name);
+        assertEquals(20, payload.slices.get(0).reportCount);
+        assertNull(plan.next());
+    }
+
+    @Test
+    public void testBigBatchIsSplit() {
+        UploadPlan plan = new UploadPlan(Arrays.asList(batch("big", 3000, 10), batch("small", 100, 1)), TARGET);
+        assertEquals(4, plan.getPayloadCount());
+
+        int reports = 0;
+        int wifis = 0;
+        UploadPlan.Payload[] parts = new UploadPlan.Payload[3];
+        for (int i = 0; i < parts.length; i++) {
+            parts[i] = plan.next();
+            UploadPlan.Slice slice = parts[i].slices.get(0);
+            assertEquals("big", slice.name);
+            assertEquals(reports, slice.firstReport);
+            reports += slice.reportCount;
+            wifis += slice.wifiCount;
+        }
+        // All of it, shared out
+        assertEquals(10, reports);
+        assertEquals(100, wifis);
+
+        // Deleted with its last part, and only if the others went through
+        assertTrue(plan.succeeded(parts[0]).isEmpty());
+        plan.failed(parts[1]);
+        assertTrue(plan.succeeded(parts[2]).isEmpty());
+        assertEquals(Arrays.asList("small"), plan.succeeded(plan.next()));
+
+        // With several requests in flight, the last part may well be the first to come back
+        plan = new UploadPlan(Arrays.asList(batch("big", 3000, 10)), TARGET);
+        UploadPlan.Payload first = plan.next();
+        UploadPlan.Payload second = plan.next();
+        assertTrue(plan.succeeded(plan.next()).isEmpty());
+        assertTrue(plan.succeeded(first).isEmpty());
+        assertEquals(Arrays.asList("big"), plan.succeeded(second));
+    }
+
+    @Test
+    public void testRetrySeparately() {
+        UploadPlan plan = new UploadPlan(Arrays.asList(batch("a", 200, 2), batch("b", 200, 2), batch("c", 800, 8)), TARGET);
+        assertEquals(2, plan.getPayloadCount());
+        UploadPlan.Payload rejected = plan.next();
+        assertTrue(plan.retrySeparately(rejected));
+        assertEquals(3, plan.getPayloadCount());
+
+        // One at a time, ahead of the rest
+        UploadPlan.Payload a = plan.next();
+        UploadPlan.Payload b = plan.next();
+        assertEquals("a", a.slices.get(0).name);
+        assertEquals("b", b.slices.get(0).name);
+        assertFalse(plan.retrySeparately(b));
+        List<String> done = plan.succeeded(a);
+        assertEquals(Arrays.asList("a"), done);
+        assertEquals("c", plan.next().slices.get(0).name);
+    }
+
+    @Test
+    public void testRejected() {
+        UploadPlan plan = new UploadPlan(Arrays.asList(batch("big", 3000, 10), batch("small", 100, 1)), TARGET);
+        UploadPlan.Payload first = plan.next();
+        plan.next();
+        UploadPlan.Payload last = plan.next();
+
+        // A part of the big one: kept, even once its other parts went through
+        assertTrue(plan.rejected(first).isEmpty());
+        assertTrue(plan.succeeded(last).isEmpty());
+        assertEquals(Arrays.asList("small"), plan.rejected(plan.next()));
+    }
+
+    @Test
+    public void testNewTargetRegroups() {
+        UploadPlan plan = new UploadPlan(Arrays.asList(
+                batch("a", 300, 5), batch("b", 300, 5), batch("big", 3000, 10), batch("c", 300, 5)), TARGET);
+        UploadPlan.Payload first = plan.next();
+        assertEquals(Arrays.asList("a", "b"), names(first));
+        // The first part of big is in flight when the link turns out to be faster
+        UploadPlan.Payload part = plan.next();
+        assertEquals(3, part.slices.get(0).reportCount);
+
+        plan.setTargetBytes(5000);
+        assertEquals(5000, plan.getTargetBytes());
+        assertEquals(1, plan.getPayloadCount());
+        UploadPlan.Payload rest = plan.next();
+        // The other two parts back together, with c
+        assertEquals(2, rest.slices.size());
+        assertEquals(3, rest.slices.get(0).firstReport);
+        assertEquals(7, rest.slices.get(0).reportCount);
+        assertEquals(2100, rest.slices.get(0).bytes);
+        assertEquals("c", rest.slices.get(1).name);
+
+        assertTrue(plan.succeeded(rest).contains("c"));
+        assertTrue(plan.succeeded(part).contains("big"));
+        assertEquals(Arrays.asList("a", "b"), plan.succeeded(first));
+
+        // And smaller again
+        plan = new UploadPlan(Arrays.asList(batch("a", 2000, 10)), 5000);
+        plan.setTargetBytes(500);
+        assertEquals(4, plan.getPayloadCount());
+    }
+
+    @Test
+    public void testRetrySmaller() {
+        UploadPlan plan = new UploadPlan(Arrays.asList(batch("a", 600, 6), batch("b", 400, 4), batch("c", 100, 1)), TARGET);
+        UploadPlan.Payload tooLarge = plan.next();
+        assertEquals(Arrays.asList("a", "b"), names(tooLarge));
+        assertTrue(plan.retrySmaller(tooLarge));
+
+        // Smaller, ahead of the rest
+        UploadPlan.Payload a = plan.next();
+        UploadPlan.Payload b = plan.next();
+        assertEquals(Arrays.asList("a"), names(a));
+        assertEquals(Arrays.asList("b"), names(b));
+        assertEquals("c", plan.next().slices.get(0).name);
+        assertEquals(Arrays.asList("b"), plan.succeeded(b));
+
+        // A batch is split, and deleted once all of its parts went through
+        assertTrue(plan.retrySmaller(a));
+        UploadPlan.Payload first = plan.next();
+        UploadPlan.Payload second = plan.next();
+        assertEquals(300, first.bytes);
+        assertEquals(3, second.slices.get(0).firstReport);
+        assertTrue(plan.succeeded(first).isEmpty());
+        assertEquals(Arrays.asList("a"), plan.succeeded(second));
+
+        plan = new UploadPlan(Arrays.asList(batch("one", 900, 1)), TARGET);
+        assertFalse(plan.retrySmaller(plan.next()));
+    }
+
+    private static List<String> names(UploadPlan.Payload payload) {
+        List<String> names = new ArrayList<String>();
+        for (UploadPlan.Slice slice : payload.slices) {
+            names.add(slice.name);
+        }
+        return names;
+    }
+}
@@ -15,6 +15,7 @@ import org.robolectric.RobolectricTestRunner;
 import org.robolectric.annotation.Config;
 
 import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
 
 /**
  * Created by victorng on 14-11-19.
@@ -79,4 +80,25 @@ public class CellInfoTest {
 
     }
 
-}
\ No newline at end of file
+    @Test
+    public void testCellKey() {
+        CellInfo a = new CellInfo(TelephonyManager.PHONE_TYPE_GSM);
+        a.setGsmCellInfo(310, 410, 2000, 1600199, 19);
+        CellInfo b = new CellInfo(TelephonyManager.PHONE_TYPE_GSM);
+        b.setGsmCellInfo(310, 410, 2000, 1600199, 25);
+
+        // signal strength is not part of the identity
+        assertEquals(a.getCellKey(), b.getCellKey());
+
+        b.setGsmCellInfo(310, 410, 2000, 1600200, 19);
+        assertFalse(a.getCellKey() == b.getCellKey());
+
+        b.setGsmCellInfo(310, 410, 2001, 1600199, 19);
+        assertFalse(a.getCellKey() == b.getCellKey());
+
+        // same numbers, different radio
+        b.setWcmdaCellInfo(310, 410, 2000, 1600199, CellInfo.UNKNOWN_CID, 19);
+        assertFalse(a.getCellKey() == b.getCellKey());
+    }
+
+}
@@ -0,0 +1,68 @@
+package org.mozilla.mozstumbler.service.uploadthread;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+
+@Config(emulateSdk = 18)
+@RunWith(RobolectricTestRunner.class)
+public class LinkEstimatorTest {
+    private static final int INITIAL = 32 * 1024;
+
+    @Test
+    public void testFastLinkSendsMore() {
+        LinkEstimator link = new LinkEstimator(INITIAL);
+        assertEquals(INITIAL, link.getPayloadBytes());
+        assertEquals(LinkEstimator.DEFAULT_CONNECT_TIMEOUT_MS, link.getConnectTimeoutMs());
+        assertEquals(LinkEstimator.DEFAULT_READ_TIMEOUT_MS, link.getReadTimeoutMs(INITIAL));
+
+        // Wifi: 50 ms round trip, 32 KB in 100 ms
+        link.onResponse(0, 50);
+        for (int i = 0; i < 10; i++) {
+            link.onResponse(32 * 1024, 100);
+        }
+        assertEquals(50, link.getRttMs());
+        assertEquals(LinkEstimator.MAX_PAYLOAD_BYTES, link.getPayloadBytes());
+        assertEquals(LinkEstimator.MIN_READ_TIMEOUT_MS, link.getReadTimeoutMs(link.getPayloadBytes()));
+    }
+
+    @Test
+    public void testSlowLinkSendsLessAndWaitsLonger() {
+        LinkEstimator link = new LinkEstimator(INITIAL);
+        // 2G: 32 KB at about 4 KB/s, with a 1.5 s round trip
+        link.onResponse(0, 1500);
+        for (int i = 0; i < 10; i++) {
+            link.onResponse(32 * 1024, 9500);
+        }
+        assertEquals(1500, link.getRttMs());
+        assertEquals(4 * 1024, link.getThroughput());
+        // What goes in the 2.5 s left of the target after the round trip
+        long payload = link.getPayloadBytes();
+        assertEquals(10 * 1024, payload);
+        assertEquals(1500 * LinkEstimator.CONNECT_ROUND_TRIPS, link.getConnectTimeoutMs());
+
+        // A timeout shrinks the payloads and stretches the timeouts, down to the min and up to the max
+        int readTimeout = link.getReadTimeoutMs(payload);
+        link.onNoResponse();
+        assertEquals(5 * 1024, link.getPayloadBytes());
+        assertTrue(link.getReadTimeoutMs(payload) > readTimeout);
+        link.onNoResponse();
+        link.onNoResponse();
+        assertEquals(LinkEstimator.MIN_PAYLOAD_BYTES, link.getPayloadBytes());
+        assertEquals(LinkEstimator.MAX_CONNECT_TIMEOUT_MS, link.getConnectTimeoutMs());
+    }
+
+    @Test
+    public void testTooLarge() {
+        LinkEstimator link = new LinkEstimator(INITIAL);
+        link.onTooLarge(INITIAL);
+        assertEquals(INITIAL / 2, link.getPayloadBytes());
+        // Even for a fast link
+        link.onResponse(1024 * 1024, 100);
+        assertEquals(INITIAL / 2, link.getPayloadBytes());
+    }
+}
@@ -0,0 +1,79 @@
+package org.mozilla.mozstumbler.service.uploadthread;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.Random;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+
+@Config(emulateSdk = 18)
+@RunWith(RobolectricTestRunner.class)
+public class UploadBackoffTest {
+    private static final long NOW = 1406863343313L;
+
+    private static void assertJittered(long expected, long actual) {
+        assertTrue(actual + " not in [" + expected / 2 + ", " + expected + "]",
+                actual >= expected / 2 && actual <= expected);
+    }
+
+    @Test
+    public void testBackoffAndBreaker() {
+        UploadBackoff backoff = new UploadBackoff(0, 0, new Random(42));
+        assertTrue(backoff.canAttempt(NOW));
+
+        assertJittered(UploadBackoff.IN_PASS_BASE_DELAY_MS, backoff.onFailure(NOW, -1));
+        assertJittered(UploadBackoff.IN_PASS_BASE_DELAY_MS * 2, backoff.onFailure(NOW, -1));
+        assertTrue(backoff.canAttempt(NOW));
+
+        // Open
+        assertEquals(UploadBackoff.STOP, backoff.onFailure(NOW, -1));
+        assertJittered(UploadBackoff.OPEN_BASE_DELAY_MS, backoff.getNextAttemptTime() - NOW);
+        assertFalse(backoff.canAttempt(NOW + 1000));
+        assertTrue(backoff.canAttempt(NOW + UploadBackoff.OPEN_BASE_DELAY_MS));
+
+        // Carried over to the next pass, where one more failure opens it again for longer
+        backoff = new UploadBackoff(backoff.getConsecutiveFailures(), backoff.getNextAttemptTime(), new Random(42));
+        long later = NOW + UploadBackoff.OPEN_BASE_DELAY_MS;
+        assertEquals(UploadBackoff.STOP, backoff.onFailure(later, -1));
+        assertJittered(UploadBackoff.OPEN_BASE_DELAY_MS * 2, backoff.getNextAttemptTime() - later);
+
+        // Never longer than the max
+        for (int i = 0; i < 100; i++) {
+            backoff.onFailure(later, -1);
+        }
+        assertJittered(UploadBackoff.MAX_OPEN_DELAY_MS, backoff.getNextAttemptTime() - later);
+
+        backoff.onSuccess();
+        assertEquals(0, backoff.getConsecutiveFailures());
+        assertTrue(backoff.canAttempt(later));
+    }
+
+    @Test
+    public void testRetryAfter() {
+        assertEquals(120 * 1000, UploadBackoff.parseRetryAfter(" 120", NOW));
+        assertEquals(-1, UploadBackoff.parseRetryAfter(null, NOW));
+        assertEquals(-1, UploadBackoff.parseRetryAfter("soon", NOW));
+        // 2014-08-01 03:22:23 GMT is NOW rounded down to the second
+        assertEquals(60 * 1000 - 313, UploadBackoff.parseRetryAfter("Fri, 01 Aug 2014 03:23:23 GMT", NOW));
+
+        // A lower bound on the wait
+        UploadBackoff backoff = new UploadBackoff(0, 0, new Random(42));
+        assertEquals(5000, backoff.onFailure(NOW, 5000));
+
+        // Too long to wait out in the pass, the breaker opens right away
+        backoff = new UploadBackoff(0, 0, new Random(42));
+        assertEquals(UploadBackoff.STOP, backoff.onFailure(NOW, 60 * 60 * 1000));
+        assertEquals(NOW + 60 * 60 * 1000, backoff.getNextAttemptTime());
+    }
+
+    @Test
+    public void testClockSetBack() {
+        UploadBackoff backoff = new UploadBackoff(3, NOW + UploadBackoff.MAX_OPEN_DELAY_MS * 10);
+        assertTrue(backoff.canAttempt(NOW));
+    }
+}
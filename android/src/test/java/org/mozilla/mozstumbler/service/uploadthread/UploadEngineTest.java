@@ -0,0 +1,280 @@
+package org.mozilla.mozstumbler.service.uploadthread;
+
+import android.location.Location;
+import android.telephony.TelephonyManager;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mozilla.mozstumbler.service.core.http.HTTPResponse;
+import org.mozilla.mozstumbler.service.core.http.ILocationService;
+import org.mozilla.mozstumbler.service.core.http.IResponse;
+import org.mozilla.mozstumbler.service.stumblerthread.datahandling.DataStorageManager;
+import org.mozilla.mozstumbler.service.stumblerthread.datahandling.PackedReportWriter;
+import org.mozilla.mozstumbler.service.stumblerthread.datahandling.ReportBatchBuilder;
+import org.mozilla.mozstumbler.service.stumblerthread.datahandling.StumblerBundle;
+import org.mozilla.mozstumbler.service.stumblerthread.datahandling.UploadPlan;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+import static org.mozilla.mozstumbler.service.stumblerthread.ReporterTest.createScanResult;
+
+@Config(emulateSdk = 18)
+@RunWith(RobolectricTestRunner.class)
+public class UploadEngineTest {
+    private static final int BATCHES = 3;
+    // Every report its own request, see UploadPlan
+    private static final int ONE_BYTE_TARGET = 1;
+    // Gzipped bodies of up to about 5 reports
+    private static final int MAX_BODY_BYTES = 500;
+
+    private DataStorageManager dm;
+
+    /* Takes latencyMs per request, and fails the request numbered failRequest (all of them for 0)
+     * with failStatus. Bodies over maxBodyBytes are rejected as too large. */
+    private static class SlowService implements ILocationService {
+        final int latencyMs;
+        final int failRequest;
+        final int maxBodyBytes;
+        final int failStatus;
+        final AtomicInteger tooLarge = new AtomicInteger();
+        final AtomicInteger requests = new AtomicInteger();
+        final AtomicInteger inFlight = new AtomicInteger();
+        final AtomicInteger maxInFlight = new AtomicInteger();
+        final AtomicInteger warmUps = new AtomicInteger();
+        final AtomicInteger fileBodies = new AtomicInteger();
+
+        volatile int readTimeoutMs;
+
+        SlowService(int latencyMs, int failRequest) {
+            this(latencyMs, failRequest, Integer.MAX_VALUE);
+        }
+
+        SlowService(int latencyMs, int failRequest, int maxBodyBytes) {
+            this(latencyMs, failRequest, maxBodyBytes, 503);
+        }
+
+        SlowService(int latencyMs, int failRequest, int maxBodyBytes, int failStatus) {
+            this.latencyMs = latencyMs;
+            this.failRequest = failRequest;
+            this.maxBodyBytes = maxBodyBytes;
+            this.failStatus = failStatus;
+        }
+
+        @Override
+        public IResponse submit(byte[] data, Map<String, String> headers, boolean precompressed) {
+            final int number = requests.incrementAndGet();
+            final int now = inFlight.incrementAndGet();
+            synchronized (maxInFlight) {
+                maxInFlight.set(Math.max(maxInFlight.get(), now));
+            }
+            try {
+                Thread.sleep(latencyMs);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            inFlight.decrementAndGet();
+            if (data.length > maxBodyBytes) {
+                tooLarge.incrementAndGet();
+                return new HTTPResponse(413, null, new byte[0], data.length);
+            }
+            boolean fail = failRequest == 0 || number == failRequest;
+            return new HTTPResponse(fail ? failStatus : 200, null, new byte[0], data.length);
+        }
+
+        @Override
+        public IResponse submit(File gzippedBody, Map<String, String> headers) {
+            assertTrue(gzippedBody.exists());
+            fileBodies.incrementAndGet();
+            return submit(new byte[(int) gzippedBody.length()], headers, true);
+        }
+
+        @Override
+        public IResponse search(byte[] data, Map<String, String> headers, boolean precompressed) {
+            return null;
+        }
+
+        @Override
+        public IResponse warmUp() {
+            warmUps.incrementAndGet();
+            return null;
+        }
+
+        @Override
+        public void setTimeouts(int connectTimeoutMs, int readTimeoutMs) {
+            this.readTimeoutMs = readTimeoutMs;
+        }
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        dm = DataStorageManager.createGlobalInstance(Robolectric.application, null, 20000, 10);
+        dm.saveCurrentReportsToDisk();
+        dm.deleteAll();
+    }
+
+    private void queueBatches() throws IOException {
+        PackedReportWriter writer = new PackedReportWriter();
+        for (int i = 0; i < BATCHES * ReportBatchBuilder.MAX_REPORTS_IN_MEMORY; i++) {
+            Location loc = new Location("mock");
+            loc.setLatitude(42 + i * 0.001);
+            loc.setLongitude(45);
+            StumblerBundle bundle = new StumblerBundle(loc, TelephonyManager.PHONE_TYPE_GSM);
+            String bssid = Long.toHexString(i | 0xabcd00000000L);
+            bundle.addWifiData(bssid, createScanResult(bssid, "caps", 3, 11, 10));
+            dm.insert(writer.reset().writeBundle(bundle).toByteArray(), 1, 0);
+        }
+        dm.saveCurrentReportsToDisk();
+        assertEquals(BATCHES * ReportBatchBuilder.MAX_REPORTS_IN_MEMORY, dm.getQueuedCounts().mReportCount);
+    }
+
+    private static LinkEstimator fixedLink(int payloadBytes) {
+        return new LinkEstimator(payloadBytes, payloadBytes, payloadBytes);
+    }
+
+    private void upload(SlowService service, int maxInFlight) throws IOException {
+        queueBatches();
+        UploadEngine engine = new UploadEngine(service, dm, new HashMap<String, String>(), maxInFlight,
+                new UploadBackoff(0, 0), fixedLink(ONE_BYTE_TARGET));
+        engine.run(dm.planUpload(ONE_BYTE_TARGET));
+        assertTrue(dm.getSyncStats().getUploadHistory().length > 0);
+    }
+
+    @Test
+    public void testRequestsInFlight() throws IOException {
+        SlowService serial = new SlowService(10, -1);
+        upload(serial, 1);
+        assertEquals(1, serial.maxInFlight.get());
+        assertTrue(dm.isDirEmpty());
+
+        SlowService pipelined = new SlowService(10, -1);
+        upload(pipelined, 4);
+        assertTrue(pipelined.maxInFlight.get() > 1);
+        assertEquals(serial.requests.get(), pipelined.requests.get());
+        assertEquals(1, pipelined.warmUps.get());
+        // The parts of the split batches are acknowledged out of order, all of them still get deleted
+        assertTrue(dm.isDirEmpty());
+        assertEquals(0, dm.getQueuedCounts().mReportCount);
+    }
+
+    @Test
+    public void testFailedPartKeepsItsBatch() throws IOException {
+        SlowService service = new SlowService(1, 7);
+        queueBatches();
+        UploadBackoff backoff = new UploadBackoff(0, 0);
+        UploadEngine engine = new UploadEngine(service, dm, new HashMap<String, String>(), 3, backoff,
+                fixedLink(ONE_BYTE_TARGET));
+        engine.run(dm.planUpload(ONE_BYTE_TARGET));
+        assertEquals(0, backoff.getConsecutiveFailures());
+
+        // Only the batch with the failed part is left, whole
+        assertEquals(BATCHES * ReportBatchBuilder.MAX_REPORTS_IN_MEMORY - 1, engine.getReportsSent());
+        assertEquals(ReportBatchBuilder.MAX_REPORTS_IN_MEMORY, dm.getQueuedCounts().mReportCount);
+    }
+
+    @Test
+    public void testBadPartKeepsItsBatch() throws IOException {
+        SlowService service = new SlowService(1, 7, Integer.MAX_VALUE, 400);
+        queueBatches();
+        UploadBackoff backoff = new UploadBackoff(0, 0);
+        UploadEngine engine = new UploadEngine(service, dm, new HashMap<String, String>(), 3, backoff,
+                fixedLink(ONE_BYTE_TARGET));
+        engine.run(dm.planUpload(ONE_BYTE_TARGET));
+
+        // The other parts were in flight or still to go, the batch is kept for them
+        assertEquals(0, backoff.getConsecutiveFailures());
+        assertEquals(BATCHES * ReportBatchBuilder.MAX_REPORTS_IN_MEMORY - 1, engine.getReportsSent());
+        assertEquals(ReportBatchBuilder.MAX_REPORTS_IN_MEMORY, dm.getQueuedCounts().mReportCount);
+    }
+
+    @Test
+    public void testTooLargeSingleReportIsKept() throws IOException {
+        SlowService limited = new SlowService(1, -1, 0);
+        queueBatches();
+        UploadBackoff backoff = new UploadBackoff(0, 0);
+        UploadEngine engine = new UploadEngine(limited, dm, new HashMap<String, String>(), 2, backoff,
+                fixedLink(ONE_BYTE_TARGET));
+        engine.run(dm.planUpload(ONE_BYTE_TARGET));
+
+        // Every report alone, each one rejected; none of them dropped as bad
+        assertEquals(limited.requests.get(), limited.tooLarge.get());
+        assertEquals(0, engine.getReportsSent());
+        assertEquals(0, backoff.getConsecutiveFailures());
+        assertEquals(BATCHES * ReportBatchBuilder.MAX_REPORTS_IN_MEMORY, dm.getQueuedCounts().mReportCount);
+    }
+
+    @Test
+    public void testBreakerStopsThePass() throws IOException {
+        SlowService down = new SlowService(1, 0);
+        queueBatches();
+        UploadBackoff backoff = new UploadBackoff(0, 0);
+        UploadEngine engine = new UploadEngine(down, dm, new HashMap<String, String>(), 1, backoff,
+                fixedLink(ONE_BYTE_TARGET));
+        engine.run(dm.planUpload(ONE_BYTE_TARGET));
+
+        // Not every queued report, only until the breaker opened
+        assertEquals(UploadBackoff.BREAKER_FAILURES, down.requests.get());
+        assertFalse(backoff.canAttempt(System.currentTimeMillis()));
+        assertEquals(BATCHES * ReportBatchBuilder.MAX_REPORTS_IN_MEMORY, dm.getQueuedCounts().mReportCount);
+    }
+
+    @Test
+    public void testStoppedPassDeletesItsSpoolFile() throws IOException {
+        SlowService down = new SlowService(1, 0);
+        queueBatches();
+        UploadEngine engine = new UploadEngine(down, dm, new HashMap<String, String>(), 1, new UploadBackoff(0, 0),
+                fixedLink(ONE_BYTE_TARGET));
+        engine.setSpoolPayloadBytes(0);
+        engine.run(dm.planUpload(ONE_BYTE_TARGET));
+
+        // The breaker opened with the next payload already built in a file
+        assertEquals(UploadBackoff.BREAKER_FAILURES, down.requests.get());
+        File probe = dm.createUploadSpoolFile();
+        assertEquals(1, probe.getParentFile().listFiles().length);
+        probe.delete();
+    }
+
+    @Test
+    public void testTooLargeIsSentSmaller() throws IOException {
+        SlowService limited = new SlowService(1, -1, MAX_BODY_BYTES);
+        queueBatches();
+        LinkEstimator link = new LinkEstimator(UploadPlan.DEFAULT_TARGET_BYTES);
+        UploadEngine engine = new UploadEngine(limited, dm, new HashMap<String, String>(), 2, new UploadBackoff(0, 0), link);
+        engine.run(dm.planUpload(link.getPayloadBytes()));
+
+        assertTrue(limited.tooLarge.get() > 0);
+        assertTrue(link.getPayloadBytes() < UploadPlan.DEFAULT_TARGET_BYTES);
+        assertTrue(limited.readTimeoutMs > 0);
+        assertEquals(BATCHES * ReportBatchBuilder.MAX_REPORTS_IN_MEMORY, engine.getReportsSent());
+        assertTrue(dm.isDirEmpty());
+    }
+
+    @Test
+    public void testBigPayloadsAreSentFromFiles() throws IOException {
+        SlowService service = new SlowService(1, -1);
+        queueBatches();
+        UploadEngine engine = new UploadEngine(service, dm, new HashMap<String, String>(), 2, new UploadBackoff(0, 0),
+                fixedLink(MAX_BODY_BYTES));
+        // Every payload
+        engine.setSpoolPayloadBytes(0);
+        engine.run(dm.planUpload(MAX_BODY_BYTES));
+
+        assertEquals(service.requests.get(), service.fileBodies.get());
+        assertEquals(BATCHES * ReportBatchBuilder.MAX_REPORTS_IN_MEMORY, engine.getReportsSent());
+        assertTrue(dm.isDirEmpty());
+        // Deleted once sent, only the one made here is left
+        File probe = dm.createUploadSpoolFile();
+        assertEquals(1, probe.getParentFile().listFiles().length);
+        probe.delete();
+    }
+}
@@ -0,0 +1,71 @@
+package org.mozilla.mozstumbler.service.uploadthread;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import static junit.framework.Assert.assertEquals;
+
+@Config(emulateSdk = 18)
+@RunWith(RobolectricTestRunner.class)
+public class UploadPolicyTest {
+    private static final long NOW = 1406863343313L;
+    private static final long MINUTE_MS = 60 * 1000;
+
+    private static long delay(long queuedBytes, long oldest, boolean unmetered, boolean charging,
+                              long notBefore, long lastPass, boolean flush) {
+        return UploadPolicy.getDelayMs(new UploadPolicy.Conditions(queuedBytes, oldest, true, unmetered,
+                charging, false, notBefore, lastPass, flush), NOW);
+    }
+
+    @Test
+    public void testNothingToWaitFor() {
+        // Nothing queued
+        assertEquals(UploadPolicy.NOT_SCHEDULED, delay(0, NOW, true, true, 0, 0, true));
+        // No connection
+        assertEquals(UploadPolicy.NOT_SCHEDULED, UploadPolicy.getDelayMs(
+                new UploadPolicy.Conditions(1024, NOW, false, false, true, false, 0, 0, true), NOW));
+        // Wifi only, on mobile data
+        assertEquals(UploadPolicy.NOT_SCHEDULED, UploadPolicy.getDelayMs(
+                new UploadPolicy.Conditions(1024, NOW, true, false, true, true, 0, 0, true), NOW));
+        assertEquals(0, UploadPolicy.getDelayMs(
+                new UploadPolicy.Conditions(1024, NOW, true, true, true, true, 0, 0, false), NOW));
+    }
+
+    @Test
+    public void testUnmeteredAndMetered() {
+        final long few = 1024;
+        final long oldest = NOW - 10 * MINUTE_MS;
+        // Unmetered: waits for the queue to fill or the oldest report to age, unless charging
+        assertEquals(UploadPolicy.UNMETERED_MAX_AGE_MS - 10 * MINUTE_MS, delay(few, oldest, true, false, 0, 0, false));
+        assertEquals(0, delay(UploadPolicy.UNMETERED_MIN_BYTES, oldest, true, false, 0, 0, false));
+        assertEquals(0, delay(few, oldest, true, true, 0, 0, false));
+        assertEquals(0, delay(few, NOW - UploadPolicy.UNMETERED_MAX_AGE_MS, true, false, 0, 0, false));
+
+        // Metered: waits for more, and longer, charging or not
+        assertEquals(UploadPolicy.METERED_MAX_AGE_MS - 10 * MINUTE_MS, delay(few, oldest, false, true, 0, 0, false));
+        assertEquals(UploadPolicy.METERED_MAX_AGE_MS - 10 * MINUTE_MS,
+                delay(UploadPolicy.UNMETERED_MIN_BYTES, oldest, false, false, 0, 0, false));
+        assertEquals(0, delay(UploadPolicy.METERED_MIN_BYTES, oldest, false, false, 0, 0, false));
+
+        // Unknown age counts from now; flushing doesn't wait
+        assertEquals(UploadPolicy.UNMETERED_MAX_AGE_MS, delay(few, 0, true, false, 0, 0, false));
+        assertEquals(0, delay(few, oldest, false, false, 0, 0, true));
+    }
+
+    @Test
+    public void testBackoffAndInterval() {
+        final long big = UploadPolicy.METERED_MIN_BYTES;
+        // The server's backoff holds even a flush
+        assertEquals(3 * MINUTE_MS, delay(big, NOW, true, true, NOW + 3 * MINUTE_MS, 0, true));
+        assertEquals(0, delay(big, NOW, true, true, NOW - MINUTE_MS, 0, false));
+
+        // Not within MIN_INTERVAL_MS of the previous pass, unless flushed
+        assertEquals(UploadPolicy.MIN_INTERVAL_MS - MINUTE_MS, delay(big, NOW, true, true, 0, NOW - MINUTE_MS, false));
+        assertEquals(0, delay(big, NOW, true, true, 0, NOW - MINUTE_MS, true));
+        assertEquals(0, delay(big, NOW, true, true, 0, NOW - UploadPolicy.MIN_INTERVAL_MS, false));
+        // A previous pass in the future is ignored
+        assertEquals(0, delay(big, NOW, true, true, 0, NOW + MINUTE_MS, false));
+    }
+}
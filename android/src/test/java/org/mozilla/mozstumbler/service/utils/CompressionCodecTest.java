@@ -0,0 +1,214 @@
+package org.mozilla.mozstumbler.service.utils;
+
+import android.location.Location;
+import android.telephony.TelephonyManager;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mozilla.mozstumbler.service.stumblerthread.datahandling.PackedReportReader;
+import org.mozilla.mozstumbler.service.stumblerthread.datahandling.PackedReportWriter;
+import org.mozilla.mozstumbler.service.stumblerthread.datahandling.ReportBatchBuilder;
+import org.mozilla.mozstumbler.service.stumblerthread.datahandling.StumblerBundle;
+import org.mozilla.mozstumbler.service.stumblerthread.scanners.cellscanner.CellInfo;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import static junit.framework.Assert.assertTrue;
+import static junit.framework.Assert.fail;
+import static org.mozilla.mozstumbler.service.stumblerthread.ReporterTest.createCellInfo;
+import static org.mozilla.mozstumbler.service.stumblerthread.ReporterTest.createScanResult;
+
+@Config(emulateSdk = 18)
+@RunWith(RobolectricTestRunner.class)
+public class CompressionCodecTest {
+    private static final int[] OUIS = { 0x001a2b, 0x00223f, 0xf4f26d, 0x1c7ee5, 0xc83a35, 0x002275, 0x3c0754,
+            0xe8de27, 0x0024a5, 0x001f33, 0x90f652, 0x5cf4ab };
+    // 1, 6 and 11 are the usual choices
+    private static final int[] CHANNELS_24 = { 2412, 2437, 2462, 2412, 2437, 2462, 2417, 2422, 2427, 2432, 2442,
+            2447, 2452, 2457, 2467, 2472 };
+    private static final int[] CHANNELS_5 = { 5180, 5200, 5220, 5240, 5260, 5280, 5300, 5320, 5500, 5745, 5765,
+            5785, 5805 };
+
+    /* Batches of packed reports from a walk down a long street: APs along the way are seen
+     * by several fixes in a row, with the signal following the distance, and a few cells. */
+    static ArrayList<byte[]> createCorpus(long seed, int batches, int reportsPerBatch) {
+        Random random = new Random(seed);
+        int apCount = 4500;
+        double[] apX = new double[apCount];
+        double[] apY = new double[apCount];
+        String[] apBssid = new String[apCount];
+        int[] apFreq = new int[apCount];
+        for (int i = 0; i < apCount; i++) {
+            apX[i] = random.nextDouble() * 30000;
+            apY[i] = (random.nextDouble() - 0.5) * 200;
+            long bssid = ((long) OUIS[random.nextInt(OUIS.length)] << 24) | random.nextInt(1 << 24);
+            apBssid[i] = String.format("%012x", bssid);
+            apFreq[i] = random.nextInt(10) < 7 ? CHANNELS_24[random.nextInt(CHANNELS_24.length)]
+                                                : CHANNELS_5[random.nextInt(CHANNELS_5.length)];
+        }
+
+        ArrayList<byte[]> corpus = new ArrayList<byte[]>();
+        PackedReportWriter writer = new PackedReportWriter();
+        double x = 0;
+        long time = 1406863343313L + random.nextInt(1000000);
+        for (int b = 0; b < batches; b++) {
+            ByteArrayOutputStream batch = new ByteArrayOutputStream();
+            batch.write(PackedReportWriter.BATCH_MAGIC, 0, PackedReportWriter.BATCH_MAGIC.length);
+            batch.write(PackedReportWriter.FORMAT_VERSION);
+            for (int r = 0; r < reportsPerBatch; r++) {
+                x += 10 + random.nextDouble() * 10;
+                time += 2000 + random.nextInt(8000);
+                Location loc = new Location("gps");
+                loc.setTime(time);
+                loc.setLatitude(42.3601 + x / 111000.0);
+                loc.setLongitude(-71.0589 + random.nextGaussian() * 0.0002);
+                loc.setAccuracy(5 + random.nextInt(20));
+                loc.setAltitude(20 + random.nextGaussian() * 5);
+                StumblerBundle bundle = new StumblerBundle(loc, TelephonyManager.PHONE_TYPE_GSM);
+                for (int i = 0; i < apCount; i++) {
+                    double d = Math.hypot(apX[i] - x, apY[i]);
+                    if (d < 120) {
+                        int level = (int) (-35 - d * 0.45 + random.nextGaussian() * 4);
+                        bundle.addWifiData(apBssid[i], createScanResult(apBssid[i], "[WPA2-PSK-CCMP][ESS]", level, apFreq[i], 10));
+                    }
+                }
+                int tower = (int) (x / 1500);
+                for (int c = 0; c < 1 + random.nextInt(3); c++) {
+                    CellInfo cell = createCellInfo(310, 410, 5000 + tower / 4, 20000 + tower + c, 8 + random.nextInt(20));
+                    bundle.addCellData(cell.getCellKey(), cell);
+                }
+                byte[] record = writer.reset().writeBundle(bundle).toByteArray();
+                int length = record.length;
+                while (length >= 0x80) {
+                    batch.write((length & 0x7f) | 0x80);
+                    length >>>= 7;
+                }
+                batch.write(length);
+                batch.write(record, 0, record.length);
+            }
+            corpus.add(batch.toByteArray());
+        }
+        return corpus;
+    }
+
+    private static byte[] sampleText() {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 500; i++) {
+            text.append("{\"key\":\"").append(Integer.toHexString(i * 7919)).append("\",\"signal\":-").append(i % 60).append('}');
+        }
+        return text.toString().getBytes();
+    }
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        byte[] data = sampleText();
+        for (CompressionCodec codec : new CompressionCodec[] {
+                GzipCodec.DEFAULT, new GzipCodec(1), DictionaryCodec.DEFAULT, new DictionaryCodec(9) }) {
+            byte[] compressed = codec.compress(data);
+            assertTrue(compressed.length < data.length);
+            assertTrue(Arrays.equals(data, CompressionCodec.decompressToBytes(compressed)));
+        }
+        assertTrue(Arrays.equals(new byte[0],
+                CompressionCodec.decompressToBytes(DictionaryCodec.DEFAULT.compress(new byte[0]))));
+    }
+
+    @Test
+    public void testGzipIsStandard() throws IOException {
+        byte[] data = sampleText();
+
+        // What goes on the wire can be read by anything that reads gzip
+        GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(GzipCodec.DEFAULT.compress(data)));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) >= 0) {
+            out.write(b);
+        }
+        in.close();
+        assertTrue(Arrays.equals(data, out.toByteArray()));
+
+        // And batches stored before there were codecs are still read
+        ByteArrayOutputStream legacy = new ByteArrayOutputStream();
+        GZIPOutputStream gzip = new GZIPOutputStream(legacy);
+        gzip.write(data);
+        gzip.close();
+        assertTrue(Arrays.equals(data, CompressionCodec.decompressToBytes(legacy.toByteArray())));
+    }
+
+    @Test
+    public void testCorruptionIsDetected() {
+        byte[] compressed = DictionaryCodec.DEFAULT.compress(sampleText());
+        compressed[compressed.length - 3]++;
+        try {
+            CompressionCodec.decompressToBytes(compressed);
+            fail("Expected a checksum error");
+        } catch (IOException expected) {
+        }
+
+        try {
+            CompressionCodec.decompressToBytes(new byte[] { 'x', 'y', 'z', 0, 0, 0, 0, 0, 0, 0, 0, 0 });
+            fail("Expected an unknown codec");
+        } catch (IOException expected) {
+        }
+    }
+
+    private static long[] measure(CompressionCodec codec, ArrayList<byte[]> corpus) {
+        // Warm up, then time
+        for (byte[] batch : corpus) {
+            codec.compress(batch);
+        }
+        long raw = 0;
+        long compressed = 0;
+        long start = System.nanoTime();
+        for (int round = 0; round < 3; round++) {
+            for (byte[] batch : corpus) {
+                raw += batch.length;
+                compressed += codec.compress(batch).length;
+            }
+        }
+        long micros = (System.nanoTime() - start) / 1000;
+        int batches = 3 * corpus.size();
+        return new long[] { raw / batches, compressed / batches, micros / batches };
+    }
+
+    @Test
+    public void benchmarkBatchCompression() throws IOException {
+        System.out.println("Stored batch compression (packed reports, bytes per batch, us per batch)");
+        for (int reportsPerBatch : new int[] { 5, 20, ReportBatchBuilder.MAX_REPORTS_IN_MEMORY }) {
+            ArrayList<byte[]> corpus = createCorpus(1, 40, reportsPerBatch);
+            long gzipDefault = 0;
+            long dictionaryDefault = 0;
+            for (int level : new int[] { 1, Deflater.DEFAULT_COMPRESSION, 9 }) {
+                long[] gzip = measure(new GzipCodec(level), corpus);
+                long[] dictionary = measure(new DictionaryCodec(level), corpus);
+                System.out.println(String.format(
+                        "  %2d reports, level %2d: %5d raw, gzip %5d (%4.1f%%) %5d us, dictionary %5d (%4.1f%%) %5d us",
+                        reportsPerBatch, level, gzip[0],
+                        gzip[1], 100.0 * gzip[1] / gzip[0], gzip[2],
+                        dictionary[1], 100.0 * dictionary[1] / dictionary[0], dictionary[2]));
+                if (level == Deflater.DEFAULT_COMPRESSION) {
+                    gzipDefault = gzip[1];
+                    dictionaryDefault = dictionary[1];
+                }
+            }
+            assertTrue(dictionaryDefault < gzipDefault);
+
+            // For comparison, the upload body those batches turn into
+            PackedReportReader reader = new PackedReportReader();
+            long body = 0;
+            for (byte[] batch : corpus) {
+                body += reader.toSubmitBody(GzipCodec.DEFAULT.compress(batch)).length;
+            }
+            System.out.println(String.format("  %2d reports: gzipped JSON upload body %5d", reportsPerBatch, body / corpus.size()));
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package org.mozilla.mozstumbler.service.utils;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+
+@Config(emulateSdk = 18)
+@RunWith(RobolectricTestRunner.class)
+public class HyperLogLogTest {
+
+    // Sequential BSSIDs from one vendor prefix, the worst case for a weak hash
+    private static long bssid(int i) {
+        return 0xabcd00000000L | i;
+    }
+
+    @Test
+    public void testSmallCountsAreNearlyExact() {
+        HyperLogLog hll = HyperLogLog.forRelativeError(0.02);
+        assertEquals(0, hll.count());
+        for (int i = 0; i < 100; i++) {
+            hll.add(bssid(i));
+        }
+        assertTrue(Math.abs(hll.count() - 100) <= 2);
+
+        hll.clear();
+        assertEquals(0, hll.count());
+        hll.add(0);
+        assertEquals(1, hll.count());
+    }
+
+    @Test
+    public void testDuplicatesAreNotCounted() {
+        HyperLogLog hll = new HyperLogLog(10);
+        for (int i = 0; i < 5000; i++) {
+            hll.add(bssid(i));
+        }
+        final int count = hll.count();
+        for (int i = 0; i < 5000; i++) {
+            assertFalse(hll.add(bssid(i)));
+        }
+        assertEquals(count, hll.count());
+    }
+
+    @Test
+    public void testErrorTargetAndConstantSize() {
+        final double[] targets = {0.05, 0.02, 0.01};
+        for (double target : targets) {
+            HyperLogLog hll = HyperLogLog.forRelativeError(target);
+            assertTrue(hll.getRelativeError() <= target);
+            final int size = hll.getSizeInBytes();
+
+            final int kKeys = 200000;
+            for (int i = 0; i < kKeys; i++) {
+                hll.add(bssid(i));
+            }
+            final double error = Math.abs(hll.count() - kKeys) / (double) kKeys;
+            // 3 standard errors, so this doesn't fail by chance
+            assertTrue("error " + error + " for target " + target, error < 3 * hll.getRelativeError());
+            assertEquals(size, hll.getSizeInBytes());
+        }
+    }
+
+    @Test
+    public void testAddAllMatchesAdd() {
+        LongObjectHashMap<String> map = new LongObjectHashMap<String>();
+        HyperLogLog expected = new HyperLogLog(12);
+        for (int i = 0; i < 300; i++) {
+            map.put(bssid(i * 7), "ap");
+            expected.add(bssid(i * 7));
+        }
+        map.put(0, "zero");
+        expected.add(0);
+
+        HyperLogLog hll = new HyperLogLog(12);
+        hll.addAll(map);
+        assertEquals(expected.count(), hll.count());
+    }
+}
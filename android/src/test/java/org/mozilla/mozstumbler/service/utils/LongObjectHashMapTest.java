@@ -0,0 +1,88 @@
+package org.mozilla.mozstumbler.service.utils;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Random;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+
+@Config(emulateSdk = 18)
+@RunWith(RobolectricTestRunner.class)
+public class LongObjectHashMapTest {
+
+    @Test
+    public void testMatchesHashMap() {
+        LongObjectHashMap<String> map = new LongObjectHashMap<String>();
+        HashMap<Long, String> expected = new HashMap<Long, String>();
+        Random random = new Random(42);
+
+        // 48-bit keys from a handful of "vendors", like BSSIDs, plus 0
+        for (int i = 0; i < 5000; i++) {
+            long key = ((long) random.nextInt(8) << 24 | random.nextInt(1 << 12)) & 0xffffffffffffL;
+            if (i == 100) {
+                key = 0;
+            }
+            String value = "v" + i;
+            assertEquals(expected.put(key, value), map.put(key, value));
+        }
+
+        assertEquals(expected.size(), map.size());
+        for (Long key : expected.keySet()) {
+            assertTrue(map.containsKey(key));
+            assertEquals(expected.get(key), map.get(key));
+        }
+        assertNull(map.get(0xabcdef000000L));
+
+        int count = 0;
+        for (int i = map.nextSlot(-1); i >= 0; i = map.nextSlot(i)) {
+            assertEquals(expected.get(map.keyAt(i)), map.valueAt(i));
+            count++;
+        }
+        assertEquals(expected.size(), count);
+
+        HashSet<String> values = new HashSet<String>();
+        for (String value : map.values()) {
+            values.add(value);
+        }
+        assertEquals(new HashSet<String>(expected.values()), values);
+
+        map.clear();
+        assertEquals(0, map.size());
+        assertFalse(map.containsKey(0));
+        assertFalse(map.values().iterator().hasNext());
+    }
+
+    @Test
+    public void testLongHashSet() {
+        LongHashSet set = new LongHashSet();
+        HashSet<Long> expected = new HashSet<Long>();
+        Random random = new Random(7);
+
+        for (int i = 0; i < 20000; i++) {
+            long key = random.nextInt(30000) | 0xabcd00000000L;
+            assertEquals(expected.add(key), set.add(key));
+        }
+        assertEquals(expected.size(), set.size());
+        for (Long key : expected) {
+            assertTrue(set.contains(key));
+        }
+        assertFalse(set.contains(0));
+        assertTrue(set.add(0));
+        assertFalse(set.add(0));
+
+        LongObjectHashMap<String> map = new LongObjectHashMap<String>();
+        map.put(1, "a");
+        map.put(0xabcd00000000L | 40000, "b");
+        set.addAll(map);
+        assertEquals(expected.size() + 3, set.size());
+        assertTrue(set.contains(1));
+    }
+}
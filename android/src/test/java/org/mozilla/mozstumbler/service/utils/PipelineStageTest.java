@@ -0,0 +1,184 @@
+package org.mozilla.mozstumbler.service.utils;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+
+@Config(emulateSdk = 18)
+@RunWith(RobolectricTestRunner.class)
+public class PipelineStageTest {
+
+    @Test
+    public void testProcessesInOrderAndDrains() {
+        final List<Integer> processed = Collections.synchronizedList(new ArrayList<Integer>());
+        PipelineStage<Integer> stage = new PipelineStage<Integer>("test", 4, new PipelineStage.Processor<Integer>() {
+            @Override
+            public void process(Integer item) {
+                processed.add(item);
+            }
+        });
+
+        for (int i = 0; i < 100; i++) {
+            stage.submit(i);
+        }
+        stage.drain();
+
+        assertEquals(100, processed.size());
+        for (int i = 0; i < 100; i++) {
+            assertEquals(i, (int) processed.get(i));
+        }
+        assertEquals(100, stage.getSubmittedCount());
+        assertTrue(stage.getMaxQueueDepth() <= 4);
+    }
+
+    @Test
+    public void testBackpressureIsCounted() throws InterruptedException {
+        final CountDownLatch release = new CountDownLatch(1);
+        final List<Integer> processed = Collections.synchronizedList(new ArrayList<Integer>());
+        final PipelineStage<Integer> stage = new PipelineStage<Integer>("test", 1, new PipelineStage.Processor<Integer>() {
+            @Override
+            public void process(Integer item) {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+                processed.add(item);
+            }
+        });
+
+        // The worker holds one item and the queue one more, the third submit has to wait
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < 3; i++) {
+                    stage.submit(i);
+                }
+            }
+        });
+        producer.start();
+
+        while (stage.getBlockedCount() == 0) {
+            Thread.sleep(5);
+        }
+        release.countDown();
+        producer.join();
+        stage.drain();
+
+        assertEquals(3, processed.size());
+        assertTrue(stage.getBlockedCount() >= 1);
+    }
+
+    @Test
+    public void testOfferDoesNotWait() throws InterruptedException {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final List<Integer> processed = Collections.synchronizedList(new ArrayList<Integer>());
+        final PipelineStage<Integer> stage = new PipelineStage<Integer>("test", 1, new PipelineStage.Processor<Integer>() {
+            @Override
+            public void process(Integer item) {
+                started.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+                processed.add(item);
+            }
+        });
+
+        // The worker holds one item and the queue one more, a third is turned away
+        assertTrue(stage.offer(0));
+        started.await();
+        assertTrue(stage.offer(1));
+        assertFalse(stage.offer(2));
+        release.countDown();
+        stage.drain();
+
+        assertEquals(Arrays.asList(0, 1), processed);
+        assertEquals(2, stage.getSubmittedCount());
+        assertEquals(0, stage.getBlockedCount());
+    }
+
+    @Test
+    public void testShutdownDrainsAndSubmitRestarts() {
+        final List<Integer> processed = Collections.synchronizedList(new ArrayList<Integer>());
+        PipelineStage<Integer> stage = new PipelineStage<Integer>("test", 8, new PipelineStage.Processor<Integer>() {
+            @Override
+            public void process(Integer item) {
+                if (item == 1) {
+                    throw new IllegalStateException("a failing item doesn't stop the stage");
+                }
+                processed.add(item);
+            }
+        });
+
+        stage.submit(0);
+        stage.submit(1);
+        stage.submit(2);
+        stage.shutdown();
+        assertEquals(2, processed.size());
+
+        stage.submit(3);
+        stage.drain();
+        assertEquals(3, processed.size());
+        stage.shutdown();
+    }
+
+    @Test
+    public void testShutdownRacingSubmitsKeepsOneWorker() throws InterruptedException {
+        final int items = 2000;
+        final AtomicInteger active = new AtomicInteger();
+        final AtomicInteger maxActive = new AtomicInteger();
+        final AtomicInteger interrupted = new AtomicInteger();
+        final List<Integer> processed = Collections.synchronizedList(new ArrayList<Integer>());
+        final PipelineStage<Integer> stage = new PipelineStage<Integer>("test", 4, new PipelineStage.Processor<Integer>() {
+            @Override
+            public void process(Integer item) {
+                final int now = active.incrementAndGet();
+                synchronized (maxActive) {
+                    maxActive.set(Math.max(maxActive.get(), now));
+                }
+                if (Thread.currentThread().isInterrupted()) {
+                    interrupted.incrementAndGet();
+                }
+                processed.add(item);
+                active.decrementAndGet();
+            }
+        });
+
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < items; i++) {
+                    stage.submit(i);
+                }
+            }
+        });
+        producer.start();
+        while (producer.isAlive()) {
+            stage.shutdown();
+        }
+        producer.join();
+        stage.shutdown();
+
+        assertEquals(items, processed.size());
+        for (int i = 0; i < items; i++) {
+            assertEquals(i, (int) processed.get(i));
+        }
+        assertEquals(1, maxActive.get());
+        assertEquals(0, interrupted.get());
+    }
+}
@@ -0,0 +1,126 @@
+package org.mozilla.mozstumbler.service.utils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+
+@Config(emulateSdk = 18)
+@RunWith(RobolectricTestRunner.class)
+public class SchedulerTest {
+    private Scheduler mScheduler;
+
+    @Before
+    public void setUp() {
+        mScheduler = new Scheduler();
+    }
+
+    @After
+    public void tearDown() {
+        mScheduler.shutdown();
+    }
+
+    @Test
+    public void testCoalescingTaskRunsOnceAfterLastSchedule() throws InterruptedException {
+        final AtomicInteger runs = new AtomicInteger();
+        final CountDownLatch ran = new CountDownLatch(1);
+        Scheduler.CoalescingTask task = mScheduler.createCoalescingTask(new Runnable() {
+            @Override
+            public void run() {
+                runs.incrementAndGet();
+                ran.countDown();
+            }
+        }, 50);
+
+        final long start = System.nanoTime();
+        for (int i = 0; i < 10; i++) {
+            task.schedule();
+            Thread.sleep(10);
+        }
+        final long lastSchedule = System.nanoTime();
+        assertTrue(ran.await(2, TimeUnit.SECONDS));
+        final long end = System.nanoTime();
+
+        // Not 50ms after the first call, 50ms after the last
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(end - start) >= 100);
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(end - lastSchedule) >= 40);
+        Thread.sleep(100);
+        assertEquals(1, runs.get());
+        assertFalse(task.isScheduled());
+    }
+
+    @Test
+    public void testCoalescingTaskCancel() throws InterruptedException {
+        final AtomicInteger runs = new AtomicInteger();
+        Scheduler.CoalescingTask task = mScheduler.createCoalescingTask(new Runnable() {
+            @Override
+            public void run() {
+                runs.incrementAndGet();
+            }
+        }, 20);
+
+        task.schedule();
+        task.cancel();
+        assertFalse(task.isScheduled());
+        Thread.sleep(100);
+        assertEquals(0, runs.get());
+
+        // Usable again after a cancel
+        task.schedule();
+        Thread.sleep(100);
+        assertEquals(1, runs.get());
+    }
+
+    @Test
+    public void testPeriodicTaskSurvivesExceptionsAndCancels() throws InterruptedException {
+        final AtomicInteger runs = new AtomicInteger();
+        final CountDownLatch ranThrice = new CountDownLatch(3);
+        ScheduledFuture<?> future = mScheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                runs.incrementAndGet();
+                ranThrice.countDown();
+                throw new IllegalStateException("test");
+            }
+        }, 0, 5);
+
+        assertTrue(ranThrice.await(2, TimeUnit.SECONDS));
+        future.cancel(false);
+        Thread.sleep(20);
+        final int count = runs.get();
+        Thread.sleep(50);
+        assertEquals(count, runs.get());
+    }
+
+    @Test
+    public void testTasksShareOneThread() throws InterruptedException {
+        final Set<Thread> threads = Collections.synchronizedSet(new HashSet<Thread>());
+        final CountDownLatch done = new CountDownLatch(20);
+        for (int i = 0; i < 20; i++) {
+            mScheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    threads.add(Thread.currentThread());
+                    done.countDown();
+                }
+            }, i % 3);
+        }
+        assertTrue(done.await(2, TimeUnit.SECONDS));
+        assertEquals(1, threads.size());
+        assertTrue(threads.iterator().next().isDaemon());
+    }
+}